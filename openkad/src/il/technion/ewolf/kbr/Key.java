@@ -10,16 +10,61 @@ import org.apache.commons.codec.binary.Base64;
  * Identifier for nodes. Use {@link KeyFactory} to generate instances of this
  * class.
  * 
+ * Keys are immutable: the hash code is calculated once and the color is
+ * cached after its first calculation. Keys of the common 20 bytes length
+ * are also kept packed into longs, which makes equals and distance
+ * comparisons of such keys a few word operations.
+ * 
  * @author eyal.kibbar@gmail.com
  */
 public class Key implements Serializable, Comparable<Key> {
 
 	private static final long serialVersionUID = 4137662182397711129L;
-	private int color;
+	// length in bytes of the keys that are packed into longs
+	private static final int PACKED_LENGTH = 20;
+
 	private final byte[] bytes;
+	private final transient int hash;
+	private final transient boolean isPacked;
+	private final transient long w0;
+	private final transient long w1;
+	private final transient long w2;
+	// nrColors in the high 32 bits and the color in the low 32 bits,
+	// 0 if the color was not calculated yet
+	private transient volatile long colorCache = 0;
 
+	/**
+	 * @param bytes the key's bytes, must not be modified afterwards
+	 */
 	public Key(final byte[] bytes) {
 		this.bytes = bytes;
+		this.hash = Arrays.hashCode(bytes);
+		this.isPacked = bytes.length == PACKED_LENGTH;
+		if (this.isPacked) {
+			this.w0 = pack(bytes, 0, 8);
+			this.w1 = pack(bytes, 8, 8);
+			this.w2 = pack(bytes, 16, 4);
+		} else {
+			this.w0 = this.w1 = this.w2 = 0;
+		}
+	}
+
+	private static long pack(final byte[] b, final int from, final int len) {
+		long $ = 0;
+		for (int i = from; i < from + len; ++i)
+			$ = ($ << 8) | (b[i] & 0xFF);
+		return $;
+	}
+
+	private static int compareUnsigned(final long x, final long y) {
+		if (x == y)
+			return 0;
+		return (x ^ Long.MIN_VALUE) < (y ^ Long.MIN_VALUE) ? -1 : 1;
+	}
+
+	// deserialized keys are re-created so the transient fields are calculated
+	private Object readResolve() {
+		return new Key(this.bytes);
 	}
 	/**
 	 * Check if a key is 0 key
@@ -41,14 +86,26 @@ public class Key implements Serializable, Comparable<Key> {
 	 * @return the calculated color
 	 */
 	public int getColor(final int nrColors) {
-		if (this.color < 0)
-			this.color = Math.abs(getInt().intValue()) % nrColors;
-		return this.color;
+		final long c = this.colorCache;
+		if ((int) (c >>> 32) == nrColors)
+			return (int) c;
+
+		final int $ = Math.abs(lowInt()) % nrColors;
+		this.colorCache = ((long) nrColors << 32) | ($ & 0xFFFFFFFFL);
+		return $;
+	}
+
+	// same as getInt().intValue() without the allocation
+	private int lowInt() {
+		int $ = 0;
+		for (int i = Math.max(0, this.bytes.length - 4); i < this.bytes.length; ++i)
+			$ = ($ << 8) | (this.bytes[i] & 0xFF);
+		return $;
 	}
 
 	/**
 	 * 
-	 * @return all the key's bytes
+	 * @return all the key's bytes, must not be modified
 	 */
 	public byte[] getBytes() {
 		return this.bytes;
@@ -91,6 +148,74 @@ public class Key implements Serializable, Comparable<Key> {
 		return -1;
 	}
 
+	/**
+	 * Compares the XOR distance of two keys from this key without
+	 * allocating anything.
+	 * 
+	 * @param k1
+	 *            a key
+	 * @param k2
+	 *            another key
+	 * @return a negative number if k1 is closer to this key than k2, a
+	 *         positive number if k2 is closer and 0 if k1 equals k2
+	 */
+	public int distanceCompare(final Key k1, final Key k2) {
+		if (this.isPacked && k1.isPacked && k2.isPacked) {
+			int $ = compareUnsigned(k1.w0 ^ this.w0, k2.w0 ^ this.w0);
+			if ($ != 0)
+				return $;
+			$ = compareUnsigned(k1.w1 ^ this.w1, k2.w1 ^ this.w1);
+			if ($ != 0)
+				return $;
+			return compareUnsigned(k1.w2 ^ this.w2, k2.w2 ^ this.w2);
+		}
+
+		final byte[] t = this.bytes;
+		final byte[] b1 = k1.bytes;
+		final byte[] b2 = k2.bytes;
+		if (b1.length != t.length || b2.length != t.length)
+			throw new IllegalArgumentException("incompatable keys for distance compare");
+
+		for (int i = 0; i < t.length; ++i) {
+			final int d1 = (b1[i] ^ t[i]) & 0xFF;
+			final int d2 = (b2[i] ^ t[i]) & 0xFF;
+			if (d1 != d2)
+				return d1 < d2 ? -1 : 1;
+		}
+		return 0;
+	}
+
+	/**
+	 * @param k
+	 *            another key
+	 * @return number of leading bits this key and the given key have in
+	 *         common, getBitLength() if the keys are equal
+	 */
+	public int commonPrefixLength(final Key k) {
+		if (this.isPacked && k.isPacked) {
+			long x = this.w0 ^ k.w0;
+			if (x != 0)
+				return Long.numberOfLeadingZeros(x);
+			x = this.w1 ^ k.w1;
+			if (x != 0)
+				return 64 + Long.numberOfLeadingZeros(x);
+			x = this.w2 ^ k.w2;
+			// w2 holds only 32 bits
+			return x != 0 ? 128 + Long.numberOfLeadingZeros(x) - 32 : getBitLength();
+		}
+
+		final byte[] b = k.bytes;
+		if (b.length != this.bytes.length)
+			throw new IllegalArgumentException("incompatable key for common prefix");
+
+		for (int i = 0; i < b.length; ++i) {
+			final int x = (this.bytes[i] ^ b[i]) & 0xFF;
+			if (x != 0)
+				return i * 8 + Integer.numberOfLeadingZeros(x) - 24;
+		}
+		return getBitLength();
+	}
+
 	/**
 	 * @return length of key in bits
 	 */
@@ -108,14 +233,21 @@ public class Key implements Serializable, Comparable<Key> {
 
 	@Override
 	public boolean equals(final Object o) {
+		if (o == this)
+			return true;
 		if (o == null || !getClass().equals(o.getClass()))
 			return false;
-		return Arrays.equals(getBytes(), ((Key) o).getBytes());
+		final Key k = (Key) o;
+		if (this.hash != k.hash)
+			return false;
+		if (this.isPacked && k.isPacked)
+			return this.w0 == k.w0 && this.w1 == k.w1 && this.w2 == k.w2;
+		return Arrays.equals(this.bytes, k.bytes);
 	}
 
 	@Override
 	public int hashCode() {
-		return Arrays.hashCode(getBytes());
+		return this.hash;
 	}
 
 	/**
@@ -172,6 +304,25 @@ public class Key implements Serializable, Comparable<Key> {
 
 	@Override
 	public int compareTo(final Key arg0) {
-		return toString().compareTo(arg0.toString());
+		// unsigned lexicographic order of the bytes
+		if (this.isPacked && arg0.isPacked) {
+			int $ = compareUnsigned(this.w0, arg0.w0);
+			if ($ != 0)
+				return $;
+			$ = compareUnsigned(this.w1, arg0.w1);
+			if ($ != 0)
+				return $;
+			return compareUnsigned(this.w2, arg0.w2);
+		}
+
+		final byte[] b = arg0.bytes;
+		final int len = Math.min(this.bytes.length, b.length);
+		for (int i = 0; i < len; ++i) {
+			final int x = this.bytes[i] & 0xFF;
+			final int y = b[i] & 0xFF;
+			if (x != y)
+				return x < y ? -1 : 1;
+		}
+		return this.bytes.length - b.length;
 	}
 }
@@ -100,16 +100,13 @@ public interface KeybasedRouting {
 	 * Sends a message to the destination node and expects a response. The response is whatever
 	 * the destination's node {@link MessageHandler.onIncomingRequest} has returned.
 	 * 
-	 * This method is blocking ! the maximum number of outstanding requests (requests which the corresponding
-	 * responses haven't arrived yet) is openkad.net.concurrency. Thus, if you try to send more than this number
-	 * sendRequest will block until some responses are received (or timed out).
+	 * This method does not block. The maximum number of outstanding requests (requests which the corresponding
+	 * responses haven't arrived yet) is openkad.net.admission.max_inflight. If you try to send more than this number
+	 * the request is either queued until some responses are received (or timed out) or failed, according to
+	 * openkad.net.admission.policy.
 	 * 
 	 * The response can be retrieved using Future.get() method
 	 * 
-	 * Important: if you send messages to yourself (destination node = local node) than make sure
-	 * the concurrency factor (openkad.net.concurrency) is smaller than the number of client threads
-	 * (openkad.executors.client), otherwise you can have a deadlock.
-	 * 
 	 * @param to the destination node
 	 * @param tag message tag to be used in the destination node for invoking the correct handler
 	 * @param msg any arbitrary object
@@ -121,9 +118,10 @@ public interface KeybasedRouting {
 	 * Sends a message to the destination node and expects a response. The response is whatever
 	 * the destination's node {@link MessageHandler.onIncomingRequest} has returned.
 	 * 
-	 * This method is blocking ! the maximum number of outstanding requests (requests which the corresponding
-	 * responses haven't arrived yet) is openkad.net.concurrency. Thus, if you try to send more than this number
-	 * sendRequest will block until some responses are received (or timed out).
+	 * This method does not block. The maximum number of outstanding requests (requests which the corresponding
+	 * responses haven't arrived yet) is openkad.net.admission.max_inflight. If you try to send more than this number
+	 * the request is either queued until some responses are received (or timed out) or failed, according to
+	 * openkad.net.admission.policy.
 	 * 
 	 * The response will be received by calling the given handler completed method.
 	 * It is guaranteed that either handler.completed or handler.failed will be called after
@@ -0,0 +1,294 @@
+package il.technion.ewolf.kbr.concurrent;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A timer optimized for a large number of short lived timeouts that are
+ * usually cancelled before they expire, such as network request timeouts.
+ *
+ * Timeouts are kept in a wheel of buckets, each bucket covers one tick.
+ * Scheduling and cancelling are O(1): new and cancelled timeouts are queued
+ * and moved into (or unlinked from) their bucket by the worker thread on the
+ * next tick, so a cancelled timeout is released after at most one tick
+ * instead of staying in the timer until its original deadline.
+ *
+ * Expired tasks are executed by the single worker thread and should be short.
+ * The accuracy of a timeout is one tick.
+ *
+ * @author eyal.kibbar@gmail.com
+ *
+ */
+public class HashedWheelTimer {
+
+	/**
+	 * A handle to a scheduled task
+	 */
+	public static final class Timeout {
+
+		private static final int ST_INIT = 0;
+		private static final int ST_CANCELLED = 1;
+		private static final int ST_EXPIRED = 2;
+
+		private final HashedWheelTimer timer;
+		private final Runnable task;
+		private final long deadline;
+		private final AtomicInteger state = new AtomicInteger(ST_INIT);
+
+		// owned by the worker thread
+		private long remainingRounds;
+		private Bucket bucket;
+		private Timeout prev;
+		private Timeout next;
+
+		private Timeout(HashedWheelTimer timer, Runnable task, long deadline) {
+			this.timer = timer;
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * Cancels the task
+		 * @return true if the task was cancelled, false if it has already
+		 * expired or cancelled
+		 */
+		public boolean cancel() {
+			if (!state.compareAndSet(ST_INIT, ST_CANCELLED))
+				return false;
+			timer.cancelled.add(this);
+			return true;
+		}
+
+		public boolean isCancelled() {
+			return state.get() == ST_CANCELLED;
+		}
+
+		public boolean isExpired() {
+			return state.get() == ST_EXPIRED;
+		}
+
+		private boolean expire() {
+			if (!state.compareAndSet(ST_INIT, ST_EXPIRED))
+				return false;
+			try {
+				task.run();
+			} catch (Throwable t) {
+				t.printStackTrace();
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Doubly linked list of timeouts, accessed only by the worker thread
+	 */
+	private static final class Bucket {
+		private Timeout head;
+		private Timeout tail;
+
+		void add(Timeout t) {
+			t.bucket = this;
+			if (head == null) {
+				head = tail = t;
+			} else {
+				tail.next = t;
+				t.prev = tail;
+				tail = t;
+			}
+		}
+
+		Timeout remove(Timeout t) {
+			Timeout next = t.next;
+			if (t.prev != null)
+				t.prev.next = next;
+			if (next != null)
+				next.prev = t.prev;
+			if (t == head)
+				head = next;
+			if (t == tail)
+				tail = t.prev;
+			t.prev = t.next = null;
+			t.bucket = null;
+			return next;
+		}
+
+		int expire() {
+			int $ = 0;
+			Timeout t = head;
+			while (t != null) {
+				if (t.remainingRounds > 0) {
+					--t.remainingRounds;
+					t = t.next;
+					continue;
+				}
+				Timeout next = remove(t);
+				if (t.expire())
+					++$;
+				t = next;
+			}
+			return $;
+		}
+	}
+
+	// maximum number of new timeouts moved into the wheel in a single tick
+	private static final int MAX_TRANSFER = 100000;
+
+	private final long tickDuration;
+	private final Bucket[] wheel;
+	private final int mask;
+	private final String name;
+	private final Queue<Timeout> pending = new ConcurrentLinkedQueue<Timeout>();
+	private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<Timeout>();
+	private final AtomicBoolean isStarted = new AtomicBoolean(false);
+	private final AtomicLong nrTimeouts = new AtomicLong(0);
+
+	private volatile boolean isActive = true;
+	private volatile long startTime;
+	private Thread worker;
+	private long tick = 0;
+
+	/**
+	 * @param name the worker thread name
+	 * @param tickDuration the duration of a single tick
+	 * @param unit the unit of tickDuration
+	 * @param ticksPerWheel number of buckets in the wheel, rounded up to a power of 2
+	 */
+	public HashedWheelTimer(String name, long tickDuration, TimeUnit unit, int ticksPerWheel) {
+		if (tickDuration <= 0)
+			throw new IllegalArgumentException("tickDuration must be positive");
+		if (ticksPerWheel <= 0 || ticksPerWheel > (1 << 30))
+			throw new IllegalArgumentException("ticksPerWheel out of range");
+
+		int n = 1;
+		while (n < ticksPerWheel)
+			n <<= 1;
+
+		this.name = name;
+		this.tickDuration = unit.toNanos(tickDuration);
+		this.wheel = new Bucket[n];
+		for (int i = 0; i < n; ++i)
+			this.wheel[i] = new Bucket();
+		this.mask = n - 1;
+	}
+
+	private void start() {
+		if (!isStarted.compareAndSet(false, true)) {
+			// wait for the thread that won the race to set the start time
+			while (startTime == 0)
+				Thread.yield();
+			return;
+		}
+
+		long now = System.nanoTime();
+		// 0 means not started
+		startTime = now == 0 ? 1 : now;
+		worker = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				workerLoop();
+			}
+		}, name);
+		worker.setDaemon(true);
+		worker.start();
+	}
+
+	/**
+	 * Schedules a task
+	 * @param task the task to be executed
+	 * @param delay delay before executing the task
+	 * @param unit the unit of delay
+	 * @return a handle that can be used to cancel the task
+	 */
+	public Timeout newTimeout(Runnable task, long delay, TimeUnit unit) {
+		if (!isActive)
+			throw new IllegalStateException("timer was stopped");
+		start();
+
+		Timeout $ = new Timeout(this, task, System.nanoTime() - startTime + unit.toNanos(delay));
+		nrTimeouts.incrementAndGet();
+		pending.add($);
+		return $;
+	}
+
+	/**
+	 * @return number of timeouts that are neither expired nor released after
+	 * being cancelled
+	 */
+	public long getNrTimeouts() {
+		return nrTimeouts.get();
+	}
+
+	/**
+	 * Stops the worker thread, all pending tasks are discarded
+	 */
+	public void stop() {
+		isActive = false;
+		if (worker != null && Thread.currentThread() != worker) {
+			worker.interrupt();
+			try {
+				worker.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private void workerLoop() {
+		while (isActive) {
+			if (!waitForNextTick())
+				break;
+
+			removeCancelled();
+			transferPending();
+			int nrExpired = wheel[(int)(tick & mask)].expire();
+			nrTimeouts.addAndGet(-nrExpired);
+			++tick;
+		}
+	}
+
+	// returns false if the timer was stopped while waiting
+	private boolean waitForNextTick() {
+		long deadline = tickDuration * (tick + 1);
+		while (true) {
+			long sleepMillis = (deadline - (System.nanoTime() - startTime) + 999999) / 1000000;
+			if (sleepMillis <= 0)
+				return true;
+			try {
+				Thread.sleep(sleepMillis);
+			} catch (InterruptedException e) {
+				if (!isActive)
+					return false;
+			}
+		}
+	}
+
+	private void removeCancelled() {
+		Timeout t;
+		while ((t = cancelled.poll()) != null) {
+			if (t.bucket != null)
+				t.bucket.remove(t);
+			nrTimeouts.decrementAndGet();
+		}
+	}
+
+	private void transferPending() {
+		for (int i = 0; i < MAX_TRANSFER; ++i) {
+			Timeout t = pending.poll();
+			if (t == null)
+				break;
+			// cancelled before it was placed in the wheel
+			if (t.isCancelled())
+				continue;
+
+			long calculated = t.deadline / tickDuration;
+			t.remainingRounds = (calculated - tick) / wheel.length;
+			// already late, expire on this tick
+			long ticks = Math.max(calculated, tick);
+			wheel[(int)(ticks & mask)].add(t);
+		}
+	}
+}
@@ -1,88 +1,547 @@
 package il.technion.ewolf.kbr.openkad;
 
+import il.technion.ewolf.kbr.Key;
+import il.technion.ewolf.kbr.KeyFactory;
 import il.technion.ewolf.kbr.Node;
-import il.technion.ewolf.kbr.openkad.bucket.KadBuckets;
+import il.technion.ewolf.kbr.openkad.bucket.KBuckets;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.zip.CRC32;
 
 import com.google.inject.Inject;
 import com.google.inject.Provider;
 import com.google.inject.name.Named;
 
+/**
+ * Persists the routing table so a restarted node does not have to bootstrap
+ * from scratch.
+ *
+ * The table is saved as a binary snapshot (the checkpoint) followed by an
+ * append only journal of the contacts added to and removed from the table
+ * since the checkpoint. Every openkad.file.nodes.journal_interval millis the
+ * table is compared to what is already on disk and only the difference is
+ * appended to the journal. Every openkad.file.nodes.checkpoint_interval millis,
+ * or when the journal grows larger than the snapshot, a new snapshot is written
+ * to a temporary file and renamed over the old one, and a new journal is
+ * started.
+ *
+ * Snapshot: magic, version, generation, key length, number of nodes, the node
+ * records and a crc32 of all the preceding bytes.
+ * Journal: magic, version and the generation of the snapshot it follows,
+ * then (type, length, node record, crc32) records.
+ *
+ * Loading reads each file with a single sequential read. A snapshot with a bad
+ * checksum is ignored, a journal of another generation is ignored, and the
+ * journal is replayed up to its first torn or corrupted record, so a crash at
+ * any point loses at most the last journal interval.
+ * A file in the old java serialization format is still loaded, and replaced by
+ * a snapshot on the next checkpoint.
+ *
+ * @author eyal.kibbar@gmail.com
+ *
+ */
 public class BootstrapNodesSaver {
 
-	
-	private final KadBuckets kBuckets;
+	/**
+	 * The snapshot and journal format version, increment on any incompatible change
+	 */
+	public static final byte VERSION = 1;
+
+	private static final int SNAPSHOT_MAGIC = 0x4F4B534E; // OKSN
+	private static final int JOURNAL_MAGIC = 0x4F4B4A4E; // OKJN
+	// first bytes of a java serialization stream
+	private static final int LEGACY_MAGIC = 0xACED;
+
+	private static final int SNAPSHOT_HEADER_SIZE = 4 + 1 + 8 + 2 + 4;
+	private static final int JOURNAL_HEADER_SIZE = 4 + 1 + 8;
+	// type, payload length, crc32
+	private static final int JOURNAL_RECORD_OVERHEAD = 1 + 2 + 4;
+
+	// journal record types
+	private static final byte ADDED = 1;
+	private static final byte REMOVED = 2;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	// dependencies
+	private final KBuckets kBuckets;
 	private final Provider<KadNode> kadNodeProvider;
+	private final KeyFactory keyFactory;
+	private final String kadScheme;
 	private final File nodesFile;
-	
+	private final File journalFile;
+	private final File tmpFile;
+	private final Timer timer;
+	private final long journalInterval;
+	private final long checkpointInterval;
+
+	// state, all guarded by this
+	// the contacts on disk: the snapshot with the journal applied
+	private Map<Key, Node> persisted = new HashMap<Key, Node>();
+	private long generation = 0;
+	private int nrSnapshotNodes = 0;
+	private int nrJournalRecords = 0;
+	private long lastCheckpoint = 0;
+	private FileOutputStream journal = null;
+	private TimerTask task = null;
+
 	@Inject
 	BootstrapNodesSaver(
-			KadBuckets kBuckets,
+			KBuckets kBuckets,
 			Provider<KadNode> kadNodeProvider,
-			@Named("openkad.file.nodes") File nodesFile) {
-		
+			KeyFactory keyFactory,
+			@Named("openkad.scheme.name") String kadScheme,
+			@Named("openkad.file.nodes") File nodesFile,
+			@Named("openkad.timer") Timer timer,
+			@Named("openkad.file.nodes.journal_interval") long journalInterval,
+			@Named("openkad.file.nodes.checkpoint_interval") long checkpointInterval) {
+
 		this.kBuckets = kBuckets;
 		this.kadNodeProvider = kadNodeProvider;
+		this.keyFactory = keyFactory;
+		this.kadScheme = kadScheme;
 		this.nodesFile = nodesFile;
+		this.journalFile = new File(nodesFile.getPath() + ".journal");
+		this.tmpFile = new File(nodesFile.getPath() + ".tmp");
+		this.timer = timer;
+		this.journalInterval = journalInterval;
+		this.checkpointInterval = checkpointInterval;
+	}
+
+	/**
+	 * Starts journaling the changes in the routing table. Should be called
+	 * after {@link #load()}
+	 * @throws IOException if the journal could not be opened
+	 */
+	public synchronized void start() throws IOException {
+		if (task != null)
+			return;
+		openJournal();
+		lastCheckpoint = System.currentTimeMillis();
+
+		task = new TimerTask() {
+			@Override
+			public void run() {
+				try {
+					sync();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		};
+		timer.schedule(task, journalInterval, journalInterval);
+	}
+
+	/**
+	 * Stops journaling and writes a final checkpoint
+	 * @throws IOException if the checkpoint could not be written
+	 */
+	public void shutdown() throws IOException {
+		synchronized (this) {
+			if (task != null)
+				task.cancel();
+			task = null;
+		}
+		saveNow();
+	}
+
+	/**
+	 * Writes a checkpoint of the entire routing table and starts a new journal
+	 * @throws IOException if the snapshot could not be written
+	 */
+	public synchronized void saveNow() throws IOException {
+		Map<Key, Node> current = currentNodes();
+		writeSnapshot(current.values(), generation + 1);
+		++generation;
+		persisted = current;
+		nrSnapshotNodes = current.size();
+		lastCheckpoint = System.currentTimeMillis();
+
+		closeJournal();
+		if (task != null)
+			openJournal();
+	}
+
+	/**
+	 * Appends the changes since the last call to the journal, or writes a
+	 * checkpoint if it is time to
+	 */
+	private synchronized void sync() throws IOException {
+		if (task == null)
+			return;
+		if (checkpointInterval <= System.currentTimeMillis() - lastCheckpoint ||
+				Math.max(nrSnapshotNodes, 64) < nrJournalRecords) {
+			saveNow();
+			return;
+		}
+
+		Map<Key, Node> current = currentNodes();
+		ByteBuffer buf = ByteBuffer.allocate(1024);
+		int nrRecords = 0;
+		for (Node n : current.values()) {
+			Node old = persisted.get(n.getKey());
+			if (old == null || !sameAddress(old, n)) {
+				buf = appendRecord(buf, ADDED, n);
+				++nrRecords;
+			}
+		}
+		for (Node n : persisted.values()) {
+			if (!current.containsKey(n.getKey())) {
+				buf = appendRecord(buf, REMOVED, n);
+				++nrRecords;
+			}
+		}
+		if (nrRecords == 0)
+			return;
+
+		buf.flip();
+		FileChannel ch = journal.getChannel();
+		while (buf.hasRemaining())
+			ch.write(buf);
+		ch.force(false);
+
+		persisted = current;
+		nrJournalRecords += nrRecords;
 	}
-	
-	
-	public void start() {
-		
+
+	/**
+	 * Loads the nodes saved by a previous run into the routing table
+	 * @throws IOException if the files could not be read
+	 */
+	public synchronized void load() throws IOException {
+		Map<Key, Node> nodes = new LinkedHashMap<Key, Node>();
+		ByteBuffer snapshot = readFile(nodesFile);
+		if (snapshot.remaining() >= 2 && (snapshot.getShort(0) & 0xFFFF) == LEGACY_MAGIC)
+			readLegacy(snapshot, nodes);
+		else
+			readSnapshot(snapshot, nodes);
+		nrSnapshotNodes = nodes.size();
+		readJournal(readFile(journalFile), nodes);
+
+		persisted = new HashMap<Key, Node>(nodes);
+		for (Node n : nodes.values()) {
+			kBuckets.insert(kadNodeProvider.get().setNode(n));
+		}
+	}
+
+	private Map<Key, Node> currentNodes() {
+		List<Node> nodes = kBuckets.getAllNodes();
+		Map<Key, Node> $ = new HashMap<Key, Node>(nodes.size() * 2);
+		for (Node n : nodes)
+			$.put(n.getKey(), n);
+		return $;
+	}
+
+	private static boolean sameAddress(Node a, Node b) {
+		InetAddress addrA = a.getInetAddress();
+		InetAddress addrB = b.getInetAddress();
+		if (addrA == null ? addrB != null : !addrA.equals(addrB))
+			return false;
+		return a.getAllEndpoints().equals(b.getAllEndpoints());
+	}
+
+	/*
+	 * files
+	 */
+
+	private static ByteBuffer readFile(File f) throws IOException {
+		if (!f.exists() || f.length() == 0L)
+			return ByteBuffer.allocate(0);
+		FileInputStream in = new FileInputStream(f);
+		try {
+			FileChannel ch = in.getChannel();
+			ByteBuffer $ = ByteBuffer.allocate((int) ch.size());
+			while ($.hasRemaining() && ch.read($) >= 0)
+				;
+			$.flip();
+			return $;
+		} finally {
+			in.close();
+		}
 	}
-	
-	
-	public void saveNow() throws IOException {
-		FileOutputStream fout = null;
-		ObjectOutputStream oout = null;
+
+	private void writeSnapshot(Iterable<Node> nodes, long gen) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(4096);
+		buf.putInt(SNAPSHOT_MAGIC);
+		buf.put(VERSION);
+		buf.putLong(gen);
+		buf.putShort((short) keyFactory.getByteLength());
+		buf.putInt(0);
+		int nrNodes = 0;
+		for (Node n : nodes) {
+			buf = ensureCapacity(buf, recordSize(n));
+			writeNode(buf, n);
+			++nrNodes;
+		}
+		buf.putInt(SNAPSHOT_HEADER_SIZE - 4, nrNodes);
+
+		buf = ensureCapacity(buf, 4);
+		CRC32 crc = new CRC32();
+		crc.update(buf.array(), 0, buf.position());
+		buf.putInt((int) crc.getValue());
+		buf.flip();
+
+		// write the snapshot aside and atomically replace the old one, so
+		// there is always a complete snapshot on disk
+		FileOutputStream out = new FileOutputStream(tmpFile);
 		try {
-			fout = new FileOutputStream(nodesFile);
-			oout = new ObjectOutputStream(fout);
-			
-			oout.writeObject(kBuckets.getAllNodes());
-			
+			FileChannel ch = out.getChannel();
+			while (buf.hasRemaining())
+				ch.write(buf);
+			ch.force(true);
 		} finally {
-			if (oout != null)
-				oout.close();
-			if (fout != null)
-				fout.close();
+			out.close();
+		}
+		if (!tmpFile.renameTo(nodesFile)) {
+			// some platforms cannot rename over an existing file
+			nodesFile.delete();
+			if (!tmpFile.renameTo(nodesFile))
+				throw new IOException("could not replace " + nodesFile);
 		}
 	}
-	
-	
-	@SuppressWarnings("unchecked")
-	public void load() throws IOException {
-		if (nodesFile.length() == 0L)
+
+	private void readSnapshot(ByteBuffer buf, Map<Key, Node> nodes) {
+		generation = 0;
+		if (buf.remaining() < SNAPSHOT_HEADER_SIZE + 4 ||
+				buf.getInt(0) != SNAPSHOT_MAGIC ||
+				buf.get(4) != VERSION ||
+				buf.getShort(13) != keyFactory.getByteLength())
+			return;
+
+		CRC32 crc = new CRC32();
+		crc.update(buf.array(), 0, buf.limit() - 4);
+		if ((int) crc.getValue() != buf.getInt(buf.limit() - 4))
 			return;
-		
-		FileInputStream fin = null;
-		ObjectInputStream oin = null;
-		List<Node> nodes;
+
+		buf.position(5);
+		long gen = buf.getLong();
+		buf.getShort();
+		int nrNodes = buf.getInt();
+		buf.limit(buf.limit() - 4);
 		try {
-			fin = new FileInputStream(nodesFile);
-			oin = new ObjectInputStream(fin);
-			
-			nodes = (List<Node>) oin.readObject();
+			for (int i=0; i < nrNodes; ++i) {
+				Node n = readNode(buf);
+				nodes.put(n.getKey(), n);
+			}
+		} catch (Exception e) {
+			// checksum was fine, written by an incompatible version
+			nodes.clear();
+			return;
+		}
+		generation = gen;
+	}
+
+	@SuppressWarnings("unchecked")
+	private void readLegacy(ByteBuffer buf, Map<Key, Node> nodes) throws IOException {
+		generation = 0;
+		ObjectInputStream oin = new ObjectInputStream(
+				new ByteArrayInputStream(buf.array(), buf.position(), buf.remaining()));
+		try {
+			for (Node n : (List<Node>) oin.readObject())
+				nodes.put(n.getKey(), n);
 		} catch (ClassNotFoundException e) {
 			throw new IOException(e);
-			
 		} finally {
-			if (oin != null)
-				oin.close();
-			if (fin != null)
-				fin.close();
+			oin.close();
 		}
-		
-		for (Node n : nodes) {
-			kBuckets.insert(kadNodeProvider.get().setNode(n));
+	}
+
+	private void openJournal() throws IOException {
+		// keep the valid prefix of the journal of the current snapshot, the
+		// torn tail of a crashed run is cut off
+		long validLength = 0;
+		ByteBuffer buf = readFile(journalFile);
+		if (isCurrentJournal(buf)) {
+			validLength = JOURNAL_HEADER_SIZE + replayLength(buf);
+		}
+
+		RandomAccessFile raf = new RandomAccessFile(journalFile, "rw");
+		try {
+			raf.setLength(validLength);
+			if (validLength == 0) {
+				raf.writeInt(JOURNAL_MAGIC);
+				raf.writeByte(VERSION);
+				raf.writeLong(generation);
+				nrJournalRecords = 0;
+			}
+			raf.getFD().sync();
+		} finally {
+			raf.close();
+		}
+		journal = new FileOutputStream(journalFile, true);
+	}
+
+	private void closeJournal() throws IOException {
+		if (journal == null)
+			return;
+		journal.close();
+		journal = null;
+		// the journal belongs to the previous snapshot
+		journalFile.delete();
+	}
+
+	private boolean isCurrentJournal(ByteBuffer buf) {
+		return buf.remaining() >= JOURNAL_HEADER_SIZE &&
+				buf.getInt(0) == JOURNAL_MAGIC &&
+				buf.get(4) == VERSION &&
+				buf.getLong(5) == generation;
+	}
+
+	private void readJournal(ByteBuffer buf, Map<Key, Node> nodes) {
+		nrJournalRecords = 0;
+		if (!isCurrentJournal(buf))
+			return;
+		buf.position(JOURNAL_HEADER_SIZE);
+		replay(buf, nodes);
+	}
+
+	/**
+	 * @return number of bytes of valid records after the journal header
+	 */
+	private int replayLength(ByteBuffer buf) {
+		buf.position(JOURNAL_HEADER_SIZE);
+		return replay(buf, null);
+	}
+
+	/**
+	 * Applies the journal records to nodes, if not null, until the first
+	 * incomplete or corrupted record
+	 * @return number of bytes of the valid records
+	 */
+	private int replay(ByteBuffer buf, Map<Key, Node> nodes) {
+		int start = buf.position();
+		int validEnd = start;
+		CRC32 crc = new CRC32();
+		int nrRecords = 0;
+		while (buf.remaining() >= JOURNAL_RECORD_OVERHEAD) {
+			int recordStart = buf.position();
+			byte type = buf.get();
+			int len = buf.getShort() & 0xFFFF;
+			if (buf.remaining() < len + 4)
+				break;
+
+			crc.reset();
+			crc.update(buf.array(), recordStart, 3 + len);
+			if ((int) crc.getValue() != buf.getInt(recordStart + 3 + len))
+				break;
+
+			Node n;
+			try {
+				n = readNode((ByteBuffer) buf.slice().limit(len));
+			} catch (Exception e) {
+				break;
+			}
+			buf.position(recordStart + 3 + len + 4);
+
+			if (nodes != null) {
+				if (type == ADDED)
+					nodes.put(n.getKey(), n);
+				else if (type == REMOVED)
+					nodes.remove(n.getKey());
+			}
+			validEnd = buf.position();
+			++nrRecords;
+		}
+		nrJournalRecords = nrRecords;
+		return validEnd - start;
+	}
+
+	private ByteBuffer appendRecord(ByteBuffer buf, byte type, Node n) {
+		int len = recordSize(n);
+		buf = ensureCapacity(buf, JOURNAL_RECORD_OVERHEAD + len);
+		int recordStart = buf.position();
+		buf.put(type);
+		buf.putShort((short) len);
+		writeNode(buf, n);
+
+		CRC32 crc = new CRC32();
+		crc.update(buf.array(), recordStart, 3 + len);
+		buf.putInt((int) crc.getValue());
+		return buf;
+	}
+
+	private static ByteBuffer ensureCapacity(ByteBuffer buf, int size) {
+		if (buf.remaining() >= size)
+			return buf;
+		ByteBuffer $ = ByteBuffer.allocate(Math.max(buf.capacity() * 2, buf.position() + size));
+		buf.flip();
+		$.put(buf);
+		return $;
+	}
+
+	/*
+	 * node records: key, address length, address, number of endpoints and
+	 * (scheme, port) for each endpoint. The kad scheme is written as the empty
+	 * string
+	 */
+
+	private byte[] schemeBytes(String scheme) {
+		return kadScheme.equals(scheme) ? new byte[0] : scheme.getBytes(UTF8);
+	}
+
+	private int recordSize(Node n) {
+		InetAddress addr = n.getInetAddress();
+		int $ = keyFactory.getByteLength() + 1 + (addr == null ? 0 : addr.getAddress().length) + 1;
+		for (String scheme : n.getAllEndpoints().keySet())
+			$ += 1 + schemeBytes(scheme).length + 2;
+		return $;
+	}
+
+	private void writeNode(ByteBuffer buf, Node n) {
+		buf.put(n.getKey().getBytes());
+		InetAddress addr = n.getInetAddress();
+		byte[] addrBytes = addr == null ? new byte[0] : addr.getAddress();
+		buf.put((byte) addrBytes.length);
+		buf.put(addrBytes);
+
+		Map<String, Integer> endpoints = n.getAllEndpoints();
+		buf.put((byte) endpoints.size());
+		for (Map.Entry<String, Integer> e : endpoints.entrySet()) {
+			byte[] scheme = schemeBytes(e.getKey());
+			buf.put((byte) scheme.length);
+			buf.put(scheme);
+			buf.putShort(e.getValue().shortValue());
+		}
+	}
+
+	private Node readNode(ByteBuffer buf) throws IOException {
+		try {
+			byte[] key = new byte[keyFactory.getByteLength()];
+			buf.get(key);
+			Node $ = new Node(keyFactory.get(key));
+
+			byte[] addr = new byte[buf.get() & 0xFF];
+			buf.get(addr);
+			if (addr.length != 0)
+				$.setInetAddress(InetAddress.getByAddress(addr));
+
+			int nrEndpoints = buf.get() & 0xFF;
+			for (int i=0; i < nrEndpoints; ++i) {
+				byte[] scheme = new byte[buf.get() & 0xFF];
+				buf.get(scheme);
+				int port = buf.getShort() & 0xFFFF;
+				$.addEndpoint(scheme.length == 0 ? kadScheme : new String(scheme, UTF8), port);
+			}
+			return $;
+		} catch (BufferUnderflowException e) {
+			throw new IOException("truncated node record");
 		}
 	}
-	
 }
@@ -6,7 +6,10 @@ import il.technion.ewolf.kbr.KeybasedRouting;
 import il.technion.ewolf.kbr.MessageHandler;
 import il.technion.ewolf.kbr.Node;
 import il.technion.ewolf.kbr.concurrent.CompletionHandler;
+import il.technion.ewolf.kbr.concurrent.FutureCallback;
 import il.technion.ewolf.kbr.concurrent.FutureTransformer;
+import il.technion.ewolf.kbr.concurrent.HashedWheelTimer;
+import il.technion.ewolf.kbr.openkad.cache.HotKeyTracker;
 import il.technion.ewolf.kbr.openkad.handlers.FindNodeHandler;
 import il.technion.ewolf.kbr.openkad.handlers.ForwardHandler;
 import il.technion.ewolf.kbr.openkad.handlers.PingHandler;
@@ -22,6 +25,7 @@ import il.technion.ewolf.kbr.openkad.net.filter.TagMessageFilter;
 import il.technion.ewolf.kbr.openkad.net.filter.TypeMessageFilter;
 import il.technion.ewolf.kbr.openkad.op.FindValueOperation;
 import il.technion.ewolf.kbr.openkad.op.JoinOperation;
+import il.technion.ewolf.kbr.openkad.op.LookupCoalescer;
 
 import java.io.IOException;
 import java.io.Serializable;
@@ -33,6 +37,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.TimerTask;
 import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
 
@@ -63,7 +68,10 @@ public class KadNet implements KeybasedRouting {
 	private final ExecutorService clientExecutor;
 	private final int bucketSize;
 	private final TimerTask refreshTask;
+	private final HashedWheelTimer wheelTimer;
 	private final BootstrapNodesSaver bootstrapNodesSaver;
+	private final LookupCoalescer lookupCoalescer;
+	private final HotKeyTracker hotKeys;
 	
 	// testing
 	private final List<Integer> findNodeHopsHistogram;
@@ -91,7 +99,10 @@ public class KadNet implements KeybasedRouting {
 			@Named("openkad.executors.client") ExecutorService clientExecutor,
 			@Named("openkad.bucket.kbuckets.maxsize") int bucketSize,
 			@Named("openkad.refresh.task") TimerTask refreshTask,
+			@Named("openkad.timer.wheel") HashedWheelTimer wheelTimer,
 			BootstrapNodesSaver bootstrapNodesSaver,
+			LookupCoalescer lookupCoalescer,
+			HotKeyTracker hotKeys,
 			
 			//testing
 			@Named("openkad.testing.findNodeHopsHistogram") List<Integer> findNodeHopsHistogram) {
@@ -115,7 +126,10 @@ public class KadNet implements KeybasedRouting {
 		this.clientExecutor = clientExecutor;
 		this.bucketSize = bucketSize;
 		this.refreshTask = refreshTask;
+		this.wheelTimer = wheelTimer;
 		this.bootstrapNodesSaver = bootstrapNodesSaver;
+		this.lookupCoalescer = lookupCoalescer;
+		this.hotKeys = hotKeys;
 		
 		//testing
 		this.findNodeHopsHistogram = findNodeHopsHistogram;
@@ -149,11 +163,24 @@ public class KadNet implements KeybasedRouting {
 	
 	@Override
 	public List<Node> findNode(Key k) {
+		hotKeys.record(k);
 		FindValueOperation op = findValueOperationProvider.get()
 				.setKey(k);
-			
-		List<Node> result = op.doFindValue();
-		findNodeHopsHistogram.add(op.getNrQueried());
+		
+		// concurrent calls for the same key share a single operation
+		FutureCallback<LookupCoalescer.Result, Void> future = new FutureCallback<LookupCoalescer.Result, Void>();
+		boolean isStarted = lookupCoalescer.findValue(op, null, future);
+		
+		List<Node> result;
+		try {
+			result = future.get().getNodes();
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+		if (isStarted)
+			findNodeHopsHistogram.add(op.getNrQueried());
 		
 		List<Node> $ = new ArrayList<Node>(result);
 		
@@ -162,7 +189,7 @@ public class KadNet implements KeybasedRouting {
 		
 		//System.out.println(op.getNrQueried());
 		
-		return result;
+		return $;
 	}
 
 	@Override
@@ -272,12 +299,13 @@ public class KadNet implements KeybasedRouting {
 	@Override
 	public void shutdown() {
 		try {
-			bootstrapNodesSaver.saveNow();
+			bootstrapNodesSaver.shutdown();
 		} catch (IOException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
 		}
 		refreshTask.cancel();
 		kadServer.shutdown(kadServerThread);
+		wheelTimer.stop();
 	}
 }
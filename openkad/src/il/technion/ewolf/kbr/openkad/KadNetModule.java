@@ -5,12 +5,24 @@ import il.technion.ewolf.kbr.KeyFactory;
 import il.technion.ewolf.kbr.KeybasedRouting;
 import il.technion.ewolf.kbr.Node;
 import il.technion.ewolf.kbr.RandomKeyFactory;
+import il.technion.ewolf.kbr.concurrent.HashedWheelTimer;
 import il.technion.ewolf.kbr.openkad.bucket.Bucket;
+import il.technion.ewolf.kbr.openkad.bucket.CompactKBuckets;
 import il.technion.ewolf.kbr.openkad.bucket.KBuckets;
 import il.technion.ewolf.kbr.openkad.bucket.KadBuckets;
+import il.technion.ewolf.kbr.openkad.bucket.PingService;
 import il.technion.ewolf.kbr.openkad.bucket.StableBucket;
+import il.technion.ewolf.kbr.openkad.bucket.TreeKBuckets;
 import il.technion.ewolf.kbr.openkad.cache.DummyKadCache;
+import il.technion.ewolf.kbr.openkad.cache.FifoKadCache;
+import il.technion.ewolf.kbr.openkad.cache.HotKeyKadCache;
+import il.technion.ewolf.kbr.openkad.cache.HotKeyTracker;
 import il.technion.ewolf.kbr.openkad.cache.KadCache;
+import il.technion.ewolf.kbr.openkad.cache.LRUKadCache;
+import il.technion.ewolf.kbr.openkad.cache.LookupHintCache;
+import il.technion.ewolf.kbr.openkad.cache.OffHeapKadCache;
+import il.technion.ewolf.kbr.openkad.cache.TimeLimitedKadCache;
+import il.technion.ewolf.kbr.openkad.cache.TinyLfuKadCache;
 import il.technion.ewolf.kbr.openkad.handlers.FindNodeHandler;
 import il.technion.ewolf.kbr.openkad.handlers.ForwardHandler;
 import il.technion.ewolf.kbr.openkad.handlers.KademliaFindNodeHandler;
@@ -20,11 +32,17 @@ import il.technion.ewolf.kbr.openkad.msg.ContentRequest;
 import il.technion.ewolf.kbr.openkad.msg.FindNodeRequest;
 import il.technion.ewolf.kbr.openkad.msg.ForwardRequest;
 import il.technion.ewolf.kbr.openkad.msg.PingRequest;
+import il.technion.ewolf.kbr.openkad.net.AdmissionController;
+import il.technion.ewolf.kbr.openkad.net.BinaryKadSerializer;
 import il.technion.ewolf.kbr.openkad.net.Communicator;
 import il.technion.ewolf.kbr.openkad.net.JsonZippedKadSerializer;
+import il.technion.ewolf.kbr.openkad.net.KadChannelServer;
 import il.technion.ewolf.kbr.openkad.net.KadSerializer;
 import il.technion.ewolf.kbr.openkad.net.KadServer;
+import il.technion.ewolf.kbr.openkad.net.LivenessTracker;
+import il.technion.ewolf.kbr.openkad.net.MessageDispatchIndex;
 import il.technion.ewolf.kbr.openkad.net.MessageDispatcher;
+import il.technion.ewolf.kbr.openkad.net.RttEstimator;
 import il.technion.ewolf.kbr.openkad.op.EagerColorFindValueOperation;
 import il.technion.ewolf.kbr.openkad.op.FindNodeOperation;
 import il.technion.ewolf.kbr.openkad.op.FindValueOperation;
@@ -37,8 +55,10 @@ import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.nio.channels.DatagramChannel;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -90,31 +110,106 @@ public class KadNetModule extends AbstractModule {
 		// forwarding find node requests
 		defaultProps.setProperty("openkad.executors.forward.nrthreads", "2");
 		defaultProps.setProperty("openkad.executors.forward.max_pending", "2");
-		// executing the long find node operations
-		defaultProps.setProperty("openkad.executors.op.nrthreads", "1");
-		defaultProps.setProperty("openkad.executors.op.max_pending", "1");
-		// sending back pings
-		defaultProps.setProperty("openkad.executors.ping.nrthreads", "1");
-		defaultProps.setProperty("openkad.executors.ping.max_pending", "16");
+		// max number of find value operations running for forward requests
+		defaultProps.setProperty("openkad.op.forward.max_lookups", "64");
+		// time in millis a find value result is reused by callers searching
+		// for the same key, lookups in progress are always shared
+		defaultProps.setProperty("openkad.op.coalesce.window", "500");
+		// query nodes at about the same distance from the key by their round trip time
+		defaultProps.setProperty("openkad.op.lookup.prefer_low_rtt", "false");
+		// bucket liveness pings of the whole node: max pings per second, the
+		// interval between batches of pings and max number of queued pings
+		defaultProps.setProperty("openkad.ping.pps", "20");
+		defaultProps.setProperty("openkad.ping.batch_interval", "100");
+		defaultProps.setProperty("openkad.ping.max_pending", "256");
 		// cache settings
 		defaultProps.setProperty("openkad.cache.validtime", TimeUnit.HOURS.toMillis(10) + "");
 		defaultProps.setProperty("openkad.cache.size", "100");
+		// find node results cache: none (DummyKadCache), lru, fifo, tinylfu,
+		// timelimited or offheap
+		defaultProps.setProperty("openkad.cache.policy", "none");
+		// estimated max heap usage of the timelimited cache, and interval
+		// between removals of its expired entries
+		defaultProps.setProperty("openkad.cache.max_bytes", 16 * 1024 * 1024 + "");
+		defaultProps.setProperty("openkad.cache.sweep_interval", TimeUnit.SECONDS.toMillis(1) + "");
+		// size of each direct buffer holding the offheap cache's entries
+		defaultProps.setProperty("openkad.cache.offheap.slab_size", 1024 * 1024 + "");
+		// number of recent results of find value operations kept, and how long
+		// results and misses are used
+		defaultProps.setProperty("openkad.cache.hints.size", "1024");
+		defaultProps.setProperty("openkad.cache.hints.validtime", TimeUnit.SECONDS.toMillis(30) + "");
+		defaultProps.setProperty("openkad.cache.hints.negative_validtime", TimeUnit.SECONDS.toMillis(5) + "");
 		defaultProps.setProperty("openkad.cache.share", "1");
+		// number of recent searches of a key after which its results are
+		// pushed to other nodes' caches and admitted to the local cache,
+		// 0 pushes and admits all the results
+		defaultProps.setProperty("openkad.hotkeys.threshold", "2");
+		// counters per row of the hot keys sketch, also the number of searches
+		// after which its counts are halved, and number of top keys listed
+		defaultProps.setProperty("openkad.hotkeys.width", "16384");
+		defaultProps.setProperty("openkad.hotkeys.size", "32");
 		// minimum time between successive pings
 		defaultProps.setProperty("openkad.bucket.valid_timespan", TimeUnit.HOURS.toMillis(24) + "");
+		// minimum time between pings of nodes in the same bucket
+		defaultProps.setProperty("openkad.bucket.ping_interval", TimeUnit.SECONDS.toMillis(3) + "");
+		// number of recently seen nodes kept for replacing dead nodes in a full bucket
+		defaultProps.setProperty("openkad.bucket.replacements.maxsize", "10");
+		// replace dead nodes by the replacement with the lowest round trip time
+		// instead of the most recently seen replacement
+		defaultProps.setProperty("openkad.bucket.prefer_low_rtt", "false");
+		// routing table storage: objects (KadBuckets), compact (CompactKBuckets)
+		// or tree (TreeKBuckets)
+		defaultProps.setProperty("openkad.bucket.storage", "objects");
+		// number of times the tree buckets far from the local key may be split
+		defaultProps.setProperty("openkad.bucket.tree.extra_depth", "0");
 		// network timeouts and concurrency level
 		defaultProps.setProperty("openkad.net.concurrency", "3");
 		defaultProps.setProperty("openkad.net.timeout", TimeUnit.SECONDS.toMillis(3) + "");
 		defaultProps.setProperty("openkad.net.forwarded.timeout", TimeUnit.SECONDS.toMillis(30) + "");
+		// limit on requests of the whole node waiting for a response, beyond it
+		// requests are queued or failed (policy: queue or fail)
+		defaultProps.setProperty("openkad.net.admission.max_inflight", "256");
+		defaultProps.setProperty("openkad.net.admission.max_queued", "4096");
+		defaultProps.setProperty("openkad.net.admission.policy", "queue");
+		// bounds of the per node timeouts estimated from the round trip times,
+		// openkad.net.timeout is used until the first response arrives
+		defaultProps.setProperty("openkad.net.rtt.min_timeout", "250");
+		defaultProps.setProperty("openkad.net.rtt.max_timeout", TimeUnit.SECONDS.toMillis(10) + "");
+		defaultProps.setProperty("openkad.net.rtt.maxpeers", "4096");
+		// number of requests in a row to a node that may time out before the
+		// node is removed from the routing table, and max number of nodes tracked
+		defaultProps.setProperty("openkad.net.liveness.max_failures", "3");
+		defaultProps.setProperty("openkad.net.liveness.maxpeers", "4096");
+		// resolution and number of buckets of the network timeouts timer
+		defaultProps.setProperty("openkad.timer.wheel.tick", "10");
+		defaultProps.setProperty("openkad.timer.wheel.size", "512");
+		// wire format: json (JsonZippedKadSerializer) or binary (BinaryKadSerializer)
+		defaultProps.setProperty("openkad.net.serializer", "json");
+		// transport: socket (KadServer) or channel (KadChannelServer)
+		defaultProps.setProperty("openkad.net.communicator", "socket");
+		// max datagram size and number of pooled buffers used by the channel transport
+		defaultProps.setProperty("openkad.net.mtu", "1472");
+		defaultProps.setProperty("openkad.net.channel.nrbuffers", "64");
+		defaultProps.setProperty("openkad.net.channel.nrsendbuffers", "16");
 
 		defaultProps.setProperty("openkad.color.candidates", "1");
 		// interval between successive find node operations for refresh buckets
 		defaultProps.setProperty("openkad.refresh.interval", TimeUnit.SECONDS.toMillis(30) + "");
+		// pings per second and max outstanding pings when a joining node checks
+		// the contacts restored from the nodes file, and number of bucket
+		// refresh lookups running in parallel during the join
+		defaultProps.setProperty("openkad.join.ping.pps", "200");
+		defaultProps.setProperty("openkad.join.ping.max_outstanding", "32");
+		defaultProps.setProperty("openkad.join.refresh.concurrency", "8");
 
 		// local configuration, please touch
 		defaultProps.setProperty("openkad.net.udp.port", "-1");
 		defaultProps.setProperty("openkad.local.key", "");
 		defaultProps.setProperty("openkad.file.nodes.path", "nodes");
+		// interval between appends of the routing table changes to the nodes
+		// journal, and between full checkpoints of the routing table
+		defaultProps.setProperty("openkad.file.nodes.journal_interval", TimeUnit.SECONDS.toMillis(1) + "");
+		defaultProps.setProperty("openkad.file.nodes.checkpoint_interval", TimeUnit.MINUTES.toMillis(5) + "");
 
 		// misc
 		defaultProps.setProperty("openkad.seed", "0");
@@ -153,32 +248,71 @@ public class KadNetModule extends AbstractModule {
 		bind(KadNode.class);
 		// .to(UndeadKadNode.class);
 		bind(KadBuckets.class).in(Scopes.SINGLETON);
-		bind(KBuckets.class).to(KadBuckets.class).in(Scopes.SINGLETON);
-		bind(NodeStorage.class).to(KadBuckets.class).in(Scopes.SINGLETON);
+		bind(CompactKBuckets.class).in(Scopes.SINGLETON);
+		bind(TreeKBuckets.class).in(Scopes.SINGLETON);
+		bind(PingService.class).in(Scopes.SINGLETON);
+		if ("compact".equals(properties.getProperty("openkad.bucket.storage"))) {
+			bind(KBuckets.class).to(CompactKBuckets.class).in(Scopes.SINGLETON);
+			bind(NodeStorage.class).to(CompactKBuckets.class).in(Scopes.SINGLETON);
+		} else if ("tree".equals(properties.getProperty("openkad.bucket.storage"))) {
+			bind(KBuckets.class).to(TreeKBuckets.class).in(Scopes.SINGLETON);
+			bind(NodeStorage.class).to(TreeKBuckets.class).in(Scopes.SINGLETON);
+		} else {
+			bind(KBuckets.class).to(KadBuckets.class).in(Scopes.SINGLETON);
+			bind(NodeStorage.class).to(KadBuckets.class).in(Scopes.SINGLETON);
+		}
 
 		bind(MessageDispatcher.class);
+		bind(MessageDispatchIndex.class).in(Scopes.SINGLETON);
+		bind(RttEstimator.class).in(Scopes.SINGLETON);
+		bind(LivenessTracker.class).in(Scopes.SINGLETON);
+		bind(AdmissionController.class).in(Scopes.SINGLETON);
 		// this line causes messages to be also compressed
 		// JsonZippedKadSerializer - is the same without compressing. (takes CPU
 		// resources).
-		bind(KadSerializer.class).to(JsonZippedKadSerializer.class).in(Scopes.SINGLETON);
+		if ("binary".equals(properties.getProperty("openkad.net.serializer")))
+			bind(KadSerializer.class).to(BinaryKadSerializer.class).in(Scopes.SINGLETON);
+		else
+			bind(KadSerializer.class).to(JsonZippedKadSerializer.class).in(Scopes.SINGLETON);
 		bind(KadServer.class).in(Scopes.SINGLETON);
-		bind(Communicator.class).to(KadServer.class).in(Scopes.SINGLETON);
+		bind(KadChannelServer.class).in(Scopes.SINGLETON);
+		if ("channel".equals(properties.getProperty("openkad.net.communicator")))
+			bind(Communicator.class).to(KadChannelServer.class).in(Scopes.SINGLETON);
+		else
+			bind(Communicator.class).to(KadServer.class).in(Scopes.SINGLETON);
 		//
 		// bind(KadCache.class)
 		// .annotatedWith(Names.named("openkad.cache.stoppable.cache"))
 		// .to(LRUKadCache.class)
 		// .in(Scopes.SINGLETON);
 
-		bind(KadCache.class).to(DummyKadCache.class)
-		// .to(OptimalKadCache.class)
-		// .to(LRUKadCache.class)
-		// .to(VisionKadCache.class)
-
-				// .to(LRUKadCache.class)
-
-				// .to(LRUKadCache.class)
-				// .to(StoppableCache.class)
-				.in(Scopes.SINGLETON);
+		Class<? extends KadCache> cachePolicy = null;
+		if ("lru".equals(properties.getProperty("openkad.cache.policy")))
+			cachePolicy = LRUKadCache.class;
+		else if ("fifo".equals(properties.getProperty("openkad.cache.policy")))
+			cachePolicy = FifoKadCache.class;
+		else if ("tinylfu".equals(properties.getProperty("openkad.cache.policy")))
+			cachePolicy = TinyLfuKadCache.class;
+		else if ("timelimited".equals(properties.getProperty("openkad.cache.policy")))
+			cachePolicy = TimeLimitedKadCache.class;
+		else if ("offheap".equals(properties.getProperty("openkad.cache.policy")))
+			cachePolicy = OffHeapKadCache.class;
+
+		if (cachePolicy == null)
+			bind(KadCache.class).to(DummyKadCache.class)
+			// .to(OptimalKadCache.class)
+			// .to(VisionKadCache.class)
+			// .to(StoppableCache.class)
+					.in(Scopes.SINGLETON);
+		else if (Integer.parseInt(properties.getProperty("openkad.hotkeys.threshold")) > 0) {
+			// only hot keys are admitted
+			bind(KadCache.class).annotatedWith(Names.named("openkad.cache.hotkeys.cache"))
+					.to(cachePolicy).in(Scopes.SINGLETON);
+			bind(KadCache.class).to(HotKeyKadCache.class).in(Scopes.SINGLETON);
+		} else
+			bind(KadCache.class).to(cachePolicy).in(Scopes.SINGLETON);
+		bind(HotKeyTracker.class).in(Scopes.SINGLETON);
+		bind(LookupHintCache.class).in(Scopes.SINGLETON);
 		// only for debug.
 		// this.bind(genericLRUKadCache.class).to(GenericVisionKadCache.class);
 		bind(JoinOperation.class);
@@ -220,10 +354,15 @@ public class KadNetModule extends AbstractModule {
 	@Provides
 	@Named("openkad.bucket.kbuckets")
 	Bucket provideKBucket(@Named("openkad.bucket.kbuckets.maxsize") final int maxSize,
+			@Named("openkad.bucket.replacements.maxsize") final int maxReplacements,
 			@Named("openkad.bucket.valid_timespan") final long validTimespan,
-			@Named("openkad.executors.ping") final ExecutorService pingExecutor, final Provider<PingRequest> pingRequestProvider,
-			final Provider<MessageDispatcher<Void>> msgDispatcherProvider) {
-		return new StableBucket(maxSize, validTimespan, pingExecutor, pingRequestProvider, msgDispatcherProvider);
+			@Named("openkad.bucket.ping_interval") final long pingInterval,
+			@Named("openkad.bucket.prefer_low_rtt") final boolean preferLowRtt,
+			final PingService pingService,
+			@Named("openkad.testing.nrPingsAvoided") final AtomicInteger nrPingsAvoided,
+			@Named("openkad.testing.nrReplacementsPromoted") final AtomicInteger nrReplacementsPromoted) {
+		return new StableBucket(maxSize, maxReplacements, validTimespan, pingInterval, preferLowRtt, pingService,
+				nrPingsAvoided, nrReplacementsPromoted);
 	}
 
 	@Provides
@@ -263,34 +402,37 @@ public class KadNetModule extends AbstractModule {
 	}
 
 	@Provides
-	@Named("openkad.executors.server")
+	@Named("openkad.net.udp.channel")
 	@Singleton
-	ExecutorService provideServerExecutor(@Named("openkad.executors.server.nrthreads") final int nrThreads,
-			@Named("openkad.executors.server.max_pending") final int maxPending) {
-		return new ThreadPoolExecutor(1, nrThreads, 5, TimeUnit.MINUTES, new ArrayBlockingQueue<Runnable>(maxPending, true));
+	DatagramChannel provideKadDatagramChannel(@Named("openkad.scheme.name") final String kadScheme,
+			@Named("openkad.local.node") final Node localNode) throws IOException {
+		System.out.println("binding: " + localNode.getPort(kadScheme));
+		final DatagramChannel $ = DatagramChannel.open();
+		$.socket().bind(new InetSocketAddress(localNode.getPort(kadScheme)));
+		return $;
 	}
 
 	@Provides
-	@Named("openkad.executors.ping")
+	@Named("openkad.timer.wheel")
 	@Singleton
-	ExecutorService providePingExecutor(@Named("openkad.executors.ping.nrthreads") final int nrThreads,
-			@Named("openkad.executors.ping.max_pending") final int maxPending) {
-		return new ThreadPoolExecutor(1, nrThreads, 5, TimeUnit.MINUTES, new ArrayBlockingQueue<Runnable>(maxPending, true));
+	HashedWheelTimer provideWheelTimer(@Named("openkad.timer.wheel.tick") final long tick,
+			@Named("openkad.timer.wheel.size") final int size) {
+		return new HashedWheelTimer("openkad.timer.wheel", tick, TimeUnit.MILLISECONDS, size);
 	}
 
 	@Provides
-	@Named("openkad.executors.forward")
+	@Named("openkad.executors.server")
 	@Singleton
-	ExecutorService provideColorExecutor(@Named("openkad.executors.forward.nrthreads") final int nrThreads,
-			@Named("openkad.executors.forward.max_pending") final int maxPending) {
+	ExecutorService provideServerExecutor(@Named("openkad.executors.server.nrthreads") final int nrThreads,
+			@Named("openkad.executors.server.max_pending") final int maxPending) {
 		return new ThreadPoolExecutor(1, nrThreads, 5, TimeUnit.MINUTES, new ArrayBlockingQueue<Runnable>(maxPending, true));
 	}
 
 	@Provides
-	@Named("openkad.executors.op")
+	@Named("openkad.executors.forward")
 	@Singleton
-	ExecutorService provideOperationExecutor(@Named("openkad.executors.op.nrthreads") final int nrThreads,
-			@Named("openkad.executors.op.max_pending") final int maxPending) {
+	ExecutorService provideColorExecutor(@Named("openkad.executors.forward.nrthreads") final int nrThreads,
+			@Named("openkad.executors.forward.max_pending") final int maxPending) {
 		return new ThreadPoolExecutor(1, nrThreads, 5, TimeUnit.MINUTES, new ArrayBlockingQueue<Runnable>(maxPending, true));
 	}
 
@@ -302,13 +444,6 @@ public class KadNetModule extends AbstractModule {
 		return new ThreadPoolExecutor(1, nrThreads, 5, TimeUnit.MINUTES, new ArrayBlockingQueue<Runnable>(maxPending, true));
 	}
 
-	@Provides
-	@Named("openkad.net.req_queue")
-	@Singleton
-	BlockingQueue<MessageDispatcher<?>> provideOutstandingRequestsQueue(@Named("openkad.net.concurrency") final int concurrency) {
-		return new ArrayBlockingQueue<MessageDispatcher<?>>(concurrency, true);
-	}
-
 	@Provides
 	@Named("openkad.rnd.id")
 	long provideRandomId(@Named("openkad.rnd") final Random rnd) {
@@ -403,6 +538,29 @@ public class KadNetModule extends AbstractModule {
 		// number of nacks recved
 		bind(AtomicInteger.class).annotatedWith(Names.named("openkad.testing.nrNacks")).toInstance(new AtomicInteger(0));
 
+		// number of find value calls that used the result of another operation
+		bind(AtomicInteger.class).annotatedWith(Names.named("openkad.testing.nrCoalescedLookups")).toInstance(new AtomicInteger(0));
+
+		// number of bucket liveness pings skipped because the bucket was pinged recently
+		bind(AtomicInteger.class).annotatedWith(Names.named("openkad.testing.nrPingsAvoided")).toInstance(new AtomicInteger(0));
+
+		// number of liveness pings not sent because the node was already being pinged
+		bind(AtomicInteger.class).annotatedWith(Names.named("openkad.testing.nrPingsCoalesced")).toInstance(new AtomicInteger(0));
+
+		// number of liveness pings not sent because too many pings were pending
+		bind(AtomicInteger.class).annotatedWith(Names.named("openkad.testing.nrPingsRejected")).toInstance(new AtomicInteger(0));
+
+		// number of liveness pings not sent because a message was received from the node
+		bind(AtomicInteger.class).annotatedWith(Names.named("openkad.testing.nrPingsPiggybacked")).toInstance(
+				new AtomicInteger(0));
+
+		// number of nodes marked dead because too many requests to them timed out
+		bind(AtomicInteger.class).annotatedWith(Names.named("openkad.testing.nrContactsEvicted")).toInstance(new AtomicInteger(0));
+
+		// number of dead bucket nodes replaced by a node from the replacement list
+		bind(AtomicInteger.class).annotatedWith(Names.named("openkad.testing.nrReplacementsPromoted")).toInstance(
+				new AtomicInteger(0));
+
 		// number of long timeouts
 		bind(AtomicInteger.class).annotatedWith(Names.named("openkad.testing.nrLongTimeouts")).toInstance(new AtomicInteger(0));
 
@@ -448,6 +606,28 @@ public class KadNetModule extends AbstractModule {
 		bind(AtomicInteger.class).annotatedWith(Names.named("openkad.testing.optimalCacheMaxSize"))
 				.toInstance(new AtomicInteger(0));
 
+		// number of live entries in the time limited cache
+		bind(AtomicInteger.class).annotatedWith(Names.named("openkad.testing.nrCacheEntries")).toInstance(new AtomicInteger(0));
+
+		// number of cache entries removed because they expired
+		bind(AtomicInteger.class).annotatedWith(Names.named("openkad.testing.nrCacheExpired")).toInstance(new AtomicInteger(0));
+
+		// number of cache entries removed to keep the cache within its bounds
+		bind(AtomicInteger.class).annotatedWith(Names.named("openkad.testing.nrCacheEvicted")).toInstance(new AtomicInteger(0));
+
+		// number of find value operations answered by a recent miss
+		bind(AtomicInteger.class).annotatedWith(Names.named("openkad.testing.nrNegativeCacheHits")).toInstance(new AtomicInteger(0));
+
+		// number of find value operations started from a recent result
+		bind(AtomicInteger.class).annotatedWith(Names.named("openkad.testing.nrHintedLookups")).toInstance(new AtomicInteger(0));
+
+		// number of results not admitted to the cache because their key was not hot
+		bind(AtomicInteger.class).annotatedWith(Names.named("openkad.testing.nrColdInserts")).toInstance(new AtomicInteger(0));
+
+		// number of find value operations which did not push their results
+		// because their key was not hot
+		bind(AtomicInteger.class).annotatedWith(Names.named("openkad.testing.nrColdStoresSkipped")).toInstance(new AtomicInteger(0));
+
 		// counts the number of incoming pings
 		bind(AtomicInteger.class).annotatedWith(Names.named("openkad.testing.nrIncomingPings")).toInstance(new AtomicInteger(0));
 
@@ -11,6 +11,7 @@ import com.google.inject.Inject;
  * Wrapper for Node type. Used to keep track on the following:
  * 1. last contact time - the most recent time a message was received from this node
  * 2. being ping - expecting a ping to be received from this node
+ * 3. smoothed round trip time - as estimated from the responses of this node
  * 
  * @author eyal.kibbar@gmail.com
  *
@@ -19,6 +20,7 @@ public class KadNode {
 
 	private final AtomicLong lastContactTimestamp = new AtomicLong(0);
 	private final AtomicBoolean beingPinged = new AtomicBoolean(false);
+	private volatile long smoothedRtt = -1;
 	protected Node node;
 	
 	
@@ -118,6 +120,24 @@ public class KadNode {
 		lastContactTimestamp.set(lastContact);
 	}
 	
+	/**
+	 * Sets the smoothed round trip time to the wrapped node
+	 * @param rtt the smoothed rtt in micro seconds, -1 if it is unknown
+	 * @return this for fluent interface
+	 */
+	public KadNode setSmoothedRtt(long rtt) {
+		this.smoothedRtt = rtt;
+		return this;
+	}
+
+	/**
+	 * @return the smoothed round trip time to the wrapped node in micro seconds
+	 * or -1 if it is unknown
+	 */
+	public long getSmoothedRtt() {
+		return smoothedRtt;
+	}
+
 	@Override
 	public String toString() {
 		return getNode().toString();
@@ -0,0 +1,194 @@
+package il.technion.ewolf.kbr.openkad.bucket;
+
+import il.technion.ewolf.kbr.Key;
+import il.technion.ewolf.kbr.KeyFactory;
+import il.technion.ewolf.kbr.Node;
+import il.technion.ewolf.kbr.concurrent.CompletionHandler;
+import il.technion.ewolf.kbr.openkad.KadNode;
+import il.technion.ewolf.kbr.openkad.msg.FindNodeResponse;
+import il.technion.ewolf.kbr.openkad.msg.ForwardMessage;
+import il.technion.ewolf.kbr.openkad.msg.ForwardRequest;
+import il.technion.ewolf.kbr.openkad.msg.ForwardResponse;
+import il.technion.ewolf.kbr.openkad.msg.KadMessage;
+import il.technion.ewolf.kbr.openkad.msg.PingResponse;
+import il.technion.ewolf.kbr.openkad.net.LivenessTracker;
+import il.technion.ewolf.kbr.openkad.net.MessageDispatcher;
+import il.technion.ewolf.kbr.openkad.net.RttEstimator;
+import il.technion.ewolf.kbr.openkad.net.filter.SrcExcluderMessageFilter;
+import il.technion.ewolf.kbr.openkad.net.filter.TypeExcluderMessageFilter;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.google.inject.Provider;
+
+/**
+ * Base class for the routing table implementations: the bucket numbering,
+ * updating the table from incoming messages and selecting the closest nodes.
+ * See {@link KadBuckets} for the bucket numbering.
+ * 
+ * @author eyal.kibbar@gmail.com
+ *
+ */
+public abstract class AbstractKBuckets implements KBuckets {
+
+	private final Provider<MessageDispatcher<Object>> msgDispatcherProvider;
+	private final Provider<KadNode> kadNodeProvider;
+	private final LivenessTracker livenessTracker;
+	private final RttEstimator rttEstimator;
+	protected final Node localNode;
+	protected final KeyFactory keyFactory;
+
+	protected AbstractKBuckets(
+			KeyFactory keyFactory,
+			Provider<KadNode> kadNodeProvider,
+			Provider<MessageDispatcher<Object>> msgDispatcherProvider,
+			LivenessTracker livenessTracker,
+			RttEstimator rttEstimator,
+			Node localNode) {
+		this.keyFactory = keyFactory;
+		this.msgDispatcherProvider = msgDispatcherProvider;
+		this.kadNodeProvider = kadNodeProvider;
+		this.livenessTracker = livenessTracker;
+		this.rttEstimator = rttEstimator;
+		this.localNode = localNode;
+	}
+
+	/**
+	 * Uses the keyFactory to generate keys which will fit to different buckets
+	 * @return a list of random keys where no 2 keys will fit into the same bucket
+	 */
+	public List<Key> randomKeysForAllBuckets() {
+		List<Key> $ = new ArrayList<Key>();
+		for (int i=0; i < keyFactory.getBitLength(); ++i) {
+			Key key = keyFactory.generate(i).xor(localNode.getKey());
+			$.add(key);
+		}
+		return $;
+	}
+	
+	/**
+	 * Register this data structure to listen to incoming messages and update itself
+	 * accordingly.
+	 * Invoke this method after creating the entire system
+	 */
+	public synchronized void registerIncomingMessageHandler() {
+		msgDispatcherProvider.get()
+			.setConsumable(false)
+			// do not add PingResponse since it might create a loop
+			.addFilter(new TypeExcluderMessageFilter(PingResponse.class))
+			.addFilter(new SrcExcluderMessageFilter(localNode))
+			
+			.setCallback(null, new CompletionHandler<KadMessage, Object>() {
+				
+				@Override
+				public void failed(Throwable exc, Object attachment) {
+					// should never be here
+					exc.printStackTrace();
+				}
+				
+				@Override
+				public void completed(KadMessage msg, Object attachment) {
+					// any message proves the sender is alive
+					livenessTracker.succeeded(msg.getSrc());
+					AbstractKBuckets.this.insert(kadNodeProvider.get()
+							.setNode(msg.getSrc())
+							.setNodeWasContacted()
+							.setSmoothedRtt(rttEstimator.getSmoothedRtt(msg.getSrc(), TimeUnit.MICROSECONDS)));
+					
+					// try to sniff the message for more information, such as
+					// nodes in its content
+					List<Node> nodes = null;
+					if (msg instanceof FindNodeResponse) {
+						nodes = ((FindNodeResponse)msg).getNodes();
+					} else if (msg instanceof ForwardResponse) {
+						nodes = ((ForwardResponse)msg).getNodes();
+					} else if (msg instanceof ForwardMessage) {
+						nodes = ((ForwardMessage)msg).getNodes();
+					} else if (msg instanceof ForwardRequest) {
+						nodes = ((ForwardRequest)msg).getBootstrap();
+					}
+					
+					if (nodes != null) {
+						for (int i =0; i<nodes.size();i++) {
+							AbstractKBuckets.this.insert(kadNodeProvider.get().setNode(nodes.get(i)));
+						}
+					}
+				}
+			})
+			.register();
+	}
+
+	/**
+	 * @return the index of the bucket of the given key, -1 for the local key
+	 */
+	protected int getKBucketIndex(Key key) {
+		// same as key.xor(localKey).getFirstSetBitIndex() without the allocation
+		return key.getBitLength() - 1 - localNode.getKey().commonPrefixLength(key);
+	}
+
+	/**
+	 * Offers a node to a max heap (the farthest node at the root) of at most n
+	 * nodes kept in the beginning of the buffer.
+	 * @return the new heap size
+	 */
+	protected static int offer(Node[] heap, int size, int n, Node node, Comparator<Key> comparator) {
+		int i;
+		if (size < n) {
+			// sift up
+			i = size++;
+			while (i > 0) {
+				int parent = (i - 1) >>> 1;
+				if (comparator.compare(heap[parent].getKey(), node.getKey()) >= 0)
+					break;
+				heap[i] = heap[parent];
+				i = parent;
+			}
+			heap[i] = node;
+			return size;
+		}
+
+		if (n == 0 || comparator.compare(node.getKey(), heap[0].getKey()) >= 0)
+			return size;
+
+		// replace the farthest node
+		siftDown(heap, size, node, comparator);
+		return size;
+	}
+
+	private static void siftDown(Node[] heap, int size, Node node, Comparator<Key> comparator) {
+		int i = 0;
+		while (true) {
+			int child = 2 * i + 1;
+			if (child >= size)
+				break;
+			if (child + 1 < size && comparator.compare(heap[child + 1].getKey(), heap[child].getKey()) > 0)
+				++child;
+			if (comparator.compare(node.getKey(), heap[child].getKey()) >= 0)
+				break;
+			heap[i] = heap[child];
+			i = child;
+		}
+		heap[i] = node;
+	}
+
+	/**
+	 * Sorts a max heap in place, closest node first
+	 */
+	protected static void sortHeap(Node[] heap, int size, Comparator<Key> comparator) {
+		for (int end = size - 1; end > 0; --end) {
+			Node farthest = heap[0];
+			siftDown(heap, end, heap[end], comparator);
+			heap[end] = farthest;
+		}
+	}
+
+	protected static int offerAll(Node[] heap, int size, int n, Bucket bucket, Comparator<Key> comparator) {
+		KadNode[] nodes = bucket.getSnapshot();
+		for (int i=0; i < nodes.length; ++i)
+			size = offer(heap, size, n, nodes[i].getNode(), comparator);
+		return size;
+	}
+}
@@ -20,15 +20,39 @@ public interface Bucket {
 	public void insert(KadNode n);
 
 	/**
-	 * Adds all nodes in bucket to the given collection
+	 * Adds all nodes in bucket to the given collection.
+	 * This is invoked for every find node request and must not block
+	 * on concurrent inserts.
 	 * @param c the collection the nodes will be added to
 	 */
 	void addNodesTo(Collection<Node> c);
 
+	/**
+	 * Returns the nodes currently in the bucket without copying them.
+	 * This is invoked for every find node request and must not block
+	 * on concurrent inserts.
+	 * @return the bucket content, must not be modified
+	 */
+	KadNode[] getSnapshot();
+
+	/**
+	 * Adds the replacement candidates, nodes heard while the bucket was
+	 * full, to the given collection, least recently seen first
+	 * @param c the collection the candidates will be added to
+	 */
+	void addReplacementsTo(Collection<KadNode> c);
+
 	/**
 	 * Marks a node as dead: the dead node will be replace if 
 	 * insert was invoked 
 	 * @param n the dead node
 	 */
 	public void markDead(Node n);
+
+	/**
+	 * Removes a node from the bucket, it is replaced from the replacement
+	 * list if possible
+	 * @param n the removed node
+	 */
+	public void remove(Node n);
 }
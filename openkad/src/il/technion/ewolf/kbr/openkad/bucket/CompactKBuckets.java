@@ -0,0 +1,643 @@
+package il.technion.ewolf.kbr.openkad.bucket;
+
+import il.technion.ewolf.kbr.Key;
+import il.technion.ewolf.kbr.KeyColorComparator;
+import il.technion.ewolf.kbr.KeyFactory;
+import il.technion.ewolf.kbr.Node;
+import il.technion.ewolf.kbr.concurrent.CompletionHandler;
+import il.technion.ewolf.kbr.openkad.KadNode;
+import il.technion.ewolf.kbr.openkad.msg.KadMessage;
+import il.technion.ewolf.kbr.openkad.net.LivenessTracker;
+import il.technion.ewolf.kbr.openkad.net.MessageDispatcher;
+import il.technion.ewolf.kbr.openkad.net.RttEstimator;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.name.Named;
+
+/**
+ * A routing table with the same buckets and policy as {@link KadBuckets} with
+ * {@link StableBucket}s, which keeps its nodes in primitive arrays instead of
+ * KadNode and Node objects: the keys are packed into longs, the IPv4 address
+ * and the port of each node are packed into a single long, the last
+ * contact times are kept in a long array and the ping flags in a bitset.
+ * Node objects are created only when returned to the caller.
+ *
+ * Only the port of the openkad.scheme.name endpoint is kept, other endpoints
+ * of the inserted nodes are dropped.
+ *
+ * As in StableBucket, the keys and addresses of a bucket are replaced
+ * (copy on write) on every change so reads never take a lock, and changes are
+ * serialized by the bucket's monitor.
+ * Since nodes never move inside a bucket, the last contact times are updated
+ * in place and the oldest node is found by scanning them.
+ *
+ * @author eyal.kibbar@gmail.com
+ *
+ */
+public class CompactKBuckets extends AbstractKBuckets {
+
+	private static final long HAS_PORT = 1L << 48;
+	private static final long HAS_IPV4 = 1L << 49;
+
+	/**
+	 * The immutable part of a bucket: the keys and addresses of its nodes
+	 */
+	private static final class Table {
+		private final int size;
+		// nrWords longs per node
+		private final long[] keys;
+		// port, IPv4 address and flags per node
+		private final long[] endpoints;
+		// non IPv4 addresses, null if there are none
+		private final InetAddress[] otherAddrs;
+
+		Table(int size, long[] keys, long[] endpoints, InetAddress[] otherAddrs) {
+			this.size = size;
+			this.keys = keys;
+			this.endpoints = endpoints;
+			this.otherAddrs = otherAddrs;
+		}
+	}
+
+	/**
+	 * Per thread buffers for selecting the closest nodes
+	 */
+	private static final class Scratch {
+		private final long[] target;
+		private final Table[] tables;
+		// bucket index << 32 | position in bucket
+		private long[] heap = new long[0];
+
+		Scratch(int nrWords, int nrBuckets) {
+			this.target = new long[nrWords];
+			this.tables = new Table[nrBuckets];
+		}
+	}
+
+	private final class CompactBucket {
+
+		private volatile Table table = new Table(0, new long[0], new long[0], null);
+
+		// guarded by this
+		private final long[] lastContact = new long[maxSize];
+		// bit per node, set while the node is being pinged
+		private final long[] pinged = new long[(maxSize + 63) / 64];
+		private final long[] packedKey = new long[nrWords];
+		// candidates heard while the bucket was full, most recent last
+		private final Deque<KadNode> replacements = new ArrayDeque<KadNode>(maxReplacements);
+		// the last time a node of this bucket was pinged
+		private long lastPingTime = 0;
+		private final CompletionHandler<KadMessage, Node> pingHandler = new CompletionHandler<KadMessage, Node>() {
+			@Override
+			public void completed(KadMessage msg, Node n) {
+				pingCompleted(n);
+			}
+			@Override
+			public void failed(Throwable exc, Node n) {
+				pingFailed(n);
+			}
+		};
+
+		private int indexOf(Table t, long[] key) {
+			for (int i=0; i < t.size; ++i) {
+				int off = i * nrWords;
+				int w = 0;
+				while (w < nrWords && t.keys[off + w] == key[w])
+					++w;
+				if (w == nrWords)
+					return i;
+			}
+			return -1;
+		}
+
+		/**
+		 * Publishes a copy of the table with n at pos (appended if pos is the
+		 * table size). Must be invoked while holding the bucket's monitor
+		 */
+		private void set(int pos, Node n, long contact) {
+			Table t = table;
+			int size = Math.max(t.size, pos + 1);
+			long[] keys = Arrays.copyOf(t.keys, size * nrWords);
+			long[] endpoints = Arrays.copyOf(t.endpoints, size);
+			InetAddress[] otherAddrs = t.otherAddrs == null ? null : Arrays.copyOf(t.otherAddrs, size);
+
+			pack(n.getKey(), keys, pos * nrWords);
+			endpoints[pos] = packEndpoint(n);
+			InetAddress addr = n.getInetAddress();
+			if (addr != null && !(addr instanceof Inet4Address)) {
+				if (otherAddrs == null)
+					otherAddrs = new InetAddress[size];
+				otherAddrs[pos] = addr;
+			} else if (otherAddrs != null) {
+				otherAddrs[pos] = null;
+			}
+
+			lastContact[pos] = contact;
+			setPinged(pos, false);
+			table = new Table(size, keys, endpoints, otherAddrs);
+		}
+
+		/**
+		 * Publishes a copy of the table without the node at pos.
+		 * Must be invoked while holding the bucket's monitor
+		 */
+		private void removeAt(int pos) {
+			Table t = table;
+			int size = t.size - 1;
+			long[] keys = new long[size * nrWords];
+			System.arraycopy(t.keys, 0, keys, 0, pos * nrWords);
+			System.arraycopy(t.keys, (pos + 1) * nrWords, keys, pos * nrWords, (size - pos) * nrWords);
+			long[] endpoints = new long[size];
+			System.arraycopy(t.endpoints, 0, endpoints, 0, pos);
+			System.arraycopy(t.endpoints, pos + 1, endpoints, pos, size - pos);
+			InetAddress[] otherAddrs = null;
+			if (t.otherAddrs != null) {
+				otherAddrs = new InetAddress[size];
+				System.arraycopy(t.otherAddrs, 0, otherAddrs, 0, pos);
+				System.arraycopy(t.otherAddrs, pos + 1, otherAddrs, pos, size - pos);
+			}
+
+			for (int i=pos; i < size; ++i) {
+				lastContact[i] = lastContact[i + 1];
+				setPinged(i, isPinged(i + 1));
+			}
+			lastContact[size] = 0;
+			setPinged(size, false);
+			table = new Table(size, keys, endpoints, otherAddrs);
+		}
+
+		private boolean isPinged(int pos) {
+			return (pinged[pos >>> 6] & (1L << pos)) != 0;
+		}
+
+		private void setPinged(int pos, boolean value) {
+			if (value)
+				pinged[pos >>> 6] |= 1L << pos;
+			else
+				pinged[pos >>> 6] &= ~(1L << pos);
+		}
+
+		private int oldest(Table t) {
+			int $ = 0;
+			for (int i=1; i < t.size; ++i) {
+				if (lastContact[i] < lastContact[$])
+					$ = i;
+			}
+			return $;
+		}
+
+		private void addReplacement(KadNode n) {
+			// move to be the most recent
+			replacements.remove(n);
+			if (replacements.size() >= maxReplacements)
+				replacements.pollFirst();
+			if (maxReplacements > 0)
+				replacements.addLast(n);
+		}
+
+		/**
+		 * Replaces the node at pos with the most recently seen replacement candidate.
+		 * Must be invoked while holding the bucket's monitor
+		 * @return false if there was no candidate
+		 */
+		private boolean promoteReplacement(int pos) {
+			Table t = table;
+			KadNode r;
+			do {
+				r = StableBucket.pollReplacement(replacements, preferLowRtt);
+				if (r == null)
+					return false;
+				pack(r.getNode().getKey(), packedKey, 0);
+			} while (indexOf(t, packedKey) != -1);
+
+			set(pos, r.getNode(), r.getLastContact());
+			nrReplacementsPromoted.incrementAndGet();
+			return true;
+		}
+
+		synchronized void insert(KadNode n) {
+			Table t = table;
+			pack(n.getNode().getKey(), packedKey, 0);
+			int i = indexOf(t, packedKey);
+			if (i != -1) {
+				// found node in bucket
+				if (lastContact[i] < n.getLastContact())
+					lastContact[i] = n.getLastContact();
+				return;
+			}
+
+			if (t.size < maxSize) {
+				// not found in bucket and there is enough room for n
+				set(t.size, n.getNode(), n.getLastContact());
+				return;
+			}
+
+			// n is not in bucket and bucket is full
+
+			// don't bother to insert n if I never recved a msg from it
+			if (n.hasNeverContacted())
+				return;
+
+			addReplacement(n);
+
+			int oldest = oldest(t);
+
+			// the oldest node was only inserted indirectly or was marked dead
+			if (lastContact[oldest] == 0) {
+				promoteReplacement(oldest);
+				return;
+			}
+
+			// ping is still valid, don't replace
+			long now = System.currentTimeMillis();
+			if (lastContact[oldest] + validTimespan > now)
+				return;
+
+			// pinged someone recently, n will wait in the replacement list
+			if (now - lastPingTime < pingInterval) {
+				nrPingsAvoided.incrementAndGet();
+				return;
+			}
+
+			// if too many pings are pending, try again on the next insert
+			if (!isPinged(oldest) && pingService.check(toNode(t, oldest), pingHandler)) {
+				setPinged(oldest, true);
+				lastPingTime = now;
+			}
+		}
+
+		synchronized void pingCompleted(Node n) {
+			pack(n.getKey(), packedKey, 0);
+			int i = indexOf(table, packedKey);
+			if (i == -1)
+				return;
+			setPinged(i, false);
+			lastContact[i] = System.currentTimeMillis();
+		}
+
+		synchronized void pingFailed(Node n) {
+			pack(n.getKey(), packedKey, 0);
+			int i = indexOf(table, packedKey);
+			if (i == -1)
+				return;
+			// n stays the oldest node until it is pinged again or marked dead
+			// by the liveness tracker
+			setPinged(i, false);
+		}
+
+		synchronized void markDead(Node n) {
+			pack(n.getKey(), packedKey, 0);
+			int i = indexOf(table, packedKey);
+			if (i == -1)
+				return;
+			// if there is no replacement n is replaced by the next node inserted
+			lastContact[i] = 0;
+			promoteReplacement(i);
+		}
+
+		synchronized void remove(Node n) {
+			pack(n.getKey(), packedKey, 0);
+			int i = indexOf(table, packedKey);
+			if (i == -1)
+				return;
+			removeAt(i);
+			// appended as the newest node
+			promoteReplacement(table.size);
+		}
+
+		void addNodesTo(Collection<Node> c) {
+			Table t = table;
+			for (int i=0; i < t.size; ++i)
+				c.add(toNode(t, i));
+		}
+	}
+
+	// dependencies
+	private final int nrColors;
+	private final int maxSize;
+	private final int maxReplacements;
+	private final long validTimespan;
+	private final long pingInterval;
+	private final boolean preferLowRtt;
+	private final String scheme;
+	private final PingService pingService;
+
+	// state
+	private final int nrWords;
+	private final int keyByteLength;
+	private final CompactBucket[] kbuckets;
+	private final ThreadLocal<Scratch> scratch;
+
+	// testing
+	private final AtomicInteger nrPingsAvoided;
+	private final AtomicInteger nrReplacementsPromoted;
+
+	@Inject
+	CompactKBuckets(
+			KeyFactory keyFactory,
+			Provider<KadNode> kadNodeProvider,
+			Provider<MessageDispatcher<Object>> msgDispatcherProvider,
+			LivenessTracker livenessTracker,
+			RttEstimator rttEstimator,
+			PingService pingService,
+			@Named("openkad.local.node") Node localNode,
+			@Named("openkad.color.nrcolors") int nrColors,
+			@Named("openkad.scheme.name") String scheme,
+			@Named("openkad.bucket.kbuckets.maxsize") int maxSize,
+			@Named("openkad.bucket.replacements.maxsize") int maxReplacements,
+			@Named("openkad.bucket.valid_timespan") long validTimespan,
+			@Named("openkad.bucket.ping_interval") long pingInterval,
+			@Named("openkad.bucket.prefer_low_rtt") boolean preferLowRtt,
+			@Named("openkad.testing.nrPingsAvoided") AtomicInteger nrPingsAvoided,
+			@Named("openkad.testing.nrReplacementsPromoted") AtomicInteger nrReplacementsPromoted) {
+
+		super(keyFactory, kadNodeProvider, msgDispatcherProvider, livenessTracker, rttEstimator, localNode);
+		this.nrColors = nrColors;
+		this.scheme = scheme;
+		this.maxSize = maxSize;
+		this.maxReplacements = maxReplacements;
+		this.validTimespan = validTimespan;
+		this.pingInterval = pingInterval;
+		this.preferLowRtt = preferLowRtt;
+		this.pingService = pingService;
+		this.nrPingsAvoided = nrPingsAvoided;
+		this.nrReplacementsPromoted = nrReplacementsPromoted;
+
+		this.keyByteLength = keyFactory.getByteLength();
+		this.nrWords = (keyByteLength + 7) / 8;
+		this.kbuckets = new CompactBucket[keyFactory.getBitLength()];
+		for (int i=0; i < kbuckets.length; ++i)
+			kbuckets[i] = new CompactBucket();
+
+		this.scratch = new ThreadLocal<Scratch>() {
+			@Override
+			protected Scratch initialValue() {
+				return new Scratch(nrWords, kbuckets.length);
+			}
+		};
+	}
+
+	/**
+	 * Packs the key's bytes into longs, most significant byte first.
+	 * The last long is padded with zeros
+	 */
+	private void pack(Key key, long[] dst, int off) {
+		byte[] b = key.getBytes();
+		for (int w=0; w < nrWords; ++w) {
+			long v = 0;
+			for (int i = w * 8; i < w * 8 + 8; ++i)
+				v = (v << 8) | (i < b.length ? b[i] & 0xFF : 0);
+			dst[off + w] = v;
+		}
+	}
+
+	private long packEndpoint(Node n) {
+		long $ = 0;
+		Integer port = n.getAllEndpoints().get(scheme);
+		if (port != null)
+			$ |= HAS_PORT | (port & 0xFFFF);
+		InetAddress addr = n.getInetAddress();
+		if (addr instanceof Inet4Address) {
+			byte[] a = addr.getAddress();
+			long ip = ((a[0] & 0xFFL) << 24) | ((a[1] & 0xFF) << 16) | ((a[2] & 0xFF) << 8) | (a[3] & 0xFF);
+			$ |= HAS_IPV4 | (ip << 16);
+		}
+		return $;
+	}
+
+	private Node toNode(Table t, int pos) {
+		byte[] b = new byte[keyByteLength];
+		for (int i=0; i < keyByteLength; ++i)
+			b[i] = (byte) (t.keys[pos * nrWords + i / 8] >>> (56 - 8 * (i % 8)));
+		Node $ = new Node(new Key(b));
+
+		long e = t.endpoints[pos];
+		if ((e & HAS_IPV4) != 0) {
+			long ip = e >>> 16;
+			try {
+				$.setInetAddress(InetAddress.getByAddress(new byte[] {
+						(byte)(ip >>> 24), (byte)(ip >>> 16), (byte)(ip >>> 8), (byte)ip }));
+			} catch (UnknownHostException ex) {
+				// cannot happen for 4 bytes
+				throw new AssertionError(ex);
+			}
+		} else if (t.otherAddrs != null) {
+			$.setInetAddress(t.otherAddrs[pos]);
+		}
+		if ((e & HAS_PORT) != 0)
+			$.addEndpoint(scheme, (int)(e & 0xFFFF));
+		return $;
+	}
+
+	/**
+	 * Compares the distance of two nodes from the target, by their handles
+	 */
+	private int distanceCompare(Scratch s, long h1, long h2) {
+		long[] k1 = s.tables[(int)(h1 >>> 32)].keys;
+		long[] k2 = s.tables[(int)(h2 >>> 32)].keys;
+		int o1 = (int)h1 * nrWords;
+		int o2 = (int)h2 * nrWords;
+		for (int w=0; w < nrWords; ++w) {
+			long d1 = k1[o1 + w] ^ s.target[w];
+			long d2 = k2[o2 + w] ^ s.target[w];
+			if (d1 != d2)
+				return (d1 ^ Long.MIN_VALUE) < (d2 ^ Long.MIN_VALUE) ? -1 : 1;
+		}
+		return 0;
+	}
+
+	/**
+	 * Offers a node to a max heap (the farthest node at the root) of at most n nodes
+	 * @return the new heap size
+	 */
+	private int offer(Scratch s, int size, int n, long h) {
+		long[] heap = s.heap;
+		if (size < n) {
+			// sift up
+			int i = size++;
+			while (i > 0) {
+				int parent = (i - 1) >>> 1;
+				if (distanceCompare(s, heap[parent], h) >= 0)
+					break;
+				heap[i] = heap[parent];
+				i = parent;
+			}
+			heap[i] = h;
+			return size;
+		}
+
+		if (n == 0 || distanceCompare(s, h, heap[0]) >= 0)
+			return size;
+
+		// replace the farthest node
+		siftDown(s, size, h);
+		return size;
+	}
+
+	private void siftDown(Scratch s, int size, long h) {
+		long[] heap = s.heap;
+		int i = 0;
+		while (true) {
+			int child = 2 * i + 1;
+			if (child >= size)
+				break;
+			if (child + 1 < size && distanceCompare(s, heap[child + 1], heap[child]) > 0)
+				++child;
+			if (distanceCompare(s, h, heap[child]) >= 0)
+				break;
+			heap[i] = heap[child];
+			i = child;
+		}
+		heap[i] = h;
+	}
+
+	private int offerAll(Scratch s, int size, int n, int bucketIndex) {
+		Table t = kbuckets[bucketIndex].table;
+		s.tables[bucketIndex] = t;
+		for (int i=0; i < t.size; ++i)
+			size = offer(s, size, n, ((long)bucketIndex << 32) | i);
+		return size;
+	}
+
+	/**
+	 * Selects the nodes closest to k into buffer, visiting the buckets by
+	 * their distance from k as explained in {@link KadBuckets}
+	 */
+	public int getClosestNodesByKey(Key k, int n, Node[] buffer) {
+		Scratch s = scratch.get();
+		if (s.heap.length < n)
+			s.heap = new long[n];
+		pack(k, s.target, 0);
+
+		int index = getKBucketIndex(k);
+		int size = 0;
+
+		if (0 <= index)
+			size = offerAll(s, size, n, index);
+
+		if (size < n) {
+			for (int i=0; i < index; ++i)
+				size = offerAll(s, size, n, i);
+		}
+
+		for (int i=index+1; i < kbuckets.length && size < n; ++i)
+			size = offerAll(s, size, n, i);
+
+		// sort the heap in place, closest node first
+		for (int end = size - 1; end > 0; --end) {
+			long farthest = s.heap[0];
+			siftDown(s, end, s.heap[end]);
+			s.heap[end] = farthest;
+		}
+
+		for (int i=0; i < size; ++i) {
+			long h = s.heap[i];
+			buffer[i] = toNode(s.tables[(int)(h >>> 32)], (int)h);
+		}
+		Arrays.fill(s.tables, null);
+		return size;
+	}
+
+	@Override
+	public List<Node> getClosestNodesByKey(Key k, int n) {
+		Node[] buffer = new Node[n];
+		int size = getClosestNodesByKey(k, n, buffer);
+		return new ArrayList<Node>(Arrays.asList(buffer).subList(0, size));
+	}
+
+	@Override
+	public List<Node> getClosestNodesByColor(Key k, int n) {
+		// collect the nodes of the buckets closest to k, as in KadBuckets
+		int index = getKBucketIndex(k);
+		List<Node> $ = new ArrayList<Node>();
+		if (0 <= index)
+			kbuckets[index].addNodesTo($);
+		if ($.size() < n) {
+			for (int i=0; i < index; ++i)
+				kbuckets[i].addNodesTo($);
+		}
+		for (int i=index+1; i < kbuckets.length && $.size() < n; ++i)
+			kbuckets[i].addNodesTo($);
+
+		final Comparator<Key> keyColorComparator = new KeyColorComparator(k, nrColors);
+		Collections.sort($, new Comparator<Node>() {
+			@Override
+			public int compare(Node n1, Node n2) {
+				return keyColorComparator.compare(n1.getKey(), n2.getKey());
+			}
+		});
+		if ($.size() > n)
+			$.subList(n, $.size()).clear();
+		return $;
+	}
+
+	@Override
+	public void insert(KadNode node) {
+		int i = getKBucketIndex(node.getNode().getKey());
+		if (i == -1)
+			return;
+
+		kbuckets[i].insert(node);
+	}
+
+	@Override
+	public void markAsDead(Node n) {
+		int i = getKBucketIndex(n.getKey());
+		if (i == -1)
+			return;
+
+		kbuckets[i].markDead(n);
+	}
+
+	@Override
+	public void remove(Node n) {
+		int i = getKBucketIndex(n.getKey());
+		if (i == -1)
+			return;
+
+		kbuckets[i].remove(n);
+	}
+
+	@Override
+	public List<Node> getAllNodes() {
+		List<Node> $ = new ArrayList<Node>();
+		for (int i=0; i < kbuckets.length; ++i)
+			kbuckets[i].addNodesTo($);
+		return $;
+	}
+
+	@Override
+	public List<Node> getAllFromBucket(Key k) {
+		int i = getKBucketIndex(k);
+		if (i == -1)
+			return Collections.emptyList();
+		List<Node> $ = new ArrayList<Node>();
+		kbuckets[i].addNodesTo($);
+		return $;
+	}
+
+	@Override
+	public String toString() {
+		String $ = "";
+		for (int i=0; i < kbuckets.length; ++i) {
+			List<Node> nodes = new ArrayList<Node>();
+			kbuckets[i].addNodesTo(nodes);
+			$ += nodes.toString()+"\n";
+		}
+		return $;
+	}
+}
@@ -12,6 +12,8 @@ import java.util.Collection;
  */
 public class DummyBucket implements Bucket {
 
+	private static final KadNode[] EMPTY = new KadNode[0];
+
 	@Override
 	public void insert(KadNode n) {
 	}
@@ -20,7 +22,20 @@ public class DummyBucket implements Bucket {
 	public void addNodesTo(Collection<Node> c) {
 	}
 
+	@Override
+	public KadNode[] getSnapshot() {
+		return EMPTY;
+	}
+
+	@Override
+	public void addReplacementsTo(Collection<KadNode> c) {
+	}
+
 	@Override
 	public void markDead(Node n) {
 	}
+
+	@Override
+	public void remove(Node n) {
+	}
 }
@@ -26,6 +26,13 @@ public interface KBuckets extends NodeStorage {
 	
 	public abstract void markAsDead(Node n);
 
+	/**
+	 * Removes a node from the data structure. Unlike markAsDead the node
+	 * does not stay in its bucket if there is no replacement for it
+	 * @param n the removed node
+	 */
+	public abstract void remove(Node n);
+
 	/**
 	 * Returns a single bucket's content. The bucket number is calculated
 	 * using the given key according to its prefix with the local node's key
@@ -45,6 +52,17 @@ public interface KBuckets extends NodeStorage {
 	 */
 	public abstract List<Node> getClosestNodesByKey(Key k, int n);
 
+	/**
+	 * Writes the n nodes with keys closest to the given k into the given buffer.
+	 * Nothing is allocated, so the same buffer can be reused for every call.
+	 * @param k the key which the result's nodes are close to
+	 * @param n the maximum number of nodes expected
+	 * @param buffer where the nodes are written to, must have room for n nodes
+	 * @return the number of nodes written, MIN(n, total number of nodes in the data structure).
+	 * buffer[0] to buffer[$-1] are sorted by proximity to k
+	 */
+	public abstract int getClosestNodesByKey(Key k, int n, Node[] buffer);
+
 	/**
 	 * Gets all nodes with keys closest to the given k.
 	 * The size of the list will be MIN(n, total number of nodes in the data structure)
@@ -1,31 +1,20 @@
 package il.technion.ewolf.kbr.openkad.bucket;
 
-import static ch.lambdaj.Lambda.on;
-import static ch.lambdaj.Lambda.sort;
 import il.technion.ewolf.kbr.Key;
 import il.technion.ewolf.kbr.KeyColorComparator;
 import il.technion.ewolf.kbr.KeyComparator;
 import il.technion.ewolf.kbr.KeyFactory;
 import il.technion.ewolf.kbr.Node;
-import il.technion.ewolf.kbr.concurrent.CompletionHandler;
 import il.technion.ewolf.kbr.openkad.KadNode;
-import il.technion.ewolf.kbr.openkad.NodeStorage;
-import il.technion.ewolf.kbr.openkad.msg.FindNodeResponse;
-import il.technion.ewolf.kbr.openkad.msg.ForwardMessage;
-import il.technion.ewolf.kbr.openkad.msg.ForwardRequest;
-import il.technion.ewolf.kbr.openkad.msg.ForwardResponse;
-import il.technion.ewolf.kbr.openkad.msg.KadMessage;
-import il.technion.ewolf.kbr.openkad.msg.PingResponse;
+import il.technion.ewolf.kbr.openkad.net.LivenessTracker;
 import il.technion.ewolf.kbr.openkad.net.MessageDispatcher;
-import il.technion.ewolf.kbr.openkad.net.filter.SrcExcluderMessageFilter;
-import il.technion.ewolf.kbr.openkad.net.filter.TypeExcluderMessageFilter;
+import il.technion.ewolf.kbr.openkad.net.RttEstimator;
 
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashSet;
+import java.util.Comparator;
 import java.util.List;
-import java.util.Set;
 
 import com.google.inject.Inject;
 import com.google.inject.Provider;
@@ -45,13 +34,9 @@ import com.google.inject.name.Named;
  * @author eyal.kibbar@gmail.com
  *
  */
-public class KadBuckets implements NodeStorage,KBuckets {
+public class KadBuckets extends AbstractKBuckets {
 
-	private final Provider<MessageDispatcher<Object>> msgDispatcherProvider;
-	private final Provider<KadNode> kadNodeProvider;
 	private final Bucket[] kbuckets;
-	protected final Node localNode;
-	private final KeyFactory keyFactory;
 	private final int nrColors;
 	@Inject
 	protected
@@ -59,13 +44,12 @@ public class KadBuckets implements NodeStorage,KBuckets {
 			KeyFactory keyFactory,
 			Provider<KadNode> kadNodeProvider,
 			Provider<MessageDispatcher<Object>> msgDispatcherProvider,
+			LivenessTracker livenessTracker,
+			RttEstimator rttEstimator,
 			@Named("openkad.bucket.kbuckets") Provider<Bucket> kBucketProvider,
 			@Named("openkad.local.node") Node localNode,
 			@Named("openkad.color.nrcolors") int nrColors) {
-		this.keyFactory = keyFactory;
-		this.msgDispatcherProvider = msgDispatcherProvider;
-		this.kadNodeProvider = kadNodeProvider;
-		this.localNode = localNode;
+		super(keyFactory, kadNodeProvider, msgDispatcherProvider, livenessTracker, rttEstimator, localNode);
 		this.nrColors = nrColors;
 		
 		kbuckets = new Bucket[keyFactory.getBitLength()];
@@ -75,108 +59,42 @@ public class KadBuckets implements NodeStorage,KBuckets {
 	}
 
 	/**
-	 * Uses the keyFactory to generate keys which will fit to different buckets
-	 * @return a list of random keys where no 2 keys will fit into the same bucket
+	 * Selects the nodes closest to k into buffer.
+	 * 
+	 * Buckets are visited by their distance from k: all nodes in k's own bucket
+	 * are closer to k than the nodes in the buckets below it, which are all at
+	 * the same distance order from k, which are closer than the nodes in
+	 * each of the buckets above it. Once n nodes were selected from a group of
+	 * buckets, the next groups cannot contain closer nodes and are skipped.
+	 * 
+	 * When byDistance is false the comparator does not follow this order and
+	 * groups are visited until at least n candidates were seen, as with
+	 * sorting the nodes of the neighbouring buckets.
 	 */
-	public List<Key> randomKeysForAllBuckets() {
-		List<Key> $ = new ArrayList<Key>();
-		for (int i=0; i < kbuckets.length; ++i) {
-			Key key = keyFactory.generate(i).xor(localNode.getKey());
-			$.add(key);
+	private int selectClosestNodes(Key k, int n, Node[] buffer, Comparator<Key> comparator, boolean byDistance) {
+		int index = getKBucketIndex(k);
+		int size = 0;
+		int nrSeen = 0;
+
+		if (0 <= index) {
+			size = offerAll(buffer, size, n, kbuckets[index], comparator);
+			nrSeen += kbuckets[index].getSnapshot().length;
 		}
-		return $;
-	}
-	
-	/**
-	 * Register this data structure to listen to incoming messages and update itself
-	 * accordingly.
-	 * Invoke this method after creating the entire system
-	 */
-	public synchronized void registerIncomingMessageHandler() {
-		msgDispatcherProvider.get()
-			.setConsumable(false)
-			// do not add PingResponse since it might create a loop
-			.addFilter(new TypeExcluderMessageFilter(PingResponse.class))
-			.addFilter(new SrcExcluderMessageFilter(localNode))
-			
-			.setCallback(null, new CompletionHandler<KadMessage, Object>() {
-				
-				@Override
-				public void failed(Throwable exc, Object attachment) {
-					// should never be here
-					exc.printStackTrace();
-				}
-				
-				@Override
-				public void completed(KadMessage msg, Object attachment) {
-					KadBuckets.this.insert(kadNodeProvider.get()
-							.setNode(msg.getSrc())
-							.setNodeWasContacted());
-					
-					// try to sniff the message for more information, such as
-					// nodes in its content
-					List<Node> nodes = null;
-					if (msg instanceof FindNodeResponse) {
-						nodes = ((FindNodeResponse)msg).getNodes();
-					} else if (msg instanceof ForwardResponse) {
-						nodes = ((ForwardResponse)msg).getNodes();
-					} else if (msg instanceof ForwardMessage) {
-						nodes = ((ForwardMessage)msg).getNodes();
-					} else if (msg instanceof ForwardRequest) {
-						nodes = ((ForwardRequest)msg).getBootstrap();
-					}
-					
-					if (nodes != null) {
-						for (int i =0; i<nodes.size();i++) {
-							KadBuckets.this.insert(kadNodeProvider.get().setNode(nodes.get(i)));
-						}
-					}
-				}
-			})
-			.register();
-	}
 
-	private int getKBucketIndex(Key key) {
-		return key.xor(localNode.getKey()).getFirstSetBitIndex();
-	}
-	
-	private List<Node> getClosestNodes(Key k, int n, int index, Bucket[] buckets) {
-		Set<Node> emptySet = Collections.emptySet();
-		return getClosestNodes(k, n, index, buckets, emptySet);
-	}
-	
-	private List<Node> getClosestNodes(Key k, int n, int index, Bucket[] buckets, Collection<Node> exclude) {
-	
-		final List<Node> $ = new ArrayList<Node>();
-		final Set<Node> t = new HashSet<Node>();
-		if (index < 0)
-			index = 0;
-		
-		buckets[index].addNodesTo($);
-		
-		if ($.size() < n) {
-			// look in other buckets
-			for (int i=1; $.size() < n; ++i) {
-				if (index + i < buckets.length) {
-					buckets[index + i].addNodesTo(t);
-					t.removeAll(exclude);
-					$.addAll(t);
-					t.clear();
-				}
-			
-				if (0 <= index - i) {
-					buckets[index - i].addNodesTo(t);
-					t.removeAll(exclude);
-					$.addAll(t);
-					t.clear();
-				}
-				
-				if (buckets.length <= index + i && index - i < 0)
-					break;
+		if ((byDistance ? size : nrSeen) < n) {
+			for (int i=0; i < index; ++i) {
+				size = offerAll(buffer, size, n, kbuckets[i], comparator);
+				nrSeen += kbuckets[i].getSnapshot().length;
 			}
 		}
-		
-		return $;
+
+		for (int i=index+1; i < kbuckets.length && (byDistance ? size : nrSeen) < n; ++i) {
+			size = offerAll(buffer, size, n, kbuckets[i], comparator);
+			nrSeen += kbuckets[i].getSnapshot().length;
+		}
+
+		sortHeap(buffer, size, comparator);
+		return size;
 	}
 	
 	/**
@@ -212,6 +130,14 @@ public class KadBuckets implements NodeStorage,KBuckets {
 		kbuckets[i].markDead(n);
 	}
 	
+	public void remove(Node n) {
+		int i = getKBucketIndex(n.getKey());
+		if (i == -1)
+			return;
+		
+		kbuckets[i].remove(n);
+	}
+	
 	/**
 	 * Returns a single bucket's content. The bucket number is calculated
 	 * using the given key according to its prefix with the local node's key
@@ -237,13 +163,22 @@ public class KadBuckets implements NodeStorage,KBuckets {
 	 * @return a list of nodes sorted by proximity to k
 	 */
 	public List<Node> getClosestNodesByKey(Key k, int n) {
-		List<Node> $ = getClosestNodes(k, n, getKBucketIndex(k), kbuckets);
-		if ($.isEmpty())
-			return $;
-		$ = sort($, on(Node.class).getKey(), new KeyComparator(k));
-		if ($.size() > n)
-			$.subList(n, $.size()).clear();
-		return $;
+		Node[] buffer = new Node[n];
+		int size = getClosestNodesByKey(k, n, buffer);
+		return new ArrayList<Node>(Arrays.asList(buffer).subList(0, size));
+	}
+	
+	/**
+	 * Writes the n nodes with keys closest to the given k into the given buffer.
+	 * Nothing is allocated, so the same buffer can be reused for every call.
+	 * @param k the key which the result's nodes are close to
+	 * @param n the maximum number of nodes expected
+	 * @param buffer where the nodes are written to, must have room for n nodes
+	 * @return the number of nodes written, MIN(n, total number of nodes in the data structure).
+	 * buffer[0] to buffer[$-1] are sorted by proximity to k
+	 */
+	public int getClosestNodesByKey(Key k, int n, Node[] buffer) {
+		return selectClosestNodes(k, n, buffer, new KeyComparator(k), true);
 	}
 	
 	/**
@@ -254,13 +189,9 @@ public class KadBuckets implements NodeStorage,KBuckets {
 	 * @return a list of nodes sorted by proximity to the given key's color
 	 */
 	public List<Node> getClosestNodesByColor(Key k, int n) {
-		List<Node> $ = getClosestNodes(k, n, getKBucketIndex(k), kbuckets);
-		if ($.isEmpty())
-			return $;
-		$ = sort($, on(Node.class).getKey(), new KeyColorComparator(k, nrColors));
-		if ($.size() > n)
-			$.subList(n, $.size()).clear();
-		return $;
+		Node[] buffer = new Node[n];
+		int size = selectClosestNodes(k, n, buffer, new KeyColorComparator(k, nrColors), false);
+		return new ArrayList<Node>(Arrays.asList(buffer).subList(0, size));
 	}
 	
 	@Override
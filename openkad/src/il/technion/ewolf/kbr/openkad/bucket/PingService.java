@@ -0,0 +1,228 @@
+package il.technion.ewolf.kbr.openkad.bucket;
+
+import il.technion.ewolf.kbr.Node;
+import il.technion.ewolf.kbr.concurrent.CompletionHandler;
+import il.technion.ewolf.kbr.concurrent.HashedWheelTimer;
+import il.technion.ewolf.kbr.openkad.msg.KadMessage;
+import il.technion.ewolf.kbr.openkad.msg.PingRequest;
+import il.technion.ewolf.kbr.openkad.msg.PingResponse;
+import il.technion.ewolf.kbr.openkad.net.LivenessTracker;
+import il.technion.ewolf.kbr.openkad.net.MessageDispatcher;
+import il.technion.ewolf.kbr.openkad.net.filter.IdMessageFilter;
+import il.technion.ewolf.kbr.openkad.net.filter.TypeMessageFilter;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.name.Named;
+
+/**
+ * Checks the liveness of nodes for all the buckets.
+ *
+ * Checks are queued and sent in batches, one batch every
+ * openkad.ping.batch_interval millis, so no more than openkad.ping.pps pings
+ * are sent per second no matter how many buckets want to ping.
+ * A node which is already queued or being pinged is not pinged again, the
+ * caller simply gets the result of the ping already sent.
+ * A node we received a message from while its check was queued is not pinged
+ * at all, the check is completed (with a null message) since the node was
+ * just proved to be alive.
+ * When more than openkad.ping.max_pending checks are queued new checks are
+ * rejected, and the caller should behave as if the node was not checked.
+ *
+ * The result of a check is given to the caller's handler with the checked
+ * node as the attachment: completed with the ping response or failed if the
+ * ping timed out.
+ *
+ * @author eyal.kibbar@gmail.com
+ *
+ */
+public class PingService implements CompletionHandler<KadMessage, Node> {
+
+	/**
+	 * A queued or sent liveness check of a single node
+	 */
+	private static final class Check {
+		private final long queueTime = System.currentTimeMillis();
+		private final List<CompletionHandler<KadMessage, Node>> handlers =
+			new ArrayList<CompletionHandler<KadMessage, Node>>(1);
+	}
+
+	// dependencies
+	private final Provider<PingRequest> pingRequestProvider;
+	private final Provider<MessageDispatcher<Node>> msgDispatcherProvider;
+	private final HashedWheelTimer timer;
+	private final LivenessTracker livenessTracker;
+	private final long batchInterval;
+	private final int batchSize;
+	private final int maxPending;
+
+	// state
+	// the queued and sent checks, guarded by this
+	private final Map<Node, Check> checks;
+	// nodes waiting to be pinged, oldest first. guarded by this
+	private final Deque<Node> queue;
+	// a batch was scheduled and has not run yet, guarded by this
+	private boolean isScheduled = false;
+	private final Runnable sendBatchTask = new Runnable() {
+		@Override
+		public void run() {
+			sendBatch();
+		}
+	};
+
+	// testing
+	private final AtomicInteger nrPingsCoalesced;
+	private final AtomicInteger nrPingsRejected;
+	private final AtomicInteger nrPingsPiggybacked;
+
+	@Inject
+	PingService(
+			Provider<PingRequest> pingRequestProvider,
+			Provider<MessageDispatcher<Node>> msgDispatcherProvider,
+			@Named("openkad.timer.wheel") HashedWheelTimer timer,
+			LivenessTracker livenessTracker,
+			@Named("openkad.ping.pps") int pps,
+			@Named("openkad.ping.batch_interval") long batchInterval,
+			@Named("openkad.ping.max_pending") int maxPending,
+			@Named("openkad.testing.nrPingsCoalesced") AtomicInteger nrPingsCoalesced,
+			@Named("openkad.testing.nrPingsRejected") AtomicInteger nrPingsRejected,
+			@Named("openkad.testing.nrPingsPiggybacked") AtomicInteger nrPingsPiggybacked) {
+
+		if (pps <= 0 || batchInterval <= 0)
+			throw new IllegalArgumentException("ping pps and batch interval must be positive");
+
+		this.pingRequestProvider = pingRequestProvider;
+		this.msgDispatcherProvider = msgDispatcherProvider;
+		this.timer = timer;
+		this.livenessTracker = livenessTracker;
+		this.batchInterval = batchInterval;
+		// round down, but always make progress
+		this.batchSize = (int) Math.max(1, pps * batchInterval / 1000);
+		this.maxPending = maxPending;
+		this.nrPingsCoalesced = nrPingsCoalesced;
+		this.nrPingsRejected = nrPingsRejected;
+		this.nrPingsPiggybacked = nrPingsPiggybacked;
+
+		this.checks = new HashMap<Node, Check>();
+		this.queue = new ArrayDeque<Node>();
+	}
+
+	/**
+	 * Queues a liveness check of n.
+	 * If n is already being checked the handler is attached to that check.
+	 *
+	 * @param n the node to be pinged
+	 * @param handler receives the result with n as the attachment
+	 * @return false if there were too many pending checks, in which case the
+	 * handler will not be invoked
+	 */
+	public boolean check(Node n, CompletionHandler<KadMessage, Node> handler) {
+		synchronized (this) {
+			Check check = checks.get(n);
+			if (check != null) {
+				if (!check.handlers.contains(handler))
+					check.handlers.add(handler);
+				nrPingsCoalesced.incrementAndGet();
+				return true;
+			}
+
+			if (queue.size() >= maxPending) {
+				nrPingsRejected.incrementAndGet();
+				return false;
+			}
+
+			check = new Check();
+			check.handlers.add(handler);
+			checks.put(n, check);
+			queue.addLast(n);
+
+			if (isScheduled)
+				return true;
+			isScheduled = true;
+		}
+		timer.newTimeout(sendBatchTask, batchInterval, TimeUnit.MILLISECONDS);
+		return true;
+	}
+
+	private boolean sendPing(Node n) {
+		PingRequest pingRequest = pingRequestProvider.get();
+		return msgDispatcherProvider.get()
+				.addFilter(new IdMessageFilter(pingRequest.getId()))
+				.addFilter(new TypeMessageFilter(PingResponse.class))
+				.setCallback(n, this)
+				.trySend(n, pingRequest);
+	}
+
+	private void sendBatch() {
+		int nrSent = 0;
+		while (nrSent < batchSize) {
+			Node n;
+			long queueTime;
+			synchronized (this) {
+				n = queue.pollFirst();
+				if (n == null)
+					break;
+				queueTime = checks.get(n).queueTime;
+			}
+
+			if (queueTime <= livenessTracker.getLastSuccess(n)) {
+				// heard from n since the check was queued, no need to ping
+				nrPingsPiggybacked.incrementAndGet();
+				completed(null, n);
+				continue;
+			}
+
+			if (!sendPing(n)) {
+				// too many outstanding requests, send it in the next batch
+				synchronized (this) {
+					queue.addFirst(n);
+				}
+				break;
+			}
+			++nrSent;
+		}
+
+		synchronized (this) {
+			if (queue.isEmpty()) {
+				isScheduled = false;
+				return;
+			}
+		}
+		timer.newTimeout(sendBatchTask, batchInterval, TimeUnit.MILLISECONDS);
+	}
+
+	private synchronized List<CompletionHandler<KadMessage, Node>> takeHandlers(Node n) {
+		Check check = checks.remove(n);
+		if (check == null)
+			return new ArrayList<CompletionHandler<KadMessage, Node>>(0);
+		return check.handlers;
+	}
+
+	@Override
+	public void completed(KadMessage msg, Node n) {
+		for (CompletionHandler<KadMessage, Node> handler : takeHandlers(n))
+			handler.completed(msg, n);
+	}
+
+	@Override
+	public void failed(Throwable exc, Node n) {
+		for (CompletionHandler<KadMessage, Node> handler : takeHandlers(n))
+			handler.failed(exc, n);
+	}
+
+	/**
+	 * @return number of checks queued or waiting for a response
+	 */
+	public synchronized int getNrPending() {
+		return checks.size();
+	}
+}
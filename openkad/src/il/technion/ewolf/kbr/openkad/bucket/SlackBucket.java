@@ -4,8 +4,8 @@ import il.technion.ewolf.kbr.Node;
 import il.technion.ewolf.kbr.openkad.KadNode;
 
 import java.util.Collection;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.HashSet;
+import java.util.Set;
 
 import com.google.inject.Inject;
 
@@ -14,19 +14,25 @@ import com.google.inject.Inject;
  * Any new node is inserted, if the bucket has reached its max size
  * the oldest node in the bucket is removed.
  * 
+ * Like {@link StableBucket}, the content is an immutable array replaced on
+ * every change so reading the bucket never takes a lock.
+ * 
  * @author eyal.kibbar@gmail.com
  *
  */
 public class SlackBucket implements Bucket {
 
 	
-	private final List<KadNode> bucket;
+	// the bucket content, oldest node first. never modified, only replaced
+	private volatile KadNode[] bucket = new KadNode[0];
+	// the nodes in bucket, guarded by itself
+	private final Set<Node> index;
 	private final int maxSize;
 	
 	@Inject
 	public SlackBucket(int maxSize) {
 		this.maxSize = maxSize;
-		bucket = new LinkedList<KadNode>();
+		index = new HashSet<Node>();
 	}
 	
 	
@@ -36,28 +42,61 @@ public class SlackBucket implements Bucket {
 		if (n.hasNeverContacted())
 			return;
 		
-		synchronized (bucket) {
-			if (bucket.contains(n))
+		synchronized (index) {
+			if (!index.add(n.getNode()))
 				return;
 			
-			if (bucket.size() == maxSize)
-				bucket.remove(0);
+			KadNode[] cur = bucket;
+			int from = 0;
+			if (cur.length == maxSize) {
+				index.remove(cur[0].getNode());
+				from = 1;
+			}
 			
-			bucket.add(n);
+			KadNode[] $ = new KadNode[cur.length - from + 1];
+			System.arraycopy(cur, from, $, 0, cur.length - from);
+			$[$.length - 1] = n;
+			bucket = $;
 		}
 	}
 
+	@Override
+	public KadNode[] getSnapshot() {
+		return bucket;
+	}
+
 	@Override
 	public void addNodesTo(Collection<Node> c) {
-		synchronized (bucket) {
-			for (KadNode n : bucket) {
-				c.add(n.getNode());
-			}
+		KadNode[] snapshot = bucket;
+		for (int i=0; i < snapshot.length; ++i) {
+			c.add(snapshot[i].getNode());
 		}
 	}
 
+	@Override
+	public void addReplacementsTo(Collection<KadNode> c) {
+		// no replacements
+	}
+
 	@Override
 	public void markDead(Node n) {
 		// nothing to do
 	}
+
+	@Override
+	public void remove(Node n) {
+		synchronized (index) {
+			if (!index.remove(n))
+				return;
+
+			KadNode[] cur = bucket;
+			KadNode[] $ = new KadNode[cur.length - 1];
+			int j = 0;
+			for (int i=0; i < cur.length; ++i) {
+				if (!cur[i].getNode().equals(n))
+					$[j++] = cur[i];
+			}
+			bucket = $;
+		}
+	}
 }
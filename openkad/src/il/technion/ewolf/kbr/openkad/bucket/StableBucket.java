@@ -4,19 +4,17 @@ import il.technion.ewolf.kbr.Node;
 import il.technion.ewolf.kbr.concurrent.CompletionHandler;
 import il.technion.ewolf.kbr.openkad.KadNode;
 import il.technion.ewolf.kbr.openkad.msg.KadMessage;
-import il.technion.ewolf.kbr.openkad.msg.PingRequest;
-import il.technion.ewolf.kbr.openkad.msg.PingResponse;
-import il.technion.ewolf.kbr.openkad.net.MessageDispatcher;
-import il.technion.ewolf.kbr.openkad.net.filter.IdMessageFilter;
-import il.technion.ewolf.kbr.openkad.net.filter.TypeMessageFilter;
 
+import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.concurrent.ExecutorService;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.google.inject.Inject;
-import com.google.inject.Provider;
 import com.google.inject.name.Named;
 
 /**
@@ -24,57 +22,231 @@ import com.google.inject.name.Named;
  * when inserting a node do the following:
  * 1. if the node is already in the bucket, move it to be the last
  * 2. if the node is not in the bucket and the bucket is not full, move it to be the last in the bucket
- * 3. if the node is not in the bucket and the bucket is full, ping the first node in the bucket:
+ * 3. if the node is not in the bucket and the bucket is full, keep it in the replacement
+ * list and ping the first node in the bucket:
  *  a. if it returned a ping, move it to be the last in bucket and don't insert the given node
- *  b. if it did not returned a ping, remove it from the bucket and insert the given node as last
+ *  b. if it did not returned a ping, keep it first so it is pinged again by a later insert
+ * 
+ * A node marked dead is replaced from the replacement list right away, without
+ * pinging anyone. Nodes are marked dead by the LivenessTracker once
+ * openkad.net.liveness.max_failures requests in a row to them timed out, pings
+ * or any other request, so a single lost ping does not evict a node.
+ * With openkad.bucket.prefer_low_rtt the replacement candidate with the lowest
+ * round trip time is inserted instead of the most recently seen one, and a
+ * new node whose round trip time is less than half of the slowest node in a
+ * full bucket takes its place (proximity neighbor selection). The slowest node
+ * is kept as a replacement candidate.
+ *
+ * Any message from a node counts as a ping, so only the nodes we did not hear
+ * from in openkad.bucket.valid_timespan millis are ever pinged.
+ * At most one ping is sent per openkad.bucket.ping_interval millis,
+ * the candidates heard in the meantime are only kept in the replacement list.
+ * The pings are sent by the {@link PingService} shared by all buckets.
+ *  
+ * The bucket content is kept in an immutable array which is replaced on every
+ * change (copy on write), so reading the bucket never takes a lock.
+ * Changes are serialized by the bucket's monitor.
  *  
  * @author eyal.kibbar@gmail.com
  *
  */
 public class StableBucket implements Bucket {
 
+	private static final KadNode[] EMPTY = new KadNode[0];
+
 	// state
-	private final List<KadNode> bucket;
+	// the bucket content, oldest node first. never modified, only replaced
+	private volatile KadNode[] bucket = EMPTY;
+	// the nodes in bucket by their node, guarded by this
+	private final Map<Node, KadNode> index;
+	// candidates heard while the bucket was full, most recent last. guarded by this
+	private final Deque<KadNode> replacements;
+	// the last time a node of this bucket was pinged, guarded by this
+	private long lastPingTime = 0;
+	// the nodes being pinged, guarded by this
+	private final Map<Node, KadNode> pinging;
+	private final CompletionHandler<KadMessage, Node> pingHandler = new CompletionHandler<KadMessage, Node>() {
+		@Override
+		public void completed(KadMessage msg, Node n) {
+			pingCompleted(n);
+		}
+		@Override
+		public void failed(Throwable exc, Node n) {
+			pingFailed(n);
+		}
+	};
 
 	//dependencies
 	private final int maxSize;
+	private final int maxReplacements;
 	private final long validTimespan;
-	private final Provider<PingRequest> pingRequestProvider;
-	private final Provider<MessageDispatcher<Void>> msgDispatcherProvider;
-	private final ExecutorService pingExecutor;
+	private final long pingInterval;
+	private final boolean preferLowRtt;
+	private final PingService pingService;
+
+	// testing
+	private final AtomicInteger nrPingsAvoided;
+	private final AtomicInteger nrReplacementsPromoted;
 
 	@Inject
 	public StableBucket(
-			int maxSize,
+			@Named("openkad.bucket.kbuckets.maxsize") int maxSize,
+			@Named("openkad.bucket.replacements.maxsize") int maxReplacements,
 			@Named("openkad.bucket.valid_timespan") long validTimespan,
-			@Named("openkad.executors.ping") ExecutorService pingExecutor,
-			Provider<PingRequest> pingRequestProvider,
-			Provider<MessageDispatcher<Void>> msgDispatcherProvider) {
+			@Named("openkad.bucket.ping_interval") long pingInterval,
+			@Named("openkad.bucket.prefer_low_rtt") boolean preferLowRtt,
+			PingService pingService,
+			@Named("openkad.testing.nrPingsAvoided") AtomicInteger nrPingsAvoided,
+			@Named("openkad.testing.nrReplacementsPromoted") AtomicInteger nrReplacementsPromoted) {
 
 		this.maxSize = maxSize;
-		this.bucket = new LinkedList<KadNode>();
+		this.maxReplacements = maxReplacements;
+		this.index = new HashMap<Node, KadNode>();
+		this.pinging = new HashMap<Node, KadNode>();
+		this.replacements = new ArrayDeque<KadNode>(maxReplacements);
 		this.validTimespan = validTimespan;
-		this.pingExecutor = pingExecutor;
-		this.pingRequestProvider = pingRequestProvider;
-		this.msgDispatcherProvider = msgDispatcherProvider;
+		this.pingInterval = pingInterval;
+		this.preferLowRtt = preferLowRtt;
+		this.nrPingsAvoided = nrPingsAvoided;
+		this.nrReplacementsPromoted = nrReplacementsPromoted;
+		this.pingService = pingService;
+	}
+
+	/**
+	 * Publishes a copy of the bucket with n inserted at pos.
+	 * Must be invoked while holding the bucket's monitor
+	 */
+	private void add(int pos, KadNode n) {
+		KadNode[] cur = bucket;
+		KadNode[] $ = new KadNode[cur.length + 1];
+		System.arraycopy(cur, 0, $, 0, pos);
+		$[pos] = n;
+		System.arraycopy(cur, pos, $, pos + 1, cur.length - pos);
+		index.put(n.getNode(), n);
+		bucket = $;
+	}
+
+	/**
+	 * Publishes a copy of the bucket without n.
+	 * Must be invoked while holding the bucket's monitor
+	 * @return the position n was removed from, or -1 if it was not in the bucket
+	 */
+	private int remove(KadNode n) {
+		if (index.remove(n.getNode()) == null)
+			return -1;
+		KadNode[] cur = bucket;
+		int pos = 0;
+		while (!cur[pos].getNode().equals(n.getNode()))
+			++pos;
+		KadNode[] $ = new KadNode[cur.length - 1];
+		System.arraycopy(cur, 0, $, 0, pos);
+		System.arraycopy(cur, pos + 1, $, pos, cur.length - pos - 1);
+		bucket = $;
+		return pos;
+	}
+
+	/**
+	 * Remembers n as a candidate for replacing a dead node.
+	 * Must be invoked while holding the bucket's monitor
+	 */
+	private void addReplacement(KadNode n) {
+		// move to be the most recent
+		replacements.remove(n);
+		if (replacements.size() >= maxReplacements)
+			replacements.pollFirst();
+		if (maxReplacements > 0)
+			replacements.addLast(n);
+	}
+
+	/**
+	 * Removes the replacement candidate to be inserted into the bucket: the
+	 * candidate with the lowest known rtt if preferLowRtt, otherwise (or if no
+	 * rtt is known) the most recently seen candidate
+	 * @param replacements candidates, most recent last
+	 * @return the removed candidate or null if there are no candidates
+	 */
+	static KadNode pollReplacement(Deque<KadNode> replacements, boolean preferLowRtt) {
+		if (!preferLowRtt)
+			return replacements.pollLast();
+
+		KadNode $ = null;
+		for (Iterator<KadNode> it = replacements.descendingIterator(); it.hasNext();) {
+			KadNode r = it.next();
+			if ($ == null || (0 <= r.getSmoothedRtt() &&
+					($.getSmoothedRtt() < 0 || r.getSmoothedRtt() < $.getSmoothedRtt())))
+				$ = r;
+		}
+		if ($ != null)
+			replacements.removeLastOccurrence($);
+		return $;
+	}
+
+	/**
+	 * Replaces the node with the highest rtt in the bucket by n if n's rtt is
+	 * less than half of it. The replaced node becomes a replacement candidate.
+	 * Must be invoked while holding the bucket's monitor
+	 * @return true if n was inserted
+	 */
+	private boolean swapSlowest(KadNode n) {
+		if (n.getSmoothedRtt() < 0)
+			return false;
+
+		KadNode slowest = null;
+		KadNode[] cur = bucket;
+		for (int i=0; i < cur.length; ++i) {
+			if (slowest == null || slowest.getSmoothedRtt() < cur[i].getSmoothedRtt())
+				slowest = cur[i];
+		}
+		if (slowest == null || slowest.getSmoothedRtt() <= 2 * n.getSmoothedRtt())
+			return false;
+
+		remove(slowest);
+		addReplacement(slowest);
+		add(bucket.length, n);
+		nrReplacementsPromoted.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Inserts the best replacement candidate (see pollReplacement) as last.
+	 * Must be invoked while holding the bucket's monitor
+	 * @return false if there was no candidate
+	 */
+	private boolean promoteReplacement() {
+		KadNode r;
+		do {
+			r = pollReplacement(replacements, preferLowRtt);
+			if (r == null)
+				return false;
+		} while (index.containsKey(r.getNode()));
+
+		add(bucket.length, r);
+		nrReplacementsPromoted.incrementAndGet();
+		return true;
 	}
 
 	@Override
 	public synchronized void insert(final KadNode n) {
-		int i = bucket.indexOf(n);
-		if (i != -1) {
+		KadNode s = index.get(n.getNode());
+		if (s != null) {
 			// found node in bucket
+			if (0 <= n.getSmoothedRtt())
+				s.setSmoothedRtt(n.getSmoothedRtt());
 
 			// if heard from n (it is possible to insert n i never had
 			// contact with simply by hearing about from another node)
-			if (bucket.get(i).getLastContact() < n.getLastContact()) {
-				KadNode s = bucket.remove(i);
+			if (s.getLastContact() < n.getLastContact()) {
 				s.setNodeWasContacted(n.getLastContact());
-				bucket.add(s);
+				KadNode[] cur = bucket;
+				// already the newest, no need to copy the bucket
+				if (cur[cur.length - 1] != s) {
+					remove(s);
+					add(cur.length - 1, s);
+				}
 			}
-		} else if (bucket.size() < maxSize) {
+		} else if (bucket.length < maxSize) {
 			// not found in bucket and there is enough room for n
-			bucket.add(n);
+			add(bucket.length, n);
 
 		} else {
 			// n is not in bucket and bucket is full
@@ -83,14 +255,19 @@ public class StableBucket implements Bucket {
 			if (n.hasNeverContacted())
 				return;
 
+			if (preferLowRtt && swapSlowest(n))
+				return;
+
+			addReplacement(n);
+
 			// check the first node, ping him if no one else is currently pinging
-			KadNode inBucketReplaceCandidate = bucket.get(0);
+			KadNode inBucketReplaceCandidate = bucket[0];
 
 			// the first node was only inserted indirectly (meaning, I never recved
-			// a msg from it !) and I did recv a msg from n.
+			// a msg from it !) or was marked dead, and I did recv a msg from n.
 			if (inBucketReplaceCandidate.hasNeverContacted()) {
-				bucket.remove(inBucketReplaceCandidate);
-				bucket.add(n);
+				remove(inBucketReplaceCandidate);
+				promoteReplacement();
 				return;
 			}
 
@@ -98,95 +275,96 @@ public class StableBucket implements Bucket {
 			if (inBucketReplaceCandidate.isPingStillValid(validTimespan))
 				return;
 
+			// pinged someone recently, n will wait in the replacement list
+			long now = System.currentTimeMillis();
+			if (now - lastPingTime < pingInterval) {
+				nrPingsAvoided.incrementAndGet();
+				return;
+			}
+
 			// send ping and act accordingly
 			if (inBucketReplaceCandidate.lockForPing()) {
-				sendPing(bucket.get(0), n);
+				if (!pingService.check(inBucketReplaceCandidate.getNode(), pingHandler)) {
+					// too many pings pending, try again on the next insert
+					inBucketReplaceCandidate.releasePingLock();
+					return;
+				}
+				lastPingTime = now;
+				pinging.put(inBucketReplaceCandidate.getNode(), inBucketReplaceCandidate);
 			}
 		}
 	}
 
-	private void sendPing(final KadNode inBucket, final KadNode replaceIfFailed) {
-
-		final PingRequest pingRequest = pingRequestProvider.get();
-
-		final MessageDispatcher<Void> dispatcher = msgDispatcherProvider.get()
-				.setConsumable(true)
-				.addFilter(new IdMessageFilter(pingRequest.getId()))
-				.addFilter(new TypeMessageFilter(PingResponse.class))
-				.setCallback(null, new CompletionHandler<KadMessage, Void>() {
-					@Override
-					public void completed(KadMessage msg, Void nothing) {
-						// ping was recved
-						inBucket.setNodeWasContacted();
-						inBucket.releasePingLock();
-						synchronized (StableBucket.this) {
-							if (bucket.remove(inBucket)) {
-								bucket.add(inBucket);
-							}
-						}
-					}
-					@Override
-					public void failed(Throwable exc, Void nothing) {
-						// ping was not recved
-						synchronized (StableBucket.this) {
-							// try to remove the already in bucket and 
-							// replace it with the new candidate that we
-							// just heard from.
-							if (bucket.remove(inBucket)) { 
-								// successfully removed the old node that
-								// did not answer my ping
-
-								// try insert the new candidate
-								if (!bucket.add(replaceIfFailed)) {
-									// candidate was already in bucket
-									// return the inBucket to be the oldest node in
-									// the bucket since we don't want our bucket
-									// to shrink unnecessarily
-									bucket.add(0, inBucket);
-								}
-							}
-						}
-						inBucket.releasePingLock();
-					}
-				});
-
-
-		try {
-			pingExecutor.execute(new Runnable() {
-
-				@Override
-				public void run() {
-					dispatcher.send(inBucket.getNode(), pingRequest);
-				}
-			});
-		} catch (Exception e) {
-			inBucket.releasePingLock();
+	private void pingCompleted(Node n) {
+		KadNode inBucket;
+		synchronized (this) {
+			inBucket = pinging.remove(n);
+			if (inBucket == null)
+				return;
+			// ping was recved
+			inBucket.setNodeWasContacted();
+			if (remove(inBucket) != -1)
+				add(bucket.length, inBucket);
+		}
+		inBucket.releasePingLock();
+	}
+
+	private void pingFailed(Node n) {
+		KadNode inBucket;
+		synchronized (this) {
+			inBucket = pinging.remove(n);
+			if (inBucket == null)
+				return;
 		}
+		// ping was not recved, inBucket stays the oldest node until it is
+		// pinged again or marked dead by the liveness tracker
+		inBucket.releasePingLock();
 	}
 
 	@Override
 	public synchronized void markDead(Node n) {
-		for (int i=0; i < bucket.size(); ++i) {
-			KadNode kadNode = bucket.get(i);
-			if (kadNode.getNode().equals(n)) {
-				// mark dead an move to front
-				kadNode.markDead();
-				bucket.remove(i);
-				bucket.add(0, kadNode);
-			}
+		KadNode kadNode = index.get(n);
+		if (kadNode != null) {
+			// mark dead and replace it, or move it to front if there is no
+			// replacement so it is replaced by the next node inserted
+			kadNode.markDead();
+			remove(kadNode);
+			if (!promoteReplacement())
+				add(0, kadNode);
 		}
 	}
 
 	@Override
-	public synchronized void addNodesTo(Collection<Node> c) {
-		for (KadNode n : bucket) {
-			c.add(n.getNode());
+	public synchronized void remove(Node n) {
+		KadNode kadNode = index.get(n);
+		if (kadNode == null)
+			return;
+		kadNode.markDead();
+		remove(kadNode);
+		promoteReplacement();
+	}
+
+	@Override
+	public KadNode[] getSnapshot() {
+		return bucket;
+	}
+
+	@Override
+	public synchronized void addReplacementsTo(Collection<KadNode> c) {
+		c.addAll(replacements);
+	}
+
+	@Override
+	public void addNodesTo(Collection<Node> c) {
+		KadNode[] snapshot = bucket;
+		for (int i=0; i < snapshot.length; ++i) {
+			c.add(snapshot[i].getNode());
 		}
 	}
 
 	@Override
-	public synchronized String toString() {
-		return bucket.toString();
+	public String toString() {
+		return Arrays.toString(bucket);
 	}
 
 }
@@ -0,0 +1,339 @@
+package il.technion.ewolf.kbr.openkad.bucket;
+
+import il.technion.ewolf.kbr.Key;
+import il.technion.ewolf.kbr.KeyColorComparator;
+import il.technion.ewolf.kbr.KeyComparator;
+import il.technion.ewolf.kbr.KeyFactory;
+import il.technion.ewolf.kbr.Node;
+import il.technion.ewolf.kbr.openkad.KadNode;
+import il.technion.ewolf.kbr.openkad.net.LivenessTracker;
+import il.technion.ewolf.kbr.openkad.net.MessageDispatcher;
+import il.technion.ewolf.kbr.openkad.net.RttEstimator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.name.Named;
+
+/**
+ * A routing table organized as the prefix tree of the original kademlia paper:
+ * it starts with a single bucket covering all the keys, and a full bucket is
+ * split in two when a new node should be inserted into it, if its range contains
+ * the local node's key.
+ * Buckets which do not contain the local node's key can also be split up to
+ * openkad.bucket.tree.extra_depth times below the point they diverged from the
+ * local key, as in the accelerated lookups of the kademlia paper, giving the far
+ * regions of the key space (2^extra_depth) * k nodes instead of k nodes.
+ *
+ * Only the buckets needed for the nodes actually seen are created, unlike
+ * {@link KadBuckets} which creates a bucket for each bit of the key.
+ *
+ * The buckets are kept in an immutable array sorted by their range, replaced
+ * on every split, so finding a bucket never takes a lock.
+ * Splits are serialized by the table's monitor. An insert which raced a split
+ * of its bucket is retried in the new buckets, and marking nodes as dead or
+ * removing them (which is rare) holds the table's monitor so it cannot race a
+ * split.
+ *
+ * @author eyal.kibbar@gmail.com
+ *
+ */
+public class TreeKBuckets extends AbstractKBuckets {
+
+	/**
+	 * A bucket and the range of keys it covers: all the keys starting with the
+	 * first depth bits of low
+	 */
+	private static final class Leaf {
+		// the smallest key in the range
+		private final Key low;
+		private final int depth;
+		private final Bucket bucket;
+
+		Leaf(Key low, int depth, Bucket bucket) {
+			this.low = low;
+			this.depth = depth;
+			this.bucket = bucket;
+		}
+
+		/**
+		 * @return number of leading bits k has in common with the range's keys
+		 */
+		int commonPrefixLength(Key k) {
+			return Math.min(low.commonPrefixLength(k), depth);
+		}
+	}
+
+	// dependencies
+	private final Provider<Bucket> kBucketProvider;
+	private final int maxSize;
+	private final int extraDepth;
+	private final int nrColors;
+
+	// state
+	// sorted by range, never modified, only replaced
+	private volatile Leaf[] leaves;
+
+	@Inject
+	TreeKBuckets(
+			KeyFactory keyFactory,
+			Provider<KadNode> kadNodeProvider,
+			Provider<MessageDispatcher<Object>> msgDispatcherProvider,
+			LivenessTracker livenessTracker,
+			RttEstimator rttEstimator,
+			@Named("openkad.bucket.kbuckets") Provider<Bucket> kBucketProvider,
+			@Named("openkad.local.node") Node localNode,
+			@Named("openkad.bucket.kbuckets.maxsize") int maxSize,
+			@Named("openkad.bucket.tree.extra_depth") int extraDepth,
+			@Named("openkad.color.nrcolors") int nrColors) {
+
+		super(keyFactory, kadNodeProvider, msgDispatcherProvider, livenessTracker, rttEstimator, localNode);
+		this.kBucketProvider = kBucketProvider;
+		this.maxSize = maxSize;
+		this.extraDepth = extraDepth;
+		this.nrColors = nrColors;
+
+		this.leaves = new Leaf[] { new Leaf(keyFactory.getZeroKey(), 0, kBucketProvider.get()) };
+	}
+
+	private static int getBit(Key k, int i) {
+		return (k.getBytes()[i / 8] >>> (7 - i % 8)) & 1;
+	}
+
+	/**
+	 * @return the index of the leaf covering k
+	 */
+	private static int find(Leaf[] ls, Key k) {
+		// last leaf with low <= k
+		int lo = 0;
+		int hi = ls.length - 1;
+		while (lo < hi) {
+			int mid = (lo + hi + 1) >>> 1;
+			if (ls[mid].low.compareTo(k) <= 0)
+				lo = mid;
+			else
+				hi = mid - 1;
+		}
+		return lo;
+	}
+
+	private boolean canSplit(Leaf leaf) {
+		if (leaf.depth >= keyFactory.getBitLength())
+			return false;
+		int c = leaf.commonPrefixLength(localNode.getKey());
+		// contains the local key
+		if (c == leaf.depth)
+			return true;
+		// number of splits below the point the leaf diverged from the local key
+		return leaf.depth - c - 1 < extraDepth;
+	}
+
+	private static boolean contains(Bucket bucket, Node n) {
+		KadNode[] nodes = bucket.getSnapshot();
+		for (int i=0; i < nodes.length; ++i) {
+			if (nodes[i].getNode().equals(n))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Replaces the leaf with two leaves covering each half of its range and
+	 * moves its nodes and replacement candidates to them. Does nothing if the
+	 * leaf was already split.
+	 */
+	private synchronized void split(Leaf leaf) {
+		Leaf[] ls = leaves;
+		int i = find(ls, leaf.low);
+		if (ls[i] != leaf)
+			return;
+
+		byte[] b = Arrays.copyOf(leaf.low.getBytes(), leaf.low.getByteLength());
+		b[leaf.depth / 8] |= 0x80 >>> (leaf.depth % 8);
+		Leaf[] children = new Leaf[] {
+				new Leaf(leaf.low, leaf.depth + 1, kBucketProvider.get()),
+				new Leaf(keyFactory.get(b), leaf.depth + 1, kBucketProvider.get())
+		};
+
+		moveNodes(leaf.bucket, children);
+		List<KadNode> replacements = new ArrayList<KadNode>();
+		leaf.bucket.addReplacementsTo(replacements);
+		for (KadNode r : replacements)
+			children[getBit(r.getNode().getKey(), leaf.depth)].bucket.insert(r);
+
+		Leaf[] $ = new Leaf[ls.length + 1];
+		System.arraycopy(ls, 0, $, 0, i);
+		System.arraycopy(children, 0, $, i, 2);
+		System.arraycopy(ls, i + 1, $, i + 2, ls.length - i - 1);
+		leaves = $;
+
+		// catch the nodes inserted to the old bucket while splitting
+		moveNodes(leaf.bucket, children);
+	}
+
+	private void moveNodes(Bucket from, Leaf[] children) {
+		KadNode[] nodes = from.getSnapshot();
+		for (int i=0; i < nodes.length; ++i)
+			children[getBit(nodes[i].getNode().getKey(), children[0].depth - 1)].bucket.insert(nodes[i]);
+	}
+
+	@Override
+	public void insert(KadNode node) {
+		Key key = node.getNode().getKey();
+		if (key.equals(localNode.getKey()))
+			return;
+
+		while (true) {
+			Leaf[] ls = leaves;
+			Leaf leaf = ls[find(ls, key)];
+			if (leaf.bucket.getSnapshot().length < maxSize || !canSplit(leaf) || contains(leaf.bucket, node.getNode())) {
+				leaf.bucket.insert(node);
+				// the leaf was split after its nodes were moved, insert again
+				// to the new leaf
+				ls = leaves;
+				if (ls[find(ls, key)] == leaf)
+					return;
+				continue;
+			}
+			split(leaf);
+		}
+	}
+
+	/**
+	 * Uses the keyFactory to generate keys which will fit to different buckets
+	 * @return a list of random keys, one in the range of each bucket
+	 */
+	@Override
+	public List<Key> randomKeysForAllBuckets() {
+		Leaf[] ls = leaves;
+		List<Key> $ = new ArrayList<Key>(ls.length);
+		for (int i=0; i < ls.length; ++i) {
+			byte[] b = Arrays.copyOf(keyFactory.generate().getBytes(), keyFactory.getByteLength());
+			byte[] low = ls[i].low.getBytes();
+			// copy the range's prefix
+			for (int bit=0; bit < ls[i].depth; ++bit) {
+				int mask = 0x80 >>> (bit % 8);
+				b[bit / 8] = (byte) ((b[bit / 8] & ~mask) | (low[bit / 8] & mask));
+			}
+			$.add(keyFactory.get(b));
+		}
+		return $;
+	}
+
+	/**
+	 * Selects the nodes closest to k into buffer.
+	 *
+	 * The nodes in the leaf covering k are closer to k than all other nodes.
+	 * The other leaves are visited by their common prefix with k, which is
+	 * the distance order of their nodes from k: the leaves sharing c bits with k
+	 * are the sibling subtree of k's path at depth c, which is a contiguous range
+	 * of leaves right next to the leaves already visited.
+	 * Once n nodes were selected the leaves farther away are skipped.
+	 *
+	 * When byDistance is false the comparator does not follow this order and
+	 * leaves are visited until at least n candidates were seen.
+	 */
+	private int selectClosestNodes(Key k, int n, Node[] buffer, Comparator<Key> comparator, boolean byDistance) {
+		Leaf[] ls = leaves;
+		int i = find(ls, k);
+		int lo = i;
+		int hi = i;
+		int size = offerAll(buffer, 0, n, ls[i].bucket, comparator);
+		int nrSeen = ls[i].bucket.getSnapshot().length;
+
+		for (int c = ls[i].depth - 1; 0 <= c && (byDistance ? size : nrSeen) < n; --c) {
+			if (getBit(k, c) == 0) {
+				// the sibling subtree has bit c set, it is on the right
+				while (hi + 1 < ls.length && ls[hi + 1].commonPrefixLength(k) == c) {
+					++hi;
+					size = offerAll(buffer, size, n, ls[hi].bucket, comparator);
+					nrSeen += ls[hi].bucket.getSnapshot().length;
+				}
+			} else {
+				while (0 < lo && ls[lo - 1].commonPrefixLength(k) == c) {
+					--lo;
+					size = offerAll(buffer, size, n, ls[lo].bucket, comparator);
+					nrSeen += ls[lo].bucket.getSnapshot().length;
+				}
+			}
+		}
+
+		sortHeap(buffer, size, comparator);
+		return size;
+	}
+
+	@Override
+	public int getClosestNodesByKey(Key k, int n, Node[] buffer) {
+		return selectClosestNodes(k, n, buffer, new KeyComparator(k), true);
+	}
+
+	@Override
+	public List<Node> getClosestNodesByKey(Key k, int n) {
+		Node[] buffer = new Node[n];
+		int size = getClosestNodesByKey(k, n, buffer);
+		return new ArrayList<Node>(Arrays.asList(buffer).subList(0, size));
+	}
+
+	@Override
+	public List<Node> getClosestNodesByColor(Key k, int n) {
+		Node[] buffer = new Node[n];
+		int size = selectClosestNodes(k, n, buffer, new KeyColorComparator(k, nrColors), false);
+		return new ArrayList<Node>(Arrays.asList(buffer).subList(0, size));
+	}
+
+	@Override
+	public synchronized void markAsDead(Node n) {
+		Leaf[] ls = leaves;
+		ls[find(ls, n.getKey())].bucket.markDead(n);
+	}
+
+	@Override
+	public synchronized void remove(Node n) {
+		Leaf[] ls = leaves;
+		ls[find(ls, n.getKey())].bucket.remove(n);
+	}
+
+	@Override
+	public List<Node> getAllNodes() {
+		Leaf[] ls = leaves;
+		List<Node> $ = new ArrayList<Node>();
+		for (int i=0; i < ls.length; ++i)
+			ls[i].bucket.addNodesTo($);
+		return $;
+	}
+
+	/**
+	 * Returns the content of the bucket covering the given key
+	 *
+	 * @param k key to find the bucket of
+	 * @return a list of nodes from a particular bucket
+	 */
+	@Override
+	public List<Node> getAllFromBucket(Key k) {
+		Leaf[] ls = leaves;
+		List<Node> $ = new ArrayList<Node>();
+		ls[find(ls, k)].bucket.addNodesTo($);
+		return $;
+	}
+
+	/**
+	 * @return number of buckets in the tree
+	 */
+	public int getNrBuckets() {
+		return leaves.length;
+	}
+
+	@Override
+	public String toString() {
+		Leaf[] ls = leaves;
+		String $ = "";
+		for (int i=0; i < ls.length; ++i)
+			$ += ls[i].depth+" "+ls[i].bucket.toString()+"\n";
+		return $;
+	}
+}
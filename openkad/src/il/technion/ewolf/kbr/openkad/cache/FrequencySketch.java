@@ -0,0 +1,110 @@
+package il.technion.ewolf.kbr.openkad.cache;
+
+/**
+ * Estimates how often keys were seen using a count-min sketch of 4 bit
+ * counters, 16 counters packed in each long.
+ *
+ * Each key is counted in 4 counters, one in each quarter of a long chosen by
+ * the key's hash, and its frequency is the smallest of them. Counters saturate
+ * at 15. After sampleSize increments all the counters are halved so the sketch
+ * follows changes in popularity instead of remembering the past forever.
+ *
+ * Not thread safe, callers must serialize all the calls.
+ *
+ * @author eyal.kibbar@gmail.com
+ *
+ */
+public class FrequencySketch {
+
+	private static final long[] SEEDS = {
+		0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L
+	};
+	private static final long RESET_MASK = 0x7777777777777777L;
+	private static final int MAX_COUNT = 15;
+
+	private final long[] table;
+	private final int tableMask;
+	private final int sampleSize;
+	private int size = 0;
+
+	/**
+	 * @param maxSize number of distinct items the sketch should tell apart,
+	 * usually the capacity of the cache using it
+	 */
+	public FrequencySketch(int maxSize) {
+		int length = Integer.highestOneBit(Math.max(2, maxSize) - 1) << 1;
+		this.table = new long[length];
+		this.tableMask = length - 1;
+		this.sampleSize = 10 * Math.max(1, maxSize);
+	}
+
+	private static int spread(int h) {
+		h ^= h >>> 17;
+		h *= 0xed5ad4bb;
+		h ^= h >>> 11;
+		h *= 0xac4c1b51;
+		h ^= h >>> 15;
+		return h;
+	}
+
+	private int indexOf(int h, int i) {
+		long hash = (h + SEEDS[i]) * SEEDS[i];
+		hash += hash >>> 32;
+		return (int) hash & tableMask;
+	}
+
+	/**
+	 * @param o the item
+	 * @return estimated number of times o was seen, between 0 and 15
+	 */
+	public int frequency(Object o) {
+		int h = spread(o.hashCode());
+		// the counter to use in each long, one per quarter
+		int start = (h & 3) << 2;
+		int $ = MAX_COUNT;
+		for (int i=0; i < 4; ++i) {
+			int shift = (start + i) << 2;
+			int count = (int) ((table[indexOf(h, i)] >>> shift) & 0xF);
+			$ = Math.min($, count);
+		}
+		return $;
+	}
+
+	/**
+	 * Counts one more occurrence of o
+	 * @param o the item
+	 */
+	public void increment(Object o) {
+		int h = spread(o.hashCode());
+		int start = (h & 3) << 2;
+		boolean added = false;
+		for (int i=0; i < 4; ++i) {
+			int index = indexOf(h, i);
+			int shift = (start + i) << 2;
+			if (((table[index] >>> shift) & 0xF) != MAX_COUNT) {
+				table[index] += 1L << shift;
+				added = true;
+			}
+		}
+		if (added && ++size == sampleSize)
+			reset();
+	}
+
+	/**
+	 * Halves all the counters
+	 */
+	private void reset() {
+		for (int i=0; i < table.length; ++i)
+			table[i] = (table[i] >>> 1) & RESET_MASK;
+		size /= 2;
+	}
+
+	/**
+	 * Forgets all the counts
+	 */
+	public void clear() {
+		for (int i=0; i < table.length; ++i)
+			table[i] = 0;
+		size = 0;
+	}
+}
@@ -0,0 +1,57 @@
+package il.technion.ewolf.kbr.openkad.cache;
+
+import il.technion.ewolf.kbr.Key;
+import il.technion.ewolf.kbr.Node;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+
+/**
+ * Admits to the real cache only the results of hot keys, as told by the
+ * {@link HotKeyTracker}, so results of keys searched once, pushed by other
+ * nodes or found by local lookups, do not replace the popular ones.
+ * Searches go straight to the real cache.
+ *
+ * @author eyal.kibbar@gmail.com
+ *
+ */
+public class HotKeyKadCache implements KadCache {
+
+	private final KadCache realCache;
+	private final HotKeyTracker hotKeys;
+
+	// testing
+	private final AtomicInteger nrColdInserts;
+
+	@Inject
+	HotKeyKadCache(
+			@Named("openkad.cache.hotkeys.cache") KadCache realCache,
+			HotKeyTracker hotKeys,
+			@Named("openkad.testing.nrColdInserts") AtomicInteger nrColdInserts) {
+		this.realCache = realCache;
+		this.hotKeys = hotKeys;
+		this.nrColdInserts = nrColdInserts;
+	}
+
+	@Override
+	public void insert(Key key, List<Node> nodes) {
+		if (!hotKeys.isHot(key)) {
+			nrColdInserts.incrementAndGet();
+			return;
+		}
+		realCache.insert(key, nodes);
+	}
+
+	@Override
+	public List<Node> search(Key key) {
+		return realCache.search(key);
+	}
+
+	@Override
+	public void clear() {
+		realCache.clear();
+	}
+}
@@ -0,0 +1,269 @@
+package il.technion.ewolf.kbr.openkad.cache;
+
+import il.technion.ewolf.kbr.Key;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+
+/**
+ * Tracks the most popular keys searched through this node: the keys of the
+ * find node requests (searching the cache) and forward requests it handles,
+ * and of its own find value operations.
+ *
+ * Every key is counted in a count-min sketch of openkad.hotkeys.width int
+ * counters per row, 4 rows, with conservative update (only the smallest of
+ * the key's counters are incremented), and the openkad.hotkeys.size keys with
+ * the highest estimates are kept aside, so the top keys can be listed
+ * without keeping a counter per key. After openkad.hotkeys.width keys were
+ * counted all the counts are halved, so the tracker follows changes in
+ * popularity, and the keys counted between two halvings are few enough for
+ * the sketch to tell keys searched once from keys searched a few times.
+ *
+ * A key is hot once its estimated count reaches openkad.hotkeys.threshold.
+ * So a hot key is roughly a key searched threshold times among the last
+ * openkad.hotkeys.width searches.
+ * Hot keys are the only keys pushed to other nodes' caches by the find value
+ * operations and admitted to the local cache, see {@link HotKeyKadCache}.
+ *
+ * Every search of the node goes through record, so the sketch takes no lock:
+ * the counters are incremented by compare and set, and an increment lost to
+ * a concurrent one only makes the estimate smaller, never larger than the real
+ * count. Only a key entering the top keys takes the lock, to find the key with
+ * the smallest count and replace it.
+ *
+ * @author eyal.kibbar@gmail.com
+ *
+ */
+public class HotKeyTracker {
+
+	private static final int DEPTH = 4;
+	private static final int[] SEEDS = { 0x9e3779b9, 0x85ebca6b, 0xc2b2ae35, 0x27d4eb2f };
+
+	/**
+	 * A key and its estimated count
+	 */
+	public static final class HotKey {
+		private final Key key;
+		private volatile int count;
+
+		HotKey(Key key, int count) {
+			this.key = key;
+			this.count = count;
+		}
+
+		public Key getKey() {
+			return key;
+		}
+
+		public int getCount() {
+			return count;
+		}
+
+		@Override
+		public String toString() {
+			return key + "=" + count;
+		}
+	}
+
+	private static final Comparator<HotKey> byCount = new Comparator<HotKey>() {
+		@Override
+		public int compare(HotKey o1, HotKey o2) {
+			return o1.count < o2.count ? -1 : o1.count == o2.count ? 0 : 1;
+		}
+	};
+
+	// dependencies
+	private final int threshold;
+	private final int topSize;
+
+	// state
+	private final AtomicIntegerArray[] counters;
+	private final int shift;
+	private final int sampleSize;
+	private final AtomicInteger nrSamples = new AtomicInteger(0);
+	private final AtomicLong nrRecorded = new AtomicLong(0);
+	// the top keys, changed only while holding the lock
+	private final Map<Key, HotKey> topKeys;
+	private volatile boolean isTopFull = false;
+	// smallest count of the top keys when last scanned, never more than the
+	// real smallest count
+	private volatile int topMin = 0;
+	private final Object lock = new Object();
+
+	@Inject
+	HotKeyTracker(
+			@Named("openkad.hotkeys.width") int width,
+			@Named("openkad.hotkeys.size") int topSize,
+			@Named("openkad.hotkeys.threshold") int threshold) {
+
+		int length = Integer.highestOneBit(Math.max(2, width) - 1) << 1;
+		this.counters = new AtomicIntegerArray[DEPTH];
+		for (int i=0; i < DEPTH; ++i)
+			counters[i] = new AtomicIntegerArray(length);
+		this.shift = 32 - Integer.numberOfTrailingZeros(length);
+		this.sampleSize = length;
+		this.threshold = threshold;
+		this.topSize = topSize;
+		this.topKeys = new ConcurrentHashMap<Key, HotKey>();
+	}
+
+	private static int spread(int h) {
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+
+	/**
+	 * Multiplicative hashing, the top bits of the product select the counter
+	 */
+	private int indexOf(int h, int row) {
+		return (h * SEEDS[row]) >>> shift;
+	}
+
+	private int estimate(int h) {
+		int $ = Integer.MAX_VALUE;
+		for (int i=0; i < DEPTH; ++i)
+			$ = Math.min($, counters[i].get(indexOf(h, i)));
+		return $;
+	}
+
+	/**
+	 * Counts one more search of key
+	 * @param key the searched key
+	 */
+	public void record(Key key) {
+		int h = spread(key.hashCode());
+		int min = estimate(h);
+		for (int i=0; i < DEPTH; ++i)
+			counters[i].compareAndSet(indexOf(h, i), min, min + 1);
+		nrRecorded.incrementAndGet();
+		updateTop(key, min + 1);
+
+		if (nrSamples.incrementAndGet() == sampleSize)
+			halve();
+	}
+
+	private void updateTop(Key key, int count) {
+		HotKey hotKey = topKeys.get(key);
+		if (hotKey != null) {
+			hotKey.count = count;
+			return;
+		}
+		if (topSize <= 0 || (isTopFull && count <= topMin))
+			return;
+
+		synchronized (lock) {
+			if (topKeys.containsKey(key))
+				return;
+			if (topKeys.size() >= topSize) {
+				HotKey smallest = smallest();
+				topMin = smallest.count;
+				if (smallest.count >= count)
+					return;
+				topKeys.remove(smallest.key);
+			}
+			topKeys.put(key, new HotKey(key, count));
+			if (topKeys.size() == topSize) {
+				topMin = smallest().count;
+				isTopFull = true;
+			}
+		}
+	}
+
+	/**
+	 * Must be invoked while holding the lock
+	 * @return the top key with the smallest count
+	 */
+	private HotKey smallest() {
+		HotKey $ = null;
+		for (HotKey hotKey : topKeys.values()) {
+			if ($ == null || hotKey.count < $.count)
+				$ = hotKey;
+		}
+		return $;
+	}
+
+	/**
+	 * Halves all the counts
+	 */
+	private void halve() {
+		for (AtomicIntegerArray row : counters) {
+			for (int i=0; i < row.length(); ++i) {
+				int c;
+				do {
+					c = row.get(i);
+				} while (!row.compareAndSet(i, c, c >>> 1));
+			}
+		}
+		synchronized (lock) {
+			for (HotKey hotKey : topKeys.values())
+				hotKey.count >>>= 1;
+			topMin >>>= 1;
+		}
+		nrSamples.addAndGet(-sampleSize);
+	}
+
+	/**
+	 * @param key the key
+	 * @return estimated number of recent searches of key (since the last
+	 * halving), larger than the real number when other keys share its
+	 * counters, smaller when one of its increments was lost to a concurrent one
+	 */
+	public int getCount(Key key) {
+		return estimate(spread(key.hashCode()));
+	}
+
+	/**
+	 * @param key the key
+	 * @return true if key was searched at least openkad.hotkeys.threshold times
+	 */
+	public boolean isHot(Key key) {
+		return threshold <= 0 || getCount(key) >= threshold;
+	}
+
+	/**
+	 * @return the most searched keys and their estimated counts, most searched
+	 * first
+	 */
+	public List<HotKey> getHotKeys() {
+		List<HotKey> $ = new ArrayList<HotKey>(topSize);
+		for (HotKey hotKey : topKeys.values())
+			$.add(new HotKey(hotKey.key, hotKey.count));
+		Collections.sort($, Collections.reverseOrder(byCount));
+		return $;
+	}
+
+	/**
+	 * @return number of searches recorded since created or cleared
+	 */
+	public long getNrRecorded() {
+		return nrRecorded.get();
+	}
+
+	public void clear() {
+		for (AtomicIntegerArray row : counters) {
+			for (int i=0; i < row.length(); ++i)
+				row.set(i, 0);
+		}
+		synchronized (lock) {
+			topKeys.clear();
+			isTopFull = false;
+			topMin = 0;
+		}
+		nrSamples.set(0);
+		nrRecorded.set(0);
+	}
+}
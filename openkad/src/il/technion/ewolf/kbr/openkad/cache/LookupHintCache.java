@@ -0,0 +1,164 @@
+package il.technion.ewolf.kbr.openkad.cache;
+
+import il.technion.ewolf.kbr.Key;
+import il.technion.ewolf.kbr.Node;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+
+/**
+ * Remembers the results of recent find value operations for a short time,
+ * including the ones the {@link KadCache} does not keep: results with fewer
+ * than k nodes (partial results), lookups to which no remote node responded
+ * (misses) and complete results dropped or never kept by the cache's policy.
+ *
+ * Unlike the KadCache, whose entries are given to remote nodes as cached
+ * results, hints are only used locally: a repeated lookup of the same key
+ * starts from the nodes of the last result, which are already close to the
+ * key, instead of starting from the routing table, and a repeated lookup of a
+ * recent miss returns the closest nodes of the routing table, followed by the
+ * local node, as the walk would, without waiting for the same timeouts again.
+ * So a miss never claims the local node is the closest node for the key.
+ *
+ * Results live for openkad.cache.hints.validtime millis and
+ * misses for openkad.cache.hints.negative_validtime millis. Every lookup which
+ * returns the same closest node as a result hint confirms it, and each
+ * confirmation extends the validity of the hint by another valid time, up to
+ * MAX_CONFIRMATIONS. Misses are never confirmed, a network blip blocks the
+ * walks of a key for at most negative_validtime millis.
+ * Only the openkad.cache.hints.size most recently used hints are kept.
+ *
+ * @author eyal.kibbar@gmail.com
+ *
+ */
+public class LookupHintCache {
+
+	private static final int MAX_CONFIRMATIONS = 3;
+
+	/**
+	 * The result of the last lookups of a key
+	 */
+	public static final class Hint {
+		private final List<Node> nodes;
+		private final long timestamp;
+		private final int nrConfirmations;
+		private final long validTime;
+
+		Hint(List<Node> nodes, int nrConfirmations, long validTime) {
+			this.nodes = nodes;
+			this.timestamp = System.currentTimeMillis();
+			this.nrConfirmations = nrConfirmations;
+			this.validTime = validTime;
+		}
+
+		/**
+		 * @return the remote nodes found by the last lookup, closest first
+		 */
+		public List<Node> getNodes() {
+			return nodes;
+		}
+
+		/**
+		 * @return true if no remote node responded to the last lookup
+		 */
+		public boolean isMiss() {
+			return nodes.isEmpty();
+		}
+
+		/**
+		 * @return number of lookups in a row, after the first one, which found
+		 * the same closest node
+		 */
+		public int getNrConfirmations() {
+			return nrConfirmations;
+		}
+
+		/**
+		 * @return millis since the hint was last updated
+		 */
+		public long getAge() {
+			return System.currentTimeMillis() - timestamp;
+		}
+
+		boolean isValid() {
+			return getAge() < validTime * (1 + nrConfirmations);
+		}
+	}
+
+	// dependencies
+	private final int kBucketSize;
+	private final long validTime;
+	private final long negativeValidTime;
+
+	// state
+	private final Map<Key, Hint> hints;
+
+	@Inject
+	LookupHintCache(
+			@Named("openkad.bucket.kbuckets.maxsize") int kBucketSize,
+			@Named("openkad.cache.hints.size") final int size,
+			@Named("openkad.cache.hints.validtime") long validTime,
+			@Named("openkad.cache.hints.negative_validtime") long negativeValidTime) {
+
+		this.kBucketSize = kBucketSize;
+		this.validTime = validTime;
+		this.negativeValidTime = negativeValidTime;
+
+		this.hints = new LinkedHashMap<Key, Hint>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key, Hint> eldest) {
+				return size() > size;
+			}
+		};
+	}
+
+	/**
+	 * Records the result of a lookup
+	 *
+	 * @param key the key looked up
+	 * @param result the lookup's result, empty if no remote node responded
+	 * @param localNode the local node, ignored if in the result
+	 */
+	public synchronized void insert(Key key, List<Node> result, Node localNode) {
+		List<Node> nodes = new ArrayList<Node>(result);
+		nodes.remove(localNode);
+		if (nodes.size() > kBucketSize)
+			nodes.subList(kBucketSize, nodes.size()).clear();
+
+		int nrConfirmations = 0;
+		Hint old = hints.get(key);
+		if (old != null && old.isValid() && !old.isMiss() && !nodes.isEmpty() &&
+				old.nodes.get(0).equals(nodes.get(0)))
+			nrConfirmations = Math.min(MAX_CONFIRMATIONS, old.nrConfirmations + 1);
+
+		hints.put(key, new Hint(Collections.unmodifiableList(nodes), nrConfirmations,
+				nodes.isEmpty() ? negativeValidTime : validTime));
+	}
+
+	/**
+	 * @param key the key to be looked up
+	 * @return a valid hint for the key or null
+	 */
+	public synchronized Hint search(Key key) {
+		Hint $ = hints.get(key);
+		if ($ == null)
+			return null;
+		if (!$.isValid()) {
+			hints.remove(key);
+			return null;
+		}
+		return $;
+	}
+
+	public synchronized void clear() {
+		hints.clear();
+	}
+}
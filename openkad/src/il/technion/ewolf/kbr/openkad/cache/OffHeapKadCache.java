@@ -0,0 +1,339 @@
+package il.technion.ewolf.kbr.openkad.cache;
+
+import il.technion.ewolf.kbr.Key;
+import il.technion.ewolf.kbr.KeyFactory;
+import il.technion.ewolf.kbr.Node;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+
+/**
+ * Caches nodes outside of the java heap, so a large cache adds almost nothing
+ * for the garbage collector to trace.
+ *
+ * Every entry is encoded into a fixed size slot of a slab arena of direct
+ * buffers, openkad.cache.offheap.slab_size bytes each:
+ * (number of nodes, key, then for each node: key, address length,
+ * address and port). The slots are found with an open addressing (linear
+ * probing) table of slot indexes, and the keys are compared directly in the
+ * slots, so the only objects on the heap are a few primitive arrays.
+ * The nodes are decoded on search, into new Node objects owned by the caller.
+ *
+ * When all the slots are used, a slot is reclaimed using the CLOCK policy: the
+ * hand skips (and clears) the slots which were searched since it last passed.
+ *
+ * Only results of at most openkad.bucket.kbuckets.maxsize nodes, each having
+ * a single kad endpoint, can be encoded; other results are not cached.
+ * Searches run in parallel under a read lock, inserts take the write lock.
+ *
+ * @author eyal.kibbar@gmail.com
+ *
+ */
+public class OffHeapKadCache implements KadCache {
+
+	private static final int MAX_ADDR_LENGTH = 16;
+
+	// dependencies
+	private final KeyFactory keyFactory;
+	private final String kadScheme;
+	private final int kBucketSize;
+	private final int size;
+
+	// slot layout
+	private final int keyLength;
+	private final int nodeRecordSize;
+	private final int slotSize;
+	private final int slotsPerSlab;
+
+	// state
+	private final ByteBuffer[] slabs;
+	// open addressing table of slot index + 1, 0 is empty
+	private final int[] table;
+	private final int tableMask;
+	// hash of the key in each slot
+	private final int[] hashes;
+	// the slot was searched since the clock hand passed it
+	private final boolean[] referenced;
+	private int nrUsedSlots = 0;
+	private int clockHand = 0;
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	@Inject
+	OffHeapKadCache(
+			KeyFactory keyFactory,
+			@Named("openkad.scheme.name") String kadScheme,
+			@Named("openkad.bucket.kbuckets.maxsize") int kBucketSize,
+			@Named("openkad.cache.size") int size,
+			@Named("openkad.cache.offheap.slab_size") int slabSize) {
+
+		if (kBucketSize > 255)
+			throw new IllegalArgumentException("kbuckets size is too large for the off heap cache");
+
+		this.keyFactory = keyFactory;
+		this.kadScheme = kadScheme;
+		this.kBucketSize = kBucketSize;
+		this.size = size;
+
+		this.keyLength = keyFactory.getByteLength();
+		this.nodeRecordSize = keyLength + 1 + MAX_ADDR_LENGTH + 2;
+		this.slotSize = 1 + keyLength + kBucketSize * nodeRecordSize;
+		this.slotsPerSlab = Math.max(1, slabSize / slotSize);
+
+		int nrSlabs = (size + slotsPerSlab - 1) / slotsPerSlab;
+		this.slabs = new ByteBuffer[nrSlabs];
+		for (int i=0; i < nrSlabs; ++i) {
+			int nrSlots = Math.min(slotsPerSlab, size - i * slotsPerSlab);
+			slabs[i] = ByteBuffer.allocateDirect(nrSlots * slotSize);
+		}
+
+		int tableSize = Integer.highestOneBit(Math.max(2, 2 * size) - 1) << 1;
+		this.table = new int[tableSize];
+		this.tableMask = tableSize - 1;
+		this.hashes = new int[size];
+		this.referenced = new boolean[size];
+	}
+
+	static int spread(int h) {
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		return h;
+	}
+
+	private ByteBuffer slab(int slot) {
+		return slabs[slot / slotsPerSlab];
+	}
+
+	private int offset(int slot) {
+		return (slot % slotsPerSlab) * slotSize;
+	}
+
+	private boolean keyEquals(int slot, byte[] key) {
+		ByteBuffer slab = slab(slot);
+		int off = offset(slot) + 1;
+		for (int i=0; i < key.length; ++i) {
+			if (slab.get(off + i) != key[i])
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return the table index holding key's slot or -1
+	 */
+	private int indexOf(byte[] key, int hash) {
+		for (int i = hash & tableMask; table[i] != 0; i = (i + 1) & tableMask) {
+			int slot = table[i] - 1;
+			if (hashes[slot] == hash && keyEquals(slot, key))
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Removes the table index i, shifting back the following entries of the
+	 * probe sequence so no tombstones are needed
+	 */
+	private void removeIndex(int i) {
+		int j = i;
+		while (true) {
+			j = (j + 1) & tableMask;
+			if (table[j] == 0)
+				break;
+			int home = hashes[table[j] - 1] & tableMask;
+			// can the entry at j move to i without breaking its probe sequence
+			boolean movable = i <= j ? (home <= i || home > j) : (home <= i && home > j);
+			if (movable) {
+				table[i] = table[j];
+				i = j;
+			}
+		}
+		table[i] = 0;
+	}
+
+	private void addIndex(int slot, int hash) {
+		int i = hash & tableMask;
+		while (table[i] != 0)
+			i = (i + 1) & tableMask;
+		table[i] = slot + 1;
+	}
+
+	/**
+	 * @return a free slot, reclaiming one if all are used
+	 */
+	private int allocateSlot() {
+		if (nrUsedSlots < size)
+			return nrUsedSlots++;
+
+		while (referenced[clockHand]) {
+			referenced[clockHand] = false;
+			clockHand = (clockHand + 1) % size;
+		}
+		int $ = clockHand;
+		clockHand = (clockHand + 1) % size;
+
+		byte[] key = new byte[keyLength];
+		ByteBuffer slab = slab($);
+		int off = offset($) + 1;
+		for (int i=0; i < keyLength; ++i)
+			key[i] = slab.get(off + i);
+		removeIndex(indexOf(key, hashes[$]));
+		return $;
+	}
+
+	private boolean canEncode(List<Node> nodes) {
+		if (nodes.size() > kBucketSize)
+			return false;
+		for (Node n : nodes) {
+			Map<String, Integer> endpoints = n.getAllEndpoints();
+			if (n.getKey().getByteLength() != keyLength ||
+					endpoints.size() != 1 || !endpoints.containsKey(kadScheme))
+				return false;
+		}
+		return true;
+	}
+
+	private void encode(int slot, Key key, List<Node> nodes) {
+		ByteBuffer buf = slab(slot).duplicate();
+		buf.position(offset(slot));
+		buf.put((byte) nodes.size());
+		buf.put(key.getBytes());
+		for (Node n : nodes) {
+			int start = buf.position();
+			buf.put(n.getKey().getBytes());
+			InetAddress addr = n.getInetAddress();
+			byte[] addrBytes = addr == null ? new byte[0] : addr.getAddress();
+			buf.put((byte) addrBytes.length);
+			buf.put(addrBytes);
+			buf.position(start + keyLength + 1 + MAX_ADDR_LENGTH);
+			buf.putShort((short) n.getPort(kadScheme));
+		}
+	}
+
+	private List<Node> decode(byte[] record) {
+		ByteBuffer buf = ByteBuffer.wrap(record);
+		int nrNodes = buf.get(0) & 0xFF;
+		List<Node> $ = new ArrayList<Node>(nrNodes);
+		for (int i=0; i < nrNodes; ++i) {
+			int start = 1 + keyLength + i * nodeRecordSize;
+			buf.position(start);
+			byte[] key = new byte[keyLength];
+			buf.get(key);
+			Node n = new Node(keyFactory.get(key));
+			byte[] addr = new byte[buf.get() & 0xFF];
+			buf.get(addr);
+			if (addr.length != 0) {
+				try {
+					n.setInetAddress(InetAddress.getByAddress(addr));
+				} catch (UnknownHostException e) {
+					// cannot happen, the length was checked when encoded
+					throw new AssertionError(e);
+				}
+			}
+			buf.position(start + keyLength + 1 + MAX_ADDR_LENGTH);
+			n.addEndpoint(kadScheme, buf.getShort() & 0xFFFF);
+			$.add(n);
+		}
+		return $;
+	}
+
+	@Override
+	public void insert(Key key, List<Node> nodes) {
+		if (key.getByteLength() != keyLength || !canEncode(nodes))
+			return;
+		byte[] keyBytes = key.getBytes();
+		int hash = spread(key.hashCode());
+
+		lock.writeLock().lock();
+		try {
+			int i = indexOf(keyBytes, hash);
+			if (i != -1) {
+				// overwrite in place
+				int slot = table[i] - 1;
+				encode(slot, key, nodes);
+				referenced[slot] = true;
+				return;
+			}
+
+			int slot = allocateSlot();
+			encode(slot, key, nodes);
+			hashes[slot] = hash;
+			referenced[slot] = false;
+			addIndex(slot, hash);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public List<Node> search(Key key) {
+		byte[] keyBytes = key.getBytes();
+		if (keyBytes.length != keyLength)
+			return null;
+		int hash = spread(key.hashCode());
+		byte[] record;
+
+		lock.readLock().lock();
+		try {
+			int i = indexOf(keyBytes, hash);
+			if (i == -1)
+				return null;
+			int slot = table[i] - 1;
+			referenced[slot] = true;
+
+			ByteBuffer buf = slab(slot).duplicate();
+			buf.position(offset(slot));
+			int nrNodes = buf.get(offset(slot)) & 0xFF;
+			record = new byte[1 + keyLength + nrNodes * nodeRecordSize];
+			buf.get(record);
+		} finally {
+			lock.readLock().unlock();
+		}
+		return decode(record);
+	}
+
+	@Override
+	public void clear() {
+		lock.writeLock().lock();
+		try {
+			Arrays.fill(table, 0);
+			Arrays.fill(referenced, false);
+			nrUsedSlots = 0;
+			clockHand = 0;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @return number of cached entries
+	 */
+	public int size() {
+		lock.readLock().lock();
+		try {
+			return nrUsedSlots;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return number of bytes allocated outside of the heap
+	 */
+	public long getNrOffHeapBytes() {
+		long $ = 0;
+		for (ByteBuffer slab : slabs)
+			$ += slab.capacity();
+		return $;
+	}
+}
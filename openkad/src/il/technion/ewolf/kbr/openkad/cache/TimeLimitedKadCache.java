@@ -2,36 +2,62 @@ package il.technion.ewolf.kbr.openkad.cache;
 
 import il.technion.ewolf.kbr.Key;
 import il.technion.ewolf.kbr.Node;
+import il.technion.ewolf.kbr.concurrent.HashedWheelTimer;
 
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.google.inject.Inject;
 import com.google.inject.name.Named;
 
 /**
- * Caches all results and never removes them. This policy is obviously only good
- * for testing
- * 
+ * Caches results for openkad.cache.validtime millis.
+ *
+ * All entries live for the same time, so the order of insertion is also the
+ * order of expiry and the entries are kept in a single expiry queue, oldest
+ * first. A sweeper on the timer wheel removes the expired entries from the
+ * head of the queue every openkad.cache.sweep_interval millis, a bounded
+ * number at a time.
+ * While the cache holds more than openkad.cache.size live entries or more
+ * than openkad.cache.max_bytes (estimated) bytes of live entries, the oldest
+ * entry is evicted, even though it has not expired yet. Re-inserting a key
+ * replaces its entry, the old entry stays in the queue until it reaches the
+ * head and is dropped, it is not counted as an eviction. So that keys
+ * re-inserted over and over do not grow the queue, the queue is also bounded
+ * to twice openkad.cache.size entries.
+ *
+ * Nothing takes a lock: the entries are in a concurrent map and the queue is
+ * a concurrent queue.
+ *
  * @author eyal.kibbar@gmail.com
- * 
+ *
  */
 public class TimeLimitedKadCache implements KadCache {
 
-	private final long validTime;
-	private final AtomicInteger optimalCacheMaxSize;
+	// max number of entries removed by a single sweep
+	private static final int SWEEP_BATCH = 4096;
+	// estimated heap usage of an entry, without its nodes, and of each node
+	private static final int ENTRY_OVERHEAD = 96;
+	private static final int NODE_OVERHEAD = 160;
 
 	protected class CacheEntry {
 		private final List<Node> nodes;
 		private final long timestamp;
 		private final Key key;
+		private final int nrBytes;
 
 		CacheEntry(final List<Node> nodes, final Key key) {
 			this.nodes = nodes;
 			this.key = key;
 			this.timestamp = System.currentTimeMillis();
+			this.nrBytes = ENTRY_OVERHEAD + key.getByteLength() +
+					nodes.size() * (NODE_OVERHEAD + key.getByteLength());
 		}
 
 		public List<Node> getNodes() {
@@ -39,7 +65,11 @@ public class TimeLimitedKadCache implements KadCache {
 		}
 
 		public boolean isValid() {
-			return timestamp + validTime > System.currentTimeMillis();
+			return isValid(System.currentTimeMillis());
+		}
+
+		boolean isValid(final long now) {
+			return timestamp + validTime > now;
 		}
 
 		public Key getKey() {
@@ -47,54 +77,167 @@ public class TimeLimitedKadCache implements KadCache {
 		}
 	}
 
-	protected final Map<Key, CacheEntry> cache = new HashMap<Key, CacheEntry>();
+	// dependencies
+	private final long validTime;
+	private final int maxEntries;
+	private final long maxBytes;
+	private final long sweepInterval;
+	private final HashedWheelTimer timer;
+
+	// state
+	protected final ConcurrentHashMap<Key, CacheEntry> cache = new ConcurrentHashMap<Key, CacheEntry>();
+	// all inserted entries, live or replaced, oldest first
+	private final Queue<CacheEntry> expiryQueue = new ConcurrentLinkedQueue<CacheEntry>();
+	private final AtomicInteger queueSize = new AtomicInteger(0);
+	// estimated bytes of the entries in the map
+	private final AtomicLong liveBytes = new AtomicLong(0);
+	private final AtomicBoolean isSweeping = new AtomicBoolean(false);
+	private final Runnable sweepTask = new Runnable() {
+		@Override
+		public void run() {
+			sweep();
+		}
+	};
+
+	// testing
+	private final AtomicInteger optimalCacheMaxSize;
+	private final AtomicInteger nrCacheEntries;
+	private final AtomicInteger nrCacheExpired;
+	private final AtomicInteger nrCacheEvicted;
 
 	@Inject
 	TimeLimitedKadCache(@Named("openkad.cache.validtime") final long validTime,
-			@Named("openkad.testing.optimalCacheMaxSize") final AtomicInteger optimalCacheMaxSize) {
+			@Named("openkad.cache.size") final int maxEntries,
+			@Named("openkad.cache.max_bytes") final long maxBytes,
+			@Named("openkad.cache.sweep_interval") final long sweepInterval,
+			@Named("openkad.timer.wheel") final HashedWheelTimer timer,
+			@Named("openkad.testing.optimalCacheMaxSize") final AtomicInteger optimalCacheMaxSize,
+			@Named("openkad.testing.nrCacheEntries") final AtomicInteger nrCacheEntries,
+			@Named("openkad.testing.nrCacheExpired") final AtomicInteger nrCacheExpired,
+			@Named("openkad.testing.nrCacheEvicted") final AtomicInteger nrCacheEvicted) {
 		this.validTime = validTime;
+		this.maxEntries = maxEntries;
+		this.maxBytes = maxBytes;
+		this.sweepInterval = sweepInterval;
+		this.timer = timer;
 		this.optimalCacheMaxSize = optimalCacheMaxSize;
+		this.nrCacheEntries = nrCacheEntries;
+		this.nrCacheExpired = nrCacheExpired;
+		this.nrCacheEvicted = nrCacheEvicted;
 	}
 
 	@Override
-	public synchronized void insert(final Key key, final List<Node> nodes) {
-		// System.out.println(localNode.getKey()+": inserting "+key+" => "+nodes);
-		cache.put(key, new CacheEntry(nodes, key));
+	public void insert(final Key key, final List<Node> nodes) {
+		final CacheEntry entry = new CacheEntry(nodes, key);
+		liveBytes.addAndGet(entry.nrBytes);
+		final CacheEntry replaced = cache.put(key, entry);
+		if (replaced == null)
+			nrCacheEntries.incrementAndGet();
+		else
+			liveBytes.addAndGet(-replaced.nrBytes);
+
+		expiryQueue.add(entry);
+		queueSize.incrementAndGet();
+
+		// make room, oldest first. replaced entries are dropped on the way
+		while (cache.size() > maxEntries || liveBytes.get() > maxBytes ||
+				queueSize.get() > 2 * maxEntries) {
+			final CacheEntry oldest = poll();
+			if (oldest == null)
+				break;
+			if (remove(oldest))
+				nrCacheEvicted.incrementAndGet();
+		}
 
-		if (optimalCacheMaxSize.get() < cache.size())
-			optimalCacheMaxSize.set(cache.size());
+		final int nrEntries = cache.size();
+		if (optimalCacheMaxSize.get() < nrEntries)
+			optimalCacheMaxSize.set(nrEntries);
+
+		if (isSweeping.compareAndSet(false, true))
+			timer.newTimeout(sweepTask, sweepInterval, TimeUnit.MILLISECONDS);
 	}
 
 	@Override
-	public synchronized List<Node> search(final Key key) {
-		final CacheEntry cacheEntry = searchCacheEntry(key);
+	public List<Node> search(final Key key) {
+		final CacheEntry cacheEntry = cache.get(key);
 		if (cacheEntry == null)
 			return null;
 
 		if (!cacheEntry.isValid()) {
-			remove(cacheEntry);
+			if (remove(cacheEntry))
+				nrCacheExpired.incrementAndGet();
 			return null;
 		}
 
-		// System.out.println(localNode.getKey()+": Cache hit !");
-
 		return cacheEntry.getNodes();
 	}
 
-	protected void remove(final CacheEntry entry) {
-		cache.remove(entry.getKey());
+	/**
+	 * Removes the entry if it is still the entry of its key
+	 * @return true if the entry was removed
+	 */
+	protected boolean remove(final CacheEntry entry) {
+		if (!cache.remove(entry.getKey(), entry))
+			return false;
+		nrCacheEntries.decrementAndGet();
+		liveBytes.addAndGet(-entry.nrBytes);
+		return true;
+	}
+
+	private CacheEntry poll() {
+		final CacheEntry $ = expiryQueue.poll();
+		if ($ != null)
+			queueSize.decrementAndGet();
+		return $;
+	}
+
+	/**
+	 * Removes up to SWEEP_BATCH expired entries from the head of the queue
+	 */
+	private void sweep() {
+		final long now = System.currentTimeMillis();
+		int nrSwept = 0;
+		for (; nrSwept < SWEEP_BATCH; ++nrSwept) {
+			final CacheEntry head = expiryQueue.peek();
+			if (head == null || head.isValid(now))
+				break;
+			// concurrent inserts may have polled it already
+			if (expiryQueue.remove(head)) {
+				queueSize.decrementAndGet();
+				if (remove(head))
+					nrCacheExpired.incrementAndGet();
+			}
+		}
+
+		if (nrSwept == SWEEP_BATCH) {
+			// more to sweep, continue on the next tick
+			timer.newTimeout(sweepTask, 0, TimeUnit.MILLISECONDS);
+			return;
+		}
+		isSweeping.set(false);
+		// an insert may have seen isSweeping still set
+		if (!expiryQueue.isEmpty() && isSweeping.compareAndSet(false, true))
+			timer.newTimeout(sweepTask, sweepInterval, TimeUnit.MILLISECONDS);
 	}
 
-	protected CacheEntry searchCacheEntry(final Key key) {
-		return cache.get(key);
+	/**
+	 * @return number of live entries
+	 */
+	public int size() {
+		return cache.size();
 	}
 
-	protected void insertCacheEntry(final CacheEntry c) {
-		cache.put(c.getKey(), c);
+	/**
+	 * @return estimated number of bytes held by the live entries
+	 */
+	public long getNrBytes() {
+		return liveBytes.get();
 	}
 
 	@Override
 	public void clear() {
-		cache.clear();
+		CacheEntry e;
+		while ((e = poll()) != null)
+			remove(e);
 	}
 }
@@ -0,0 +1,286 @@
+package il.technion.ewolf.kbr.openkad.cache;
+
+import il.technion.ewolf.kbr.Key;
+import il.technion.ewolf.kbr.Node;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+
+/**
+ * Caches nodes according to the W-TinyLFU policy.
+ *
+ * New entries enter a small LRU window (1% of the cache). An entry evicted
+ * from the window is admitted to the main cache only if the key it would
+ * evict was seen less often, as estimated by a {@link FrequencySketch} of
+ * all the searched and inserted keys. So a burst of keys seen once does not
+ * flush the popular keys. The main cache is a segmented LRU: entries hit while
+ * in the probation segment move to the protected segment (80% of the main
+ * cache), and entries pushed out of the protected segment move back to the
+ * probation segment.
+ *
+ * The entries are kept in a concurrent map and in intrusive linked lists, so
+ * a search never blocks and an eviction is O(1).
+ * Searches do not reorder the lists directly, they record the key in a small
+ * lossy per thread stripe buffer. The buffers are applied under the eviction
+ * lock by whichever thread fills a buffer or inserts, so readers do not
+ * contend on a single monitor.
+ *
+ * Like {@link LRUKadCache}, only results of exactly
+ * openkad.bucket.kbuckets.maxsize nodes are cached.
+ *
+ * @author eyal.kibbar@gmail.com
+ *
+ */
+public class TinyLfuKadCache implements KadCache {
+
+	private static final int WINDOW = 0;
+	private static final int PROBATION = 1;
+	private static final int PROTECTED = 2;
+
+	private static final int NR_READ_BUFFERS = 8;
+	private static final int READ_BUFFER_SIZE = 64;
+
+	private static final class Entry {
+		private final Key key;
+		private volatile List<Node> nodes;
+		// guarded by the eviction lock
+		private int segment;
+		private Entry prev;
+		private Entry next;
+
+		Entry(Key key, List<Node> nodes) {
+			this.key = key;
+			this.nodes = nodes;
+		}
+	}
+
+	/**
+	 * Doubly linked list of entries, least recently used first
+	 */
+	private static final class AccessOrder {
+		private final Entry head = new Entry(null, null);
+		private int size = 0;
+
+		AccessOrder() {
+			head.prev = head;
+			head.next = head;
+		}
+
+		void addLast(Entry e) {
+			e.prev = head.prev;
+			e.next = head;
+			head.prev.next = e;
+			head.prev = e;
+			++size;
+		}
+
+		void remove(Entry e) {
+			e.prev.next = e.next;
+			e.next.prev = e.prev;
+			e.prev = null;
+			e.next = null;
+			--size;
+		}
+
+		void moveToLast(Entry e) {
+			remove(e);
+			addLast(e);
+		}
+
+		Entry first() {
+			return head.next == head ? null : head.next;
+		}
+
+		void clear() {
+			head.prev = head;
+			head.next = head;
+			size = 0;
+		}
+	}
+
+	/**
+	 * A lossy ring of recently searched keys. Keys overwritten before being
+	 * drained are simply not counted
+	 */
+	private static final class ReadBuffer {
+		private final AtomicReferenceArray<Key> keys = new AtomicReferenceArray<Key>(READ_BUFFER_SIZE);
+		private final AtomicInteger writeIndex = new AtomicInteger(0);
+		// guarded by the eviction lock
+		private int readIndex = 0;
+	}
+
+	// dependencies
+	private final int kBucketSize;
+	private final int windowSize;
+	private final int mainSize;
+	private final int protectedSize;
+
+	// state
+	private final ConcurrentHashMap<Key, Entry> entries;
+	private final ReadBuffer[] readBuffers;
+	// everything below is guarded by evictionLock
+	private final ReentrantLock evictionLock = new ReentrantLock();
+	private final FrequencySketch sketch;
+	private final AccessOrder window = new AccessOrder();
+	private final AccessOrder probation = new AccessOrder();
+	private final AccessOrder protect = new AccessOrder();
+
+	@Inject
+	TinyLfuKadCache(
+			@Named("openkad.bucket.kbuckets.maxsize") int kBucketSize,
+			@Named("openkad.cache.size") int size) {
+
+		if (size < 2)
+			throw new IllegalArgumentException("cache size must be at least 2");
+
+		this.kBucketSize = kBucketSize;
+		this.windowSize = Math.max(1, size / 100);
+		this.mainSize = size - windowSize;
+		this.protectedSize = Math.max(1, mainSize * 8 / 10);
+
+		this.entries = new ConcurrentHashMap<Key, Entry>(2 * size);
+		this.sketch = new FrequencySketch(size);
+		this.readBuffers = new ReadBuffer[NR_READ_BUFFERS];
+		for (int i=0; i < readBuffers.length; ++i)
+			readBuffers[i] = new ReadBuffer();
+	}
+
+	@Override
+	public List<Node> search(Key key) {
+		Entry e = entries.get(key);
+		ReadBuffer buf = readBuffers[(int) Thread.currentThread().getId() & (NR_READ_BUFFERS - 1)];
+		int i = buf.writeIndex.getAndIncrement() & (READ_BUFFER_SIZE - 1);
+		buf.keys.lazySet(i, key);
+		if (i == READ_BUFFER_SIZE - 1 && evictionLock.tryLock()) {
+			try {
+				drainReadBuffers();
+			} finally {
+				evictionLock.unlock();
+			}
+		}
+		return e == null ? null : e.nodes;
+	}
+
+	@Override
+	public void insert(Key key, List<Node> nodes) {
+		if (nodes.size() != kBucketSize)
+			return;
+
+		evictionLock.lock();
+		try {
+			drainReadBuffers();
+			sketch.increment(key);
+
+			Entry e = entries.get(key);
+			if (e != null) {
+				e.nodes = nodes;
+				onAccess(e);
+				return;
+			}
+
+			e = new Entry(key, nodes);
+			e.segment = WINDOW;
+			entries.put(key, e);
+			window.addLast(e);
+			evict();
+		} finally {
+			evictionLock.unlock();
+		}
+	}
+
+	@Override
+	public void clear() {
+		evictionLock.lock();
+		try {
+			entries.clear();
+			window.clear();
+			probation.clear();
+			protect.clear();
+			sketch.clear();
+		} finally {
+			evictionLock.unlock();
+		}
+	}
+
+	/**
+	 * @return number of cached entries
+	 */
+	public int size() {
+		return entries.size();
+	}
+
+	private void drainReadBuffers() {
+		for (int b=0; b < readBuffers.length; ++b) {
+			ReadBuffer buf = readBuffers[b];
+			int writeIndex = buf.writeIndex.get();
+			// only the slots written since the last drain, at most the whole ring
+			int from = writeIndex - buf.readIndex > READ_BUFFER_SIZE ? writeIndex - READ_BUFFER_SIZE : buf.readIndex;
+			for (int i=from; i != writeIndex; ++i) {
+				Key key = buf.keys.getAndSet(i & (READ_BUFFER_SIZE - 1), null);
+				if (key == null)
+					continue;
+				sketch.increment(key);
+				Entry e = entries.get(key);
+				// the entry may have been evicted and re-inserted
+				if (e != null && e.prev != null)
+					onAccess(e);
+			}
+			buf.readIndex = writeIndex;
+		}
+	}
+
+	private void onAccess(Entry e) {
+		switch (e.segment) {
+		case WINDOW:
+			window.moveToLast(e);
+			break;
+		case PROBATION:
+			probation.remove(e);
+			e.segment = PROTECTED;
+			protect.addLast(e);
+			// make room in the protected segment
+			if (protect.size > protectedSize) {
+				Entry demoted = protect.first();
+				protect.remove(demoted);
+				demoted.segment = PROBATION;
+				probation.addLast(demoted);
+			}
+			break;
+		case PROTECTED:
+			protect.moveToLast(e);
+			break;
+		}
+	}
+
+	private void evict() {
+		if (window.size <= windowSize)
+			return;
+
+		// the window's victim competes with the main cache's victim
+		Entry candidate = window.first();
+		window.remove(candidate);
+		candidate.segment = PROBATION;
+		probation.addLast(candidate);
+		if (probation.size + protect.size <= mainSize)
+			return;
+
+		Entry victim = probation.first();
+		if (victim == candidate) {
+			// everything else is protected, demote the least recently used
+			victim = protect.first();
+			protect.remove(victim);
+			victim.segment = PROBATION;
+			probation.addLast(victim);
+		}
+
+		Entry evicted = sketch.frequency(candidate.key) > sketch.frequency(victim.key) ? victim : candidate;
+		probation.remove(evicted);
+		entries.remove(evicted.key);
+	}
+}
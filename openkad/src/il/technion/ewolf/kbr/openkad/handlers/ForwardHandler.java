@@ -9,7 +9,8 @@ import il.technion.ewolf.kbr.Key;
 import il.technion.ewolf.kbr.KeyComparator;
 import il.technion.ewolf.kbr.Node;
 import il.technion.ewolf.kbr.concurrent.CompletionHandler;
-import il.technion.ewolf.kbr.openkad.bucket.KadBuckets;
+import il.technion.ewolf.kbr.openkad.bucket.KBuckets;
+import il.technion.ewolf.kbr.openkad.cache.HotKeyTracker;
 import il.technion.ewolf.kbr.openkad.cache.KadCache;
 import il.technion.ewolf.kbr.openkad.msg.ForwardMessage;
 import il.technion.ewolf.kbr.openkad.msg.ForwardRequest;
@@ -21,6 +22,7 @@ import il.technion.ewolf.kbr.openkad.net.filter.IdMessageFilter;
 import il.technion.ewolf.kbr.openkad.net.filter.MessageFilter;
 import il.technion.ewolf.kbr.openkad.net.filter.TypeMessageFilter;
 import il.technion.ewolf.kbr.openkad.op.FindValueOperation;
+import il.technion.ewolf.kbr.openkad.op.LookupCoalescer;
 
 import java.io.IOException;
 import java.util.ArrayList;
@@ -49,8 +51,9 @@ import com.google.inject.name.Named;
 public class ForwardHandler extends AbstractHandler {
 
 	private final KadCache cache;
+	private final HotKeyTracker hotKeys;
 	private final Communicator kadServer;
-	private final KadBuckets kBuckets;
+	private final KBuckets kBuckets;
 
 	private final Provider<FindValueOperation> findValueOperationProvider;
 	private final Provider<ForwardRequest> forwardRequestProvider;
@@ -62,7 +65,9 @@ public class ForwardHandler extends AbstractHandler {
 	private final int kBucketSize;
 	private final long timeout;
 
-	private final ExecutorService opExecutor;
+	private final int maxLookups;
+	private final AtomicInteger nrRunningLookups;
+	private final LookupCoalescer lookupCoalescer;
 	private final ExecutorService forwardExecutor;
 
 	// testing
@@ -72,7 +77,7 @@ public class ForwardHandler extends AbstractHandler {
 	private final AtomicInteger nrShortForwardTimeouts;
 	private final AtomicInteger nrNacksSent;
 	@Inject
-	ForwardHandler(final KadCache cache, final Communicator kadServer, final KadBuckets kBuckets,
+	ForwardHandler(final KadCache cache, final HotKeyTracker hotKeys, final Communicator kadServer, final KBuckets kBuckets,
 
 	@Named("openkad.op.lastFindValue") final Provider<FindValueOperation> findValueOperationProvider,
 			final Provider<ForwardRequest> forwardRequestProvider, final Provider<MessageDispatcher<Void>> msgDispatcherProvider,
@@ -83,7 +88,8 @@ public class ForwardHandler extends AbstractHandler {
 			@Named("openkad.bucket.kbuckets.maxsize") final int kBucketSize,
 			@Named("openkad.net.forwarded.timeout") final long timeout,
 
-			@Named("openkad.executors.op") final ExecutorService opExecutor,
+			@Named("openkad.op.forward.max_lookups") final int maxLookups,
+			final LookupCoalescer lookupCoalescer,
 			@Named("openkad.executors.forward") final ExecutorService forwardExecutor,
 
 			// testing
@@ -95,6 +101,7 @@ public class ForwardHandler extends AbstractHandler {
 
 		super(msgDispatcherProvider);
 		this.cache = cache;
+		this.hotKeys = hotKeys;
 		this.kadServer = kadServer;
 		this.kBuckets = kBuckets;
 
@@ -108,7 +115,9 @@ public class ForwardHandler extends AbstractHandler {
 		this.kBucketSize = kBucketSize;
 		this.timeout = timeout;
 
-		this.opExecutor = opExecutor;
+		this.maxLookups = maxLookups;
+		this.nrRunningLookups = new AtomicInteger(0);
+		this.lookupCoalescer = lookupCoalescer;
 		this.forwardExecutor = forwardExecutor;
 
 		this.nrFindNodesWithWrongColor = nrFindNodesWithWrongColor;
@@ -118,24 +127,32 @@ public class ForwardHandler extends AbstractHandler {
 		this.nrNacksSent = nrNacksSent;
 	}
 
-	private void doFindValue(final ForwardRequest req) throws RejectedExecutionException {
-		opExecutor.execute(new Runnable() {
+	private void reserveLookup() throws RejectedExecutionException {
+		if (nrRunningLookups.incrementAndGet() > maxLookups) {
+			nrRunningLookups.decrementAndGet();
+			throw new RejectedExecutionException("too many running lookups");
+		}
+	}
 
-			@Override
-			public void run() {
-				if (myColor != req.getKey().getColor(nrColors))
-					nrFindNodesWithWrongColor.incrementAndGet();
+	private void doFindValue(final ForwardRequest req) {
+		if (myColor != req.getKey().getColor(nrColors))
+			nrFindNodesWithWrongColor.incrementAndGet();
 
-				// System.out.println(localNode+": doing the find node");
-				final FindValueOperation op = findValueOperationProvider.get().setBootstrap(req.getBootstrap())
-						.setKey(req.getKey());
+		// System.out.println(localNode+": doing the find node");
+		final FindValueOperation op = findValueOperationProvider.get().setBootstrap(req.getBootstrap())
+				.setKey(req.getKey());
 
-				final List<Node> results = op.doFindValue();
+		// forward requests for the same key share a single operation
+		lookupCoalescer.findValue(op, req, new CompletionHandler<LookupCoalescer.Result, ForwardRequest>() {
 
+			@Override
+			public void completed(final LookupCoalescer.Result result, final ForwardRequest req) {
+				nrRunningLookups.decrementAndGet();
 				// System.out.println(localNode+": finished find node, returning results");
 
-				final ForwardMessage msg = req.generateMessage(localNode).setFindNodeHops(op.getNrQueried()).setPathLength(0)
-						.setNodes(results);
+				// the hops of the operation which ran, op may have joined it
+				final ForwardMessage msg = req.generateMessage(localNode).setFindNodeHops(result.getNrQueried()).setPathLength(0)
+						.setNodes(result.getNodes());
 
 				// System.out.println(localNode+": sending "+results+" back to "+req.getSrc());
 
@@ -145,6 +162,12 @@ public class ForwardHandler extends AbstractHandler {
 					e.printStackTrace();
 				}
 			}
+
+			@Override
+			public void failed(final Throwable exc, final ForwardRequest req) {
+				nrRunningLookups.decrementAndGet();
+				exc.printStackTrace();
+			}
 		});
 	}
 
@@ -158,6 +181,8 @@ public class ForwardHandler extends AbstractHandler {
 
 		// System.out.println(localNode+": recved forward request from "+req.getSrc());
 
+		hotKeys.record(req.getKey());
+
 		// check the cache first
 		final List<Node> cachedResults = cache.search(req.getKey());
 		if (cachedResults != null) {
@@ -227,18 +252,21 @@ public class ForwardHandler extends AbstractHandler {
 	private void doFindValueAndSendAckOrNack(final ForwardRequest req) {
 		// do the find value myself
 		try {
-			doFindValue(req);
-
-			kadServer.send(req.getSrc(), req.generateResponse(localNode).setAck());
-
+			reserveLookup();
 		} catch (final RejectedExecutionException e) {
 			// i'm too busy to do the find value myself
 			// send back a nack
 			sendBackNack(req, new ArrayList<Node>(1));
+			return;
+		}
+
+		try {
+			kadServer.send(req.getSrc(), req.generateResponse(localNode).setAck());
 		} catch (final IOException e) {
 			// failed to send ack
 			// nothing to do
 		}
+		doFindValue(req);
 	}
 
 	void sendBackNack(final ForwardRequest req, List<Node> bootstrap) {
@@ -1,7 +1,9 @@
 package il.technion.ewolf.kbr.openkad.handlers;
 
+import il.technion.ewolf.kbr.Key;
 import il.technion.ewolf.kbr.Node;
 import il.technion.ewolf.kbr.openkad.bucket.KBuckets;
+import il.technion.ewolf.kbr.openkad.cache.HotKeyTracker;
 import il.technion.ewolf.kbr.openkad.cache.KadCache;
 import il.technion.ewolf.kbr.openkad.msg.FindNodeRequest;
 import il.technion.ewolf.kbr.openkad.msg.FindNodeResponse;
@@ -33,15 +35,19 @@ public class KademliaFindNodeHandler extends AbstractHandler implements FindNode
 	private final Communicator kadServer;
 	private final Node localNode;
 	private final KadCache cache;
+	private final HotKeyTracker hotKeys;
 	private final KBuckets kBuckets;
 	private final int kBucketSize;
+	// reused by every request handled on the same thread
+	private final ThreadLocal<Node[]> closestNodesBuffer;
 
 	private final AtomicInteger nrFindnodeHits;
 	private final AtomicInteger nrFindnodeMiss;
 
 	@Inject
 	KademliaFindNodeHandler(final Provider<MessageDispatcher<Void>> msgDispatcherProvider, final Communicator kadServer,
-			@Named("openkad.local.node") final Node localNode, final KadCache cache, final KBuckets kBuckets,
+			@Named("openkad.local.node") final Node localNode, final KadCache cache, final HotKeyTracker hotKeys,
+			final KBuckets kBuckets,
 			@Named("openkad.bucket.kbuckets.maxsize") final int kBucketSize,
 
 			@Named("openkad.testing.nrFindnodeHits") final AtomicInteger nrFindnodeHits,
@@ -51,13 +57,29 @@ public class KademliaFindNodeHandler extends AbstractHandler implements FindNode
 		this.kadServer = kadServer;
 		this.localNode = localNode;
 		this.cache = cache;
+		this.hotKeys = hotKeys;
 		this.kBuckets = kBuckets;
 		this.kBucketSize = kBucketSize;
+		this.closestNodesBuffer = new ThreadLocal<Node[]>() {
+			@Override
+			protected Node[] initialValue() {
+				return new Node[kBucketSize];
+			}
+		};
 
 		this.nrFindnodeHits = nrFindnodeHits;
 		this.nrFindnodeMiss = nrFindnodeMiss;
 	}
 
+	private List<Node> getClosestNodes(final Key key) {
+		final Node[] buffer = this.closestNodesBuffer.get();
+		final int size = this.kBuckets.getClosestNodesByKey(key, this.kBucketSize, buffer);
+		final List<Node> $ = new ArrayList<Node>(size);
+		for (int i = 0; i < size; ++i)
+			$.add(buffer[i]);
+		return $;
+	}
+
 	@Override
 	public void completed(final KadMessage msg, final Void attachment) {
 
@@ -67,14 +89,15 @@ public class KademliaFindNodeHandler extends AbstractHandler implements FindNode
 		List<Node> cachedResults = null;
 
 		if (!findNodeRequest.shouldSearchCache())
-			findNodeResponse.setNodes(this.kBuckets.getClosestNodesByKey(findNodeRequest.getKey(), this.kBucketSize));
+			findNodeResponse.setNodes(getClosestNodes(findNodeRequest.getKey()));
 		else {
-			// requester ask to search in cache
+			// requester ask to search in cache, a find value lookup
+			this.hotKeys.record(findNodeRequest.getKey());
 			cachedResults = this.cache.search(findNodeRequest.getKey());
 
 			if (cachedResults == null) {
 				this.nrFindnodeMiss.incrementAndGet();
-				findNodeResponse.setNodes(this.kBuckets.getClosestNodesByKey(findNodeRequest.getKey(), this.kBucketSize));
+				findNodeResponse.setNodes(getClosestNodes(findNodeRequest.getKey()));
 			} else {
 				this.nrFindnodeHits.incrementAndGet();
 				findNodeResponse.setNodes(new ArrayList<Node>(cachedResults)).setCachedResults(true);
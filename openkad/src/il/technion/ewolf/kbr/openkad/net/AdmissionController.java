@@ -0,0 +1,131 @@
+package il.technion.ewolf.kbr.openkad.net;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+
+/**
+ * Limits the number of requests of the whole node waiting for a response
+ * without ever blocking the sender.
+ *
+ * The parallelism of a single operation (alpha) is enforced by the operation
+ * itself, this is only a global safety limit.
+ * When the limit is reached a request is either rejected immediately (fail
+ * policy) or queued and sent by the thread releasing the next slot (queue
+ * policy). Queued sends should therefore be short, which is the case for
+ * {@link MessageDispatcher}.
+ *
+ * @author eyal.kibbar@gmail.com
+ *
+ */
+public class AdmissionController {
+
+	// dependencies
+	private final int maxInFlight;
+	private final int maxQueued;
+	private final boolean shouldQueue;
+
+	// state
+	private final AtomicInteger nrInFlight = new AtomicInteger(0);
+	private final AtomicInteger nrQueued = new AtomicInteger(0);
+	private final Queue<Runnable> queued = new ConcurrentLinkedQueue<Runnable>();
+
+	@Inject
+	AdmissionController(
+			@Named("openkad.net.admission.max_inflight") int maxInFlight,
+			@Named("openkad.net.admission.max_queued") int maxQueued,
+			@Named("openkad.net.admission.policy") String policy) {
+
+		if (maxInFlight <= 0)
+			throw new IllegalArgumentException("max_inflight must be positive");
+
+		this.maxInFlight = maxInFlight;
+		this.maxQueued = maxQueued;
+
+		if ("queue".equals(policy))
+			this.shouldQueue = true;
+		else if ("fail".equals(policy))
+			this.shouldQueue = false;
+		else
+			throw new IllegalArgumentException("unknown admission policy: " + policy);
+	}
+
+	/**
+	 * Takes a slot if one is available, never queues
+	 * @return true if a slot was taken, the caller must release it
+	 */
+	public boolean tryAcquire() {
+		while (true) {
+			int n = nrInFlight.get();
+			if (n >= maxInFlight)
+				return false;
+			if (nrInFlight.compareAndSet(n, n + 1))
+				return true;
+		}
+	}
+
+	/**
+	 * Runs the given task once a slot was taken for it: immediately on the
+	 * caller's thread if a slot is available, otherwise according to the policy.
+	 * The task must release the slot when its request is done.
+	 *
+	 * @param task the task to be run
+	 * @return false if the task was rejected and will never run
+	 */
+	public boolean submit(Runnable task) {
+		if (tryAcquire()) {
+			task.run();
+			return true;
+		}
+
+		if (!shouldQueue)
+			return false;
+
+		if (nrQueued.incrementAndGet() > maxQueued) {
+			nrQueued.decrementAndGet();
+			return false;
+		}
+		queued.add(task);
+		// a slot might have been released before the task was queued
+		drain();
+		return true;
+	}
+
+	/**
+	 * Releases a slot taken by tryAcquire or for a submitted task
+	 */
+	public void release() {
+		nrInFlight.decrementAndGet();
+		drain();
+	}
+
+	private void drain() {
+		while (!queued.isEmpty() && tryAcquire()) {
+			Runnable task = queued.poll();
+			if (task == null) {
+				// someone else took it
+				nrInFlight.decrementAndGet();
+				continue;
+			}
+			nrQueued.decrementAndGet();
+			task.run();
+		}
+	}
+
+	/**
+	 * @return number of requests currently holding a slot
+	 */
+	public int getNrInFlight() {
+		return nrInFlight.get();
+	}
+
+	/**
+	 * @return number of requests waiting for a slot
+	 */
+	public int getNrQueued() {
+		return nrQueued.get();
+	}
+}
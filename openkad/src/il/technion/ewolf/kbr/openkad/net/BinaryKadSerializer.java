@@ -0,0 +1,593 @@
+package il.technion.ewolf.kbr.openkad.net;
+
+import il.technion.ewolf.kbr.Key;
+import il.technion.ewolf.kbr.KeyFactory;
+import il.technion.ewolf.kbr.Node;
+import il.technion.ewolf.kbr.openkad.msg.ContentMessage;
+import il.technion.ewolf.kbr.openkad.msg.ContentRequest;
+import il.technion.ewolf.kbr.openkad.msg.ContentResponse;
+import il.technion.ewolf.kbr.openkad.msg.FindNodeRequest;
+import il.technion.ewolf.kbr.openkad.msg.FindNodeResponse;
+import il.technion.ewolf.kbr.openkad.msg.ForwardMessage;
+import il.technion.ewolf.kbr.openkad.msg.ForwardRequest;
+import il.technion.ewolf.kbr.openkad.msg.ForwardResponse;
+import il.technion.ewolf.kbr.openkad.msg.KadMessage;
+import il.technion.ewolf.kbr.openkad.msg.PingRequest;
+import il.technion.ewolf.kbr.openkad.msg.PingResponse;
+import il.technion.ewolf.kbr.openkad.msg.ShadesFindNodeRequest;
+import il.technion.ewolf.kbr.openkad.msg.ShadesFindNodeResponse;
+import il.technion.ewolf.kbr.openkad.msg.StoreMessage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.lang.reflect.Constructor;
+import java.net.InetAddress;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+
+/**
+ * Serialize a message into a compact, versioned binary format.
+ *
+ * Every datagram starts with a version byte and a one byte message type code,
+ * followed by the message id and the source node. Keys are written using their
+ * fixed width, nodes as (address, port, key) records and all lengths and small
+ * integers as varints. Only the arbitrary content of the content messages is
+ * still written using the default java serialization.
+ *
+ * @author eyal.kibbar@gmail.com
+ *
+ */
+public class BinaryKadSerializer extends KadSerializer {
+
+	/**
+	 * The wire format version, increment on any incompatible change
+	 */
+	public static final byte VERSION = 1;
+
+	// largest possible udp datagram
+	private static final int MAX_MESSAGE_SIZE = 1024 * 64;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	// message type codes, the index in this array is the code on the wire.
+	// NEVER reorder, only append
+	@SuppressWarnings("unchecked")
+	private static final Class<? extends KadMessage>[] types = (Class<? extends KadMessage>[]) new Class<?>[]{
+		PingRequest.class,
+		PingResponse.class,
+		FindNodeRequest.class,
+		FindNodeResponse.class,
+		ShadesFindNodeRequest.class,
+		ShadesFindNodeResponse.class,
+		ForwardRequest.class,
+		ForwardResponse.class,
+		ForwardMessage.class,
+		StoreMessage.class,
+		ContentMessage.class,
+		ContentRequest.class,
+		ContentResponse.class
+	};
+
+	// message flags
+	private static final int FLAG_KEY = 0x80;
+	private static final int FLAG_1 = 0x01;
+	private static final int FLAG_2 = 0x02;
+	private static final int FLAG_3 = 0x04;
+
+	// node record flags
+	private static final int NODE_KEY = 0x01;
+	private static final int NODE_ADDR = 0x02;
+	private static final int NODE_IPV6 = 0x04;
+	private static final int NODE_KAD_ONLY = 0x08;
+
+	// smallest possible encoding of a node (flags, no endpoints) and of an
+	// endpoint (empty scheme, port), used to reject lengths the message cannot
+	// hold
+	private static final int MIN_NODE_SIZE = 2;
+	private static final int MIN_ENDPOINT_SIZE = 3;
+
+	private final KeyFactory keyFactory;
+	private final String kadScheme;
+	private final Constructor<? extends KadMessage>[] constructors;
+
+	private final ThreadLocal<ByteBuffer> buffers = new ThreadLocal<ByteBuffer>() {
+		@Override
+		protected ByteBuffer initialValue() {
+			return ByteBuffer.allocate(MAX_MESSAGE_SIZE);
+		}
+	};
+
+	@Inject
+	@SuppressWarnings("unchecked")
+	BinaryKadSerializer(
+			KeyFactory keyFactory,
+			@Named("openkad.scheme.name") String kadScheme) {
+		this.keyFactory = keyFactory;
+		this.kadScheme = kadScheme;
+
+		// all messages have a (long id, Node src) constructor which is not
+		// visible outside the msg package
+		constructors = (Constructor<? extends KadMessage>[]) new Constructor<?>[types.length];
+		for (int i = 0; i < types.length; ++i) {
+			try {
+				constructors[i] = types[i].getDeclaredConstructor(long.class, Node.class);
+				constructors[i].setAccessible(true);
+			} catch (NoSuchMethodException e) {
+				throw new AssertionError(types[i] + " has no (long, Node) constructor");
+			}
+		}
+	}
+
+	@Override
+	public KadMessage read(final InputStream in) throws IOException, ClassCastException, ClassNotFoundException {
+		final ByteBuffer buf = buffers.get();
+		buf.clear();
+		try {
+			int n;
+			while (buf.hasRemaining() && (n = in.read(buf.array(), buf.position(), buf.remaining())) > 0)
+				buf.position(buf.position() + n);
+		} finally {
+			in.close();
+		}
+		buf.flip();
+		return read(buf);
+	}
+
+	@Override
+	public void write(final KadMessage msg, final OutputStream out) throws IOException {
+		final ByteBuffer buf = buffers.get();
+		buf.clear();
+		try {
+			write(msg, buf);
+			out.write(buf.array(), 0, buf.position());
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Reads a single message from the buffer's position up to its limit
+	 *
+	 * @param buf
+	 *            the buffer containing an encoded message
+	 * @return the decoded message
+	 * @throws IOException
+	 *             the buffer does not hold a valid message
+	 * @throws ClassNotFoundException
+	 *             the content of a content message could not be de-serialized
+	 */
+	@Override
+	public KadMessage read(final ByteBuffer buf) throws IOException, ClassNotFoundException {
+		try {
+			final byte version = buf.get();
+			if (version != VERSION)
+				throw new IOException("unsupported wire format version: " + version);
+
+			final int type = buf.get() & 0xFF;
+			if (type >= types.length)
+				throw new IOException("unknown message type: " + type);
+
+			final long id = buf.getLong();
+			final Node src = readNode(buf);
+			final KadMessage msg = newMessage(type, id, src);
+			readBody(msg, buf);
+			return msg;
+
+		} catch (final BufferUnderflowException e) {
+			throw new IOException("truncated message");
+		} catch (final IllegalArgumentException e) {
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * Writes a single message into the buffer starting at its position
+	 *
+	 * @param msg
+	 *            the message to be serialized
+	 * @param buf
+	 *            the buffer to write to
+	 * @throws IOException
+	 *             the message does not fit in the buffer
+	 */
+	@Override
+	public void write(final KadMessage msg, final ByteBuffer buf) throws IOException {
+		final int type = typeCode(msg);
+		try {
+			buf.put(VERSION);
+			buf.put((byte) type);
+			buf.putLong(msg.getId());
+			writeNode(buf, msg.getSrc());
+			writeBody(msg, buf);
+		} catch (final BufferOverflowException e) {
+			throw new IOException("message is too large");
+		}
+	}
+
+	private static int typeCode(final KadMessage msg) throws IOException {
+		final Class<?> clazz = msg.getClass();
+		for (int i = 0; i < types.length; ++i) {
+			if (types[i] == clazz)
+				return i;
+		}
+		throw new IOException("unknown message class: " + clazz.getName());
+	}
+
+	private KadMessage newMessage(final int type, final long id, final Node src) throws IOException {
+		try {
+			return constructors[type].newInstance(id, src);
+		} catch (final Exception e) {
+			throw new IOException(e);
+		}
+	}
+
+	private void writeBody(final KadMessage msg, final ByteBuffer buf) throws IOException {
+		if (msg instanceof FindNodeRequest) {
+			final FindNodeRequest m = (FindNodeRequest) msg;
+			buf.put((byte) (keyFlag(m.getKey()) | flag(m.shouldSearchCache(), FLAG_1)));
+			writeKey(buf, m.getKey());
+
+		} else if (msg instanceof FindNodeResponse) {
+			final FindNodeResponse m = (FindNodeResponse) msg;
+			buf.put((byte) (flag(m.isCachedResults(), FLAG_1) | flag(m.isNeeeded(), FLAG_2)));
+			writeNodes(buf, m.getNodes());
+
+		} else if (msg instanceof ShadesFindNodeRequest) {
+			final ShadesFindNodeRequest m = (ShadesFindNodeRequest) msg;
+			buf.put((byte) (keyFlag(m.getKey()) | flag(m.shouldSearchCache(), FLAG_1) | flag(m.getOnlyClosestToKey(), FLAG_2)));
+			writeKey(buf, m.getKey());
+			writeVarInt(buf, zigzag(m.getRequiredColor()));
+
+		} else if (msg instanceof ShadesFindNodeResponse) {
+			final ShadesFindNodeResponse m = (ShadesFindNodeResponse) msg;
+			buf.put((byte) (flag(m.isCachedResults(), FLAG_1) | flag(m.isNeeded(), FLAG_2) | flag(m.isPopular(), FLAG_3)));
+			writeNodes(buf, m.getNodes());
+			writeNodes(buf, m.getColorNodes());
+
+		} else if (msg instanceof ForwardRequest) {
+			final ForwardRequest m = (ForwardRequest) msg;
+			buf.put((byte) (keyFlag(m.getKey()) | flag(m.isInitiator(), FLAG_1)));
+			writeKey(buf, m.getKey());
+			writeNodes(buf, m.getBootstrap());
+
+		} else if (msg instanceof ForwardResponse) {
+			final ForwardResponse m = (ForwardResponse) msg;
+			buf.put((byte) (flag(m.isAck(), FLAG_1) | flag(m.isNack(), FLAG_2)));
+			writeNodes(buf, m.getNodes());
+
+		} else if (msg instanceof ForwardMessage) {
+			final ForwardMessage m = (ForwardMessage) msg;
+			buf.put((byte) (flag(m.isAck(), FLAG_1) | flag(m.isNack(), FLAG_2)));
+			writeNodes(buf, m.getNodes());
+			writeVarInt(buf, zigzag(m.getPathLength()));
+			writeVarInt(buf, zigzag(m.getFindNodeHops()));
+
+		} else if (msg instanceof StoreMessage) {
+			final StoreMessage m = (StoreMessage) msg;
+			buf.put((byte) keyFlag(m.getKey()));
+			writeKey(buf, m.getKey());
+			writeNodes(buf, m.getNodes());
+
+		} else if (msg instanceof ContentMessage) {
+			final ContentMessage m = (ContentMessage) msg;
+			writeString(buf, m.getTag());
+			writeContent(buf, m.getContent());
+
+		} else if (msg instanceof ContentRequest) {
+			final ContentRequest m = (ContentRequest) msg;
+			writeString(buf, m.getTag());
+			writeContent(buf, m.getContent());
+
+		} else if (msg instanceof ContentResponse) {
+			writeContent(buf, ((ContentResponse) msg).getContent());
+		}
+		// PingRequest and PingResponse have no body
+	}
+
+	private void readBody(final KadMessage msg, final ByteBuffer buf) throws IOException, ClassNotFoundException {
+		if (msg instanceof FindNodeRequest) {
+			final int flags = buf.get();
+			((FindNodeRequest) msg)
+				.setSearchCache((flags & FLAG_1) != 0)
+				.setKey(readKey(buf, flags));
+
+		} else if (msg instanceof FindNodeResponse) {
+			final int flags = buf.get();
+			final FindNodeResponse m = (FindNodeResponse) msg;
+			m.setCachedResults((flags & FLAG_1) != 0)
+				.setNodes(readNodes(buf));
+			m.setNeeeded((flags & FLAG_2) != 0);
+
+		} else if (msg instanceof ShadesFindNodeRequest) {
+			final int flags = buf.get();
+			((ShadesFindNodeRequest) msg)
+				.setSearchCache((flags & FLAG_1) != 0)
+				.setOnlyClosestToKey((flags & FLAG_2) != 0)
+				.setKey(readKey(buf, flags))
+				.setRequiredColor(unzigzag(readVarInt(buf)));
+
+		} else if (msg instanceof ShadesFindNodeResponse) {
+			final int flags = buf.get();
+			((ShadesFindNodeResponse) msg)
+				.setCachedResults((flags & FLAG_1) != 0)
+				.setNeeded((flags & FLAG_2) != 0)
+				.setIsPopular((flags & FLAG_3) != 0)
+				.setNodes(readNodes(buf))
+				.setColorNodes(readNodes(buf));
+
+		} else if (msg instanceof ForwardRequest) {
+			final int flags = buf.get();
+			final ForwardRequest m = ((ForwardRequest) msg)
+				.setKey(readKey(buf, flags))
+				.setBootstrap(readNodes(buf));
+			if ((flags & FLAG_1) != 0)
+				m.setInitiator();
+
+		} else if (msg instanceof ForwardResponse) {
+			final int flags = buf.get();
+			final ForwardResponse m = ((ForwardResponse) msg).setNodes(readNodes(buf));
+			if ((flags & FLAG_1) != 0)
+				m.setAck();
+			if ((flags & FLAG_2) != 0)
+				m.setNack();
+
+		} else if (msg instanceof ForwardMessage) {
+			final int flags = buf.get();
+			final ForwardMessage m = ((ForwardMessage) msg)
+				.setNodes(readNodes(buf))
+				.setPathLength(unzigzag(readVarInt(buf)))
+				.setFindNodeHops(unzigzag(readVarInt(buf)));
+			if ((flags & FLAG_1) != 0)
+				m.setAck();
+			if ((flags & FLAG_2) != 0)
+				m.setNack();
+
+		} else if (msg instanceof StoreMessage) {
+			final int flags = buf.get();
+			((StoreMessage) msg)
+				.setKey(readKey(buf, flags))
+				.setNodes(readNodes(buf));
+
+		} else if (msg instanceof ContentMessage) {
+			((ContentMessage) msg)
+				.setTag(readString(buf))
+				.setContent(readContent(buf));
+
+		} else if (msg instanceof ContentRequest) {
+			((ContentRequest) msg)
+				.setTag(readString(buf))
+				.setContent(readContent(buf));
+
+		} else if (msg instanceof ContentResponse) {
+			((ContentResponse) msg).setContent(readContent(buf));
+		}
+	}
+
+	private static int flag(final boolean b, final int flag) {
+		return b ? flag : 0;
+	}
+
+	private static int keyFlag(final Key key) {
+		return key == null ? 0 : FLAG_KEY;
+	}
+
+	private void writeKey(final ByteBuffer buf, final Key key) throws IOException {
+		if (key == null)
+			return;
+		if (key.getByteLength() != keyFactory.getByteLength())
+			throw new IOException("key length is invalid");
+		buf.put(key.getBytes());
+	}
+
+	private Key readKey(final ByteBuffer buf, final int flags) {
+		if ((flags & FLAG_KEY) == 0)
+			return null;
+		return readKey(buf);
+	}
+
+	private Key readKey(final ByteBuffer buf) {
+		final byte[] b = new byte[keyFactory.getByteLength()];
+		buf.get(b);
+		return keyFactory.get(b);
+	}
+
+	private void writeNode(final ByteBuffer buf, final Node n) throws IOException {
+		final InetAddress addr = n.getInetAddress();
+		final byte[] addrBytes = addr == null ? null : addr.getAddress();
+		final Map<String, Integer> endpoints = n.getAllEndpoints();
+		final boolean kadOnly = endpoints.size() == 1 && endpoints.containsKey(kadScheme);
+
+		int flags = 0;
+		if (n.getKey() != null)
+			flags |= NODE_KEY;
+		if (addrBytes != null)
+			flags |= NODE_ADDR | (addrBytes.length == 16 ? NODE_IPV6 : 0);
+		if (kadOnly)
+			flags |= NODE_KAD_ONLY;
+
+		buf.put((byte) flags);
+		if (addrBytes != null)
+			buf.put(addrBytes);
+
+		if (kadOnly) {
+			buf.putShort((short) n.getPort(kadScheme));
+		} else {
+			writeVarInt(buf, endpoints.size());
+			for (final Map.Entry<String, Integer> e : endpoints.entrySet()) {
+				// the kad scheme is by far the most common, encode it as the
+				// empty string
+				writeString(buf, kadScheme.equals(e.getKey()) ? "" : e.getKey());
+				buf.putShort(e.getValue().shortValue());
+			}
+		}
+
+		writeKey(buf, n.getKey());
+	}
+
+	private Node readNode(final ByteBuffer buf) throws IOException {
+		final int flags = buf.get();
+
+		InetAddress addr = null;
+		if ((flags & NODE_ADDR) != 0) {
+			final byte[] addrBytes = new byte[(flags & NODE_IPV6) != 0 ? 16 : 4];
+			buf.get(addrBytes);
+			addr = InetAddress.getByAddress(addrBytes);
+		}
+
+		String scheme = null;
+		int port = 0;
+		List<String> schemes = null;
+		List<Integer> ports = null;
+		if ((flags & NODE_KAD_ONLY) != 0) {
+			scheme = kadScheme;
+			port = buf.getShort() & 0xFFFF;
+		} else {
+			final int nrEndpoints = readVarInt(buf);
+			checkLength(buf, nrEndpoints, MIN_ENDPOINT_SIZE);
+			schemes = new ArrayList<String>(nrEndpoints);
+			ports = new ArrayList<Integer>(nrEndpoints);
+			for (int i = 0; i < nrEndpoints; ++i) {
+				final String s = readString(buf);
+				schemes.add(s == null || s.isEmpty() ? kadScheme : s);
+				ports.add(buf.getShort() & 0xFFFF);
+			}
+		}
+
+		final Node n = new Node((flags & NODE_KEY) != 0 ? readKey(buf) : null);
+		n.setInetAddress(addr);
+		if (scheme != null) {
+			n.addEndpoint(scheme, port);
+		} else {
+			for (int i = 0; i < schemes.size(); ++i)
+				n.addEndpoint(schemes.get(i), ports.get(i));
+		}
+		return n;
+	}
+
+	private void writeNodes(final ByteBuffer buf, final List<Node> nodes) throws IOException {
+		// 0 is reserved for null
+		if (nodes == null) {
+			writeVarInt(buf, 0);
+			return;
+		}
+		writeVarInt(buf, nodes.size() + 1);
+		for (int i = 0; i < nodes.size(); ++i)
+			writeNode(buf, nodes.get(i));
+	}
+
+	private List<Node> readNodes(final ByteBuffer buf) throws IOException {
+		final int size = readLength(buf);
+		if (size < 0)
+			return null;
+		checkLength(buf, size, MIN_NODE_SIZE);
+		final List<Node> $ = new ArrayList<Node>(size);
+		for (int i = 0; i < size; ++i)
+			$.add(readNode(buf));
+		return $;
+	}
+
+	private static void writeString(final ByteBuffer buf, final String s) {
+		// 0 is reserved for null
+		if (s == null) {
+			writeVarInt(buf, 0);
+			return;
+		}
+		final byte[] b = s.getBytes(UTF8);
+		writeVarInt(buf, b.length + 1);
+		buf.put(b);
+	}
+
+	private static String readString(final ByteBuffer buf) throws IOException {
+		final int len = readLength(buf);
+		if (len < 0)
+			return null;
+		checkLength(buf, len, 1);
+		final byte[] b = new byte[len];
+		buf.get(b);
+		return new String(b, UTF8);
+	}
+
+	private void writeContent(final ByteBuffer buf, final Serializable content) {
+		// 0 is reserved for null
+		if (content == null) {
+			writeVarInt(buf, 0);
+			return;
+		}
+		final byte[] b = serialize(content);
+		writeVarInt(buf, b.length + 1);
+		buf.put(b);
+	}
+
+	private Serializable readContent(final ByteBuffer buf) throws IOException, ClassNotFoundException {
+		final int len = readLength(buf);
+		if (len < 0)
+			return null;
+		checkLength(buf, len, 1);
+		final byte[] b = new byte[len];
+		buf.get(b);
+		return deserialize(b);
+	}
+
+	/**
+	 * Reads a length written as length + 1, 0 stands for null
+	 * @return the length or -1 for null
+	 */
+	private static int readLength(final ByteBuffer buf) throws IOException {
+		final int n = readVarInt(buf);
+		if (n < 0)
+			throw new IOException("invalid length: " + n);
+		return n - 1;
+	}
+
+	/**
+	 * Rejects a count read from the wire before allocating anything for it
+	 * @param count number of records
+	 * @param minSize smallest possible size of a record in bytes
+	 * @throws IOException count records cannot fit in the rest of the message
+	 */
+	private static void checkLength(final ByteBuffer buf, final int count, final int minSize) throws IOException {
+		if (count < 0 || count > buf.remaining() / minSize)
+			throw new IOException("invalid length: " + count);
+	}
+
+	private static int zigzag(final int n) {
+		return (n << 1) ^ (n >> 31);
+	}
+
+	private static int unzigzag(final int n) {
+		return (n >>> 1) ^ -(n & 1);
+	}
+
+	/**
+	 * Writes a non negative int using 7 bits per byte, least significant
+	 * group first. The MSB of every byte is the continuation bit
+	 */
+	static void writeVarInt(final ByteBuffer buf, int n) {
+		while ((n & ~0x7F) != 0) {
+			buf.put((byte) ((n & 0x7F) | 0x80));
+			n >>>= 7;
+		}
+		buf.put((byte) n);
+	}
+
+	static int readVarInt(final ByteBuffer buf) {
+		int $ = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			final byte b = buf.get();
+			$ |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return $;
+		}
+		throw new IllegalArgumentException("malformed varint");
+	}
+}
@@ -0,0 +1,244 @@
+package il.technion.ewolf.kbr.openkad.net;
+
+import il.technion.ewolf.kbr.Node;
+import il.technion.ewolf.kbr.openkad.msg.KadMessage;
+import il.technion.ewolf.kbr.openkad.msg.PingRequest;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.name.Named;
+
+/**
+ * Low level communication handler using a nio DatagramChannel.
+ *
+ * Incoming and outgoing datagrams are decoded from and encoded into a fixed
+ * number of pre-allocated direct buffers, each the size of the MTU, so no heap
+ * memory is allocated per packet for the packet itself. A receive buffer is
+ * owned by the packet until the packet was handled by the server executor,
+ * when the pool is empty the server loop stops reading from the channel
+ * and lets the OS buffer the datagrams.
+ *
+ * Messages larger than the MTU cannot be sent, use this server together with
+ * the binary serializer.
+ *
+ * @author eyal.kibbar@gmail.com
+ *
+ */
+public class KadChannelServer implements Communicator {
+
+	// dependencies
+	private final KadSerializer serializer;
+	private final Provider<DatagramChannel> channelProvider;
+	private final ExecutorService srvExecutor;
+	private final MessageDispatchIndex dispatchIndex;
+	private final String kadScheme;
+
+	// testing
+	private final AtomicInteger nrOutgoingPings;
+	private final AtomicInteger nrIncomingMessages;
+	private final AtomicLong nrBytesSent;
+	private final AtomicLong nrBytesRecved;
+
+	// state
+	private final AtomicBoolean isActive = new AtomicBoolean(false);
+	private final BlockingQueue<IncomingPacket> recvPool;
+	private final BlockingQueue<ByteBuffer> sendPool;
+
+	@Inject
+	KadChannelServer(
+			final KadSerializer serializer,
+			@Named("openkad.scheme.name") final String kadScheme,
+			@Named("openkad.net.udp.channel") final Provider<DatagramChannel> channelProvider,
+			@Named("openkad.net.mtu") final int mtu,
+			@Named("openkad.net.channel.nrbuffers") final int nrBuffers,
+			@Named("openkad.net.channel.nrsendbuffers") final int nrSendBuffers,
+			@Named("openkad.executors.server") final ExecutorService srvExecutor,
+			final MessageDispatchIndex dispatchIndex,
+
+			// testing
+			@Named("openkad.testing.nrOutgoingPings") final AtomicInteger nrOutgoingPings,
+			@Named("openkad.testing.nrIncomingMessages") final AtomicInteger nrIncomingMessages,
+			@Named("openkad.testing.nrBytesSent") final AtomicLong nrBytesSent,
+			@Named("openkad.testing.nrBytesRecved") final AtomicLong nrBytesRecved) {
+
+		this.kadScheme = kadScheme;
+		this.serializer = serializer;
+		this.channelProvider = channelProvider;
+		this.srvExecutor = srvExecutor;
+		this.dispatchIndex = dispatchIndex;
+
+		this.nrOutgoingPings = nrOutgoingPings;
+		this.nrIncomingMessages = nrIncomingMessages;
+		this.nrBytesSent = nrBytesSent;
+		this.nrBytesRecved = nrBytesRecved;
+
+		this.recvPool = new ArrayBlockingQueue<IncomingPacket>(nrBuffers);
+		for (int i = 0; i < nrBuffers; ++i)
+			this.recvPool.add(new IncomingPacket(ByteBuffer.allocateDirect(mtu)));
+
+		this.sendPool = new ArrayBlockingQueue<ByteBuffer>(nrSendBuffers);
+		for (int i = 0; i < nrSendBuffers; ++i)
+			this.sendPool.add(ByteBuffer.allocateDirect(mtu));
+	}
+
+	/**
+	 * A pooled receive buffer together with the task that decodes and
+	 * dispatches it. Returns itself to the pool when done.
+	 */
+	private class IncomingPacket implements Runnable {
+		private final ByteBuffer buf;
+		private SocketAddress from;
+
+		IncomingPacket(final ByteBuffer buf) {
+			this.buf = buf;
+		}
+
+		@Override
+		public void run() {
+			KadMessage msg = null;
+			try {
+				msg = KadChannelServer.this.serializer.read(this.buf);
+
+				// fix incoming src address
+				msg.getSrc().setInetAddress(((InetSocketAddress) this.from).getAddress());
+			} catch (final Exception e) {
+				e.printStackTrace();
+				return;
+			} finally {
+				release(this);
+			}
+
+			// call all the expecters
+			final List<MessageDispatcher<?>> shouldHandle = KadChannelServer.this.dispatchIndex.extractShouldHandle(msg);
+
+			for (final MessageDispatcher<?> m : shouldHandle)
+				try {
+					m.handle(msg);
+				} catch (final Exception e) {
+					// handle fail should not interrupt other handlers
+					e.printStackTrace();
+				}
+		}
+	}
+
+	private void release(final IncomingPacket pkt) {
+		pkt.from = null;
+		pkt.buf.clear();
+		this.recvPool.offer(pkt);
+	}
+
+	/**
+	 * Binds the channel
+	 */
+	@Override
+	public void bind() {
+		this.channelProvider.get();
+	}
+
+	/**
+	 * Sends a message
+	 *
+	 * @param to
+	 *            the destination node
+	 * @param msg
+	 *            the message to be sent
+	 * @throws IOException
+	 *             any channel exception or the message is larger than the MTU
+	 */
+	@Override
+	public void send(final Node to, final KadMessage msg) throws IOException {
+
+		if (msg instanceof PingRequest)
+			this.nrOutgoingPings.incrementAndGet();
+
+		ByteBuffer buf = null;
+		try {
+			buf = this.sendPool.take();
+		} catch (final InterruptedException e) {
+			throw new IOException("interrupted while waiting for a send buffer");
+		}
+
+		try {
+			buf.clear();
+			this.serializer.write(msg, buf);
+			buf.flip();
+			this.nrBytesSent.addAndGet(buf.remaining());
+			this.channelProvider.get().send(buf, to.getSocketAddress(this.kadScheme));
+
+		} finally {
+			this.sendPool.offer(buf);
+		}
+	}
+
+	/**
+	 * The server loop: 1. take a free buffer from the pool 2. receive a
+	 * datagram into it 3. decode and handle it in a thread pool
+	 */
+	@Override
+	public void run() {
+		this.isActive.set(true);
+		while (this.isActive.get()) {
+			IncomingPacket pkt = null;
+			try {
+				pkt = this.recvPool.take();
+				pkt.from = this.channelProvider.get().receive(pkt.buf);
+				pkt.buf.flip();
+
+				this.nrIncomingMessages.incrementAndGet();
+				this.nrBytesRecved.addAndGet(pkt.buf.remaining());
+				this.srvExecutor.execute(pkt);
+
+			} catch (final InterruptedException e) {
+				// shutting down
+			} catch (final ClosedChannelException e) {
+				// shutting down
+				if (pkt != null)
+					release(pkt);
+			} catch (final RejectedExecutionException e) {
+				// server executor is full, drop the packet
+				release(pkt);
+			} catch (final Exception e) {
+				// insert the taken buffer back
+				if (pkt != null)
+					release(pkt);
+
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Shutdown the server and closes the channel
+	 *
+	 * @param kadServerThread
+	 */
+	@Override
+	public void shutdown(final Thread kadServerThread) {
+		this.isActive.set(false);
+		try {
+			this.channelProvider.get().close();
+		} catch (final IOException e) {
+		}
+		kadServerThread.interrupt();
+		try {
+			kadServerThread.join();
+		} catch (final InterruptedException e) {
+		}
+	}
+
+}
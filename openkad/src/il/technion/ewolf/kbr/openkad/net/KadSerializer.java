@@ -10,6 +10,8 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.OutputStream;
 import java.io.Serializable;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 
 /**
  * Base class for all KadMessage serializers
@@ -37,6 +39,42 @@ public abstract class KadSerializer {
 	 */
 	public abstract void write(KadMessage msg, OutputStream out) throws IOException;
 	
+	/**
+	 * Reads a single message from the buffer's position up to its limit.
+	 * The default implementation copies the bytes and delegates to
+	 * {@link #read(InputStream)}, serializers that can decode directly
+	 * from a buffer should override it.
+	 * @param buf the buffer containing an encoded message
+	 * @return the KadMessage de-serialized
+	 * @throws IOException the buffer does not hold a valid message
+	 * @throws ClassCastException the input is not a KadMessage
+	 * @throws ClassNotFoundException the message type was not found
+	 */
+	public KadMessage read(ByteBuffer buf) throws IOException, ClassCastException, ClassNotFoundException {
+		byte[] b = new byte[buf.remaining()];
+		buf.get(b);
+		return read(new ByteArrayInputStream(b));
+	}
+	
+	/**
+	 * Writes a KadMessage into the buffer starting at its position.
+	 * The default implementation serializes into a temporary stream and
+	 * copies the result, serializers that can encode directly into a
+	 * buffer should override it.
+	 * @param msg the KadMessage to be serialized
+	 * @param buf the buffer to write to
+	 * @throws IOException the message does not fit in the buffer
+	 */
+	public void write(KadMessage msg, ByteBuffer buf) throws IOException {
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		write(msg, bout);
+		try {
+			buf.put(bout.toByteArray());
+		} catch (BufferOverflowException e) {
+			throw new IOException("message is too large");
+		}
+	}
+	
 	/**
 	 * The default java object serializer
 	 * @param x
@@ -1,9 +1,5 @@
 package il.technion.ewolf.kbr.openkad.net;
 
-import static ch.lambdaj.Lambda.filter;
-import static ch.lambdaj.Lambda.having;
-import static ch.lambdaj.Lambda.on;
-import static org.hamcrest.Matchers.is;
 import il.technion.ewolf.kbr.Node;
 import il.technion.ewolf.kbr.openkad.msg.KadMessage;
 import il.technion.ewolf.kbr.openkad.msg.PingRequest;
@@ -13,10 +9,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
-import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
-import java.util.Set;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -41,8 +34,7 @@ public class KadServer implements Communicator {
 	private final Provider<DatagramSocket> sockProvider;
 	private final BlockingQueue<DatagramPacket> pkts;
 	private final ExecutorService srvExecutor;
-	private final Set<MessageDispatcher<?>> expecters;
-	private final Set<MessageDispatcher<?>> nonConsumableExpecters;
+	private final MessageDispatchIndex dispatchIndex;
 	private final String kadScheme;
 
 	// testing
@@ -63,8 +55,7 @@ public class KadServer implements Communicator {
 			@Named("openkad.net.buffer") final BlockingQueue<DatagramPacket> pkts,
 			@Named("openkad.net.sendbuffer") final BlockingQueue<DatagramPacket> pktsout,
 			@Named("openkad.executors.server") final ExecutorService srvExecutor,
-			@Named("openkad.net.expecters") final Set<MessageDispatcher<?>> expecters,
-			@Named("openkad.net.expecters.nonConsumable") final Set<MessageDispatcher<?>> nonConsumableExpecters,
+			final MessageDispatchIndex dispatchIndex,
 
 			// testing
 			@Named("openkad.testing.nrOutgoingPings") final AtomicInteger nrOutgoingPings,
@@ -78,8 +69,7 @@ public class KadServer implements Communicator {
 		this.pkts = pkts;
 		// this.pktsout = pktsout;
 		this.srvExecutor = srvExecutor;
-		this.expecters = expecters;
-		this.nonConsumableExpecters = nonConsumableExpecters;
+		this.dispatchIndex = dispatchIndex;
 
 		this.nrOutgoingPings = nrOutgoingPings;
 		this.nrIncomingMessages = nrIncomingMessages;
@@ -137,25 +127,6 @@ public class KadServer implements Communicator {
 			}
 		}
 	}
-	private List<MessageDispatcher<?>> extractShouldHandle(final KadMessage msg) {
-		List<MessageDispatcher<?>> shouldHandle = Collections.emptyList();
-		List<MessageDispatcher<?>> nonConsumableShouldHandle = Collections.emptyList();
-		final List<MessageDispatcher<?>> $ = new ArrayList<MessageDispatcher<?>>();
-		synchronized (this.expecters) {
-			if (!this.expecters.isEmpty())
-				shouldHandle = filter(having(on(MessageDispatcher.class).shouldHandleMessage(msg), is(true)), this.expecters);
-		}
-
-		synchronized (this.nonConsumableExpecters) {
-			if (!this.nonConsumableExpecters.isEmpty())
-				nonConsumableShouldHandle = filter(having(on(MessageDispatcher.class).shouldHandleMessage(msg), is(true)),
-						this.nonConsumableExpecters);
-		}
-
-		$.addAll(nonConsumableShouldHandle);
-		$.addAll(shouldHandle);
-		return $;
-	}
 
 	private void handleIncomingPacket(final DatagramPacket pkt) {
 		this.nrIncomingMessages.incrementAndGet();
@@ -187,7 +158,7 @@ public class KadServer implements Communicator {
 				}
 
 				// call all the expecters
-				final List<MessageDispatcher<?>> shouldHandle = extractShouldHandle(msg);
+				final List<MessageDispatcher<?>> shouldHandle = KadServer.this.dispatchIndex.extractShouldHandle(msg);
 
 				for (final MessageDispatcher<?> m : shouldHandle)
 					try {
@@ -0,0 +1,130 @@
+package il.technion.ewolf.kbr.openkad.net;
+
+import il.technion.ewolf.kbr.Node;
+import il.technion.ewolf.kbr.openkad.bucket.KBuckets;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.name.Named;
+
+/**
+ * Keeps the liveness of remote nodes as seen by the regular traffic, so the
+ * routing table does not have to ping nodes we talk to anyway.
+ *
+ * Any message received from a node, a response to one of our requests or a
+ * request of its own, is a success and resets the node's consecutive
+ * failures. Every request to a node which timed out is a failure, and after
+ * openkad.net.liveness.max_failures consecutive failures the node is marked
+ * as dead in the routing table, which replaces it by a node from the bucket's
+ * replacement list.
+ *
+ * Only the most recently used nodes are remembered, in lock stripes (see
+ * {@link StripedLruMap}).
+ *
+ * @author eyal.kibbar@gmail.com
+ *
+ */
+public class LivenessTracker {
+
+	/**
+	 * The liveness of a single node
+	 */
+	private static final class Liveness {
+		private long lastSuccess = 0;
+		private int nrFailures = 0;
+	}
+
+	// dependencies
+	private final int maxFailures;
+	private final Provider<KBuckets> kBucketsProvider;
+
+	// state
+	private final StripedLruMap<Node, Liveness> peers;
+
+	// testing
+	private final AtomicInteger nrContactsEvicted;
+
+	@Inject
+	LivenessTracker(
+			@Named("openkad.net.liveness.max_failures") int maxFailures,
+			@Named("openkad.net.liveness.maxpeers") int maxPeers,
+			Provider<KBuckets> kBucketsProvider,
+			@Named("openkad.testing.nrContactsEvicted") AtomicInteger nrContactsEvicted) {
+
+		this.maxFailures = maxFailures;
+		this.kBucketsProvider = kBucketsProvider;
+		this.nrContactsEvicted = nrContactsEvicted;
+		this.peers = new StripedLruMap<Node, Liveness>(maxPeers);
+	}
+
+	/**
+	 * Must be invoked while holding the stripe's monitor
+	 */
+	private static Liveness get(Map<Node, Liveness> stripe, Node n) {
+		Liveness $ = stripe.get(n);
+		if ($ == null) {
+			$ = new Liveness();
+			stripe.put(n, $);
+		}
+		return $;
+	}
+
+	/**
+	 * Notify that a message was received from the given node
+	 * @param n the node that sent the message
+	 */
+	public void succeeded(Node n) {
+		long now = System.currentTimeMillis();
+		Map<Node, Liveness> stripe = peers.stripe(n);
+		synchronized (stripe) {
+			Liveness l = get(stripe, n);
+			l.lastSuccess = now;
+			l.nrFailures = 0;
+		}
+	}
+
+	/**
+	 * Notify that a request to the given node timed out. Marks the node as
+	 * dead in the routing table if it has failed too many times in a row
+	 * @param n the node that did not respond
+	 */
+	public void failed(Node n) {
+		Map<Node, Liveness> stripe = peers.stripe(n);
+		synchronized (stripe) {
+			Liveness l = get(stripe, n);
+			if (++l.nrFailures < maxFailures)
+				return;
+			l.nrFailures = 0;
+		}
+		nrContactsEvicted.incrementAndGet();
+		kBucketsProvider.get().markAsDead(n);
+	}
+
+	/**
+	 * @param n a remote node
+	 * @return the last time a message was received from n or 0 if it is unknown
+	 */
+	public long getLastSuccess(Node n) {
+		Map<Node, Liveness> stripe = peers.stripe(n);
+		synchronized (stripe) {
+			Liveness l = stripe.get(n);
+			return l == null ? 0 : l.lastSuccess;
+		}
+	}
+
+	/**
+	 * @param n a remote node
+	 * @return number of requests to n that timed out since the last message
+	 * received from n
+	 */
+	public int getNrFailures(Node n) {
+		Map<Node, Liveness> stripe = peers.stripe(n);
+		synchronized (stripe) {
+			Liveness l = stripe.get(n);
+			return l == null ? 0 : l.nrFailures;
+		}
+	}
+}
@@ -0,0 +1,238 @@
+package il.technion.ewolf.kbr.openkad.net;
+
+import il.technion.ewolf.kbr.openkad.msg.ContentMessage;
+import il.technion.ewolf.kbr.openkad.msg.ContentRequest;
+import il.technion.ewolf.kbr.openkad.msg.KadMessage;
+import il.technion.ewolf.kbr.openkad.net.filter.IdMessageFilter;
+import il.technion.ewolf.kbr.openkad.net.filter.MessageFilter;
+import il.technion.ewolf.kbr.openkad.net.filter.TagMessageFilter;
+import il.technion.ewolf.kbr.openkad.net.filter.TypeMessageFilter;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+
+/**
+ * Finds the dispatchers that should handle an incoming message without
+ * scanning all of them.
+ *
+ * Consumable dispatchers waiting for a response are indexed by the
+ * (message id, response type) pair taken from their {@link IdMessageFilter}
+ * and {@link TypeMessageFilter}, other dispatchers by their message type or
+ * tag. Dispatchers that cannot be indexed are kept in the expecters sets and
+ * matched by running their filter chain on every incoming message.
+ * Indexed dispatchers still have their entire filter chain checked.
+ *
+ * @author eyal.kibbar@gmail.com
+ *
+ */
+public class MessageDispatchIndex {
+
+	// index
+	private final ConcurrentMap<ResponseKey, MessageDispatcher<?>> responses;
+	private final ConcurrentMap<Class<?>, Set<MessageDispatcher<?>>> byType;
+	private final ConcurrentMap<String, Set<MessageDispatcher<?>>> byTag;
+
+	// fallback
+	private final Set<MessageDispatcher<?>> expecters; // must be sync'ed set
+	private final Set<MessageDispatcher<?>> nonConsumableExpecters; // must be sync'ed set
+
+	@Inject
+	MessageDispatchIndex(
+			@Named("openkad.net.expecters") Set<MessageDispatcher<?>> expecters,
+			@Named("openkad.net.expecters.nonConsumable") Set<MessageDispatcher<?>> nonConsumableExpecters) {
+
+		this.expecters = expecters;
+		this.nonConsumableExpecters = nonConsumableExpecters;
+
+		this.responses = new ConcurrentHashMap<ResponseKey, MessageDispatcher<?>>();
+		this.byType = new ConcurrentHashMap<Class<?>, Set<MessageDispatcher<?>>>();
+		this.byTag = new ConcurrentHashMap<String, Set<MessageDispatcher<?>>>();
+	}
+
+	/**
+	 * The (id, type) pair a response is expected with
+	 */
+	private static final class ResponseKey {
+		private final long id;
+		private final Class<?> type;
+
+		ResponseKey(long id, Class<?> type) {
+			this.id = id;
+			this.type = type;
+		}
+
+		@Override
+		public int hashCode() {
+			return (int)(id ^ (id >>> 32)) * 31 + type.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (o == null || o.getClass() != getClass())
+				return false;
+			ResponseKey k = (ResponseKey)o;
+			return id == k.id && type == k.type;
+		}
+	}
+
+	private static ResponseKey responseKey(Collection<MessageFilter> filters) {
+		IdMessageFilter id = null;
+		TypeMessageFilter type = null;
+		for (MessageFilter f : filters) {
+			if (f instanceof IdMessageFilter)
+				id = (IdMessageFilter)f;
+			else if (f instanceof TypeMessageFilter)
+				type = (TypeMessageFilter)f;
+		}
+		return id == null || type == null ? null : new ResponseKey(id.getId(), type.getType());
+	}
+
+	private static Class<?> typeOf(Collection<MessageFilter> filters) {
+		for (MessageFilter f : filters) {
+			if (f instanceof TypeMessageFilter)
+				return ((TypeMessageFilter)f).getType();
+		}
+		return null;
+	}
+
+	private static String tagOf(Collection<MessageFilter> filters) {
+		for (MessageFilter f : filters) {
+			if (f instanceof TagMessageFilter)
+				return ((TagMessageFilter)f).getTag();
+		}
+		return null;
+	}
+
+	private static String tagOf(KadMessage m) {
+		if (m instanceof ContentRequest)
+			return ((ContentRequest)m).getTag();
+		if (m instanceof ContentMessage)
+			return ((ContentMessage)m).getTag();
+		return null;
+	}
+
+	private static <K> void addTo(ConcurrentMap<K, Set<MessageDispatcher<?>>> map, K k, MessageDispatcher<?> d) {
+		Set<MessageDispatcher<?>> s = map.get(k);
+		if (s == null) {
+			s = Collections.newSetFromMap(new ConcurrentHashMap<MessageDispatcher<?>, Boolean>());
+			Set<MessageDispatcher<?>> prev = map.putIfAbsent(k, s);
+			if (prev != null)
+				s = prev;
+		}
+		s.add(d);
+	}
+
+	private static <K> boolean removeFrom(ConcurrentMap<K, Set<MessageDispatcher<?>>> map, K k, MessageDispatcher<?> d) {
+		Set<MessageDispatcher<?>> s = map.get(k);
+		// empty sets are left in place, there is one per message type or tag
+		return s != null && s.remove(d);
+	}
+
+	/**
+	 * Start dispatching matching messages to the given dispatcher
+	 * @param d the dispatcher
+	 */
+	void add(MessageDispatcher<?> d) {
+		Collection<MessageFilter> filters = d.getFilters();
+
+		if (d.isConsumable()) {
+			ResponseKey k = responseKey(filters);
+			if (k != null && responses.putIfAbsent(k, d) == null)
+				return;
+		}
+
+		Class<?> type = typeOf(filters);
+		if (type != null) {
+			addTo(byType, type, d);
+			return;
+		}
+
+		String tag = tagOf(filters);
+		if (tag != null) {
+			addTo(byTag, tag, d);
+			return;
+		}
+
+		if (d.isConsumable())
+			expecters.add(d);
+		else
+			nonConsumableExpecters.add(d);
+	}
+
+	/**
+	 * Stop dispatching messages to the given dispatcher
+	 * @param d the dispatcher
+	 */
+	void remove(MessageDispatcher<?> d) {
+		Collection<MessageFilter> filters = d.getFilters();
+
+		if (d.isConsumable()) {
+			ResponseKey k = responseKey(filters);
+			if (k != null && responses.remove(k, d))
+				return;
+		}
+
+		Class<?> type = typeOf(filters);
+		if (type != null && removeFrom(byType, type, d))
+			return;
+
+		String tag = tagOf(filters);
+		if (tag != null && removeFrom(byTag, tag, d))
+			return;
+
+		if (d.isConsumable())
+			expecters.remove(d);
+		else
+			nonConsumableExpecters.remove(d);
+	}
+
+	private static void collect(Collection<MessageDispatcher<?>> from, KadMessage msg, List<MessageDispatcher<?>> to) {
+		if (from == null)
+			return;
+		for (MessageDispatcher<?> d : from) {
+			if (d.shouldHandleMessage(msg))
+				to.add(d);
+		}
+	}
+
+	/**
+	 * Finds all the dispatchers that should handle an incoming message.
+	 * Non consumable dispatchers comes first.
+	 *
+	 * @param msg the incoming message
+	 * @return all dispatchers that should handle the message
+	 */
+	public List<MessageDispatcher<?>> extractShouldHandle(KadMessage msg) {
+		List<MessageDispatcher<?>> $ = new ArrayList<MessageDispatcher<?>>();
+
+		collect(byType.get(msg.getClass()), msg, $);
+
+		String tag = tagOf(msg);
+		if (tag != null)
+			collect(byTag.get(tag), msg, $);
+
+		synchronized (nonConsumableExpecters) {
+			if (!nonConsumableExpecters.isEmpty())
+				collect(nonConsumableExpecters, msg, $);
+		}
+
+		synchronized (expecters) {
+			if (!expecters.isEmpty())
+				collect(expecters, msg, $);
+		}
+
+		MessageDispatcher<?> d = responses.get(new ResponseKey(msg.getId(), msg.getClass()));
+		if (d != null && d.shouldHandleMessage(msg))
+			$.add(d);
+
+		return $;
+	}
+}
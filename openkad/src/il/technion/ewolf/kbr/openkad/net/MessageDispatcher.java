@@ -3,20 +3,22 @@ package il.technion.ewolf.kbr.openkad.net;
 import il.technion.ewolf.kbr.Node;
 import il.technion.ewolf.kbr.concurrent.CompletionHandler;
 import il.technion.ewolf.kbr.concurrent.FutureCallback;
+import il.technion.ewolf.kbr.concurrent.HashedWheelTimer;
+import il.technion.ewolf.kbr.concurrent.HashedWheelTimer.Timeout;
 import il.technion.ewolf.kbr.openkad.msg.KadMessage;
 import il.technion.ewolf.kbr.openkad.msg.KadRequest;
 import il.technion.ewolf.kbr.openkad.net.filter.MessageFilter;
 
+import java.util.Collection;
 import java.util.HashSet;
 import java.util.Set;
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.google.inject.Inject;
 import com.google.inject.name.Named;
@@ -40,64 +42,110 @@ public class MessageDispatcher<A> {
 	private CompletionHandler<KadMessage, A> callback;
 	private boolean isConsumbale = true;
 	private long timeout;
+	private boolean hasExplicitTimeout = false;
+	private Node to = null;
+	private long sendTime;
 	private final Set<MessageFilter> filters = new HashSet<MessageFilter>();
-	private TimerTask timeoutTimerTask = null;
+	private volatile Timeout timeoutTimerTask = null;
 	private final AtomicBoolean isDone;
+	private final AtomicBoolean holdsSlot;
 	// dependencies
-	private final BlockingQueue<MessageDispatcher<?>> outstandingRequests;
-	private final Set<MessageDispatcher<?>> expecters; // must be sync'ed set
-	private final Set<MessageDispatcher<?>> nonConsumableexpecters; // must be sync'ed set
+	private final AdmissionController admissionController;
+	private final MessageDispatchIndex dispatchIndex;
 	
-	private final Timer timer;
+	private final HashedWheelTimer timer;
+	private final RttEstimator rttEstimator;
+	private final LivenessTracker livenessTracker;
 	private final Communicator communicator;
 
 	
 	@Inject
 	MessageDispatcher(
-			@Named("openkad.net.req_queue") BlockingQueue<MessageDispatcher<?>> outstandingRequests,
-			@Named("openkad.net.expecters") Set<MessageDispatcher<?>> expecters,
-			@Named("openkad.net.expecters.nonConsumable") Set<MessageDispatcher<?>> nonConsumableexpecters,
-			@Named("openkad.timer") Timer timer,
+			AdmissionController admissionController,
+			MessageDispatchIndex dispatchIndex,
+			@Named("openkad.timer.wheel") HashedWheelTimer timer,
 			@Named("openkad.net.timeout") long timeout,
+			RttEstimator rttEstimator,
+			LivenessTracker livenessTracker,
 			Communicator communicator) {
 		
-		this.outstandingRequests = outstandingRequests;
-		this.expecters = expecters;
-		this.nonConsumableexpecters = nonConsumableexpecters;
+		this.admissionController = admissionController;
+		this.dispatchIndex = dispatchIndex;
 		this.timer = timer;
 		this.timeout = timeout;
+		this.rttEstimator = rttEstimator;
+		this.livenessTracker = livenessTracker;
 		this.communicator = communicator;
 		this.isDone = new AtomicBoolean(false);
+		this.holdsSlot = new AtomicBoolean(false);
+	}
+	
+	MessageDispatcher(
+			AdmissionController admissionController,
+			Set<MessageDispatcher<?>> expecters,
+			Set<MessageDispatcher<?>> nonConsumableexpecters,
+			HashedWheelTimer timer,
+			long timeout,
+			Communicator communicator) {
+		this(admissionController, expecters, nonConsumableexpecters, timer, timeout,
+				new RttEstimator(timeout, timeout, timeout, 1),
+				new LivenessTracker(Integer.MAX_VALUE, 1, null, new AtomicInteger()), communicator);
+	}
+	
+	MessageDispatcher(
+			AdmissionController admissionController,
+			Set<MessageDispatcher<?>> expecters,
+			Set<MessageDispatcher<?>> nonConsumableexpecters,
+			HashedWheelTimer timer,
+			long timeout,
+			RttEstimator rttEstimator,
+			LivenessTracker livenessTracker,
+			Communicator communicator) {
+		this(admissionController, new MessageDispatchIndex(expecters, nonConsumableexpecters),
+				timer, timeout, rttEstimator, livenessTracker, communicator);
 	}
 	
 	private void expect() {
-		if (isConsumbale)
-			expecters.add(this);
-		else 
-			nonConsumableexpecters.add(this);
+		dispatchIndex.add(this);
 	}
 	
 	private void cancelExpect() {
-		if (isConsumbale)
-			expecters.remove(this);
-		else 
-			nonConsumableexpecters.remove(this);
+		dispatchIndex.remove(this);
+	}
+	
+	private void releaseSlot() {
+		if (holdsSlot.compareAndSet(true, false))
+			admissionController.release();
 	}
 	
 	public void cancel(Throwable exc) {
 		if (!isDone.compareAndSet(false, true))
 			return;
 		
+		// only a request which really timed out counts against its node
+		if (exc instanceof TimeoutException && to != null) {
+			rttEstimator.timedOut(to);
+			livenessTracker.failed(to);
+		}
+		
 		if (timeoutTimerTask != null)
 			timeoutTimerTask.cancel();
 		
-		outstandingRequests.remove(this);
+		releaseSlot();
 		cancelExpect();
 		
 		if (callback != null)
 			callback.failed(exc, attachment);
 	}
 	
+	Collection<MessageFilter> getFilters() {
+		return filters;
+	}
+	
+	boolean isConsumable() {
+		return isConsumbale;
+	}
+	
 	// returns true if should be handled
 	boolean shouldHandleMessage(KadMessage m) {
 		for (MessageFilter filter : filters) {
@@ -116,11 +164,17 @@ public class MessageDispatcher<A> {
 		if (timeoutTimerTask != null)
 			timeoutTimerTask.cancel();
 		
-		outstandingRequests.remove(this);
+		releaseSlot();
 		if (isConsumbale) {
-			expecters.remove(this);
+			cancelExpect();
 			if (!isDone.compareAndSet(false, true))
 				return;
+			
+			// a response to a request we sent
+			if (to != null && msg.getSrc() != null) {
+				rttEstimator.addSample(msg.getSrc(), System.nanoTime() - sendTime, TimeUnit.NANOSECONDS);
+				livenessTracker.succeeded(msg.getSrc());
+			}
 		}
 		
 		if (callback != null)
@@ -138,8 +192,12 @@ public class MessageDispatcher<A> {
 		return this;
 	}
 	
+	/**
+	 * Overrides the timeout estimated for the destination node
+	 */
 	public MessageDispatcher<A> setTimeout(long t, TimeUnit unit) {
 		timeout = unit.toMillis(t);
+		hasExplicitTimeout = true;
 		return this;
 	}
 	
@@ -149,8 +207,8 @@ public class MessageDispatcher<A> {
 	}
 	
 	public MessageDispatcher<A> register() {
-		expecters.add(this);
 		setupTimeout();
+		expect();
 		return this;
 	}
 	
@@ -166,8 +224,8 @@ public class MessageDispatcher<A> {
 		};
 		
 		setCallback(null, f);
-		expect();
 		setupTimeout();
+		expect();
 		
 		return f;
 	}
@@ -176,55 +234,74 @@ public class MessageDispatcher<A> {
 		if (!isConsumbale)
 			return;
 		
-		timeoutTimerTask = new TimerTask() {
+		timeoutTimerTask = timer.newTimeout(new Runnable() {
 			
 			@Override
 			public void run() {
 				MessageDispatcher.this.cancel(new TimeoutException());
 			}
-		};
-		timer.schedule(timeoutTimerTask, timeout);
+		}, hasExplicitTimeout || to == null ? timeout : rttEstimator.getTimeout(to), TimeUnit.MILLISECONDS);
 	}
 	
-	public boolean trySend(Node to, KadRequest req) {
-		setConsumable(true);
-		try {
-			if (!outstandingRequests.offer(this))
-				return false;
-			else
-			{
-				//outstandingRequests.put(this);
-				expect();
-				communicator.send(to, req);
-				setupTimeout();
-				return true;
-			}
-
-		} catch (Exception e) {
-			cancel(e);
-			// if something bad happened - feel free to try again. 
-			return true;
-		}
+	private void markSent(Node to) {
+		this.to = to;
+		this.sendTime = System.nanoTime();
 	}
 	
-	public void send(Node to, KadRequest req) {
-		setConsumable(true);
+	// invoked after a slot was taken for this request
+	private void doSend(Node to, KadRequest req) {
+		holdsSlot.set(true);
+		if (isDone.get()) {
+			// cancelled while waiting for a slot
+			releaseSlot();
+			return;
+		}
 		try {
-			/*
-			if (!outstandingRequests.offer(this, timeout, TimeUnit.MILLISECONDS))
-				throw new RejectedExecutionException();
-			*/
-			outstandingRequests.put(this);
+			// published to the receiving thread by expect()
+			markSent(to);
+			// armed before sending so a fast response always finds it to cancel
+			setupTimeout();
 			expect();
 			communicator.send(to, req);
-			
-			setupTimeout();
-			
 		} catch (Exception e) {
 			cancel(e);
 		}
 	}
 	
+	/**
+	 * Sends the request only if it can be sent immediately
+	 * @return false if there are too many outstanding requests, in which
+	 * case the callback will not be invoked
+	 */
+	public boolean trySend(Node to, KadRequest req) {
+		setConsumable(true);
+		if (!admissionController.tryAcquire())
+			return false;
+		
+		doSend(to, req);
+		// if something bad happened the callback failed was invoked
+		return true;
+	}
+	
+	/**
+	 * Sends the request, never blocks.
+	 * If there are too many outstanding requests the request is either
+	 * queued or failed with a RejectedExecutionException, according to
+	 * openkad.net.admission.policy
+	 */
+	public void send(final Node to, final KadRequest req) {
+		setConsumable(true);
+		boolean isAccepted = admissionController.submit(new Runnable() {
+			@Override
+			public void run() {
+				doSend(to, req);
+			}
+		});
+		
+		if (!isAccepted)
+			cancel(new RejectedExecutionException("too many outstanding requests"));
+	}
+	
 	public Future<KadMessage> futureSend(Node to, KadRequest req) {
 		
 		FutureCallback<KadMessage, A> f = new FutureCallback<KadMessage, A>();
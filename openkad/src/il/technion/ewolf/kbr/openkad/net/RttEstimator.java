@@ -0,0 +1,177 @@
+package il.technion.ewolf.kbr.openkad.net;
+
+import il.technion.ewolf.kbr.Node;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+
+/**
+ * Estimates the round trip time to each remote node from the request/response
+ * pairs seen by the {@link MessageDispatcher}, the same way TCP does
+ * (RFC 6298): a smoothed RTT and an RTT variance are kept per node, and the
+ * request timeout is srtt + 4 * rttvar clamped to [min, max].
+ * Each timeout doubles the node's timeout until the next sample arrives.
+ *
+ * Nodes with no samples use the estimate made from all the samples, and
+ * before any sample arrived the configured openkad.net.timeout is used.
+ * Only the most recently used nodes are remembered.
+ *
+ * The nodes' estimates are kept in lock stripes, see {@link StripedLruMap}.
+ * The estimate made from all the samples is updated without a lock: a sample
+ * lost to a concurrent update only slows down the smoothing.
+ *
+ * @author eyal.kibbar@gmail.com
+ *
+ */
+public class RttEstimator {
+
+	/**
+	 * The estimated state of a single path, times in micro seconds
+	 */
+	private static final class Rtt {
+		private volatile long srtt = -1;
+		private volatile long rttvar;
+		private int backoff = 0;
+
+		void sample(long rtt) {
+			long s = srtt;
+			if (s < 0) {
+				srtt = rtt;
+				rttvar = rtt / 2;
+			} else {
+				long v = rttvar;
+				rttvar = v + (Math.abs(s - rtt) - v) / 4;
+				srtt = s + (rtt - s) / 8;
+			}
+			backoff = 0;
+		}
+
+		long rto() {
+			return srtt + 4 * rttvar;
+		}
+	}
+
+	// dependencies
+	private final long initialTimeout;
+	private final long minTimeout;
+	private final long maxTimeout;
+
+	// state
+	private final Rtt global = new Rtt();
+	private final StripedLruMap<Node, Rtt> peers;
+
+	@Inject
+	RttEstimator(
+			@Named("openkad.net.timeout") long initialTimeout,
+			@Named("openkad.net.rtt.min_timeout") long minTimeout,
+			@Named("openkad.net.rtt.max_timeout") long maxTimeout,
+			@Named("openkad.net.rtt.maxpeers") int maxPeers) {
+
+		this.initialTimeout = initialTimeout;
+		this.minTimeout = minTimeout;
+		this.maxTimeout = maxTimeout;
+		this.peers = new StripedLruMap<Node, Rtt>(maxPeers);
+	}
+
+	/**
+	 * Adds a round trip time sample
+	 * @param n the node that responded
+	 * @param rtt the time between sending the request and receiving the response
+	 * @param unit the unit of rtt
+	 */
+	public void addSample(Node n, long rtt, TimeUnit unit) {
+		long micros = unit.toMicros(rtt);
+		Map<Node, Rtt> stripe = peers.stripe(n);
+		synchronized (stripe) {
+			Rtt r = stripe.get(n);
+			if (r == null) {
+				r = new Rtt();
+				stripe.put(n, r);
+			}
+			r.sample(micros);
+		}
+		global.sample(micros);
+	}
+
+	/**
+	 * Notify that a request to the given node timed out, backs off the
+	 * node's timeout until the next sample
+	 * @param n the node that did not respond
+	 */
+	public void timedOut(Node n) {
+		Map<Node, Rtt> stripe = peers.stripe(n);
+		synchronized (stripe) {
+			Rtt r = stripe.get(n);
+			if (r != null && r.backoff < 16)
+				++r.backoff;
+		}
+	}
+
+	private long clamp(long millis) {
+		return Math.max(minTimeout, Math.min(maxTimeout, millis));
+	}
+
+	/**
+	 * @param n the destination node
+	 * @return the timeout in milli seconds for a request to the given node
+	 */
+	public long getTimeout(Node n) {
+		if (n != null) {
+			Map<Node, Rtt> stripe = peers.stripe(n);
+			synchronized (stripe) {
+				Rtt r = stripe.get(n);
+				if (r != null)
+					return clamp(TimeUnit.MICROSECONDS.toMillis(r.rto()) << r.backoff);
+			}
+		}
+		if (global.srtt < 0)
+			return initialTimeout;
+		return clamp(TimeUnit.MICROSECONDS.toMillis(global.rto()));
+	}
+
+	/**
+	 * @param n a remote node
+	 * @param unit the result unit
+	 * @return the smoothed round trip time to the node or -1 if it is unknown
+	 */
+	public long getSmoothedRtt(Node n, TimeUnit unit) {
+		Map<Node, Rtt> stripe = peers.stripe(n);
+		synchronized (stripe) {
+			Rtt r = stripe.get(n);
+			return r == null ? -1 : unit.convert(r.srtt, TimeUnit.MICROSECONDS);
+		}
+	}
+
+	/**
+	 * @param n a remote node
+	 * @param unit the result unit
+	 * @return the round trip time variance of the node or -1 if it is unknown
+	 */
+	public long getRttVariance(Node n, TimeUnit unit) {
+		Map<Node, Rtt> stripe = peers.stripe(n);
+		synchronized (stripe) {
+			Rtt r = stripe.get(n);
+			return r == null ? -1 : unit.convert(r.rttvar, TimeUnit.MICROSECONDS);
+		}
+	}
+
+	/**
+	 * @param unit the result unit
+	 * @return the smoothed round trip time of all nodes or -1 if there are
+	 * no samples yet
+	 */
+	public long getGlobalSmoothedRtt(TimeUnit unit) {
+		long srtt = global.srtt;
+		return srtt < 0 ? -1 : unit.convert(srtt, TimeUnit.MICROSECONDS);
+	}
+
+	/**
+	 * @return number of nodes with an rtt estimation
+	 */
+	public int getNrPeers() {
+		return peers.size();
+	}
+}
@@ -0,0 +1,65 @@
+package il.technion.ewolf.kbr.openkad.net;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Per node state of the whole process, split by the key's hash into
+ * independent stripes so that concurrent updates of different nodes rarely
+ * wait for each other.
+ * Each stripe is an access ordered map which forgets its least recently used
+ * key when it holds more than its share of maxSize keys.
+ * A stripe is not thread safe: hold its monitor while using it.
+ *
+ * @author eyal.kibbar@gmail.com
+ *
+ * @param <K> the key type
+ * @param <V> the value type
+ */
+final class StripedLruMap<K, V> {
+
+	private static final int NR_STRIPES = 16;
+
+	private final List<Map<K, V>> stripes;
+
+	StripedLruMap(int maxSize) {
+		final int stripeSize = Math.max(1, (maxSize + NR_STRIPES - 1) / NR_STRIPES);
+		this.stripes = new ArrayList<Map<K, V>>(NR_STRIPES);
+		for (int i=0; i < NR_STRIPES; ++i) {
+			stripes.add(new LinkedHashMap<K, V>(16, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+					return size() > stripeSize;
+				}
+			});
+		}
+	}
+
+	/**
+	 * @param key the key
+	 * @return the stripe holding the key, synchronize on it while using it
+	 */
+	Map<K, V> stripe(K key) {
+		int h = key.hashCode();
+		h ^= h >>> 16;
+		h ^= h >>> 8;
+		return stripes.get(h & (NR_STRIPES - 1));
+	}
+
+	/**
+	 * @return number of keys in all the stripes
+	 */
+	int size() {
+		int $ = 0;
+		for (Map<K, V> stripe : stripes) {
+			synchronized (stripe) {
+				$ += stripe.size();
+			}
+		}
+		return $;
+	}
+}
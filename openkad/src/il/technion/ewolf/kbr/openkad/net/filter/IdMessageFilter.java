@@ -20,4 +20,11 @@ public class IdMessageFilter implements MessageFilter {
 	public boolean shouldHandle(KadMessage m) {
 		return m.getId() == id;
 	}
+
+	/**
+	 * @return the id of the accepted messages
+	 */
+	public long getId() {
+		return id;
+	}
 }
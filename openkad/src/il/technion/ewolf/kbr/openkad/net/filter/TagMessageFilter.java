@@ -31,4 +31,10 @@ public class TagMessageFilter implements MessageFilter {
 		return this.tag.equals(tag);
 	}
 
+	/**
+	 * @return the tag of the accepted messages
+	 */
+	public String getTag() {
+		return tag;
+	}
 }
@@ -20,5 +20,12 @@ public class TypeMessageFilter implements MessageFilter {
 		return m.getClass().equals(clazz);
 	}
 
+	/**
+	 * @return the class of the accepted messages
+	 */
+	public Class<? extends KadMessage> getType() {
+		return clazz;
+	}
+
 	
 }
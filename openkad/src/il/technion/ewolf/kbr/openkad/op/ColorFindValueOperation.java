@@ -8,7 +8,9 @@ import il.technion.ewolf.kbr.KeyComparator;
 import il.technion.ewolf.kbr.Node;
 import il.technion.ewolf.kbr.concurrent.CompletionHandler;
 import il.technion.ewolf.kbr.openkad.bucket.KBuckets;
+import il.technion.ewolf.kbr.openkad.cache.HotKeyTracker;
 import il.technion.ewolf.kbr.openkad.cache.KadCache;
+import il.technion.ewolf.kbr.openkad.cache.LookupHintCache;
 import il.technion.ewolf.kbr.openkad.msg.FindNodeRequest;
 import il.technion.ewolf.kbr.openkad.msg.FindNodeResponse;
 import il.technion.ewolf.kbr.openkad.msg.KadMessage;
@@ -34,6 +36,8 @@ import com.google.inject.name.Named;
  * Find value operation according to the colors algorithm
  * TODO: add a link to the published article
  * 
+ * Repeated lookups use the {@link LookupHintCache}
+ * 
  * @author eyal.kibbar@gmail.com
  *
  */
@@ -45,6 +49,7 @@ public class ColorFindValueOperation extends FindValueOperation implements Compl
 	private final Set<Node> querying;
 	private int nrQueried;
 	private Node returnedCachedResults = null;
+	private boolean hasResponses = false;
 	private Comparator<Key> colorComparator;
 	
 	// dependencies
@@ -57,6 +62,8 @@ public class ColorFindValueOperation extends FindValueOperation implements Compl
 	private final int nrCandidates;
 	private final Communicator kadServer;
 	private final KadCache cache;
+	private final LookupHintCache hints;
+	private final HotKeyTracker hotKeys;
 	private final int nrShare;
 	private final int nrColors;
 	private final int concurrency;
@@ -64,6 +71,9 @@ public class ColorFindValueOperation extends FindValueOperation implements Compl
 	// testing
 	private final AtomicInteger nrLocalCacheHits;
 	private final AtomicInteger nrRemoteCacheHits;
+	private final AtomicInteger nrNegativeCacheHits;
+	private final AtomicInteger nrHintedLookups;
+	private final AtomicInteger nrColdStoresSkipped;
 	
 	@Inject
 	ColorFindValueOperation(
@@ -80,8 +90,13 @@ public class ColorFindValueOperation extends FindValueOperation implements Compl
 			Communicator kadServer,
 			KBuckets kBuckets,
 			KadCache cache,
+			LookupHintCache hints,
+			HotKeyTracker hotKeys,
 			@Named("openkad.testing.nrLocalCacheHits") AtomicInteger nrLocalCacheHits,
-			@Named("openkad.testing.nrRemoteCacheHits") AtomicInteger nrRemoteCacheHits) {
+			@Named("openkad.testing.nrRemoteCacheHits") AtomicInteger nrRemoteCacheHits,
+			@Named("openkad.testing.nrNegativeCacheHits") AtomicInteger nrNegativeCacheHits,
+			@Named("openkad.testing.nrHintedLookups") AtomicInteger nrHintedLookups,
+			@Named("openkad.testing.nrColdStoresSkipped") AtomicInteger nrColdStoresSkipped) {
 		
 		this.localNode = localNode;
 		this.kBucketSize = kBucketSize;
@@ -93,11 +108,16 @@ public class ColorFindValueOperation extends FindValueOperation implements Compl
 		this.storeMessageProvider = storeMessageProvider;
 		this.kadServer = kadServer;
 		this.cache = cache;
+		this.hints = hints;
+		this.hotKeys = hotKeys;
 		this.nrColors = nrColors;
 		this.concurrency = concurrency;
 		
 		this.nrLocalCacheHits = nrLocalCacheHits;
 		this.nrRemoteCacheHits = nrRemoteCacheHits;
+		this.nrNegativeCacheHits = nrNegativeCacheHits;
+		this.nrHintedLookups = nrHintedLookups;
+		this.nrColdStoresSkipped = nrColdStoresSkipped;
 		alreadyQueried = new HashSet<Node>();
 		querying = new HashSet<Node>();
 	}
@@ -171,13 +191,35 @@ public class ColorFindValueOperation extends FindValueOperation implements Compl
 			return nodes;
 		}
 		
+		LookupHintCache.Hint hint = hints.search(key);
+		if (hint != null && hint.isMiss()) {
+			nrNegativeCacheHits.incrementAndGet();
+			// what a walk nobody answered would return, without the walk
+			List<Node> $ = kBuckets.getClosestNodesByKey(key, kBucketSize);
+			$.add(localNode);
+			return $;
+		}
+		
 		knownClosestNodes = kBuckets.getClosestNodesByKey(key, kBucketSize);
-		knownClosestNodes.add(localNode);
-		alreadyQueried.add(localNode);
 		KeyComparator keyComparator = new KeyComparator(key);
 		colorComparator = new KeyColorComparator(key, nrColors);
 		
-		List<Node> colorClosest = kBuckets.getClosestNodesByKey(key, nrCandidates);
+		List<Node> colorClosest;
+		if (hint == null) {
+			colorClosest = kBuckets.getClosestNodesByKey(key, nrCandidates);
+		} else {
+			// start from the nodes of the last result
+			nrHintedLookups.incrementAndGet();
+			List<Node> extra = new ArrayList<Node>(hint.getNodes());
+			extra.removeAll(knownClosestNodes);
+			knownClosestNodes.addAll(extra);
+			knownClosestNodes = sort(knownClosestNodes, on(Node.class).getKey(), keyComparator);
+			colorClosest = new ArrayList<Node>(
+					knownClosestNodes.subList(0, Math.min(nrCandidates, knownClosestNodes.size())));
+		}
+		knownClosestNodes.add(localNode);
+		alreadyQueried.add(localNode);
+		
 		querying.addAll(colorClosest);
 		for (Node n : colorClosest) {
 			sendFindNode(n);
@@ -234,6 +276,8 @@ public class ColorFindValueOperation extends FindValueOperation implements Compl
 		
 		if (returnedCachedResults != null)
 			nrRemoteCacheHits.incrementAndGet();
+		else
+			hints.insert(key, hasResponses ? knownClosestNodes : Collections.<Node>emptyList(), localNode);
 
 		synchronized (this) {
 			nrQueried = alreadyQueried.size()+querying.size()-1;
@@ -244,6 +288,10 @@ public class ColorFindValueOperation extends FindValueOperation implements Compl
 	
 	
 	private void sendStoreResults(List<Node> toShareWith) {
+		if (!hotKeys.isHot(key)) {
+			nrColdStoresSkipped.incrementAndGet();
+			return;
+		}
 		toShareWith.remove(returnedCachedResults);
 		if (toShareWith.size() > nrShare)
 			toShareWith.subList(nrShare, toShareWith.size()).clear();
@@ -266,6 +314,7 @@ public class ColorFindValueOperation extends FindValueOperation implements Compl
 		notifyAll();
 		querying.remove(n);
 		alreadyQueried.add(n);
+		hasResponses = true;
 		
 		if (returnedCachedResults != null)
 			return;
@@ -4,28 +4,18 @@ import static ch.lambdaj.Lambda.on;
 import static ch.lambdaj.Lambda.sort;
 import il.technion.ewolf.kbr.Key;
 import il.technion.ewolf.kbr.KeyColorComparator;
-import il.technion.ewolf.kbr.KeyComparator;
 import il.technion.ewolf.kbr.Node;
 import il.technion.ewolf.kbr.concurrent.CompletionHandler;
-import il.technion.ewolf.kbr.openkad.bucket.KBuckets;
+import il.technion.ewolf.kbr.openkad.cache.HotKeyTracker;
 import il.technion.ewolf.kbr.openkad.cache.KadCache;
-import il.technion.ewolf.kbr.openkad.msg.FindNodeRequest;
 import il.technion.ewolf.kbr.openkad.msg.FindNodeResponse;
-import il.technion.ewolf.kbr.openkad.msg.KadMessage;
 import il.technion.ewolf.kbr.openkad.msg.StoreMessage;
 import il.technion.ewolf.kbr.openkad.net.Communicator;
-import il.technion.ewolf.kbr.openkad.net.MessageDispatcher;
-import il.technion.ewolf.kbr.openkad.net.filter.IdMessageFilter;
-import il.technion.ewolf.kbr.openkad.net.filter.TypeMessageFilter;
 
 import java.util.ArrayList;
-import java.util.Collection;
-import java.util.Collections;
 import java.util.Comparator;
-import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import com.google.inject.Inject;
@@ -40,218 +30,149 @@ import com.google.inject.name.Named;
  * @author eyal.kibbar@gmail.com
  * 
  */
-public class EagerColorFindValueOperation extends FindValueOperation implements CompletionHandler<KadMessage, Node> {
+public class EagerColorFindValueOperation extends FindValueOperation {
 
 	// state
-	private List<Node> knownClosestNodes;
-	private final Set<Node> alreadyQueried;
-	private final Set<Node> querying;
 	private Node returnedCachedResults = null;
 	private final List<Node> lastSentTo;
 	private Comparator<Key> colorComparator;
-	private KeyComparator keyComparator;
 	private final List<Node> firstSentTo;
-	private final AtomicInteger nrMsgsSent;
 
 	// dependencies
-	private final Provider<FindNodeRequest> findNodeRequestProvider;
-	private final Provider<MessageDispatcher<Node>> msgDispatcherProvider;
+	private final IterativeLookup lookup;
 	private final Provider<StoreMessage> storeMessageProvider;
-	private final KBuckets kBuckets;
-	private final Node localNode;
 	private final int kBucketSize;
 	private final Communicator kadServer;
 	private final KadCache cache;
+	private final HotKeyTracker hotKeys;
 	private final int nrShare;
 	private final int nrColors;
 	private final int myColor;
 	// testing
 	private final AtomicInteger nrLocalCacheHits;
 	private final AtomicInteger nrRemoteCacheHits;
+	private final AtomicInteger nrColdStoresSkipped;
 
 	@Inject
-	EagerColorFindValueOperation(@Named("openkad.local.node") final Node localNode,
+	EagerColorFindValueOperation(
 			@Named("openkad.bucket.kbuckets.maxsize") final int kBucketSize, @Named("openkad.cache.share") final int nrShare,
 			@Named("openkad.color.nrcolors") final int nrColors, @Named("openkad.local.color") final int myColor,
 
-			final Provider<FindNodeRequest> findNodeRequestProvider, final Provider<MessageDispatcher<Node>> msgDispatcherProvider,
-			final Provider<StoreMessage> storeMessageProvider, final Communicator kadServer, final KBuckets kBuckets,
-			final KadCache cache, @Named("openkad.testing.nrLocalCacheHits") final AtomicInteger nrLocalCacheHits,
-			@Named("openkad.testing.nrRemoteCacheHits") final AtomicInteger nrRemoteCacheHits) {
+			final IterativeLookup lookup, final Provider<StoreMessage> storeMessageProvider, final Communicator kadServer,
+			final KadCache cache, final HotKeyTracker hotKeys,
+			@Named("openkad.testing.nrLocalCacheHits") final AtomicInteger nrLocalCacheHits,
+			@Named("openkad.testing.nrRemoteCacheHits") final AtomicInteger nrRemoteCacheHits,
+			@Named("openkad.testing.nrColdStoresSkipped") final AtomicInteger nrColdStoresSkipped) {
 
-		this.localNode = localNode;
 		this.kBucketSize = kBucketSize;
-		this.kBuckets = kBuckets;
-		this.findNodeRequestProvider = findNodeRequestProvider;
-		this.msgDispatcherProvider = msgDispatcherProvider;
+		this.lookup = lookup;
 		this.nrShare = nrShare;
 		this.storeMessageProvider = storeMessageProvider;
 		this.kadServer = kadServer;
 		this.cache = cache;
+		this.hotKeys = hotKeys;
 		this.nrColors = nrColors;
 		this.myColor = myColor;
 
 		this.nrLocalCacheHits = nrLocalCacheHits;
 		this.nrRemoteCacheHits = nrRemoteCacheHits;
+		this.nrColdStoresSkipped = nrColdStoresSkipped;
 
-		this.alreadyQueried = new HashSet<Node>();
-		this.querying = new HashSet<Node>();
 		this.lastSentTo = new LinkedList<Node>();
 		this.firstSentTo = new ArrayList<Node>();
-		this.nrMsgsSent = new AtomicInteger();
 	}
 
 	@Override
 	public int getNrQueried() {
-		return this.nrMsgsSent.get();
+		return this.lookup.getNrQueried();
 	}
 
-	private synchronized Node takeUnqueried() {
-		for (int i = 0; i < this.knownClosestNodes.size(); ++i) {
-			final Node n = this.knownClosestNodes.get(i);
-			if (!this.querying.contains(n) && !this.alreadyQueried.contains(n)) {
-				this.querying.add(n);
-				return n;
-			}
-		}
-		return null;
-	}
-
-	private synchronized Node takeColorUnqueried() {
-		List<Node> allUnqueried = new ArrayList<Node>();
-		allUnqueried.addAll(this.knownClosestNodes);
-		allUnqueried.removeAll(this.querying);
-		allUnqueried.removeAll(this.alreadyQueried);
-
-		if (allUnqueried.isEmpty())
-			return null;
-
-		Node $ = null;
-
+	private Node takeColorUnqueried(final List<Node> unqueried) {
+		List<Node> allUnqueried = unqueried;
 		if (allUnqueried.size() > 1)
 			allUnqueried = sort(allUnqueried, on(Node.class).getKey(), this.colorComparator);
-		$ = allUnqueried.get(0);
+		final Node $ = allUnqueried.get(0);
 
 		// if the best we could find is not in the right color, then continue
 		// with the normal kademila lookup
 		if ($.getKey().getColor(this.nrColors) != this.key.getColor(this.nrColors))
-			return takeUnqueried();
+			return unqueried.get(0);
 
-		this.querying.add($);
 		return $;
 	}
 
-	private boolean hasMoreToQuery() {
-		return !this.querying.isEmpty() || !this.alreadyQueried.containsAll(this.knownClosestNodes);
-	}
-	
-	private boolean trySendFindNode(final Node to) {
-		final FindNodeRequest findNodeRequest = this.findNodeRequestProvider.get().setSearchCache(true).setKey(this.key);
-
-		return this.msgDispatcherProvider.get().addFilter(new IdMessageFilter(findNodeRequest.getId()))
-		.addFilter(new TypeMessageFilter(FindNodeResponse.class)).setConsumable(true).setCallback(to, this)
-		.trySend(to, findNodeRequest);
-	}
-
-	private void sendFindNode(final Node to) {
-		final FindNodeRequest findNodeRequest = this.findNodeRequestProvider.get().setSearchCache(true).setKey(this.key);
-
-		this.msgDispatcherProvider.get().addFilter(new IdMessageFilter(findNodeRequest.getId()))
-		.addFilter(new TypeMessageFilter(FindNodeResponse.class)).setConsumable(true).setCallback(to, this)
-		.send(to, findNodeRequest);
-	}
-
-	private void sortKnownClosestNodes() {
-		this.knownClosestNodes = sort(this.knownClosestNodes, on(Node.class).getKey(), this.keyComparator);
-		if (this.knownClosestNodes.size() >= this.kBucketSize)
-			this.knownClosestNodes.subList(this.kBucketSize, this.knownClosestNodes.size()).clear();
+	@Override
+	public List<Node> doFindValue() {
+		return waitFor(futureFindValue());
 	}
 
 	@Override
-	public List<Node> doFindValue() {
+	public <A> void findValue(final A attachment, final CompletionHandler<List<Node>, A> handler) {
 
 		final List<Node> nodes = this.cache.search(this.key);
 		if (nodes != null && nodes.size() >= this.kBucketSize) {
 			this.nrLocalCacheHits.incrementAndGet();
-			return nodes;
+			handler.completed(nodes, attachment);
+			return;
 		}
 
-		this.keyComparator = new KeyComparator(this.key);
-		this.knownClosestNodes = this.kBuckets.getClosestNodesByKey(this.key, this.kBucketSize);
-		this.knownClosestNodes.add(this.localNode);
-		final Collection<Node> bootstrap = getBootstrap();
-		bootstrap.removeAll(this.knownClosestNodes);
-		this.knownClosestNodes.addAll(bootstrap);
-		sortKnownClosestNodes();
-		this.alreadyQueried.add(this.localNode);
-
-		final KeyComparator keyComparator = new KeyComparator(this.key);
 		this.colorComparator = new KeyColorComparator(this.key, this.nrColors);
 
-		do {
-			final Node node = takeColorUnqueried();
-
-			synchronized (this) {
-				// check if finished already
-				if (!hasMoreToQuery() || this.returnedCachedResults != null)
-					break;
+		this.lookup.setKey(this.key).setSearchCache(true).setBootstrap(getBootstrap()).setListener(new LookupListener() {
+			@Override
+			public Node select(final List<Node> unqueried) {
+				return takeColorUnqueried(unqueried);
+			}
 
-				if (node != null){
-					if(!trySendFindNode(node)){
-						try {
-							if(this.querying.size() == 1)
-							{
-								//If only I try to send I send and block
-								this.nrMsgsSent.incrementAndGet();
-								sendFindNode(node);
-							}
-							else
-							{
-								//If there are pending msgs, i wait for their reply
-								this.querying.remove(node);
-								wait();
-							}
-						} catch (InterruptedException e) {
-							e.printStackTrace();
-						}
-					}
-					else
-					{
-						this.nrMsgsSent.incrementAndGet();
-					}
+			@Override
+			public boolean responded(final Node n, final FindNodeResponse res) {
+				if (res.isCachedResults()) {
+					returnedCachedResults = n;
+					return true;
 				}
-				else
-				{
-					if (!this.querying.isEmpty())
-						try {
-							wait();
-						} catch (final InterruptedException e) {
-							e.printStackTrace();
-						}
+
+				if (n.getKey().getColor(nrColors) == key.getColor(nrColors)) {
+					if (firstSentTo.size() < nrShare)
+						firstSentTo.add(n);
+
+					lastSentTo.add(n);
+					if (lastSentTo.size() > nrShare)
+						lastSentTo.remove(0);
 				}
+				return false;
 			}
-		} while (true);
-
-		this.knownClosestNodes = Collections.unmodifiableList(this.knownClosestNodes);
+		}).start(attachment, new CompletionHandler<List<Node>, A>() {
+			@Override
+			public void completed(final List<Node> knownClosestNodes, final A attachment) {
+				// only share if i dont have the right color
+				if (myColor != key.getColor(nrColors))
+					sendStoreResults(lastSentTo, knownClosestNodes);
 
-		// only share if i dont have the right color
-		if (this.myColor != this.key.getColor(this.nrColors))
-			sendStoreResults(this.lastSentTo);
+				cache.insert(key, knownClosestNodes);
 
-		this.cache.insert(this.key, this.knownClosestNodes);
+				if (returnedCachedResults != null)
+					nrRemoteCacheHits.incrementAndGet();
 
-		if (this.returnedCachedResults != null)
-			this.nrRemoteCacheHits.incrementAndGet();
+				handler.completed(knownClosestNodes, attachment);
+			}
 
-		return this.knownClosestNodes;
+			@Override
+			public void failed(final Throwable exc, final A attachment) {
+				handler.failed(exc, attachment);
+			}
+		});
 	}
 
-	private void sendStoreResults(final List<Node> toShareWith) {
+	private void sendStoreResults(final List<Node> toShareWith, final List<Node> knownClosestNodes) {
+		if (!this.hotKeys.isHot(this.key)) {
+			this.nrColdStoresSkipped.incrementAndGet();
+			return;
+		}
 		toShareWith.remove(this.returnedCachedResults);
 		if (toShareWith.size() > this.nrShare)
 			toShareWith.subList(this.nrShare, toShareWith.size()).clear();
 
-		final StoreMessage storeMessage = this.storeMessageProvider.get().setKey(this.key).setNodes(this.knownClosestNodes);
+		final StoreMessage storeMessage = this.storeMessageProvider.get().setKey(this.key).setNodes(knownClosestNodes);
 
 		for (final Node n : toShareWith) {
 			// dont send if the remote node has a different color
@@ -263,42 +184,4 @@ public class EagerColorFindValueOperation extends FindValueOperation implements
 			}
 		}
 	}
-
-	@Override
-	public synchronized void completed(final KadMessage msg, final Node n) {
-		notifyAll();
-		this.querying.remove(n);
-		this.alreadyQueried.add(n);
-
-		if (this.returnedCachedResults != null)
-			return;
-
-		final List<Node> nodes = ((FindNodeResponse) msg).getNodes();
-		nodes.removeAll(this.querying);
-		nodes.removeAll(this.alreadyQueried);
-		nodes.removeAll(this.knownClosestNodes);
-		this.knownClosestNodes.addAll(nodes);
-		sortKnownClosestNodes();
-
-		if (((FindNodeResponse) msg).isCachedResults()) {
-			this.returnedCachedResults = n;
-			return;
-		}
-
-		if (n.getKey().getColor(this.nrColors) == this.key.getColor(this.nrColors)) {
-			if (this.firstSentTo.size() < this.nrShare)
-				this.firstSentTo.add(n);
-
-			this.lastSentTo.add(n);
-			if (this.lastSentTo.size() > this.nrShare)
-				this.lastSentTo.remove(0);
-		}
-	}
-
-	@Override
-	public synchronized void failed(final Throwable exc, final Node n) {
-		notifyAll();
-		this.querying.remove(n);
-		this.alreadyQueried.add(n);
-	}
 }
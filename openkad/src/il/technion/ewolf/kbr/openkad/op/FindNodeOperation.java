@@ -2,9 +2,10 @@ package il.technion.ewolf.kbr.openkad.op;
 
 import il.technion.ewolf.kbr.Key;
 import il.technion.ewolf.kbr.Node;
-import il.technion.ewolf.kbr.openkad.msg.KadMessage;
+import il.technion.ewolf.kbr.concurrent.CompletionHandler;
 
 import java.util.List;
+import java.util.concurrent.Future;
 
 public interface FindNodeOperation {
 
@@ -25,8 +26,17 @@ public interface FindNodeOperation {
 	 */
 	public abstract List<Node> doFindNode();
 
-	public abstract void completed(KadMessage msg, Node n);
+	/**
+	 * Do the find node recursive operation without blocking the caller
+	 * @param attachment arbitrary object attached to the handler
+	 * @param handler invoked with the list of nodes closest to the set key
+	 */
+	public abstract <A> void findNode(A attachment, CompletionHandler<List<Node>, A> handler);
 
-	public abstract void failed(Throwable exc, Node n);
+	/**
+	 * Do the find node recursive operation without blocking the caller
+	 * @return a future for the list of nodes closest to the set key
+	 */
+	public abstract Future<List<Node>> futureFindNode();
 
-}
\ No newline at end of file
+}
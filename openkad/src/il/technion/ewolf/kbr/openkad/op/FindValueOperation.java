@@ -2,10 +2,14 @@ package il.technion.ewolf.kbr.openkad.op;
 
 import il.technion.ewolf.kbr.Key;
 import il.technion.ewolf.kbr.Node;
+import il.technion.ewolf.kbr.concurrent.CompletionHandler;
+import il.technion.ewolf.kbr.concurrent.FutureCallback;
 
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 /**
  * Base class for all the find value operations
@@ -32,12 +36,61 @@ public abstract class FindValueOperation {
 		return this;
 	}
 	
+	public Key getKey() {
+		return key;
+	}
+	
 	protected Collection<Node> getBootstrap() {
 		return bootstrap;
 	}
 	
 	public abstract int getNrQueried();
 	
+	/**
+	 * Do the find value operation, blocks until it is done
+	 * @return a list of nodes closest to the set key
+	 */
 	public abstract List<Node> doFindValue();
 	
+	/**
+	 * Do the find value operation without blocking the caller.
+	 * Operations that are not event driven run doFindValue on the caller's thread.
+	 * 
+	 * @param attachment arbitrary object attached to the handler
+	 * @param handler invoked with the closest nodes to the set key
+	 */
+	public <A> void findValue(A attachment, CompletionHandler<List<Node>, A> handler) {
+		List<Node> $;
+		try {
+			$ = doFindValue();
+		} catch (RuntimeException e) {
+			handler.failed(e, attachment);
+			return;
+		}
+		handler.completed($, attachment);
+	}
+	
+	/**
+	 * Do the find value operation without blocking the caller
+	 * @return a future for the closest nodes to the set key
+	 */
+	public Future<List<Node>> futureFindValue() {
+		FutureCallback<List<Node>, Void> $ = new FutureCallback<List<Node>, Void>();
+		findValue(null, $);
+		return $;
+	}
+	
+	/**
+	 * Blocks until the given operation result is available, used by event
+	 * driven operations to implement doFindValue
+	 */
+	protected static List<Node> waitFor(Future<List<Node>> future) {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+	}
 }
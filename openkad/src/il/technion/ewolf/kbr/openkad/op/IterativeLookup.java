@@ -0,0 +1,340 @@
+package il.technion.ewolf.kbr.openkad.op;
+
+import static ch.lambdaj.Lambda.on;
+import static ch.lambdaj.Lambda.sort;
+import il.technion.ewolf.kbr.Key;
+import il.technion.ewolf.kbr.KeyComparator;
+import il.technion.ewolf.kbr.Node;
+import il.technion.ewolf.kbr.concurrent.CompletionHandler;
+import il.technion.ewolf.kbr.concurrent.FutureCallback;
+import il.technion.ewolf.kbr.concurrent.HashedWheelTimer;
+import il.technion.ewolf.kbr.openkad.bucket.KBuckets;
+import il.technion.ewolf.kbr.openkad.msg.FindNodeRequest;
+import il.technion.ewolf.kbr.openkad.msg.FindNodeResponse;
+import il.technion.ewolf.kbr.openkad.msg.KadMessage;
+import il.technion.ewolf.kbr.openkad.net.MessageDispatcher;
+import il.technion.ewolf.kbr.openkad.net.RttEstimator;
+import il.technion.ewolf.kbr.openkad.net.filter.IdMessageFilter;
+import il.technion.ewolf.kbr.openkad.net.filter.TypeMessageFilter;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.name.Named;
+
+/**
+ * Event driven iterative find node, as defined in the kademlia algorithm.
+ *
+ * The lookup holds no thread while running: it sends up to alpha find node
+ * requests and advances only when a response or a failure (timeout) of one of
+ * them arrives, so any number of lookups can run on the network threads.
+ * When the lookup converges the completion handler is invoked on the thread
+ * that delivered the last event.
+ *
+ * The next node to query is the unqueried node closest to the key. With
+ * openkad.op.lookup.prefer_low_rtt, nodes at about the same distance from the
+ * key (sharing the same number of leading bits with it) are tried in the order
+ * of their smoothed round trip time, so slow nodes are queried only when they
+ * are significantly closer.
+ *
+ * A lookup instance can only be started once.
+ *
+ * @author eyal.kibbar@gmail.com
+ *
+ */
+public class IterativeLookup implements CompletionHandler<KadMessage, Node> {
+
+	// delay before trying to send again when the outstanding requests queue is full
+	private static final long RETRY_DELAY = 10;
+
+	// state
+	private Key key;
+	private Collection<Node> bootstrap = Collections.emptySet();
+	private boolean searchCache = false;
+	private LookupListener listener = new LookupListener() {};
+	private List<Node> knownClosestNodes;
+	private KeyComparator keyComparator;
+	private final Set<Node> alreadyQueried;
+	private final Set<Node> querying;
+	private int nrQueried = 0;
+	private boolean isStopped = false;
+	private boolean isDone = false;
+	private Object attachment;
+	private CompletionHandler<List<Node>, Object> handler;
+
+	// dependencies
+	private final Provider<FindNodeRequest> findNodeRequestProvider;
+	private final Provider<MessageDispatcher<Node>> msgDispatcherProvider;
+	private final KBuckets kBuckets;
+	private final Node localNode;
+	private final int kBucketSize;
+	private final int alpha;
+	private final boolean preferLowRtt;
+	private final HashedWheelTimer timer;
+	private final RttEstimator rttEstimator;
+
+	@Inject
+	IterativeLookup(
+			@Named("openkad.local.node") Node localNode,
+			@Named("openkad.bucket.kbuckets.maxsize") int kBucketSize,
+			@Named("openkad.net.concurrency") int alpha,
+			@Named("openkad.op.lookup.prefer_low_rtt") boolean preferLowRtt,
+			@Named("openkad.timer.wheel") HashedWheelTimer timer,
+			RttEstimator rttEstimator,
+			Provider<FindNodeRequest> findNodeRequestProvider,
+			Provider<MessageDispatcher<Node>> msgDispatcherProvider,
+			KBuckets kBuckets) {
+
+		this.localNode = localNode;
+		this.kBucketSize = kBucketSize;
+		this.alpha = alpha;
+		this.preferLowRtt = preferLowRtt;
+		this.timer = timer;
+		this.rttEstimator = rttEstimator;
+		this.findNodeRequestProvider = findNodeRequestProvider;
+		this.msgDispatcherProvider = msgDispatcherProvider;
+		this.kBuckets = kBuckets;
+
+		this.alreadyQueried = new HashSet<Node>();
+		this.querying = new HashSet<Node>();
+	}
+
+	/**
+	 * @param key the key to be found
+	 * @return this for fluent interface
+	 */
+	public IterativeLookup setKey(Key key) {
+		this.key = key;
+		return this;
+	}
+
+	/**
+	 * @param bootstrap nodes to start from in addition to the closest nodes
+	 * in the local kbuckets
+	 * @return this for fluent interface
+	 */
+	public IterativeLookup setBootstrap(Collection<Node> bootstrap) {
+		this.bootstrap = bootstrap;
+		return this;
+	}
+
+	/**
+	 * @param searchCache true if the queried nodes should search their cache
+	 * @return this for fluent interface
+	 */
+	public IterativeLookup setSearchCache(boolean searchCache) {
+		this.searchCache = searchCache;
+		return this;
+	}
+
+	public IterativeLookup setListener(LookupListener listener) {
+		this.listener = listener;
+		return this;
+	}
+
+	/**
+	 * @return number of find node requests sent so far
+	 */
+	public synchronized int getNrQueried() {
+		return nrQueried;
+	}
+
+	/**
+	 * Starts the lookup
+	 * @param attachment arbitrary object attached to the handler
+	 * @param handler invoked with the closest nodes found when the lookup is done
+	 */
+	@SuppressWarnings("unchecked")
+	public <A> void start(A attachment, CompletionHandler<List<Node>, A> handler) {
+		synchronized (this) {
+			if (this.handler != null)
+				throw new IllegalStateException("lookup was already started");
+
+			this.attachment = attachment;
+			this.handler = (CompletionHandler<List<Node>, Object>) handler;
+
+			keyComparator = new KeyComparator(key);
+			knownClosestNodes = kBuckets.getClosestNodesByKey(key, kBucketSize);
+			knownClosestNodes.add(localNode);
+			List<Node> extra = new ArrayList<Node>(bootstrap);
+			extra.removeAll(knownClosestNodes);
+			knownClosestNodes.addAll(extra);
+			sortKnownClosestNodes();
+			alreadyQueried.add(localNode);
+		}
+		pump();
+	}
+
+	/**
+	 * Starts the lookup
+	 * @return a future for the closest nodes found
+	 */
+	public Future<List<Node>> start() {
+		FutureCallback<List<Node>, Void> $ = new FutureCallback<List<Node>, Void>();
+		start(null, $);
+		return $;
+	}
+
+	private void sortKnownClosestNodes() {
+		knownClosestNodes = sort(knownClosestNodes, on(Node.class).getKey(), keyComparator);
+		if (knownClosestNodes.size() >= kBucketSize)
+			knownClosestNodes.subList(kBucketSize, knownClosestNodes.size()).clear();
+	}
+
+	/**
+	 * Sorts the nodes sharing the same number of leading bits with the key by
+	 * their smoothed rtt, nodes with no rtt estimation are considered average.
+	 * Nodes sharing a different number of bits keep their distance order
+	 * @param nodes nodes sorted by their distance from the key
+	 */
+	private void sortNearTiesByRtt(List<Node> nodes) {
+		long averageRtt = rttEstimator.getGlobalSmoothedRtt(TimeUnit.MICROSECONDS);
+		if (averageRtt < 0)
+			// nothing is known
+			return;
+
+		final Map<Node, Long> rtts = new HashMap<Node, Long>();
+		for (Node n : nodes) {
+			long rtt = rttEstimator.getSmoothedRtt(n, TimeUnit.MICROSECONDS);
+			rtts.put(n, rtt < 0 ? averageRtt : rtt);
+		}
+
+		// stable, nodes with the same rtt keep their distance order
+		Collections.sort(nodes, new Comparator<Node>() {
+			@Override
+			public int compare(Node n1, Node n2) {
+				int c = key.commonPrefixLength(n2.getKey()) - key.commonPrefixLength(n1.getKey());
+				if (c != 0)
+					return c;
+				return rtts.get(n1).compareTo(rtts.get(n2));
+			}
+		});
+	}
+
+	private Node takeUnqueried() {
+		List<Node> unqueried = new ArrayList<Node>(knownClosestNodes.size());
+		for (Node n : knownClosestNodes) {
+			if (!querying.contains(n) && !alreadyQueried.contains(n))
+				unqueried.add(n);
+		}
+		if (unqueried.isEmpty())
+			return null;
+
+		if (preferLowRtt)
+			sortNearTiesByRtt(unqueried);
+
+		Node $ = listener.select(unqueried);
+		querying.add($);
+		return $;
+	}
+
+	/**
+	 * Sends requests until there are alpha outstanding requests or finishes
+	 * the lookup if there is nothing more to wait for
+	 */
+	private void pump() {
+		List<Node> toQuery = Collections.emptyList();
+		List<Node> result = null;
+
+		synchronized (this) {
+			if (isDone)
+				return;
+
+			if (!isStopped) {
+				toQuery = new ArrayList<Node>(alpha);
+				for (int i = querying.size(); i < alpha; ++i) {
+					Node n = takeUnqueried();
+					if (n == null)
+						break;
+					toQuery.add(n);
+				}
+			}
+
+			if (isStopped || (toQuery.isEmpty() && querying.isEmpty())) {
+				isDone = true;
+				result = Collections.unmodifiableList(knownClosestNodes);
+			}
+		}
+
+		if (result != null) {
+			handler.completed(result, attachment);
+			return;
+		}
+
+		for (Node n : toQuery)
+			sendFindNode(n);
+	}
+
+	private void sendFindNode(Node to) {
+		FindNodeRequest findNodeRequest = findNodeRequestProvider.get()
+			.setSearchCache(searchCache)
+			.setKey(key);
+
+		boolean isSent = msgDispatcherProvider.get()
+			.addFilter(new IdMessageFilter(findNodeRequest.getId()))
+			.addFilter(new TypeMessageFilter(FindNodeResponse.class))
+			.setConsumable(true)
+			.setCallback(to, this)
+			.trySend(to, findNodeRequest);
+
+		synchronized (this) {
+			if (isSent) {
+				++nrQueried;
+				return;
+			}
+			// too many outstanding requests, try again later
+			querying.remove(to);
+			if (!querying.isEmpty())
+				return;
+		}
+
+		timer.newTimeout(new Runnable() {
+			@Override
+			public void run() {
+				pump();
+			}
+		}, RETRY_DELAY, TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public void completed(KadMessage msg, Node n) {
+		synchronized (this) {
+			querying.remove(n);
+			alreadyQueried.add(n);
+			if (isDone || isStopped)
+				return;
+
+			FindNodeResponse res = (FindNodeResponse) msg;
+			List<Node> nodes = res.getNodes();
+			nodes.removeAll(querying);
+			nodes.removeAll(alreadyQueried);
+			nodes.removeAll(knownClosestNodes);
+			knownClosestNodes.addAll(nodes);
+			sortKnownClosestNodes();
+
+			if (listener.responded(n, res))
+				isStopped = true;
+		}
+		pump();
+	}
+
+	@Override
+	public void failed(Throwable exc, Node n) {
+		synchronized (this) {
+			querying.remove(n);
+			alreadyQueried.add(n);
+		}
+		pump();
+	}
+}
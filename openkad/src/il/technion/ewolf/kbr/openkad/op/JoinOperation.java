@@ -8,6 +8,7 @@ import il.technion.ewolf.kbr.openkad.bucket.KBuckets;
 import il.technion.ewolf.kbr.openkad.msg.KadMessage;
 import il.technion.ewolf.kbr.openkad.msg.PingRequest;
 import il.technion.ewolf.kbr.openkad.msg.PingResponse;
+import il.technion.ewolf.kbr.openkad.net.LivenessTracker;
 import il.technion.ewolf.kbr.openkad.net.MessageDispatcher;
 import il.technion.ewolf.kbr.openkad.net.filter.IdMessageFilter;
 import il.technion.ewolf.kbr.openkad.net.filter.TypeMessageFilter;
@@ -15,11 +16,15 @@ import il.technion.ewolf.kbr.openkad.net.filter.TypeMessageFilter;
 import java.net.InetAddress;
 import java.net.URI;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 import com.google.inject.Inject;
 import com.google.inject.Provider;
@@ -27,6 +32,17 @@ import com.google.inject.name.Named;
 
 /**
  * Join operation as defined in the kademlia algorithm
+ *
+ * The bootstrap nodes are pinged together with the contacts already in the
+ * routing table, restored by {@link il.technion.ewolf.kbr.openkad.BootstrapNodesSaver}
+ * from a previous run (the warm start). Contacts are pinged concurrently,
+ * no more than openkad.join.ping.pps per second and openkad.join.ping.max_outstanding
+ * at a time, and the ones which do not respond are removed from the routing table.
+ * Contacts we already heard from are not pinged.
+ *
+ * Then the local key is looked up, followed by a lookup of a random key in
+ * the range of each bucket, openkad.join.refresh.concurrency lookups at a time.
+ *
  * @author eyal.kibbar@gmail.com
  *
  */
@@ -41,6 +57,10 @@ public class JoinOperation  {
 	private final KBuckets kBuckets;
 	private final Node localNode;
 	private final Provider<KadNode> kadNodeProvider;
+	private final LivenessTracker livenessTracker;
+	private final int pingPps;
+	private final int maxOutstandingPings;
+	private final int refreshConcurrency;
 	// state
 	private Collection<Node> bootstrap = new HashSet<Node>();
 	
@@ -51,14 +71,25 @@ public class JoinOperation  {
 			Provider<MessageDispatcher<Void>> msgDispatcherProvider,
 			Provider<KadNode> kadNodeProvider,
 			KBuckets kBuckets,
+			LivenessTracker livenessTracker,
 			@Named("openkad.keys.zerokey") Key zeroKey,
 			@Named("openkad.scheme.name") String kadScheme,
 			@Named("openkad.local.node") Node localNode,
 			@Named("openkad.timer") Timer timer,
 			@Named("openkad.refresh.interval") long refreshInterval,
-			@Named("openkad.refresh.task") TimerTask refreshTask) {
+			@Named("openkad.refresh.task") TimerTask refreshTask,
+			@Named("openkad.join.ping.pps") int pingPps,
+			@Named("openkad.join.ping.max_outstanding") int maxOutstandingPings,
+			@Named("openkad.join.refresh.concurrency") int refreshConcurrency) {
+		
+		if (pingPps <= 0 || maxOutstandingPings <= 0 || refreshConcurrency <= 0)
+			throw new IllegalArgumentException("join pps and concurrency must be positive");
 		
 		this.kadNodeProvider = kadNodeProvider;
+		this.livenessTracker = livenessTracker;
+		this.pingPps = pingPps;
+		this.maxOutstandingPings = maxOutstandingPings;
+		this.refreshConcurrency = refreshConcurrency;
 		this.findNodeOperationProvider = findNodeOperationProvider;
 		this.pingRequestProvider = pingRequestProvider;
 		this.msgDispatcherProvider = msgDispatcherProvider;
@@ -93,34 +124,36 @@ public class JoinOperation  {
 	 */
 	public void doJoin() {
 
-		final CountDownLatch latch = new CountDownLatch(bootstrap.size());
-		CompletionHandler<KadMessage, Void> callback = new CompletionHandler<KadMessage, Void>() {
+		// restored contacts we did not hear from since we started
+		final List<Node> contacts = new ArrayList<Node>();
+		for (Node n : kBuckets.getAllNodes()) {
+			if (livenessTracker.getLastSuccess(n) == 0)
+				contacts.add(n);
+		}
 
-			@Override
-			public void completed(KadMessage msg, Void nothing) {
+		final CountDownLatch latch = new CountDownLatch(bootstrap.size() + contacts.size());
+		final Semaphore outstanding = new Semaphore(maxOutstandingPings);
+		
+		for (Node n : bootstrap) {
+			acquire(outstanding);
+			sendPing(n, new PingCallback(null, latch, outstanding));
+		}
+		
+		// warm start, paced to pingPps
+		final long intervalNanos = TimeUnit.SECONDS.toNanos(1) / pingPps;
+		long next = System.nanoTime();
+		for (Node n : contacts) {
+			acquire(outstanding);
+			long wait = next - System.nanoTime();
+			if (wait > 0) {
 				try {
-					kBuckets.insert(kadNodeProvider.get()
-						.setNode(msg.getSrc())
-						.setNodeWasContacted());
-				} finally {
-					latch.countDown();
+					TimeUnit.NANOSECONDS.sleep(wait);
+				} catch (InterruptedException e) {
+					throw new RuntimeException(e);
 				}
 			}
-
-			@Override
-			public void failed(Throwable exc, Void nothing) {
-				latch.countDown();
-			}
-		};
-		
-		for (Node n : bootstrap) {
-			PingRequest pingRequest = pingRequestProvider.get();
-			msgDispatcherProvider.get()
-				.addFilter(new IdMessageFilter(pingRequest.getId()))
-				.addFilter(new TypeMessageFilter(PingResponse.class))
-				.setConsumable(true)
-				.setCallback(null, callback)
-				.send(n, pingRequest);
+			next = Math.max(next, System.nanoTime() - intervalNanos) + intervalNanos;
+			sendPing(n, new PingCallback(n, latch, outstanding));
 		}
 		
 		// waiting for responses
@@ -135,11 +168,7 @@ public class JoinOperation  {
 			.setKey(localNode.getKey())
 			.doFindNode();
 		
-		for (Key key : kBuckets.randomKeysForAllBuckets()) {
-			findNodeOperationProvider.get()
-				.setKey(key)
-				.doFindNode();
-		}
+		refreshBuckets();
 		
 		if (kBuckets.getClosestNodesByKey(zeroKey, 1).isEmpty())
 			throw new IllegalStateException("all bootstrap nodes are down");
@@ -151,5 +180,101 @@ public class JoinOperation  {
 		}
 	}
 	
+	/**
+	 * Looks up a random key in the range of every bucket, no more than
+	 * refreshConcurrency lookups at a time, and waits for all of them
+	 */
+	private void refreshBuckets() {
+		List<Key> keys = kBuckets.randomKeysForAllBuckets();
+		final CountDownLatch latch = new CountDownLatch(keys.size());
+		final Semaphore slots = new Semaphore(refreshConcurrency);
+		CompletionHandler<List<Node>, Void> callback = new CompletionHandler<List<Node>, Void>() {
+			
+			@Override
+			public void completed(List<Node> nodes, Void nothing) {
+				slots.release();
+				latch.countDown();
+			}
+			
+			@Override
+			public void failed(Throwable exc, Void nothing) {
+				slots.release();
+				latch.countDown();
+			}
+		};
+		
+		for (Key key : keys) {
+			acquire(slots);
+			findNodeOperationProvider.get()
+				.setKey(key)
+				.findNode(null, callback);
+		}
+		
+		try {
+			latch.await();
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	private static void acquire(Semaphore s) {
+		try {
+			s.acquire();
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	private void sendPing(Node n, PingCallback callback) {
+		PingRequest pingRequest = pingRequestProvider.get();
+		msgDispatcherProvider.get()
+			.addFilter(new IdMessageFilter(pingRequest.getId()))
+			.addFilter(new TypeMessageFilter(PingResponse.class))
+			.setConsumable(true)
+			.setCallback(null, callback)
+			.send(n, pingRequest);
+	}
+	
+	/**
+	 * Inserts the responding node to the routing table. If the pinged node
+	 * was a restored contact and did not respond it is removed
+	 */
+	private final class PingCallback implements CompletionHandler<KadMessage, Void> {
+		
+		// null for bootstrap nodes
+		private final Node contact;
+		private final CountDownLatch latch;
+		private final Semaphore outstanding;
+		
+		PingCallback(Node contact, CountDownLatch latch, Semaphore outstanding) {
+			this.contact = contact;
+			this.latch = latch;
+			this.outstanding = outstanding;
+		}
+		
+		@Override
+		public void completed(KadMessage msg, Void nothing) {
+			try {
+				kBuckets.insert(kadNodeProvider.get()
+					.setNode(msg.getSrc())
+					.setNodeWasContacted());
+			} finally {
+				outstanding.release();
+				latch.countDown();
+			}
+		}
+		
+		@Override
+		public void failed(Throwable exc, Void nothing) {
+			try {
+				if (contact != null)
+					kBuckets.remove(contact);
+			} finally {
+				outstanding.release();
+				latch.countDown();
+			}
+		}
+	}
+	
 
 }
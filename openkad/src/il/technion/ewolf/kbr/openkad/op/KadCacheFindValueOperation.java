@@ -1,27 +1,18 @@
 package il.technion.ewolf.kbr.openkad.op;
 
-import static ch.lambdaj.Lambda.on;
-import static ch.lambdaj.Lambda.sort;
-import il.technion.ewolf.kbr.KeyComparator;
 import il.technion.ewolf.kbr.Node;
 import il.technion.ewolf.kbr.concurrent.CompletionHandler;
 import il.technion.ewolf.kbr.openkad.bucket.KBuckets;
+import il.technion.ewolf.kbr.openkad.cache.HotKeyTracker;
 import il.technion.ewolf.kbr.openkad.cache.KadCache;
-import il.technion.ewolf.kbr.openkad.msg.FindNodeRequest;
+import il.technion.ewolf.kbr.openkad.cache.LookupHintCache;
 import il.technion.ewolf.kbr.openkad.msg.FindNodeResponse;
-import il.technion.ewolf.kbr.openkad.msg.KadMessage;
 import il.technion.ewolf.kbr.openkad.msg.StoreMessage;
 import il.technion.ewolf.kbr.openkad.net.Communicator;
-import il.technion.ewolf.kbr.openkad.net.MessageDispatcher;
-import il.technion.ewolf.kbr.openkad.net.filter.IdMessageFilter;
-import il.technion.ewolf.kbr.openkad.net.filter.TypeMessageFilter;
-import il.technion.ewolf.kbr.openkad.op.FindValueOperation;
 
 import java.util.Collections;
-import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import com.google.inject.Inject;
@@ -31,109 +22,87 @@ import com.google.inject.name.Named;
 /**
  * Kademlia find node operation with the caching algorithm suggested in the
  * article: send a store message to the last node who did not have the value
- * (list of nodes)
+ * (list of nodes), if the key is hot (see {@link HotKeyTracker})
+ * 
+ * Repeated lookups use the {@link LookupHintCache}
  * 
  * @author eyal.kibbar@gmail.com
  * 
  */
-public class KadCacheFindValueOperation extends FindValueOperation implements CompletionHandler<KadMessage, Node> {
+public class KadCacheFindValueOperation extends FindValueOperation {
 
 	// state
-	private List<Node> knownClosestNodes;
-	private final Set<Node> alreadyQueried;
-	private final Set<Node> querying;
 	private final List<Node> lastSentTo;
 	private Node returnedCachedResults = null;
-	private KeyComparator keyComparator;
-	private final AtomicInteger nrMsgsSent;
+	private volatile boolean hasResponses = false;
 
 	// dependencies
-	private final Provider<FindNodeRequest> findNodeRequestProvider;
-	private final Provider<MessageDispatcher<Node>> msgDispatcherProvider;
-	private final KBuckets kBuckets;
-	private final Node localNode;
+	private final IterativeLookup lookup;
 	private final int kBucketSize;
 	private final int nrShare;
 	private final Provider<StoreMessage> storeMessageProvider;
 	private final Communicator kadServer;
 	private final KadCache cache;
+	private final KBuckets kBuckets;
+	private final LookupHintCache hints;
+	private final HotKeyTracker hotKeys;
+	private final Node localNode;
 
 	private final AtomicInteger nrLocalCacheHits;
 	private final AtomicInteger nrRemoteCacheHits;
+	private final AtomicInteger nrNegativeCacheHits;
+	private final AtomicInteger nrHintedLookups;
+	private final AtomicInteger nrColdStoresSkipped;
 
 	@Inject
-	KadCacheFindValueOperation(@Named("openkad.local.node") final Node localNode,
+	KadCacheFindValueOperation(
 			@Named("openkad.bucket.kbuckets.maxsize") final int kBucketSize, @Named("openkad.cache.share") final int nrShare,
-			final Provider<FindNodeRequest> findNodeRequestProvider, final Provider<MessageDispatcher<Node>> msgDispatcherProvider,
-			final KBuckets kBuckets, final Provider<StoreMessage> storeMessageProvider, final Communicator kadServer,
-			final KadCache cache,
+			final IterativeLookup lookup, final Provider<StoreMessage> storeMessageProvider, final Communicator kadServer,
+			final KadCache cache, final KBuckets kBuckets, final LookupHintCache hints, final HotKeyTracker hotKeys,
+			@Named("openkad.local.node") final Node localNode,
 
 			@Named("openkad.testing.nrLocalCacheHits") final AtomicInteger nrLocalCacheHits,
-			@Named("openkad.testing.nrRemoteCacheHits") final AtomicInteger nrRemoteCacheHits) {
+			@Named("openkad.testing.nrRemoteCacheHits") final AtomicInteger nrRemoteCacheHits,
+			@Named("openkad.testing.nrNegativeCacheHits") final AtomicInteger nrNegativeCacheHits,
+			@Named("openkad.testing.nrHintedLookups") final AtomicInteger nrHintedLookups,
+			@Named("openkad.testing.nrColdStoresSkipped") final AtomicInteger nrColdStoresSkipped) {
 
-		this.localNode = localNode;
 		this.kBucketSize = kBucketSize;
-		this.kBuckets = kBuckets;
 		this.nrShare = nrShare;
-		this.findNodeRequestProvider = findNodeRequestProvider;
-		this.msgDispatcherProvider = msgDispatcherProvider;
+		this.lookup = lookup;
 		this.storeMessageProvider = storeMessageProvider;
 		this.kadServer = kadServer;
 		this.cache = cache;
-		this.nrMsgsSent = new AtomicInteger();
-
-		this.alreadyQueried = new HashSet<Node>();
-		this.querying = new HashSet<Node>();
+		this.kBuckets = kBuckets;
+		this.hints = hints;
+		this.hotKeys = hotKeys;
+		this.localNode = localNode;
 
 		this.lastSentTo = new LinkedList<Node>();
 
 		this.nrLocalCacheHits = nrLocalCacheHits;
 		this.nrRemoteCacheHits = nrRemoteCacheHits;
+		this.nrNegativeCacheHits = nrNegativeCacheHits;
+		this.nrHintedLookups = nrHintedLookups;
+		this.nrColdStoresSkipped = nrColdStoresSkipped;
 
 	}
 
 	@Override
 	public int getNrQueried() {
-		return this.nrMsgsSent.get();
+		return this.lookup.getNrQueried();
 	}
 
-	private synchronized Node takeUnqueried() {
-		for (int i = 0; i < this.knownClosestNodes.size(); ++i) {
-			final Node n = this.knownClosestNodes.get(i);
-			if (!this.querying.contains(n) && !this.alreadyQueried.contains(n)) {
-				this.querying.add(n);
-				return n;
-			}
+	private void sendStoreResults(final List<Node> toShareWith, final List<Node> knownClosestNodes) {
+		if (!this.hotKeys.isHot(this.key)) {
+			this.nrColdStoresSkipped.incrementAndGet();
+			return;
 		}
-		return null;
-	}
-
-	private boolean hasMoreToQuery() {
-		return !this.querying.isEmpty() || !this.alreadyQueried.containsAll(this.knownClosestNodes);
-	}
-
-	private boolean trySendFindNode(final Node to) {
-		final FindNodeRequest findNodeRequest = this.findNodeRequestProvider.get().setSearchCache(true).setKey(this.key);
-
-		return this.msgDispatcherProvider.get().addFilter(new IdMessageFilter(findNodeRequest.getId()))
-		.addFilter(new TypeMessageFilter(FindNodeResponse.class)).setConsumable(true).setCallback(to, this)
-		.trySend(to, findNodeRequest);
-	}
-
-	private void sendFindNode(final Node to) {
-		final FindNodeRequest findNodeRequest = this.findNodeRequestProvider.get().setSearchCache(true).setKey(this.key);
-
-		this.msgDispatcherProvider.get().addFilter(new IdMessageFilter(findNodeRequest.getId()))
-		.addFilter(new TypeMessageFilter(FindNodeResponse.class)).setConsumable(true).setCallback(to, this)
-		.send(to, findNodeRequest);
-	}
-
-	private void sendStoreResults(final List<Node> toShareWith) {
 		toShareWith.remove(this.returnedCachedResults);
 		if (toShareWith.size() > this.nrShare)
 			toShareWith.subList(this.nrShare, toShareWith.size()).clear();
 
-		final StoreMessage storeMessage = this.storeMessageProvider.get().setKey(this.key).setNodes(this.knownClosestNodes);
+		final StoreMessage storeMessage = this.storeMessageProvider.get().setKey(this.key).setNodes(knownClosestNodes);
 		for (final Node n : toShareWith) {
 			System.out.println("sharing with: " + n);
 			try {
@@ -144,108 +113,67 @@ public class KadCacheFindValueOperation extends FindValueOperation implements Co
 		}
 	}
 
-	private void sortKnownClosestNodes() {
-		this.knownClosestNodes = sort(this.knownClosestNodes, on(Node.class).getKey(), this.keyComparator);
-		if (this.knownClosestNodes.size() >= this.kBucketSize)
-			this.knownClosestNodes.subList(this.kBucketSize, this.knownClosestNodes.size()).clear();
+	@Override
+	public List<Node> doFindValue() {
+		return waitFor(futureFindValue());
 	}
 
 	@Override
-	public List<Node> doFindValue() {
+	public <A> void findValue(final A attachment, final CompletionHandler<List<Node>, A> handler) {
 
 		final List<Node> nodes = this.cache.search(this.key);
 		if (nodes != null && nodes.size() >= this.kBucketSize) {
 			this.nrLocalCacheHits.incrementAndGet();
-			return nodes;
+			handler.completed(nodes, attachment);
+			return;
 		}
 
-		this.keyComparator = new KeyComparator(this.key);
-		this.knownClosestNodes = this.kBuckets.getClosestNodesByKey(this.key, this.kBucketSize);
-		this.knownClosestNodes.add(this.localNode);
-		sortKnownClosestNodes();
-		this.alreadyQueried.add(this.localNode);
-
-		do {
-			final Node node = takeUnqueried();
-
-			synchronized (this) {
-				// check if finished already...
-				if (!hasMoreToQuery() || this.returnedCachedResults != null)
-					break;
-				
-				if (node != null){
-					if(!trySendFindNode(node)){
-						try {
-							if(this.querying.size() == 1)
-							{
-								//If only I try to send I send and block
-								this.nrMsgsSent.incrementAndGet();
-								sendFindNode(node);
-							}
-							else
-							{
-								//If there are pending msgs, i wait for their reply
-								this.querying.remove(node);
-								wait();
-							}
-						} catch (InterruptedException e) {
-							e.printStackTrace();
-						}
-					}else{
-						this.nrMsgsSent.incrementAndGet();
-					}
+		final LookupHintCache.Hint hint = this.hints.search(this.key);
+		if (hint != null && hint.isMiss()) {
+			this.nrNegativeCacheHits.incrementAndGet();
+			// what a walk nobody answered would return, without the walk
+			final List<Node> $ = this.kBuckets.getClosestNodesByKey(this.key, this.kBucketSize);
+			$.add(this.localNode);
+			handler.completed($, attachment);
+			return;
+		}
+		if (hint != null) {
+			this.nrHintedLookups.incrementAndGet();
+			this.lookup.setBootstrap(hint.getNodes());
+		}
+
+		this.lookup.setKey(this.key).setSearchCache(true).setListener(new LookupListener() {
+			@Override
+			public boolean responded(final Node n, final FindNodeResponse res) {
+				hasResponses = true;
+				if (res.isCachedResults()) {
+					returnedCachedResults = n;
+					return true;
 				}
-				else
-					if (!this.querying.isEmpty())
-						try {
-							wait();
-						} catch (final InterruptedException e) {
-							e.printStackTrace();
-						}
+				// listing n as last contacted nodes in the algorithm
+				// that did not have the results in its cache
+				lastSentTo.add(n);
+				if (lastSentTo.size() > nrShare)
+					lastSentTo.remove(0);
+				return false;
 			}
-		} while (true);
-
-		this.knownClosestNodes = Collections.unmodifiableList(this.knownClosestNodes);
-
-		sendStoreResults(this.lastSentTo);
-
-		if (this.returnedCachedResults != null)
-			this.nrRemoteCacheHits.incrementAndGet();
+		}).start(attachment, new CompletionHandler<List<Node>, A>() {
+			@Override
+			public void completed(final List<Node> knownClosestNodes, final A attachment) {
+				sendStoreResults(lastSentTo, knownClosestNodes);
 
-		return this.knownClosestNodes;
-	}
-
-	@Override
-	public synchronized void completed(final KadMessage msg, final Node n) {
-		notifyAll();
-		this.querying.remove(n);
-		this.alreadyQueried.add(n);
-
-		if (this.returnedCachedResults != null)
-			return;
+				if (returnedCachedResults != null)
+					nrRemoteCacheHits.incrementAndGet();
+				else
+					hints.insert(key, hasResponses ? knownClosestNodes : Collections.<Node>emptyList(), localNode);
 
-		final List<Node> nodes = ((FindNodeResponse) msg).getNodes();
-		nodes.removeAll(this.querying);
-		nodes.removeAll(this.alreadyQueried);
-		nodes.removeAll(this.knownClosestNodes);
-		this.knownClosestNodes.addAll(nodes);
-		sortKnownClosestNodes();
-
-		if (((FindNodeResponse) msg).isCachedResults())
-			this.returnedCachedResults = n;
-		else {
-			// listing n as last contacted nodes in the algorithm
-			// that did not have the results in its cache
-			this.lastSentTo.add(n);
-			if (this.lastSentTo.size() > this.nrShare)
-				this.lastSentTo.remove(0);
-		}
-	}
+				handler.completed(knownClosestNodes, attachment);
+			}
 
-	@Override
-	public synchronized void failed(final Throwable exc, final Node n) {
-		notifyAll();
-		this.querying.remove(n);
-		this.alreadyQueried.add(n);
+			@Override
+			public void failed(final Throwable exc, final A attachment) {
+				handler.failed(exc, attachment);
+			}
+		});
 	}
 }
@@ -0,0 +1,212 @@
+package il.technion.ewolf.kbr.openkad.op;
+
+import il.technion.ewolf.kbr.Key;
+import il.technion.ewolf.kbr.Node;
+import il.technion.ewolf.kbr.concurrent.CompletionHandler;
+import il.technion.ewolf.kbr.concurrent.HashedWheelTimer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+
+/**
+ * Table of the find value operations in progress, keyed by the searched key.
+ * A caller looking for a key which is already being searched is attached to
+ * the running operation instead of starting a new one, and all the callers
+ * share its result. The result is also given to callers arriving up to
+ * openkad.op.coalesce.window milli seconds after the operation finished.
+ * Failed operations are never reused.
+ * All the callers get the number of nodes queried by the operation which
+ * actually ran.
+ *
+ * Each owner has its own table, so operations of different types are never
+ * mixed.
+ *
+ * @author eyal.kibbar@gmail.com
+ *
+ */
+public class LookupCoalescer {
+
+	/**
+	 * The result of a find value operation shared by all its callers
+	 */
+	public static final class Result {
+		private final List<Node> nodes;
+		private final int nrQueried;
+
+		Result(List<Node> nodes, int nrQueried) {
+			this.nodes = nodes;
+			this.nrQueried = nrQueried;
+		}
+
+		/**
+		 * @return the nodes found
+		 */
+		public List<Node> getNodes() {
+			return nodes;
+		}
+
+		/**
+		 * @return number of nodes queried by the operation which ran
+		 */
+		public int getNrQueried() {
+			return nrQueried;
+		}
+	}
+
+	private static final class Waiter {
+		private final Object attachment;
+		private final CompletionHandler<Result, Object> handler;
+
+		Waiter(Object attachment, CompletionHandler<Result, Object> handler) {
+			this.attachment = attachment;
+			this.handler = handler;
+		}
+	}
+
+	/**
+	 * A single running (or recently finished) operation and its waiters
+	 */
+	private final class Lookup implements CompletionHandler<List<Node>, Void> {
+
+		private final FindValueOperation op;
+		private List<Waiter> waiters = new ArrayList<Waiter>(1);
+		private Result result = null;
+		private long finishTime;
+		private boolean isDone = false;
+		private boolean isFailed = false;
+
+		Lookup(FindValueOperation op) {
+			this.op = op;
+		}
+
+		/**
+		 * @return false if the result has expired and the lookup can no
+		 * longer be joined
+		 */
+		@SuppressWarnings("unchecked")
+		<A> boolean join(A attachment, CompletionHandler<Result, A> handler) {
+			Result $;
+			synchronized (this) {
+				if (!isDone) {
+					waiters.add(new Waiter(attachment, (CompletionHandler<Result, Object>) handler));
+					return true;
+				}
+				if (isFailed || System.currentTimeMillis() - finishTime > window)
+					return false;
+				$ = result;
+			}
+			handler.completed($, attachment);
+			return true;
+		}
+
+		@Override
+		public void completed(List<Node> nodes, Void nothing) {
+			final Result result = new Result(nodes, op.getNrQueried());
+			List<Waiter> toNotify;
+			synchronized (this) {
+				this.result = result;
+				this.finishTime = System.currentTimeMillis();
+				this.isDone = true;
+				toNotify = waiters;
+				waiters = null;
+			}
+
+			if (window > 0) {
+				timer.newTimeout(new Runnable() {
+					@Override
+					public void run() {
+						lookups.remove(op.getKey(), Lookup.this);
+					}
+				}, window, TimeUnit.MILLISECONDS);
+			} else {
+				lookups.remove(op.getKey(), this);
+			}
+
+			for (Waiter w : toNotify)
+				w.handler.completed(result, w.attachment);
+		}
+
+		@Override
+		public void failed(Throwable exc, Void nothing) {
+			List<Waiter> toNotify;
+			// new callers should start a new operation
+			lookups.remove(op.getKey(), this);
+			synchronized (this) {
+				this.isFailed = true;
+				this.isDone = true;
+				toNotify = waiters;
+				waiters = null;
+			}
+			for (Waiter w : toNotify)
+				w.handler.failed(exc, w.attachment);
+		}
+	}
+
+	// dependencies
+	private final long window;
+	private final HashedWheelTimer timer;
+
+	// state
+	private final ConcurrentMap<Key, Lookup> lookups = new ConcurrentHashMap<Key, Lookup>();
+
+	// testing
+	private final AtomicInteger nrCoalescedLookups;
+
+	@Inject
+	LookupCoalescer(
+			@Named("openkad.op.coalesce.window") long window,
+			@Named("openkad.timer.wheel") HashedWheelTimer timer,
+			@Named("openkad.testing.nrCoalescedLookups") AtomicInteger nrCoalescedLookups) {
+
+		this.window = window;
+		this.timer = timer;
+		this.nrCoalescedLookups = nrCoalescedLookups;
+	}
+
+	/**
+	 * Runs the given operation unless an operation for the same key is
+	 * running or has recently finished, in which case its result is used.
+	 *
+	 * @param op a find value operation with its key already set
+	 * @param attachment arbitrary object attached to the handler
+	 * @param handler invoked with the result of the operation which ran
+	 * @return true if op was started, false if the result of another
+	 * operation is used
+	 */
+	public <A> boolean findValue(FindValueOperation op, A attachment, CompletionHandler<Result, A> handler) {
+		Key key = op.getKey();
+		while (true) {
+			Lookup lookup = lookups.get(key);
+			if (lookup == null) {
+				Lookup newLookup = new Lookup(op);
+				lookup = lookups.putIfAbsent(key, newLookup);
+				if (lookup == null) {
+					newLookup.join(attachment, handler);
+					op.findValue(null, newLookup);
+					return true;
+				}
+			}
+
+			if (lookup.join(attachment, handler)) {
+				nrCoalescedLookups.incrementAndGet();
+				return false;
+			}
+			// expired
+			lookups.remove(key, lookup);
+		}
+	}
+
+	/**
+	 * @return number of keys with a running or reusable operation
+	 */
+	public int getNrLookups() {
+		return lookups.size();
+	}
+}
@@ -0,0 +1,41 @@
+package il.technion.ewolf.kbr.openkad.op;
+
+import il.technion.ewolf.kbr.Node;
+import il.technion.ewolf.kbr.openkad.msg.FindNodeResponse;
+
+import java.util.List;
+
+/**
+ * Hooks for customizing an {@link IterativeLookup}.
+ * All methods are invoked while holding the lookup's lock and must not block.
+ *
+ * @author eyal.kibbar@gmail.com
+ *
+ */
+public abstract class LookupListener {
+
+	/**
+	 * Invoked for every response, after the returned nodes were merged
+	 * into the lookup's known closest nodes
+	 *
+	 * @param from the responding node
+	 * @param res the response
+	 * @return true if the lookup should finish now without waiting for
+	 * the outstanding requests
+	 */
+	public boolean responded(Node from, FindNodeResponse res) {
+		return false;
+	}
+
+	/**
+	 * Selects the next node to be queried
+	 *
+	 * @param unqueried all the known closest nodes that were not queried yet,
+	 * sorted by their distance from the key (nodes at about the same distance
+	 * are sorted by their rtt if openkad.op.lookup.prefer_low_rtt). never empty
+	 * @return the node to be queried next, must be one of unqueried
+	 */
+	public Node select(List<Node> unqueried) {
+		return unqueried.get(0);
+	}
+}
@@ -0,0 +1,134 @@
+package il.technion.ewolf.kbr;
+
+import java.lang.management.ManagementFactory;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Sorts routing table sized lists of keys by their distance from a target
+ * with the old BigInteger based comparator and with KeyComparator, and by
+ * their natural order with the old string based compareTo and with
+ * Key.compareTo. Prints the time and the bytes allocated per sort.
+ * Run with: java il.technion.ewolf.kbr.KeySortBenchmark [keysize] [iterations]
+ */
+public class KeySortBenchmark {
+
+	/**
+	 * The comparator as it was before comparing the keys bytes directly
+	 */
+	private static class BigIntegerKeyComparator implements Comparator<Key> {
+		private final BigInteger key;
+
+		BigIntegerKeyComparator(Key key) {
+			this.key = key.getInt();
+		}
+
+		@Override
+		public int compare(Key n1, Key n2) {
+			BigInteger b1 = n1.getInt().xor(key);
+			BigInteger b2 = n2.getInt().xor(key);
+			return b1.abs().compareTo(b2.abs());
+		}
+	}
+
+	/**
+	 * Key.compareTo as it was before comparing the keys bytes directly
+	 */
+	private static final Comparator<Key> stringOrder = new Comparator<Key>() {
+		@Override
+		public int compare(Key k1, Key k2) {
+			return k1.toString().compareTo(k2.toString());
+		}
+	};
+
+	private static final Comparator<Key> naturalOrder = new Comparator<Key>() {
+		@Override
+		public int compare(Key k1, Key k2) {
+			return k1.compareTo(k2);
+		}
+	};
+
+	private static long allocatedBytes() {
+		try {
+			return ((com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean())
+					.getThreadAllocatedBytes(Thread.currentThread().getId());
+		} catch (Throwable t) {
+			// not supported by this jvm
+			return -1;
+		}
+	}
+
+	private static Key randomKey(Random rnd, int keySize) {
+		byte[] b = new byte[keySize];
+		rnd.nextBytes(b);
+		return new Key(b);
+	}
+
+	private static void bench(String name, List<List<Key>> lists, List<Comparator<Key>> comparators, int iterations) {
+		List<Key> copy = new ArrayList<Key>(lists.get(0).size());
+
+		long nanos = 0;
+		long bytes = 0;
+		for (int it = 0; it < iterations; ++it) {
+			for (int i = 0; i < lists.size(); ++i) {
+				copy.clear();
+				copy.addAll(lists.get(i));
+
+				long b = allocatedBytes();
+				long start = System.nanoTime();
+				Collections.sort(copy, comparators.get(i));
+				nanos += System.nanoTime() - start;
+				bytes += allocatedBytes() - b;
+			}
+		}
+		long sorts = (long)iterations * lists.size();
+		System.out.printf("%-10s n=%-5d %10d ns/sort %10d bytes/sort%n",
+				name, lists.get(0).size(), nanos / sorts, bytes / sorts);
+	}
+
+	public static void main(String[] args) {
+		int keySize = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+		int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+		Random rnd = new Random(0);
+
+		// a single bucket, the result of a find node and a whole routing table
+		for (int n : new int[] { 20, 160, 1000 }) {
+			List<List<Key>> lists = new ArrayList<List<Key>>();
+			List<Comparator<Key>> bigIntegers = new ArrayList<Comparator<Key>>();
+			List<Comparator<Key>> bytes = new ArrayList<Comparator<Key>>();
+			List<Comparator<Key>> colors = new ArrayList<Comparator<Key>>();
+			List<Comparator<Key>> strings = new ArrayList<Comparator<Key>>();
+			List<Comparator<Key>> naturals = new ArrayList<Comparator<Key>>();
+
+			for (int i = 0; i < 16; ++i) {
+				List<Key> keys = new ArrayList<Key>(n);
+				for (int j = 0; j < n; ++j)
+					keys.add(randomKey(rnd, keySize));
+				lists.add(keys);
+
+				Key target = randomKey(rnd, keySize);
+				bigIntegers.add(new BigIntegerKeyComparator(target));
+				bytes.add(new KeyComparator(target));
+				colors.add(new KeyColorComparator(target, 10));
+				strings.add(stringOrder);
+				naturals.add(naturalOrder);
+			}
+
+			int its = Math.max(10, iterations * 20 / n);
+			// warmup
+			bench("warmup", lists, bigIntegers, its);
+			bench("warmup", lists, bytes, its);
+
+			bench("biginteger", lists, bigIntegers, its);
+			bench("bytes", lists, bytes, its);
+			bench("color", lists, colors, its);
+			bench("string", lists, strings, its);
+			bench("natural", lists, naturals, its);
+		}
+		System.exit(0);
+	}
+}
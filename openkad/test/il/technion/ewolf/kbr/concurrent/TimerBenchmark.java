@@ -0,0 +1,139 @@
+package il.technion.ewolf.kbr.concurrent;
+
+import il.technion.ewolf.kbr.concurrent.HashedWheelTimer.Timeout;
+
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares java.util.Timer and HashedWheelTimer with many outstanding
+ * request timeouts: nano seconds per schedule/cancel, throughput of
+ * schedule+cancel pairs from several threads, and how many cancelled
+ * timeouts are still held by the timer afterwards.
+ * Run with: java il.technion.ewolf.kbr.concurrent.TimerBenchmark [outstanding] [threads]
+ */
+public class TimerBenchmark {
+
+	private static final long DELAY = TimeUnit.SECONDS.toMillis(3);
+
+	private static final Runnable noop = new Runnable() {
+		@Override
+		public void run() {
+		}
+	};
+
+	private interface Scheduler {
+		Object schedule();
+		void cancel(Object t);
+		long leftover() throws Exception;
+		void stop();
+	}
+
+	private static Scheduler javaTimer() {
+		final Timer timer = new Timer(true);
+		return new Scheduler() {
+			@Override
+			public Object schedule() {
+				TimerTask t = new TimerTask() {
+					@Override
+					public void run() {
+					}
+				};
+				timer.schedule(t, DELAY);
+				return t;
+			}
+			@Override
+			public void cancel(Object t) {
+				((TimerTask)t).cancel();
+			}
+			@Override
+			public long leftover() {
+				// number of cancelled tasks still in the timer's queue
+				return timer.purge();
+			}
+			@Override
+			public void stop() {
+				timer.cancel();
+			}
+		};
+	}
+
+	private static Scheduler wheelTimer() {
+		final HashedWheelTimer timer = new HashedWheelTimer("bench.wheel", 10, TimeUnit.MILLISECONDS, 512);
+		return new Scheduler() {
+			@Override
+			public Object schedule() {
+				return timer.newTimeout(noop, DELAY, TimeUnit.MILLISECONDS);
+			}
+			@Override
+			public void cancel(Object t) {
+				((Timeout)t).cancel();
+			}
+			@Override
+			public long leftover() throws Exception {
+				// give the worker a couple of ticks to release them
+				Thread.sleep(50);
+				return timer.getNrTimeouts();
+			}
+			@Override
+			public void stop() {
+				timer.stop();
+			}
+		};
+	}
+
+	private static void bench(String name, final Scheduler s, int outstanding, int nrThreads) throws Exception {
+		Object[] handles = new Object[outstanding];
+
+		long start = System.nanoTime();
+		for (int i=0; i < outstanding; ++i)
+			handles[i] = s.schedule();
+		long schedule = (System.nanoTime() - start) / outstanding;
+
+		// responses arriving while all the others are outstanding
+		final int pairs = outstanding;
+		final CountDownLatch latch = new CountDownLatch(nrThreads);
+		start = System.nanoTime();
+		for (int t=0; t < nrThreads; ++t) {
+			new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int i=0; i < pairs; ++i)
+						s.cancel(s.schedule());
+					latch.countDown();
+				}
+			}).start();
+		}
+		latch.await();
+		long pairNanos = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		for (int i=0; i < outstanding; ++i)
+			s.cancel(handles[i]);
+		long cancel = (System.nanoTime() - start) / outstanding;
+
+		long leftover = s.leftover();
+		s.stop();
+
+		System.out.printf("%-6s %8d ns/schedule %8d ns/cancel %10.0f pairs/sec (%d threads) %8d cancelled timeouts held%n",
+				name, schedule, cancel, (double)pairs * nrThreads * TimeUnit.SECONDS.toNanos(1) / pairNanos,
+				nrThreads, leftover);
+	}
+
+	public static void main(String[] args) throws Exception {
+		int outstanding = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		int nrThreads = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+
+		// warmup
+		bench("warmup", javaTimer(), outstanding / 10, nrThreads);
+		bench("warmup", wheelTimer(), outstanding / 10, nrThreads);
+
+		for (int i=0; i < 3; ++i) {
+			bench("timer", javaTimer(), outstanding, nrThreads);
+			bench("wheel", wheelTimer(), outstanding, nrThreads);
+		}
+		System.exit(0);
+	}
+}
@@ -0,0 +1,120 @@
+package il.technion.ewolf.kbr.openkad;
+
+import il.technion.ewolf.kbr.KeyFactory;
+import il.technion.ewolf.kbr.Node;
+import il.technion.ewolf.kbr.openkad.bucket.KBuckets;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.InetAddress;
+import java.util.List;
+import java.util.Random;
+
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+
+/**
+ * Saves and loads a large routing table with the old java serialization
+ * format and with the binary snapshot of BootstrapNodesSaver, and prints the
+ * times and file sizes.
+ * Then journals more nodes, tears the last journal record as a crash would,
+ * and checks that a restarted node loads the snapshot and all complete
+ * journal records.
+ * Run with: java il.technion.ewolf.kbr.openkad.BootstrapNodesSaverBenchmark [nodes] [journaled nodes]
+ */
+public class BootstrapNodesSaverBenchmark {
+
+	private static Injector createInjector(File nodesFile) {
+		return Guice.createInjector(new KadNetModule()
+				.setProperty("openkad.keyfactory.keysize", "20")
+				.setProperty("openkad.bucket.kbuckets.maxsize", "1000000")
+				.setProperty("openkad.file.nodes.path", nodesFile.getAbsolutePath())
+				.setProperty("openkad.file.nodes.journal_interval", "100")
+				.setProperty("openkad.net.udp.port", "-1"));
+	}
+
+	private static void insertRandomNodes(KBuckets kBuckets, KeyFactory keyFactory, Random rnd, int nrNodes)
+			throws Exception {
+		for (int i=0; i < nrNodes; ++i) {
+			Node n = new Node(keyFactory.generate());
+			n.setInetAddress(InetAddress.getByAddress(new byte[] {
+					10, (byte) rnd.nextInt(), (byte) rnd.nextInt(), (byte) rnd.nextInt() }));
+			n.addEndpoint("openkad.udp", 1024 + rnd.nextInt(60000));
+			kBuckets.insert(new KadNode().setNode(n).setNodeWasContacted());
+		}
+	}
+
+	private static int load(File nodesFile) throws Exception {
+		Injector injector = createInjector(nodesFile);
+		injector.getInstance(BootstrapNodesSaver.class).load();
+		return injector.getInstance(KBuckets.class).getAllNodes().size();
+	}
+
+	@SuppressWarnings("unchecked")
+	public static void main(String[] args) throws Exception {
+		int nrNodes = args.length > 0 ? Integer.parseInt(args[0]) : 50000;
+		int nrJournaled = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+		Random rnd = new Random(0);
+
+		File nodesFile = File.createTempFile("openkad.nodes", "");
+		File journalFile = new File(nodesFile.getPath() + ".journal");
+		nodesFile.deleteOnExit();
+		journalFile.deleteOnExit();
+
+		Injector injector = createInjector(nodesFile);
+		KBuckets kBuckets = injector.getInstance(KBuckets.class);
+		KeyFactory keyFactory = injector.getInstance(KeyFactory.class);
+		insertRandomNodes(kBuckets, keyFactory, rnd, nrNodes);
+		List<Node> all = kBuckets.getAllNodes();
+
+		// old format
+		File legacyFile = File.createTempFile("openkad.nodes.legacy", "");
+		legacyFile.deleteOnExit();
+		long start = System.nanoTime();
+		ObjectOutputStream oout = new ObjectOutputStream(new FileOutputStream(legacyFile));
+		oout.writeObject(all);
+		oout.close();
+		long saveTime = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		ObjectInputStream oin = new ObjectInputStream(new FileInputStream(legacyFile));
+		int nrLoaded = ((List<Node>) oin.readObject()).size();
+		oin.close();
+		long loadTime = System.nanoTime() - start;
+		System.out.printf("%-10s %d nodes save %7.1f ms load %7.1f ms %9d bytes%n", "object",
+				nrLoaded, saveTime / 1e6, loadTime / 1e6, legacyFile.length());
+
+		// snapshot
+		BootstrapNodesSaver saver = injector.getInstance(BootstrapNodesSaver.class);
+		start = System.nanoTime();
+		saver.saveNow();
+		saveTime = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		nrLoaded = load(nodesFile);
+		loadTime = System.nanoTime() - start;
+		System.out.printf("%-10s %d nodes save %7.1f ms load %7.1f ms %9d bytes%n", "snapshot",
+				nrLoaded, saveTime / 1e6, loadTime / 1e6, nodesFile.length());
+
+		// journal and crash
+		saver.start();
+		insertRandomNodes(kBuckets, keyFactory, rnd, nrJournaled);
+		Thread.sleep(500);
+		long journalLength = journalFile.length();
+		// a record torn in the middle of a write
+		FileOutputStream jout = new FileOutputStream(journalFile, true);
+		jout.write(new byte[] { 1, 0, 40, 1, 2, 3 });
+		jout.close();
+
+		start = System.nanoTime();
+		nrLoaded = load(nodesFile);
+		loadTime = System.nanoTime() - start;
+		System.out.printf("%-10s %d nodes (expected %d) load %7.1f ms, journal %d bytes%n", "crash",
+				nrLoaded, all.size() + nrJournaled, loadTime / 1e6, journalLength);
+
+		System.exit(0);
+	}
+}
@@ -0,0 +1,193 @@
+package il.technion.ewolf.kbr.openkad;
+
+import il.technion.ewolf.kbr.Key;
+import il.technion.ewolf.kbr.KeyFactory;
+import il.technion.ewolf.kbr.Node;
+import il.technion.ewolf.kbr.openkad.bucket.KBuckets;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+
+public class BootstrapNodesSaverTest {
+
+	/**
+	 * Keeps the journal task instead of scheduling it, so the test decides
+	 * when the journal is synced
+	 */
+	private static class ManualTimer extends Timer {
+		private TimerTask task;
+
+		@Override
+		public void schedule(TimerTask task, long delay, long period) {
+			this.task = task;
+		}
+
+		void tick() {
+			task.run();
+		}
+	}
+
+	private File nodesFile;
+	private File journalFile;
+	private KBuckets kBuckets;
+	private KeyFactory keyFactory;
+	private ManualTimer timer;
+	private BootstrapNodesSaver saver;
+
+	private Injector createInjector() {
+		return Guice.createInjector(new KadNetModule()
+				.setProperty("openkad.keyfactory.keysize", "20")
+				.setProperty("openkad.bucket.kbuckets.maxsize", "1000")
+				.setProperty("openkad.file.nodes.path", nodesFile.getAbsolutePath())
+				.setProperty("openkad.net.udp.port", "-1"));
+	}
+
+	private BootstrapNodesSaver createSaver(Injector injector, Timer timer) {
+		return new BootstrapNodesSaver(
+				injector.getInstance(KBuckets.class),
+				injector.getProvider(KadNode.class),
+				injector.getInstance(KeyFactory.class),
+				"openkad.udp",
+				nodesFile,
+				timer,
+				1000,
+				Long.MAX_VALUE);
+	}
+
+	@Before
+	public void setup() throws Exception {
+		nodesFile = File.createTempFile("openkad.nodes", "");
+		journalFile = new File(nodesFile.getPath() + ".journal");
+
+		Injector injector = createInjector();
+		kBuckets = injector.getInstance(KBuckets.class);
+		keyFactory = injector.getInstance(KeyFactory.class);
+		timer = new ManualTimer();
+		saver = createSaver(injector, timer);
+		saver.load();
+		saver.start();
+	}
+
+	@After
+	public void teardown() {
+		nodesFile.delete();
+		journalFile.delete();
+		new File(nodesFile.getPath() + ".tmp").delete();
+	}
+
+	private Node insertNode(int i) throws Exception {
+		Node n = new Node(keyFactory.generate());
+		n.setInetAddress(InetAddress.getByAddress(new byte[] { 10, 0, 0, (byte) i }));
+		n.addEndpoint("openkad.udp", 1000 + i);
+		kBuckets.insert(new KadNode().setNode(n).setNodeWasContacted());
+		return n;
+	}
+
+	private static Set<Key> keysOf(Node... nodes) {
+		Set<Key> $ = new HashSet<Key>();
+		for (Node n : nodes)
+			$.add(n.getKey());
+		return $;
+	}
+
+	/**
+	 * @return the keys of the contacts a restarted node loads
+	 */
+	private Set<Key> reload() throws Exception {
+		Injector injector = createInjector();
+		createSaver(injector, new ManualTimer()).load();
+
+		Set<Key> $ = new HashSet<Key>();
+		for (Node n : injector.getInstance(KBuckets.class).getAllNodes()) {
+			Assert.assertEquals(1000 + (n.getInetAddress().getAddress()[3] & 0xFF), n.getPort("openkad.udp"));
+			$.add(n.getKey());
+		}
+		return $;
+	}
+
+	private static byte[] readAll(File f) throws Exception {
+		byte[] $ = new byte[(int) f.length()];
+		FileInputStream in = new FileInputStream(f);
+		try {
+			int off = 0;
+			while (off < $.length)
+				off += in.read($, off, $.length - off);
+		} finally {
+			in.close();
+		}
+		return $;
+	}
+
+	@Test
+	public void itShouldReplayTheJournalUpToATornRecord() throws Exception {
+		Node a = insertNode(1);
+		Node b = insertNode(2);
+		Node c = insertNode(3);
+		saver.saveNow();
+
+		Node d = insertNode(4);
+		kBuckets.remove(b);
+		timer.tick();
+		long journalLength = journalFile.length();
+
+		Node e = insertNode(5);
+		timer.tick();
+		Assert.assertTrue(journalFile.length() > journalLength);
+
+		// crash in the middle of writing e's record
+		RandomAccessFile raf = new RandomAccessFile(journalFile, "rw");
+		try {
+			raf.setLength(journalFile.length() - 3);
+		} finally {
+			raf.close();
+		}
+
+		// e's record is lost
+		Set<Key> loaded = reload();
+		Assert.assertEquals(keysOf(a, c, d), loaded);
+		Assert.assertFalse(loaded.contains(e.getKey()));
+	}
+
+	@Test
+	public void itShouldIgnoreAJournalOfAnotherGeneration() throws Exception {
+		Node a = insertNode(1);
+		Node b = insertNode(2);
+		saver.saveNow();
+
+		Node journaled = insertNode(3);
+		timer.tick();
+		byte[] oldJournal = readAll(journalFile);
+
+		// a new snapshot without the journaled node
+		kBuckets.remove(journaled);
+		Node c = insertNode(4);
+		saver.saveNow();
+		saver.shutdown();
+
+		// a stale journal left behind, e.g. restored from a backup
+		FileOutputStream out = new FileOutputStream(journalFile);
+		try {
+			out.write(oldJournal);
+		} finally {
+			out.close();
+		}
+
+		Assert.assertEquals(keysOf(a, b, c), reload());
+	}
+}
@@ -0,0 +1,93 @@
+package il.technion.ewolf.kbr.openkad.bucket;
+
+import il.technion.ewolf.kbr.KeybasedRouting;
+import il.technion.ewolf.kbr.openkad.KadNetModule;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.Key;
+import com.google.inject.TypeLiteral;
+import com.google.inject.name.Names;
+
+/**
+ * Runs a local network with each routing table (KadBuckets and TreeKBuckets
+ * with and without extra depth), performs find node operations for random
+ * keys from random nodes and prints the average and the distribution of
+ * openkad.testing.findNodeHopsHistogram.
+ * Run with: java il.technion.ewolf.kbr.openkad.bucket.TreeKBucketsHopsBenchmark [nodes] [lookups]
+ */
+public class TreeKBucketsHopsBenchmark {
+
+	private static void run(String name, String storage, int extraDepth, int basePort,
+			int nrNodes, int nrLookups) throws Exception {
+
+		List<KeybasedRouting> kbrs = new ArrayList<KeybasedRouting>();
+		List<List<Integer>> histograms = new ArrayList<List<Integer>>();
+		for (int i=0; i < nrNodes; ++i) {
+			Injector injector = Guice.createInjector(new KadNetModule()
+					.setProperty("openkad.keyfactory.keysize", "4")
+					.setProperty("openkad.bucket.kbuckets.maxsize", "4")
+					.setProperty("openkad.bucket.storage", storage)
+					.setProperty("openkad.bucket.tree.extra_depth", ""+extraDepth)
+					.setProperty("openkad.seed", ""+(i+basePort))
+					.setProperty("openkad.net.udp.port", ""+(i+basePort)));
+			KeybasedRouting kbr = injector.getInstance(KeybasedRouting.class);
+			kbr.create();
+			kbrs.add(kbr);
+			histograms.add(injector.getInstance(Key.get(new TypeLiteral<List<Integer>>() {},
+					Names.named("openkad.testing.findNodeHopsHistogram"))));
+		}
+
+		Random rnd = new Random(0);
+		for (int i=1; i < kbrs.size(); ++i) {
+			int port = basePort + rnd.nextInt(i);
+			kbrs.get(i).join(Arrays.asList(new URI("openkad.udp://127.0.0.1:"+port+"/")));
+		}
+		// let every node learn about the others from the joins' traffic
+		for (int i=0; i < kbrs.size(); ++i)
+			kbrs.get(i).findNode(kbrs.get(i).getKeyFactory().generate());
+
+		for (List<Integer> h : histograms)
+			h.clear();
+
+		for (int i=0; i < nrLookups; ++i) {
+			KeybasedRouting kbr = kbrs.get(rnd.nextInt(kbrs.size()));
+			kbr.findNode(kbr.getKeyFactory().generate());
+		}
+
+		int[] dist = new int[16];
+		long total = 0;
+		int count = 0;
+		for (List<Integer> h : histograms) {
+			synchronized (h) {
+				for (int hops : h) {
+					total += hops;
+					++count;
+					++dist[Math.min(hops, dist.length - 1)];
+				}
+			}
+		}
+
+		System.out.printf("%-14s %d lookups %5.2f hops avg, distribution: %s%n",
+				name, count, (double)total / count, Arrays.toString(dist));
+
+		for (KeybasedRouting kbr : kbrs)
+			kbr.shutdown();
+	}
+
+	public static void main(String[] args) throws Exception {
+		int nrNodes = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+		int nrLookups = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+
+		run("kadbuckets", "objects", 0, 11000, nrNodes, nrLookups);
+		run("tree", "tree", 0, 12000, nrNodes, nrLookups);
+		run("tree+2", "tree", 2, 13000, nrNodes, nrLookups);
+		System.exit(0);
+	}
+}
@@ -0,0 +1,135 @@
+package il.technion.ewolf.kbr.openkad.cache;
+
+import il.technion.ewolf.kbr.Key;
+import il.technion.ewolf.kbr.KeyFactory;
+import il.technion.ewolf.kbr.Node;
+import il.technion.ewolf.kbr.RandomKeyFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Replays a Zipfian trace of searched keys with a stream of keys searched only
+ * once mixed in, as a node on the lookup paths would see them.
+ * For each threshold prints the fraction of lookups which would push their
+ * results to other nodes (and of the pushes wasted on keys searched once),
+ * and the hit ratio of an LRUKadCache admitting only hot keys.
+ * Then prints how many of the real top keys the tracker lists, and the
+ * throughput of record.
+ * Run with: java il.technion.ewolf.kbr.openkad.cache.HotKeyTrackerBenchmark [cache size] [keys]
+ */
+public class HotKeyTrackerBenchmark {
+
+	private static final int K = 8;
+	private static final int TRACE_LENGTH = 1000000;
+	private static final int WIDTH = 16384;
+	private static final int TOP_SIZE = 32;
+
+	private static Key[] zipfTrace(KeyFactory keyFactory, int nrKeys, double s, double oneOffRatio,
+			Set<Key> oneOffs, Random rnd) {
+		Key[] keys = new Key[nrKeys];
+		for (int i=0; i < nrKeys; ++i)
+			keys[i] = keyFactory.generate();
+
+		double[] cdf = new double[nrKeys];
+		double sum = 0;
+		for (int i=0; i < nrKeys; ++i) {
+			sum += 1 / Math.pow(i + 1, s);
+			cdf[i] = sum;
+		}
+
+		Key[] $ = new Key[TRACE_LENGTH];
+		for (int i=0; i < $.length; ++i) {
+			if (rnd.nextDouble() < oneOffRatio) {
+				$[i] = keyFactory.generate();
+				oneOffs.add($[i]);
+				continue;
+			}
+			int rank = Arrays.binarySearch(cdf, rnd.nextDouble() * sum);
+			$[i] = keys[rank < 0 ? Math.min(-rank - 1, nrKeys - 1) : rank];
+		}
+		return $;
+	}
+
+	private static void gating(Key[] trace, Set<Key> oneOffs, int cacheSize, List<Node> nodes, int threshold) {
+		HotKeyTracker hotKeys = new HotKeyTracker(WIDTH, TOP_SIZE, threshold);
+		KadCache cache = new HotKeyKadCache(new LRUKadCache(K, cacheSize), hotKeys, new AtomicInteger());
+
+		int nrPushes = 0;
+		int nrWasted = 0;
+		int hits = 0;
+		for (Key key : trace) {
+			hotKeys.record(key);
+			if (cache.search(key) != null) {
+				++hits;
+				continue;
+			}
+			if (hotKeys.isHot(key)) {
+				++nrPushes;
+				if (oneOffs.contains(key))
+					++nrWasted;
+			}
+			cache.insert(key, nodes);
+		}
+		System.out.printf("threshold %d pushes %5.1f%% of the lookups (%5.1f%% of them one-off keys), hit ratio %5.2f%%%n",
+				threshold, 100.0 * nrPushes / trace.length, nrPushes == 0 ? 0 : 100.0 * nrWasted / nrPushes,
+				100.0 * hits / trace.length);
+	}
+
+	private static void recall(Key[] trace) {
+		final Map<Key, Integer> counts = new HashMap<Key, Integer>();
+		for (Key key : trace) {
+			Integer c = counts.get(key);
+			counts.put(key, c == null ? 1 : c + 1);
+		}
+		List<Key> exact = new ArrayList<Key>(counts.keySet());
+		Collections.sort(exact, new Comparator<Key>() {
+			@Override
+			public int compare(Key o1, Key o2) {
+				return counts.get(o2) - counts.get(o1);
+			}
+		});
+		Set<Key> exactTop = new HashSet<Key>(exact.subList(0, TOP_SIZE));
+
+		HotKeyTracker hotKeys = new HotKeyTracker(WIDTH, TOP_SIZE, 0);
+		long start = System.nanoTime();
+		for (Key key : trace)
+			hotKeys.record(key);
+		long time = System.nanoTime() - start;
+
+		int found = 0;
+		for (HotKeyTracker.HotKey hotKey : hotKeys.getHotKeys()) {
+			if (exactTop.contains(hotKey.getKey()))
+				++found;
+		}
+		System.out.printf("top %d recall %d/%d, record %5.2f M ops/s%n",
+				TOP_SIZE, found, TOP_SIZE, trace.length / (time / 1e3));
+	}
+
+	public static void main(String[] args) throws Exception {
+		int cacheSize = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+		int nrKeys = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+
+		KeyFactory keyFactory = new RandomKeyFactory(20, new Random(0), "SHA-1");
+		List<Node> nodes = new ArrayList<Node>();
+		for (int i=0; i < K; ++i)
+			nodes.add(new Node(keyFactory.generate()));
+
+		Set<Key> oneOffs = new HashSet<Key>();
+		Key[] trace = zipfTrace(keyFactory, nrKeys, 0.9, 0.3, oneOffs, new Random(2));
+
+		for (int threshold : new int[] { 0, 2, 3, 4 })
+			gating(trace, oneOffs, cacheSize, nodes, threshold);
+		recall(trace);
+		System.exit(0);
+	}
+}
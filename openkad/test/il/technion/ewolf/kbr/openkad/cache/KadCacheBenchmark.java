@@ -0,0 +1,197 @@
+package il.technion.ewolf.kbr.openkad.cache;
+
+import il.technion.ewolf.kbr.Key;
+import il.technion.ewolf.kbr.KeyFactory;
+import il.technion.ewolf.kbr.Node;
+import il.technion.ewolf.kbr.RandomKeyFactory;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Replays a Zipfian trace of keys, with and without a stream of keys searched
+ * only once mixed in, on LRUKadCache, FifoKadCache, TinyLfuKadCache and
+ * OffHeapKadCache.
+ * A search miss is followed by an insert, as the find node operations do.
+ * Prints the hit ratio of each cache, then the throughput with several threads
+ * replaying the trace concurrently, then the heap used by the LRU and the
+ * off heap caches holding many entries and the time of a full gc.
+ * Run with: java il.technion.ewolf.kbr.openkad.cache.KadCacheBenchmark [cache size] [keys] [threads] [footprint entries]
+ */
+public class KadCacheBenchmark {
+
+	private static final int K = 8;
+	private static final int TRACE_LENGTH = 1000000;
+	private static final String KAD_SCHEME = "openkad.udp";
+
+	private static KeyFactory keyFactory;
+
+	private interface CacheFactory {
+		KadCache create(int size);
+	}
+
+	private static final String[] names = { "lru", "fifo", "tinylfu", "offheap" };
+	private static final CacheFactory[] factories = {
+		new CacheFactory() {
+			@Override
+			public KadCache create(int size) {
+				return new LRUKadCache(K, size);
+			}
+		},
+		new CacheFactory() {
+			@Override
+			public KadCache create(int size) {
+				return new FifoKadCache(size);
+			}
+		},
+		new CacheFactory() {
+			@Override
+			public KadCache create(int size) {
+				return new TinyLfuKadCache(K, size);
+			}
+		},
+		new CacheFactory() {
+			@Override
+			public KadCache create(int size) {
+				return new OffHeapKadCache(keyFactory, KAD_SCHEME, K, size, 1024 * 1024);
+			}
+		}
+	};
+
+	private static List<Node> randomNodes(Random rnd) throws Exception {
+		List<Node> $ = new ArrayList<Node>(K);
+		for (int i=0; i < K; ++i) {
+			Node n = new Node(keyFactory.generate());
+			n.setInetAddress(InetAddress.getByAddress(new byte[] {
+					10, (byte) rnd.nextInt(), (byte) rnd.nextInt(), (byte) rnd.nextInt() }));
+			n.addEndpoint(KAD_SCHEME, 1024 + rnd.nextInt(60000));
+			$.add(n);
+		}
+		return $;
+	}
+
+	/**
+	 * @param oneOffRatio fraction of the accesses to keys never seen again
+	 */
+	private static Key[] zipfTrace(KeyFactory keyFactory, int nrKeys, double s, double oneOffRatio, Random rnd) {
+		Key[] keys = new Key[nrKeys];
+		for (int i=0; i < nrKeys; ++i)
+			keys[i] = keyFactory.generate();
+
+		double[] cdf = new double[nrKeys];
+		double sum = 0;
+		for (int i=0; i < nrKeys; ++i) {
+			sum += 1 / Math.pow(i + 1, s);
+			cdf[i] = sum;
+		}
+
+		Key[] $ = new Key[TRACE_LENGTH];
+		for (int i=0; i < $.length; ++i) {
+			if (rnd.nextDouble() < oneOffRatio) {
+				$[i] = keyFactory.generate();
+				continue;
+			}
+			int rank = Arrays.binarySearch(cdf, rnd.nextDouble() * sum);
+			$[i] = keys[rank < 0 ? Math.min(-rank - 1, nrKeys - 1) : rank];
+		}
+		return $;
+	}
+
+	private static int replay(KadCache cache, Key[] trace, int from, int to, List<Node> nodes) {
+		int hits = 0;
+		for (int i=from; i < to; ++i) {
+			if (cache.search(trace[i]) != null)
+				++hits;
+			else
+				cache.insert(trace[i], nodes);
+		}
+		return hits;
+	}
+
+	private static void hitRatio(String traceName, Key[] trace, int cacheSize, List<Node> nodes) {
+		for (int c=0; c < factories.length; ++c) {
+			KadCache cache = factories[c].create(cacheSize);
+			int hits = replay(cache, trace, 0, trace.length, nodes);
+			System.out.printf("%-10s %-8s hit ratio %5.2f%%%n", traceName, names[c], 100.0 * hits / trace.length);
+		}
+	}
+
+	private static void throughput(final Key[] trace, int cacheSize, int nrThreads, final List<Node> nodes)
+			throws InterruptedException {
+		for (int c=0; c < factories.length; ++c) {
+			final KadCache cache = factories[c].create(cacheSize);
+			// warm up
+			replay(cache, trace, 0, trace.length, nodes);
+
+			final CountDownLatch done = new CountDownLatch(nrThreads);
+			long start = System.nanoTime();
+			for (int t=0; t < nrThreads; ++t) {
+				final int offset = t * (trace.length / nrThreads);
+				new Thread() {
+					@Override
+					public void run() {
+						replay(cache, trace, offset, trace.length, nodes);
+						replay(cache, trace, 0, offset, nodes);
+						done.countDown();
+					}
+				}.start();
+			}
+			done.await();
+			long time = System.nanoTime() - start;
+			System.out.printf("%-8s %d threads %6.2f M ops/s%n", names[c], nrThreads,
+					(double) nrThreads * trace.length / time * 1e3);
+		}
+	}
+
+	private static long usedHeap() {
+		Runtime rt = Runtime.getRuntime();
+		for (int i=0; i < 3; ++i)
+			System.gc();
+		return rt.totalMemory() - rt.freeMemory();
+	}
+
+	/**
+	 * Fills the cache with distinct results, as a node caching many lookups
+	 * would, and prints the heap used and the time of a full gc
+	 */
+	private static void footprint(int c, int nrEntries) throws Exception {
+		Random rnd = new Random(3);
+		long before = usedHeap();
+		KadCache cache = factories[c].create(nrEntries);
+		for (int i=0; i < nrEntries; ++i)
+			cache.insert(keyFactory.generate(), randomNodes(rnd));
+		long after = usedHeap();
+
+		long start = System.nanoTime();
+		System.gc();
+		long gcTime = System.nanoTime() - start;
+		System.out.printf("%-8s %d entries heap %7.1f MB full gc %6.1f ms%n", names[c], nrEntries,
+				(after - before) / 1e6, gcTime / 1e6);
+		// keep the cache reachable until measured
+		cache.clear();
+	}
+
+	public static void main(String[] args) throws Exception {
+		int cacheSize = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+		int nrKeys = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+		int nrThreads = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+		int nrFootprintEntries = args.length > 3 ? Integer.parseInt(args[3]) : 200000;
+
+		keyFactory = new RandomKeyFactory(20, new Random(0), "SHA-1");
+		List<Node> nodes = randomNodes(new Random(0));
+
+		Key[] zipf = zipfTrace(keyFactory, nrKeys, 0.9, 0, new Random(1));
+		Key[] scan = zipfTrace(keyFactory, nrKeys, 0.9, 0.3, new Random(2));
+
+		hitRatio("zipf", zipf, cacheSize, nodes);
+		hitRatio("zipf+scan", scan, cacheSize, nodes);
+		throughput(zipf, cacheSize, nrThreads, nodes);
+		footprint(0, nrFootprintEntries);
+		footprint(3, nrFootprintEntries);
+		System.exit(0);
+	}
+}
@@ -0,0 +1,125 @@
+package il.technion.ewolf.kbr.openkad.cache;
+
+import il.technion.ewolf.kbr.Key;
+import il.technion.ewolf.kbr.KeyFactory;
+import il.technion.ewolf.kbr.Node;
+import il.technion.ewolf.kbr.RandomKeyFactory;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.Assert;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class OffHeapKadCacheTest {
+
+	private static final String SCHEME = "openkad.udp";
+	private static final int SIZE = 8;
+	// the open addressing table of a cache of SIZE entries
+	private static final int TABLE_MASK = 2 * SIZE - 1;
+
+	private KeyFactory keyFactory;
+	private OffHeapKadCache cache;
+
+	@Before
+	public void setup() throws Exception {
+		keyFactory = new RandomKeyFactory(20, new Random(0), "SHA-1");
+		// two slots per slab
+		cache = new OffHeapKadCache(keyFactory, SCHEME, 4, SIZE, 400);
+	}
+
+	/**
+	 * @return nrKeys keys whose home index in the table is in [from, to]
+	 */
+	private List<Key> keysAt(int nrKeys, int from, int to) {
+		List<Key> $ = new ArrayList<Key>();
+		while ($.size() < nrKeys) {
+			Key key = keyFactory.generate();
+			int home = OffHeapKadCache.spread(key.hashCode()) & TABLE_MASK;
+			if (from <= home && home <= to)
+				$.add(key);
+		}
+		return $;
+	}
+
+	/**
+	 * Fills the cache with keys whose home index is one of the last two of the
+	 * table, so their probe sequence wraps around to its start, then inserts
+	 * keys whose home is in the middle of the table, so the holes left by
+	 * evicting the first keys are not refilled
+	 */
+	private List<Key> wrappedThenMiddleKeys(int nrMiddleKeys) {
+		List<Key> $ = keysAt(SIZE, TABLE_MASK - 1, TABLE_MASK);
+		$.addAll(keysAt(nrMiddleKeys, SIZE - 1, SIZE));
+		return $;
+	}
+
+	private List<Node> nodesOf(Key key, int nrNodes) throws Exception {
+		List<Node> $ = new ArrayList<Node>();
+		for (int i=0; i < nrNodes; ++i) {
+			Node n = new Node(keyFactory.generate());
+			n.setInetAddress(InetAddress.getByAddress(new byte[] { 10, 0, (byte) i, (byte) key.hashCode() }));
+			n.addEndpoint(SCHEME, 1000 + i);
+			$.add(n);
+		}
+		return $;
+	}
+
+	private static void assertSameNodes(List<Node> expected, List<Node> actual) {
+		Assert.assertNotNull(actual);
+		Assert.assertEquals(expected.size(), actual.size());
+		for (int i=0; i < expected.size(); ++i) {
+			Assert.assertEquals(expected.get(i).getKey(), actual.get(i).getKey());
+			Assert.assertEquals(expected.get(i).getInetAddress(), actual.get(i).getInetAddress());
+			Assert.assertEquals(expected.get(i).getPort(SCHEME), actual.get(i).getPort(SCHEME));
+		}
+	}
+
+	@Test
+	public void itShouldFindEveryRemainingKeyAfterEvictingAcrossTheProbeChainWraparound() throws Exception {
+		List<Key> keys = wrappedThenMiddleKeys(SIZE / 2 + 1);
+		List<List<Node>> results = new ArrayList<List<Node>>();
+		for (int i=0; i < keys.size(); ++i) {
+			results.add(nodesOf(keys.get(i), 1 + i % 4));
+			cache.insert(keys.get(i), results.get(i));
+		}
+
+		Assert.assertEquals(SIZE, cache.size());
+		// nothing was searched, so the clock evicted the oldest entries first
+		for (int i=0; i < keys.size() - SIZE; ++i)
+			Assert.assertNull(cache.search(keys.get(i)));
+		for (int i=keys.size() - SIZE; i < keys.size(); ++i)
+			assertSameNodes(results.get(i), cache.search(keys.get(i)));
+	}
+
+	@Test
+	public void itShouldKeepSearchedKeysWhenEvictingAcrossTheProbeChainWraparound() throws Exception {
+		List<Key> keys = wrappedThenMiddleKeys(SIZE / 2);
+		List<List<Node>> results = new ArrayList<List<Node>>();
+		for (int i=0; i < SIZE; ++i) {
+			results.add(nodesOf(keys.get(i), 2));
+			cache.insert(keys.get(i), results.get(i));
+		}
+		// the even keys are searched and get a second chance
+		for (int i=0; i < SIZE; i += 2)
+			Assert.assertNotNull(cache.search(keys.get(i)));
+
+		for (int i=SIZE; i < SIZE + SIZE / 2; ++i) {
+			results.add(nodesOf(keys.get(i), 3));
+			cache.insert(keys.get(i), results.get(i));
+		}
+
+		for (int i=0; i < SIZE; ++i) {
+			if (i % 2 == 0)
+				assertSameNodes(results.get(i), cache.search(keys.get(i)));
+			else
+				Assert.assertNull(cache.search(keys.get(i)));
+		}
+		for (int i=SIZE; i < SIZE + SIZE / 2; ++i)
+			assertSameNodes(results.get(i), cache.search(keys.get(i)));
+	}
+}
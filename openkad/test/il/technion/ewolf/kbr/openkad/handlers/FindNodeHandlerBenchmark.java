@@ -0,0 +1,217 @@
+package il.technion.ewolf.kbr.openkad.handlers;
+
+import il.technion.ewolf.kbr.Key;
+import il.technion.ewolf.kbr.KeyComparator;
+import il.technion.ewolf.kbr.KeyFactory;
+import il.technion.ewolf.kbr.Node;
+import il.technion.ewolf.kbr.openkad.KadNetModule;
+import il.technion.ewolf.kbr.openkad.KadNode;
+import il.technion.ewolf.kbr.openkad.bucket.KBuckets;
+import il.technion.ewolf.kbr.openkad.msg.FindNodeRequest;
+import il.technion.ewolf.kbr.openkad.msg.KadMessage;
+import il.technion.ewolf.kbr.openkad.net.Communicator;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.name.Names;
+import com.google.inject.util.Modules;
+
+/**
+ * Serves find node requests from a routing table with every bucket full, for
+ * each routing table storage (openkad.bucket.storage).
+ * Prints the heap used per contact, the nano seconds and bytes allocated per
+ * selection of the closest nodes (sorting all the candidates as before, the
+ * list api and the buffer api), and the throughput of KademliaFindNodeHandler
+ * with several threads (responses are dropped instead of being sent).
+ * Run with: java il.technion.ewolf.kbr.openkad.handlers.FindNodeHandlerBenchmark [iterations] [threads]
+ */
+public class FindNodeHandlerBenchmark {
+
+	private static final int kBucketSize = 20;
+
+	private static class NullCommunicator implements Communicator {
+		private final AtomicLong nrSent = new AtomicLong(0);
+
+		@Override
+		public void run() {
+		}
+		@Override
+		public void bind() {
+		}
+		@Override
+		public void send(Node to, KadMessage msg) {
+			nrSent.incrementAndGet();
+		}
+		@Override
+		public void shutdown(Thread serverThread) {
+		}
+	}
+
+	private interface Selector {
+		int select(Key key);
+	}
+
+	private static long allocatedBytes() {
+		try {
+			return ((com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean())
+					.getThreadAllocatedBytes(Thread.currentThread().getId());
+		} catch (Throwable t) {
+			// not supported by this jvm
+			return -1;
+		}
+	}
+
+	private static void bench(String name, Selector selector, List<Key> keys, int iterations) {
+		// warmup
+		for (int i=0; i < iterations; ++i)
+			selector.select(keys.get(i % keys.size()));
+
+		long b = allocatedBytes();
+		long start = System.nanoTime();
+		long total = 0;
+		for (int i=0; i < iterations; ++i)
+			total += selector.select(keys.get(i % keys.size()));
+		long nanos = System.nanoTime() - start;
+		long bytes = allocatedBytes() - b;
+
+		System.out.printf("%-8s %8d ns/select %8d bytes/select %4d nodes%n",
+				name, nanos / iterations, bytes / iterations, total / iterations);
+	}
+
+	private static void benchHandler(final KademliaFindNodeHandler handler, final List<FindNodeRequest> reqs,
+			int nrThreads, final int iterations) throws InterruptedException {
+
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(nrThreads);
+		for (int t=0; t < nrThreads; ++t) {
+			final int offset = t;
+			new Thread() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					for (int i=0; i < iterations; ++i)
+						handler.completed(reqs.get((i + offset) % reqs.size()), null);
+					done.countDown();
+				}
+			}.start();
+		}
+
+		long begin = System.nanoTime();
+		start.countDown();
+		done.await();
+		long nanos = System.nanoTime() - begin;
+
+		System.out.printf("handler  %2d threads %10d requests/sec%n",
+				nrThreads, (long)iterations * nrThreads * 1000000000L / nanos);
+	}
+
+	private static long usedHeap() {
+		for (int i=0; i < 4; ++i)
+			System.gc();
+		return Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
+	}
+
+	private static void run(String storage, int iterations, int maxThreads) throws Exception {
+		System.out.println("storage: "+storage);
+		final NullCommunicator communicator = new NullCommunicator();
+		Injector injector = Guice.createInjector(Modules.override(new KadNetModule()
+				.setProperty("openkad.bucket.storage", storage)
+				.setProperty("openkad.bucket.kbuckets.maxsize", ""+kBucketSize)
+				.setProperty("openkad.net.udp.port", "10400"))
+			.with(new AbstractModule() {
+				@Override
+				protected void configure() {
+					bind(Communicator.class).toInstance(communicator);
+				}
+			}));
+
+		final KeyFactory keyFactory = injector.getInstance(KeyFactory.class);
+		final KBuckets kBuckets = injector.getInstance(KBuckets.class);
+		Key localKey = injector.getInstance(com.google.inject.Key.get(Node.class, Names.named("openkad.local.node"))).getKey();
+
+		// fill every bucket
+		long before = usedHeap();
+		for (int i=0; i < keyFactory.getBitLength(); ++i) {
+			for (int j=0; j < kBucketSize; ++j) {
+				Node node = new Node(keyFactory.generate(i).xor(localKey));
+				node.setInetAddress(InetAddress.getByAddress(new byte[] { 10, (byte)i, 0, (byte)j }));
+				node.addEndpoint("openkad.udp", 5000 + j);
+				kBuckets.insert(new KadNode().setNode(node).setNodeWasContacted());
+			}
+		}
+		long heap = usedHeap() - before;
+		int nrNodes = kBuckets.getAllNodes().size();
+		System.out.printf("nodes in table: %d, %d heap bytes/contact%n", nrNodes, heap / nrNodes);
+
+		Random rnd = new Random(0);
+		List<Key> keys = new ArrayList<Key>();
+		List<FindNodeRequest> reqs = new ArrayList<FindNodeRequest>();
+		for (int i=0; i < 1024; ++i) {
+			// mostly far keys, like the requests of a real network
+			Key key = keyFactory.generate(keyFactory.getBitLength() - 1 - Math.min(rnd.nextInt(64), rnd.nextInt(64))).xor(localKey);
+			keys.add(key);
+			reqs.add(injector.getInstance(FindNodeRequest.class).setKey(key));
+		}
+
+		final Node[] buffer = new Node[kBucketSize];
+		Selector sortAll = new Selector() {
+			@Override
+			public int select(Key key) {
+				List<Node> nodes = kBuckets.getAllNodes();
+				final Comparator<Key> keyComparator = new KeyComparator(key);
+				Collections.sort(nodes, new Comparator<Node>() {
+					@Override
+					public int compare(Node n1, Node n2) {
+						return keyComparator.compare(n1.getKey(), n2.getKey());
+					}
+				});
+				return Math.min(kBucketSize, nodes.size());
+			}
+		};
+		Selector list = new Selector() {
+			@Override
+			public int select(Key key) {
+				return kBuckets.getClosestNodesByKey(key, kBucketSize).size();
+			}
+		};
+		Selector buf = new Selector() {
+			@Override
+			public int select(Key key) {
+				return kBuckets.getClosestNodesByKey(key, kBucketSize, buffer);
+			}
+		};
+
+		if ("objects".equals(storage))
+			bench("sortall", sortAll, keys, Math.max(100, iterations / 100));
+		bench("list", list, keys, iterations);
+		bench("buffer", buf, keys, iterations);
+
+		KademliaFindNodeHandler handler = injector.getInstance(KademliaFindNodeHandler.class);
+		for (int t=1; t <= maxThreads; t *= 2)
+			benchHandler(handler, reqs, t, iterations);
+	}
+
+	public static void main(String[] args) throws Exception {
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+		int maxThreads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+
+		run("objects", iterations, maxThreads);
+		run("compact", iterations, maxThreads);
+		System.exit(0);
+	}
+}
@@ -0,0 +1,245 @@
+package il.technion.ewolf.kbr.openkad.net;
+
+import il.technion.ewolf.kbr.Key;
+import il.technion.ewolf.kbr.KeyFactory;
+import il.technion.ewolf.kbr.Node;
+import il.technion.ewolf.kbr.openkad.KadNetModule;
+import il.technion.ewolf.kbr.openkad.msg.ContentRequest;
+import il.technion.ewolf.kbr.openkad.msg.ContentResponse;
+import il.technion.ewolf.kbr.openkad.msg.FindNodeRequest;
+import il.technion.ewolf.kbr.openkad.msg.FindNodeResponse;
+import il.technion.ewolf.kbr.openkad.msg.ForwardMessage;
+import il.technion.ewolf.kbr.openkad.msg.ForwardRequest;
+import il.technion.ewolf.kbr.openkad.msg.KadMessage;
+import il.technion.ewolf.kbr.openkad.msg.PingRequest;
+import il.technion.ewolf.kbr.openkad.msg.ShadesFindNodeRequest;
+import il.technion.ewolf.kbr.openkad.msg.StoreMessage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+
+public class BinaryKadSerializerTest {
+
+	private Injector injector;
+	private KadSerializer serializer;
+	private KeyFactory keyFactory;
+	private Node localNode;
+
+	@Before
+	public void setup() {
+		injector = Guice.createInjector(new KadNetModule()
+			.setProperty("openkad.net.serializer", "binary")
+			.setProperty("openkad.net.udp.port", "10200"));
+		serializer = injector.getInstance(KadSerializer.class);
+		keyFactory = injector.getInstance(KeyFactory.class);
+		localNode = injector.getInstance(PingRequest.class).getSrc();
+	}
+
+	private KadMessage roundtrip(KadMessage msg) throws Exception {
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		serializer.write(msg, bout);
+		return serializer.read(new ByteArrayInputStream(bout.toByteArray()));
+	}
+
+	private List<Node> randomNodes(int n) throws Exception {
+		List<Node> $ = new ArrayList<Node>();
+		for (int i=0; i < n; ++i) {
+			Node node = new Node(keyFactory.generate());
+			node.setInetAddress(InetAddress.getByName("10.0.0."+i));
+			node.addEndpoint("openkad.udp", 5000+i);
+			$.add(node);
+		}
+		return $;
+	}
+
+	private void assertSameNodes(List<Node> expected, List<Node> actual) {
+		Assert.assertEquals(expected, actual);
+		for (int i=0; i < expected.size(); ++i) {
+			Assert.assertEquals(expected.get(i).getInetAddress(), actual.get(i).getInetAddress());
+			Assert.assertEquals(expected.get(i).getAllEndpoints(), actual.get(i).getAllEndpoints());
+		}
+	}
+
+	@Test
+	public void itShouldBeSelectedByTheModule() {
+		Assert.assertTrue(serializer instanceof BinaryKadSerializer);
+	}
+
+	@Test
+	public void itShouldKeepTheHeader() throws Exception {
+		PingRequest req = injector.getInstance(PingRequest.class);
+		KadMessage msg = roundtrip(req);
+
+		Assert.assertTrue(msg instanceof PingRequest);
+		Assert.assertEquals(req.getId(), msg.getId());
+		Assert.assertEquals(localNode, msg.getSrc());
+		Assert.assertEquals(localNode.getAllEndpoints(), msg.getSrc().getAllEndpoints());
+		Assert.assertEquals(localNode.getInetAddress(), msg.getSrc().getInetAddress());
+	}
+
+	@Test
+	public void itShouldSerializeFindNodeMessages() throws Exception {
+		Key key = keyFactory.generate();
+		FindNodeRequest req = injector.getInstance(FindNodeRequest.class)
+			.setKey(key)
+			.setSearchCache(true);
+
+		FindNodeRequest req2 = (FindNodeRequest)roundtrip(req);
+		Assert.assertEquals(key, req2.getKey());
+		Assert.assertTrue(req2.shouldSearchCache());
+
+		List<Node> nodes = randomNodes(20);
+		FindNodeResponse res = req.generateResponse(localNode)
+			.setNodes(nodes)
+			.setCachedResults(true);
+
+		FindNodeResponse res2 = (FindNodeResponse)roundtrip(res);
+		Assert.assertEquals(req.getId(), res2.getId());
+		Assert.assertTrue(res2.isCachedResults());
+		Assert.assertFalse(res2.isNeeeded());
+		assertSameNodes(nodes, res2.getNodes());
+	}
+
+	@Test
+	public void itShouldSerializeShadesFindNodeRequest() throws Exception {
+		ShadesFindNodeRequest req = injector.getInstance(ShadesFindNodeRequest.class)
+			.setKey(keyFactory.generate())
+			.setOnlyClosestToKey(true)
+			.setRequiredColor(7);
+
+		ShadesFindNodeRequest req2 = (ShadesFindNodeRequest)roundtrip(req);
+		Assert.assertEquals(req.getKey(), req2.getKey());
+		Assert.assertFalse(req2.shouldSearchCache());
+		Assert.assertTrue(req2.getOnlyClosestToKey());
+		Assert.assertEquals(7, req2.getRequiredColor());
+	}
+
+	@Test
+	public void itShouldSerializeForwardMessages() throws Exception {
+		List<Node> nodes = randomNodes(5);
+		ForwardRequest req = injector.getInstance(ForwardRequest.class)
+			.setKey(keyFactory.generate())
+			.setBootstrap(nodes)
+			.setInitiator();
+
+		ForwardRequest req2 = (ForwardRequest)roundtrip(req);
+		Assert.assertEquals(req.getKey(), req2.getKey());
+		Assert.assertTrue(req2.isInitiator());
+		assertSameNodes(nodes, req2.getBootstrap());
+
+		ForwardMessage msg = req.generateMessage(localNode)
+			.setNodes(null)
+			.setPathLength(3)
+			.setFindNodeHops(12)
+			.setAck();
+
+		ForwardMessage msg2 = (ForwardMessage)roundtrip(msg);
+		Assert.assertNull(msg2.getNodes());
+		Assert.assertEquals(3, msg2.getPathLength());
+		Assert.assertEquals(12, msg2.getFindNodeHops());
+		Assert.assertTrue(msg2.isAck());
+	}
+
+	@Test
+	public void itShouldSerializeStoreMessage() throws Exception {
+		List<Node> nodes = randomNodes(3);
+		StoreMessage msg = injector.getInstance(StoreMessage.class)
+			.setKey(keyFactory.generate())
+			.setNodes(nodes);
+
+		StoreMessage msg2 = (StoreMessage)roundtrip(msg);
+		Assert.assertEquals(msg.getKey(), msg2.getKey());
+		assertSameNodes(nodes, msg2.getNodes());
+	}
+
+	@Test
+	public void itShouldSerializeContentMessages() throws Exception {
+		ContentRequest req = injector.getInstance(ContentRequest.class)
+			.setTag("tag")
+			.setContent("hello world");
+
+		ContentRequest req2 = (ContentRequest)roundtrip(req);
+		Assert.assertEquals("tag", req2.getTag());
+		Assert.assertEquals("hello world", req2.getContent());
+
+		ContentResponse res2 = (ContentResponse)roundtrip(req.generateResponse(localNode));
+		Assert.assertNull(res2.getContent());
+	}
+
+	@Test(expected=IOException.class)
+	public void itShouldRejectUnknownVersions() throws Exception {
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		serializer.write(injector.getInstance(PingRequest.class), bout);
+		byte[] b = bout.toByteArray();
+		b[0] = BinaryKadSerializer.VERSION + 1;
+		serializer.read(new ByteArrayInputStream(b));
+	}
+
+	private byte[] write(KadMessage msg) throws Exception {
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		serializer.write(msg, bout);
+		return bout.toByteArray();
+	}
+
+	/**
+	 * Replaces the last n bytes of an encoded message with a varint of
+	 * Integer.MAX_VALUE
+	 */
+	private byte[] withHugeLength(byte[] b, int n) {
+		byte[] $ = Arrays.copyOf(b, b.length - n + 5);
+		byte[] huge = { (byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF, 0x07 };
+		System.arraycopy(huge, 0, $, b.length - n, huge.length);
+		return $;
+	}
+
+	@Test(expected=IOException.class)
+	public void itShouldRejectTruncatedMessages() throws Exception {
+		byte[] b = write(injector.getInstance(StoreMessage.class)
+			.setKey(keyFactory.generate())
+			.setNodes(randomNodes(3)));
+		serializer.read(new ByteArrayInputStream(Arrays.copyOf(b, b.length - 5)));
+	}
+
+	@Test(expected=IOException.class)
+	public void itShouldRejectNodeCountsLargerThanTheMessage() throws Exception {
+		// the last byte is the number of nodes + 1
+		byte[] b = write(injector.getInstance(StoreMessage.class)
+			.setKey(keyFactory.generate())
+			.setNodes(new ArrayList<Node>()));
+		serializer.read(new ByteArrayInputStream(withHugeLength(b, 1)));
+	}
+
+	@Test(expected=IOException.class)
+	public void itShouldRejectStringLengthsLargerThanTheMessage() throws Exception {
+		// the last 2 bytes are the null tag and the null content
+		byte[] b = write(injector.getInstance(ContentRequest.class));
+		serializer.read(new ByteArrayInputStream(withHugeLength(b, 2)));
+	}
+
+	@Test(expected=IOException.class)
+	public void itShouldRejectContentLengthsLargerThanTheMessage() throws Exception {
+		// the last byte is the null content
+		byte[] b = write(injector.getInstance(ContentRequest.class));
+		serializer.read(new ByteArrayInputStream(withHugeLength(b, 1)));
+	}
+
+	@Test(expected=IOException.class)
+	public void itShouldRejectTruncatedStrings() throws Exception {
+		byte[] b = write(injector.getInstance(ContentRequest.class).setTag("a long enough tag"));
+		// cut inside the tag, its length is still there
+		serializer.read(new ByteArrayInputStream(Arrays.copyOf(b, b.length - 6)));
+	}
+}
@@ -0,0 +1,219 @@
+package il.technion.ewolf.kbr.openkad.net;
+
+import il.technion.ewolf.kbr.Key;
+import il.technion.ewolf.kbr.KeybasedRouting;
+import il.technion.ewolf.kbr.Node;
+import il.technion.ewolf.kbr.openkad.KadNetModule;
+import il.technion.ewolf.kbr.openkad.KadNode;
+import il.technion.ewolf.kbr.openkad.bucket.KBuckets;
+import il.technion.ewolf.kbr.openkad.msg.KadMessage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.name.Names;
+import com.google.inject.util.Modules;
+
+/**
+ * Runs a network of nodes in a single process over a simulated network: each
+ * node is placed at a random point in a unit square and a message is delivered
+ * after a delay proportional to the distance between the nodes.
+ * The routing tables are filled directly, the nodes learn the round trip times
+ * from warmup lookups, and then random find node operations are timed with
+ * each combination of openkad.op.lookup.prefer_low_rtt and
+ * openkad.bucket.prefer_low_rtt.
+ * Prints the median and the 99th percentile of the lookup latency.
+ * Run with: java il.technion.ewolf.kbr.openkad.net.LatencySimulationBenchmark [nodes] [lookups] [threads]
+ */
+public class LatencySimulationBenchmark {
+
+	// latency between the closest and the farthest nodes, in micro seconds
+	private static final long minLatency = 1000;
+	private static final long maxLatency = 100000;
+
+	private static final ScheduledExecutorService network = Executors.newScheduledThreadPool(8);
+
+	private static class SimNode {
+		private final double x;
+		private final double y;
+		private KeybasedRouting kbr;
+		private MessageDispatchIndex dispatchIndex;
+		private KadSerializer serializer;
+		private Node node;
+
+		SimNode(double x, double y) {
+			this.x = x;
+			this.y = y;
+		}
+
+		long latencyTo(SimNode o) {
+			double d = Math.sqrt((x - o.x) * (x - o.x) + (y - o.y) * (y - o.y)) / Math.sqrt(2);
+			return minLatency + (long)(d * (maxLatency - minLatency));
+		}
+	}
+
+	private static class SimCommunicator implements Communicator {
+		private final SimNode self;
+		private final Map<Key, SimNode> nodes;
+
+		SimCommunicator(SimNode self, Map<Key, SimNode> nodes) {
+			this.self = self;
+			this.nodes = nodes;
+		}
+
+		@Override
+		public void run() {
+		}
+		@Override
+		public void bind() {
+		}
+		@Override
+		public void shutdown(Thread serverThread) {
+		}
+
+		@Override
+		public void send(Node to, KadMessage msg) throws IOException {
+			final SimNode dst = nodes.get(to.getKey());
+			if (dst == null)
+				return;
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			self.serializer.write(msg, out);
+			final byte[] bytes = out.toByteArray();
+
+			network.schedule(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						KadMessage m = dst.serializer.read(new ByteArrayInputStream(bytes));
+						for (MessageDispatcher<?> d : dst.dispatchIndex.extractShouldHandle(m))
+							d.handle(m);
+					} catch (Exception e) {
+						e.printStackTrace();
+					}
+				}
+			}, self.latencyTo(dst), TimeUnit.MICROSECONDS);
+		}
+	}
+
+	private static List<SimNode> createNetwork(int nrNodes, boolean lookupRtt, boolean bucketRtt) throws Exception {
+		Random rnd = new Random(0);
+		final Map<Key, SimNode> byKey = Collections.synchronizedMap(new HashMap<Key, SimNode>());
+		List<SimNode> $ = new ArrayList<SimNode>();
+		List<KBuckets> kBuckets = new ArrayList<KBuckets>();
+
+		for (int i=0; i < nrNodes; ++i) {
+			final SimNode sim = new SimNode(rnd.nextDouble(), rnd.nextDouble());
+			File nodesFile = File.createTempFile("openkad.nodes", "");
+			nodesFile.deleteOnExit();
+
+			Injector injector = Guice.createInjector(Modules.override(new KadNetModule()
+					.setProperty("openkad.keyfactory.keysize", "4")
+					.setProperty("openkad.bucket.kbuckets.maxsize", "8")
+					.setProperty("openkad.net.serializer", "binary")
+					.setProperty("openkad.op.lookup.prefer_low_rtt", ""+lookupRtt)
+					.setProperty("openkad.bucket.prefer_low_rtt", ""+bucketRtt)
+					.setProperty("openkad.file.nodes.path", nodesFile.getAbsolutePath())
+					.setProperty("openkad.seed", ""+(i+1))
+					.setProperty("openkad.net.udp.port", ""+(20000+i)))
+				.with(new AbstractModule() {
+					@Override
+					protected void configure() {
+						bind(Communicator.class).toInstance(new SimCommunicator(sim, byKey));
+					}
+				}));
+
+			sim.kbr = injector.getInstance(KeybasedRouting.class);
+			sim.dispatchIndex = injector.getInstance(MessageDispatchIndex.class);
+			sim.serializer = injector.getInstance(KadSerializer.class);
+			sim.node = injector.getInstance(com.google.inject.Key.get(Node.class, Names.named("openkad.local.node")));
+			sim.kbr.create();
+			byKey.put(sim.node.getKey(), sim);
+			$.add(sim);
+			kBuckets.add(injector.getInstance(KBuckets.class));
+		}
+
+		// every node heard of every other node, in a random order
+		for (int i=0; i < nrNodes; ++i) {
+			List<SimNode> others = new ArrayList<SimNode>($);
+			Collections.shuffle(others, rnd);
+			for (SimNode o : others) {
+				if (o != $.get(i))
+					kBuckets.get(i).insert(new KadNode().setNode(o.node).setNodeWasContacted());
+			}
+		}
+		return $;
+	}
+
+	private static long[] runLookups(final List<SimNode> nodes, int nrLookups, int nrThreads, long seed)
+			throws InterruptedException {
+		final long[] $ = new long[nrLookups];
+		final AtomicInteger next = new AtomicInteger(0);
+		final Random rnd = new Random(seed);
+		final CountDownLatch done = new CountDownLatch(nrThreads);
+		for (int t=0; t < nrThreads; ++t) {
+			new Thread() {
+				@Override
+				public void run() {
+					int i;
+					while ((i = next.getAndIncrement()) < $.length) {
+						SimNode from;
+						Key key;
+						synchronized (rnd) {
+							from = nodes.get(rnd.nextInt(nodes.size()));
+							key = from.kbr.getKeyFactory().generate();
+						}
+						long start = System.nanoTime();
+						from.kbr.findNode(key);
+						$[i] = System.nanoTime() - start;
+					}
+					done.countDown();
+				}
+			}.start();
+		}
+		done.await();
+		return $;
+	}
+
+	private static void run(String name, boolean lookupRtt, boolean bucketRtt, int nrNodes, int nrLookups,
+			int nrThreads) throws Exception {
+		List<SimNode> nodes = createNetwork(nrNodes, lookupRtt, bucketRtt);
+
+		// learn the round trip times
+		runLookups(nodes, nrNodes * 4, nrThreads, 1);
+
+		long[] latencies = runLookups(nodes, nrLookups, nrThreads, 2);
+		Arrays.sort(latencies);
+		System.out.printf("%-10s %d lookups median %6.1f ms p99 %6.1f ms%n", name, latencies.length,
+				latencies[latencies.length / 2] / 1e6,
+				latencies[Math.min(latencies.length - 1, latencies.length * 99 / 100)] / 1e6);
+	}
+
+	public static void main(String[] args) throws Exception {
+		int nrNodes = args.length > 0 ? Integer.parseInt(args[0]) : 128;
+		int nrLookups = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+		int nrThreads = args.length > 2 ? Integer.parseInt(args[2]) : 16;
+
+		run("xor", false, false, nrNodes, nrLookups, nrThreads);
+		run("lookup", true, false, nrNodes, nrLookups, nrThreads);
+		run("bucket", false, true, nrNodes, nrLookups, nrThreads);
+		run("both", true, true, nrNodes, nrLookups, nrThreads);
+		System.exit(0);
+	}
+}
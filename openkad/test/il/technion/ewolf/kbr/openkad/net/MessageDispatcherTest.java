@@ -5,31 +5,38 @@ import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
+import il.technion.ewolf.kbr.KeyFactory;
 import il.technion.ewolf.kbr.Node;
 import il.technion.ewolf.kbr.concurrent.CompletionHandler;
+import il.technion.ewolf.kbr.concurrent.HashedWheelTimer;
+import il.technion.ewolf.kbr.openkad.KadNetModule;
 import il.technion.ewolf.kbr.openkad.msg.KadMessage;
 import il.technion.ewolf.kbr.openkad.msg.KadRequest;
+import il.technion.ewolf.kbr.openkad.msg.PingRequest;
 
 import java.util.HashSet;
 import java.util.Set;
-import java.util.Timer;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import junit.framework.Assert;
 
 import org.junit.Before;
 import org.junit.Test;
 
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+
 public class MessageDispatcherTest {
 
-	private BlockingQueue<MessageDispatcher<?>> mockedOutstandingRequests;
+	private AdmissionController mockedAdmissionController;
 	private Set<MessageDispatcher<?>> mockedExpecters;
 	private Set<MessageDispatcher<?>> mockedNonConsumableExpecters;
-	private Timer mockedTimer;
+	private HashedWheelTimer mockedTimer;
 	private Communicator mockedKadServer;
 	private Node mockedNode;
 	private KadRequest mockedRequest;
@@ -38,17 +45,17 @@ public class MessageDispatcherTest {
 	
 	@Before
 	public void setup() {
-		mockedOutstandingRequests = spy(new ArrayBlockingQueue<MessageDispatcher<?>>(10));
+		mockedAdmissionController = spy(new AdmissionController(10, 10, "queue"));
 		mockedExpecters = spy(new HashSet<MessageDispatcher<?>>());
 		mockedNonConsumableExpecters = spy(new HashSet<MessageDispatcher<?>>());
-		mockedTimer = spy(new Timer());
+		mockedTimer = spy(new HashedWheelTimer("test.timer", 10, TimeUnit.MILLISECONDS, 64));
 		mockedKadServer = mock(Communicator.class);
 		mockedNode = mock(Node.class);
 		mockedRequest = mock(KadRequest.class);
 		timeout = 100;
 		
 		dispatcher = new MessageDispatcher<Object>(
-				mockedOutstandingRequests,
+				mockedAdmissionController,
 				mockedExpecters,
 				mockedNonConsumableExpecters,
 				mockedTimer,
@@ -57,18 +64,19 @@ public class MessageDispatcherTest {
 	}
 	
 	@Test
-	public void itShouldInsertItselfToOutstandingRequestsWhenSent() throws Exception {
+	public void itShouldTakeAnAdmissionSlotWhenSent() throws Exception {
 		
 		dispatcher
 			.setConsumable(true)
 			.send(mockedNode, mockedRequest);
 		
-		verify(mockedOutstandingRequests).put(dispatcher);
+		Assert.assertEquals(1, mockedAdmissionController.getNrInFlight());
+		verify(mockedAdmissionController).tryAcquire();
 		verify(mockedKadServer, times(1)).send(mockedNode, mockedRequest);
 	}
 	
 	@Test
-	public void itShouldRemoveItselfFromOutstandingRequestsAndExpectersWhenDone() throws Exception {
+	public void itShouldReleaseItsAdmissionSlotAndRemoveItselfFromExpectersWhenDone() throws Exception {
 		dispatcher
 			.setConsumable(true)
 			.send(mockedNode, mockedRequest);
@@ -77,7 +85,8 @@ public class MessageDispatcherTest {
 		
 		dispatcher.handle(msg);
 		
-		verify(mockedOutstandingRequests).remove(dispatcher);
+		Assert.assertEquals(0, mockedAdmissionController.getNrInFlight());
+		verify(mockedAdmissionController).release();
 		verify(mockedExpecters).remove(dispatcher);
 	}
 	
@@ -91,7 +100,7 @@ public class MessageDispatcherTest {
 		
 		dispatcher.handle(msg);
 		
-		verify(mockedOutstandingRequests, never()).put(dispatcher);
+		verify(mockedAdmissionController, never()).tryAcquire();
 		verify(mockedExpecters, never()).remove(dispatcher);
 		verify(mockedNonConsumableExpecters, never()).remove(dispatcher);
 	}
@@ -106,7 +115,7 @@ public class MessageDispatcherTest {
 		
 		dispatcher.handle(msg);
 		
-		verify(mockedOutstandingRequests, never()).put(dispatcher);
+		verify(mockedAdmissionController, never()).tryAcquire();
 		verify(mockedExpecters, times(1)).remove(dispatcher);
 	}
 	
@@ -136,6 +145,37 @@ public class MessageDispatcherTest {
 		Assert.assertTrue(hasVisited.get());
 	}
 	
+	@Test
+	public void itShouldSendQueuedRequestWhenASlotIsReleased() throws Exception {
+		AdmissionController admissionController = new AdmissionController(1, 1, "queue");
+		MessageDispatcher<Object> first = new MessageDispatcher<Object>(
+				admissionController, mockedExpecters, mockedNonConsumableExpecters,
+				mockedTimer, timeout, mockedKadServer);
+		MessageDispatcher<Object> second = new MessageDispatcher<Object>(
+				admissionController, mockedExpecters, mockedNonConsumableExpecters,
+				mockedTimer, timeout, mockedKadServer);
+		
+		first.send(mockedNode, mockedRequest);
+		second.send(mockedNode, mockedRequest);
+		Assert.assertEquals(1, admissionController.getNrQueued());
+		
+		first.handle(mock(KadMessage.class));
+		Assert.assertEquals(0, admissionController.getNrQueued());
+		Assert.assertEquals(1, admissionController.getNrInFlight());
+		verify(mockedKadServer, times(2)).send(mockedNode, mockedRequest);
+	}
+	
+	@Test(expected=ExecutionException.class)
+	public void itShouldFailWithoutBlockingWhenNoSlotIsAvailable() throws Throwable {
+		AdmissionController admissionController = new AdmissionController(1, 1, "fail");
+		admissionController.tryAcquire();
+		
+		new MessageDispatcher<Object>(
+				admissionController, mockedExpecters, mockedNonConsumableExpecters,
+				mockedTimer, timeout, mockedKadServer)
+			.futureSend(mockedNode, mockedRequest).get();
+	}
+	
 	@Test
 	public void itShouldTimedoutAfterSendWithoutHandle() throws Exception {
 		final KadMessage mockedMsg = mock(KadMessage.class);
@@ -163,6 +203,48 @@ public class MessageDispatcherTest {
 		Assert.assertTrue(hasVisited.get());
 	}
 	
+	@Test
+	public void itShouldNotCountATimeoutWhenHandledBeforeTheTimerExpires() throws Exception {
+		Injector injector = Guice.createInjector(new KadNetModule()
+				.setProperty("openkad.net.udp.port", "-1"));
+		final Node peer = new Node(injector.getInstance(KeyFactory.class).generate());
+		final PingRequest req = injector.getInstance(PingRequest.class);
+		RttEstimator rttEstimator = new RttEstimator(timeout, 1, 10 * timeout, 16);
+		// a known rtt, so a backoff changes the peer's timeout
+		rttEstimator.addSample(peer, timeout / 2, TimeUnit.MILLISECONDS);
+		LivenessTracker livenessTracker = new LivenessTracker(Integer.MAX_VALUE, 16, null, new AtomicInteger());
+		final AtomicReference<MessageDispatcher<Object>> dispatcherRef = new AtomicReference<MessageDispatcher<Object>>();
+		
+		// the response is handled before send returns
+		Communicator fastPeer = new Communicator() {
+			@Override
+			public void run() {
+			}
+			@Override
+			public void bind() {
+			}
+			@Override
+			public void send(Node to, KadMessage msg) {
+				dispatcherRef.get().handle(req.generateResponse(peer));
+			}
+			@Override
+			public void shutdown(Thread serverThread) {
+			}
+		};
+		MessageDispatcher<Object> d = new MessageDispatcher<Object>(
+				mockedAdmissionController, mockedExpecters, mockedNonConsumableExpecters,
+				mockedTimer, timeout, rttEstimator, livenessTracker, fastPeer);
+		dispatcherRef.set(d);
+		d.send(peer, req);
+		
+		long answeredTimeout = rttEstimator.getTimeout(peer);
+		Thread.sleep(answeredTimeout + timeout);
+		
+		Assert.assertEquals(answeredTimeout, rttEstimator.getTimeout(peer));
+		Assert.assertEquals(0, livenessTracker.getNrFailures(peer));
+		Assert.assertTrue(livenessTracker.getLastSuccess(peer) > 0);
+	}
+	
 	@Test
 	public void itShouldWaitUntilHandleWasInvokedWhenSendAndWait() throws Throwable {
 		
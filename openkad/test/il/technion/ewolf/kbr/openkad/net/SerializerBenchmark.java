@@ -0,0 +1,88 @@
+package il.technion.ewolf.kbr.openkad.net;
+
+import il.technion.ewolf.kbr.KeyFactory;
+import il.technion.ewolf.kbr.Node;
+import il.technion.ewolf.kbr.openkad.KadNetModule;
+import il.technion.ewolf.kbr.openkad.msg.FindNodeRequest;
+import il.technion.ewolf.kbr.openkad.msg.KadMessage;
+import il.technion.ewolf.kbr.openkad.msg.PingRequest;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+
+/**
+ * Compares the json and binary serializers: bytes per message and
+ * nano seconds per encode/decode.
+ * Run with: java il.technion.ewolf.kbr.openkad.net.SerializerBenchmark [iterations]
+ */
+public class SerializerBenchmark {
+
+	private static Injector injector(String serializer) {
+		return Guice.createInjector(new KadNetModule()
+			.setProperty("openkad.net.serializer", serializer)
+			.setProperty("openkad.net.udp.port", "10300"));
+	}
+
+	private static List<Node> nodes(KeyFactory keyFactory, int n) throws Exception {
+		List<Node> $ = new ArrayList<Node>();
+		for (int i=0; i < n; ++i) {
+			Node node = new Node(keyFactory.generate());
+			node.setInetAddress(InetAddress.getByName("10.0.0."+i));
+			node.addEndpoint("openkad.udp", 5000+i);
+			$.add(node);
+		}
+		return $;
+	}
+
+	private static void bench(String name, KadSerializer serializer, KadMessage msg, int iterations) throws Exception {
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		serializer.write(msg, bout);
+		byte[] bytes = bout.toByteArray();
+
+		// warmup
+		for (int i=0; i < iterations; ++i) {
+			bout = new ByteArrayOutputStream();
+			serializer.write(msg, bout);
+			serializer.read(new ByteArrayInputStream(bytes));
+		}
+
+		long start = System.nanoTime();
+		for (int i=0; i < iterations; ++i) {
+			bout = new ByteArrayOutputStream();
+			serializer.write(msg, bout);
+		}
+		long encode = (System.nanoTime() - start) / iterations;
+
+		start = System.nanoTime();
+		for (int i=0; i < iterations; ++i) {
+			serializer.read(new ByteArrayInputStream(bytes));
+		}
+		long decode = (System.nanoTime() - start) / iterations;
+
+		System.out.printf("%-8s %-20s %6d bytes %9d ns/encode %9d ns/decode%n",
+				name, msg.getClass().getSimpleName(), bytes.length, encode, decode);
+	}
+
+	public static void main(String[] args) throws Exception {
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+
+		for (String s : new String[] { "json", "binary" }) {
+			Injector injector = injector(s);
+			KadSerializer serializer = injector.getInstance(KadSerializer.class);
+			KeyFactory keyFactory = injector.getInstance(KeyFactory.class);
+
+			FindNodeRequest req = injector.getInstance(FindNodeRequest.class)
+				.setKey(keyFactory.generate());
+
+			bench(s, serializer, injector.getInstance(PingRequest.class), iterations);
+			bench(s, serializer, req, iterations);
+			bench(s, serializer, req.generateResponse(req.getSrc()).setNodes(nodes(keyFactory, 20)), iterations);
+		}
+	}
+}
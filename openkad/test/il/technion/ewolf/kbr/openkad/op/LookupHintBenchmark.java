@@ -0,0 +1,124 @@
+package il.technion.ewolf.kbr.openkad.op;
+
+import il.technion.ewolf.kbr.Key;
+import il.technion.ewolf.kbr.KeyFactory;
+import il.technion.ewolf.kbr.KeybasedRouting;
+import il.technion.ewolf.kbr.openkad.KadNetModule;
+import il.technion.ewolf.kbr.openkad.cache.LookupHintCache;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.TypeLiteral;
+import com.google.inject.name.Names;
+import com.google.inject.util.Modules;
+
+/**
+ * Runs a local network and looks up the same keys twice from one node, with
+ * KadCacheFindValueOperation and no KadCache (openkad.cache.policy none).
+ * Prints the average number of nodes queried and the time per lookup of the
+ * first (cold) and second (hinted) rounds, then the same after clearing the
+ * {@link LookupHintCache}, and the time of repeated lookups after all the
+ * other nodes went down.
+ * Run with: java il.technion.ewolf.kbr.openkad.op.LookupHintBenchmark [nodes] [keys]
+ */
+public class LookupHintBenchmark {
+
+	private static Injector createInjector(int port) {
+		return Guice.createInjector(Modules.override(new KadNetModule()
+				.setProperty("openkad.keyfactory.keysize", "4")
+				.setProperty("openkad.bucket.kbuckets.maxsize", "4")
+				.setProperty("openkad.net.timeout", "500")
+				.setProperty("openkad.op.coalesce.window", "0")
+				.setProperty("openkad.seed", ""+port)
+				.setProperty("openkad.net.udp.port", ""+port))
+			.with(new AbstractModule() {
+				@Override
+				protected void configure() {
+					bind(FindValueOperation.class).annotatedWith(Names.named("openkad.op.findvalue"))
+						.to(KadCacheFindValueOperation.class);
+				}
+			}));
+	}
+
+	private static void round(String name, KeybasedRouting kbr, List<Key> keys,
+			List<Integer> hops, AtomicInteger nrHinted) {
+		hops.clear();
+		int hinted = nrHinted.get();
+		long start = System.nanoTime();
+		for (Key k : keys)
+			kbr.findNode(k);
+		long time = System.nanoTime() - start;
+
+		double sum = 0;
+		for (int h : hops)
+			sum += h;
+		System.out.printf("%-8s %4.1f nodes queried, %6.2f ms per lookup, %d hinted%n",
+				name, sum / hops.size(), time / 1e6 / keys.size(), nrHinted.get() - hinted);
+	}
+
+	public static void main(String[] args) throws Exception {
+		int nrNodes = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+		int nrKeys = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+		int basePort = 16000;
+
+		List<KeybasedRouting> kbrs = new ArrayList<KeybasedRouting>();
+		Injector injector = null;
+		for (int i=0; i < nrNodes; ++i) {
+			Injector inj = createInjector(basePort + i);
+			if (i == 0)
+				injector = inj;
+			KeybasedRouting kbr = inj.getInstance(KeybasedRouting.class);
+			kbr.create();
+			kbrs.add(kbr);
+		}
+
+		Random rnd = new Random(0);
+		for (int i=1; i < kbrs.size(); ++i) {
+			int port = basePort + rnd.nextInt(i);
+			kbrs.get(i).join(Arrays.asList(new URI("openkad.udp://127.0.0.1:"+port+"/")));
+		}
+
+		KeybasedRouting kbr = kbrs.get(0);
+		KeyFactory keyFactory = injector.getInstance(KeyFactory.class);
+		List<Integer> hops = injector.getInstance(com.google.inject.Key.get(new TypeLiteral<List<Integer>>() {},
+				Names.named("openkad.testing.findNodeHopsHistogram")));
+		AtomicInteger nrHinted = injector.getInstance(com.google.inject.Key.get(AtomicInteger.class,
+				Names.named("openkad.testing.nrHintedLookups")));
+		AtomicInteger nrNegative = injector.getInstance(com.google.inject.Key.get(AtomicInteger.class,
+				Names.named("openkad.testing.nrNegativeCacheHits")));
+
+		List<Key> keys = new ArrayList<Key>();
+		for (int i=0; i < nrKeys; ++i)
+			keys.add(keyFactory.generate());
+
+		round("cold", kbr, keys, hops, nrHinted);
+		round("hinted", kbr, keys, hops, nrHinted);
+		injector.getInstance(LookupHintCache.class).clear();
+		round("cleared", kbr, keys, hops, nrHinted);
+
+		// a node left alone: no remote node responds to its lookups
+		for (int i=1; i < kbrs.size(); ++i)
+			kbrs.get(i).shutdown();
+		Key missed = keys.get(0);
+		for (int i=0; i < 3; ++i) {
+			long start = System.nanoTime();
+			kbr.findNode(missed);
+			long cold = System.nanoTime() - start;
+			start = System.nanoTime();
+			kbr.findNode(missed);
+			long negative = System.nanoTime() - start;
+			System.out.printf("miss     cold %7.1f ms, repeated %5.2f ms%n", cold / 1e6, negative / 1e6);
+			injector.getInstance(LookupHintCache.class).clear();
+		}
+		System.out.println("negative hits: " + nrNegative.get());
+		System.exit(0);
+	}
+}
@@ -0,0 +1,82 @@
+package il.technion.ewolf.kbr.openkad.op;
+
+import il.technion.ewolf.kbr.KeybasedRouting;
+import il.technion.ewolf.kbr.openkad.KadNetModule;
+import il.technion.ewolf.kbr.openkad.bucket.KBuckets;
+
+import java.io.File;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+
+/**
+ * Runs a local network, restarts one node from its saved nodes file after a
+ * quarter of the other nodes went down, and prints how long its join took and
+ * how many contacts it kept, with sequential and with parallel refresh lookups.
+ * Run with: java il.technion.ewolf.kbr.openkad.op.WarmStartBenchmark [nodes]
+ */
+public class WarmStartBenchmark {
+
+	private static Injector createInjector(int port, File nodesFile, int refreshConcurrency) {
+		return Guice.createInjector(new KadNetModule()
+				.setProperty("openkad.keyfactory.keysize", "4")
+				.setProperty("openkad.bucket.kbuckets.maxsize", "4")
+				.setProperty("openkad.net.timeout", "500")
+				.setProperty("openkad.file.nodes.path", nodesFile.getAbsolutePath())
+				.setProperty("openkad.join.refresh.concurrency", ""+refreshConcurrency)
+				.setProperty("openkad.seed", ""+port)
+				.setProperty("openkad.net.udp.port", ""+port));
+	}
+
+	private static void run(String name, int refreshConcurrency, int basePort, int nrNodes) throws Exception {
+		List<KeybasedRouting> kbrs = new ArrayList<KeybasedRouting>();
+		List<File> files = new ArrayList<File>();
+		for (int i=0; i < nrNodes; ++i) {
+			File nodesFile = File.createTempFile("openkad.nodes", "");
+			nodesFile.deleteOnExit();
+			new File(nodesFile.getPath() + ".journal").deleteOnExit();
+			files.add(nodesFile);
+			KeybasedRouting kbr = createInjector(basePort + i, nodesFile, refreshConcurrency)
+					.getInstance(KeybasedRouting.class);
+			kbr.create();
+			kbrs.add(kbr);
+		}
+
+		Random rnd = new Random(0);
+		for (int i=1; i < kbrs.size(); ++i) {
+			int port = basePort + rnd.nextInt(i);
+			kbrs.get(i).join(Arrays.asList(new URI("openkad.udp://127.0.0.1:"+port+"/")));
+		}
+
+		// restart the last node after a quarter of the others went down
+		int restarted = nrNodes - 1;
+		kbrs.get(restarted).shutdown();
+		for (int i=1; i < restarted; i += 4)
+			kbrs.get(i).shutdown();
+
+		Injector injector = createInjector(basePort + restarted, files.get(restarted), refreshConcurrency);
+		KeybasedRouting kbr = injector.getInstance(KeybasedRouting.class);
+		kbr.create();
+		int nrRestored = injector.getInstance(KBuckets.class).getAllNodes().size();
+
+		long start = System.nanoTime();
+		kbr.join(Arrays.asList(new URI("openkad.udp://127.0.0.1:"+basePort+"/")));
+		long joinTime = System.nanoTime() - start;
+
+		System.out.printf("%-10s restored %d contacts, join %7.1f ms, %d contacts after join%n",
+				name, nrRestored, joinTime / 1e6, injector.getInstance(KBuckets.class).getAllNodes().size());
+	}
+
+	public static void main(String[] args) throws Exception {
+		int nrNodes = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+
+		run("sequential", 1, 14000, nrNodes);
+		run("parallel", 8, 15000, nrNodes);
+		System.exit(0);
+	}
+}